@@ -49,6 +49,9 @@ public class FhirServerContainer {
       put("PATHLING_SPARK_MASTER_URL", "sparkMasterUrl");
       put("PATHLING_DATABASE_NAME", "databaseName");
       put("PATHLING_EXECUTOR_MEMORY", "executorMemory");
+      put("PATHLING_CACHE_STORAGE_LEVEL", "cacheStorageLevel");
+      put("PATHLING_RESULT_CACHE_DIRECTORY", "resultCacheDirectory");
+      put("PATHLING_SEARCH_SNAPSHOT_DIRECTORY", "searchSnapshotDirectory");
       put("PATHLING_TERMINOLOGY_SERVER_URL", "terminologyServerUrl");
       put("PATHLING_AWS_ACCESS_KEY_ID", "awsAccessKeyId");
       put("PATHLING_AWS_SECRET_ACCESS_KEY", "awsSecretAccessKey");
@@ -70,10 +73,65 @@ public class FhirServerContainer {
     String verboseRequestLogging = System.getenv("PATHLING_VERBOSE_REQUEST_LOGGING");
     config.setVerboseRequestLogging(
         verboseRequestLogging != null && verboseRequestLogging.equals("true"));
+    String referenceIndexEnabled = System.getenv("PATHLING_REFERENCE_INDEX_ENABLED");
+    config.setReferenceIndexEnabled(
+        referenceIndexEnabled != null && referenceIndexEnabled.equals("true"));
     String shufflePartitions = System.getenv("PATHLING_SHUFFLE_PARTITIONS");
     if (shufflePartitions != null) {
       config.setShufflePartitions(Integer.parseInt(shufflePartitions));
     }
+    String importParallelism = System.getenv("PATHLING_IMPORT_PARALLELISM");
+    if (importParallelism != null) {
+      config.setImportParallelism(Integer.parseInt(importParallelism));
+    }
+    String cacheMaxEntries = System.getenv("PATHLING_CACHE_MAX_ENTRIES");
+    if (cacheMaxEntries != null) {
+      config.setCacheMaxEntries(Integer.parseInt(cacheMaxEntries));
+    }
+    String cacheMaxBytes = System.getenv("PATHLING_CACHE_MAX_BYTES");
+    if (cacheMaxBytes != null) {
+      config.setCacheMaxBytes(Long.parseLong(cacheMaxBytes));
+    }
+    String expressionCacheMaxEntries = System.getenv("PATHLING_EXPRESSION_CACHE_MAX_ENTRIES");
+    if (expressionCacheMaxEntries != null) {
+      config.setExpressionCacheMaxEntries(Integer.parseInt(expressionCacheMaxEntries));
+    }
+    String expressionCacheTtl = System.getenv("PATHLING_EXPRESSION_CACHE_TTL");
+    if (expressionCacheTtl != null) {
+      config.setExpressionCacheTtl(Long.parseLong(expressionCacheTtl));
+    }
+    String resultCacheMaxBytes = System.getenv("PATHLING_RESULT_CACHE_MAX_BYTES");
+    if (resultCacheMaxBytes != null) {
+      config.setResultCacheMaxBytes(Long.parseLong(resultCacheMaxBytes));
+    }
+    String resultCacheDiskMaxBytes = System.getenv("PATHLING_RESULT_CACHE_DISK_MAX_BYTES");
+    if (resultCacheDiskMaxBytes != null) {
+      config.setResultCacheDiskMaxBytes(Long.parseLong(resultCacheDiskMaxBytes));
+    }
+    String broadcastThreshold = System.getenv("PATHLING_BROADCAST_THRESHOLD");
+    if (broadcastThreshold != null) {
+      config.setBroadcastThreshold(Long.parseLong(broadcastThreshold));
+    }
+    String bloomFilterFpp = System.getenv("PATHLING_BLOOM_FILTER_FPP");
+    if (bloomFilterFpp != null) {
+      config.setBloomFilterFpp(Double.parseDouble(bloomFilterFpp));
+    }
+    String bloomFilterMaxItems = System.getenv("PATHLING_BLOOM_FILTER_MAX_ITEMS");
+    if (bloomFilterMaxItems != null) {
+      config.setBloomFilterMaxItems(Long.parseLong(bloomFilterMaxItems));
+    }
+    String searchSnapshotTtl = System.getenv("PATHLING_SEARCH_SNAPSHOT_TTL");
+    if (searchSnapshotTtl != null) {
+      config.setSearchSnapshotTtl(Long.parseLong(searchSnapshotTtl));
+    }
+    String bucketCount = System.getenv("PATHLING_BUCKET_COUNT");
+    if (bucketCount != null) {
+      config.setBucketCount(Integer.parseInt(bucketCount));
+    }
+    String vacuumRetentionHours = System.getenv("PATHLING_VACUUM_RETENTION_HOURS");
+    if (vacuumRetentionHours != null) {
+      config.setVacuumRetentionHours(Integer.parseInt(vacuumRetentionHours));
+    }
     String corsAllowedOrigins = System.getenv("PATHLING_CORS_ALLOWED_ORIGINS");
     if (corsAllowedOrigins != null) {
       config.setCorsAllowedOrigins(Arrays.asList(corsAllowedOrigins.split(",")));
@@ -12,11 +12,13 @@ import au.csiro.pathling.encoders.FhirEncoders;
 import au.csiro.pathling.query.*;
 import au.csiro.pathling.update.ImportExecutor;
 import au.csiro.pathling.update.ImportProvider;
+import au.csiro.pathling.update.JobProvider;
+import au.csiro.pathling.update.JobRegistry;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.server.ApacheProxyAddressStrategy;
-import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
@@ -27,7 +29,6 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import javax.annotation.Nonnull;
 import javax.servlet.ServletException;
@@ -98,12 +99,14 @@ public class AnalyticsServer extends RestfulServer {
       }
       setServerAddressStrategy(addressStrategy);
 
-      // Register the import provider.
+      // Register the import provider, along with the provider used to check on the progress of
+      // asynchronous imports.
       FhirContextFactory fhirContextFactory = new FhirContextFactory(FhirVersionEnum.R4);
       ImportExecutor importExecutor = new ImportExecutor(configuration, spark, fhirEncoders,
           fhirContextFactory, executorConfig.getResourceReader());
-      ImportProvider importProvider = new ImportProvider(importExecutor);
-      registerProvider(importProvider);
+      JobRegistry jobRegistry = new JobRegistry(spark, configuration.getImportParallelism());
+      registerProvider(new ImportProvider(importExecutor, jobRegistry));
+      registerProvider(new JobProvider(jobRegistry));
 
       // Register query providers.
       List<Object> queryProviders = buildQueryProviders(executorConfig);
@@ -120,7 +123,17 @@ public class AnalyticsServer extends RestfulServer {
       registerInterceptor(new ResponseHighlighterInterceptor());
 
       // Configure paging.
-      FifoMemoryPagingProvider pagingProvider = new FifoMemoryPagingProvider(SEARCH_MAP_SIZE);
+      BasePagingProvider pagingProvider;
+      if (configuration.getSearchSnapshotTtl() > 0) {
+        String snapshotDirectory = configuration.getSearchSnapshotDirectory() == null
+                                   ? configuration.getWarehouseUrl() + "/"
+                                       + configuration.getDatabaseName() + "/_searches"
+                                   : configuration.getSearchSnapshotDirectory();
+        pagingProvider = new SearchSnapshotPagingProvider(executorConfig, snapshotDirectory,
+            configuration.getSearchSnapshotTtl());
+      } else {
+        pagingProvider = new MemoryPagingProvider(SEARCH_MAP_SIZE);
+      }
       pagingProvider.setDefaultPageSize(DEFAULT_PAGE_SIZE);
       pagingProvider.setMaximumPageSize(MAX_PAGE_SIZE);
       setPagingProvider(pagingProvider);
@@ -150,15 +163,33 @@ public class AnalyticsServer extends RestfulServer {
   }
 
   private static SparkSession buildSpark(AnalyticsServerConfiguration configuration) {
-    SparkSession spark = SparkSession.builder()
+    SparkSession.Builder builder = SparkSession.builder();
+    // Off-heap caching requires off-heap memory to be enabled, and is given the same amount of
+    // memory as the heap of each executor.
+    if (ResourceCache.StorageMode.fromCode(configuration.getCacheStorageLevel())
+        == ResourceCache.StorageMode.OFF_HEAP) {
+      builder.config("spark.memory.offHeap.enabled", "true")
+          .config("spark.memory.offHeap.size", configuration.getExecutorMemory());
+    }
+    // Delta Lake relies on atomic renames to commit to its transaction log, which S3 does not
+    // provide. All writes are made from this driver, so the single driver log store is safe to use.
+    String warehouseUrl = configuration.getWarehouseUrl();
+    if (warehouseUrl != null && (warehouseUrl.startsWith("s3:") || warehouseUrl
+        .startsWith("s3a:"))) {
+      builder.config("spark.delta.logStore.class",
+          "org.apache.spark.sql.delta.storage.S3SingleDriverLogStore");
+    }
+    SparkSession spark = builder
         .appName("pathling-server")
         .config("spark.master", configuration.getSparkMasterUrl())
         .config("spark.executor.memory", configuration.getExecutorMemory())
         .config("spark.dynamicAllocation.enabled", "true")
         .config("spark.shuffle.service.enabled", "true")
         .config("spark.scheduler.mode", "FAIR")
+        // Joins are only broadcast when they are explicitly hinted, see BroadcastHints.
         .config("spark.sql.autoBroadcastJoinThreshold", "-1")
         .config("spark.sql.shuffle.partitions", configuration.getShufflePartitions())
+        .config("spark.sql.optimizer.nestedSchemaPruning.enabled", "true")
         .getOrCreate();
     if (configuration.getAwsAccessKeyId() != null
         && configuration.getAwsSecretAccessKey() != null) {
@@ -199,20 +230,38 @@ public class AnalyticsServer extends RestfulServer {
         Arrays.asList("version", "warehouseUrl", "databaseName", "executorMemory"));
     executorConfig.setExplainQueries(configuration.isExplainQueries());
     executorConfig.setShufflePartitions(configuration.getShufflePartitions());
+    executorConfig.setBroadcastThreshold(configuration.getBroadcastThreshold());
+    executorConfig.setBloomFilterFpp(configuration.getBloomFilterFpp());
+    executorConfig.setBloomFilterMaxItems(configuration.getBloomFilterMaxItems());
+    if (configuration.getExpressionCacheMaxEntries() > 0) {
+      executorConfig.setExpressionCache(
+          new ExpressionCache(configuration.getExpressionCacheMaxEntries(),
+              configuration.getExpressionCacheTtl() * 1000));
+    }
 
     return executorConfig;
   }
 
   private static ResourceReader buildResourceReader(AnalyticsServerConfiguration configuration,
       SparkSession spark) throws IOException, URISyntaxException {
+    ResourceCache cache = new ResourceCache(
+        ResourceCache.StorageMode.fromCode(configuration.getCacheStorageLevel()),
+        configuration.getCacheMaxEntries(), configuration.getCacheMaxBytes(),
+        configuration.getBucketCount());
     return new ResourceReader(spark, configuration.getWarehouseUrl(),
-        configuration.getDatabaseName());
+        configuration.getDatabaseName(), cache);
   }
 
   private List<Object> buildQueryProviders(ExecutorConfiguration executorConfiguration) {
     AggregateExecutor aggregateExecutor = new AggregateExecutor(executorConfiguration);
+    AggregateResultCache resultCache = null;
+    if (configuration.getResultCacheMaxBytes() > 0) {
+      resultCache = new AggregateResultCache(getFhirContext(),
+          executorConfiguration.getResourceReader(), configuration.getResultCacheMaxBytes(),
+          configuration.getResultCacheDirectory(), configuration.getResultCacheDiskMaxBytes());
+    }
     List<Object> providers = new ArrayList<>();
-    providers.add(new AggregateProvider(aggregateExecutor));
+    providers.add(new AggregateProvider(aggregateExecutor, resultCache));
     providers.addAll(buildSearchProviders(executorConfiguration));
     return providers;
   }
@@ -243,7 +292,10 @@ public class AnalyticsServer extends RestfulServer {
     CorsConfiguration corsConfig = new CorsConfiguration();
     corsConfig.setAllowedOrigins(configuration.getCorsAllowedOrigins());
     corsConfig.setAllowedMethods(Arrays.asList("GET", "POST"));
-    corsConfig.setAllowedHeaders(Collections.singletonList("Content-Type"));
+    corsConfig.setAllowedHeaders(Arrays.asList("Content-Type", "Prefer", "If-None-Match"));
+    // These headers are used in the responses of asynchronous operations, and of cached aggregate
+    // queries.
+    corsConfig.setExposedHeaders(Arrays.asList("Content-Location", "X-Progress", "ETag"));
     corsConfig.setMaxAge(600L);
 
     CorsInterceptor interceptor = new CorsInterceptor(corsConfig);
@@ -69,11 +69,112 @@ public class AnalyticsServerConfiguration {
    */
   private boolean verboseRequestLogging;
 
+  /**
+   * (OPTIONAL) Whether to write an index of the references between resources as part of each
+   * import, which is used to speed up the resolve and reverseResolve functions.
+   */
+  private boolean referenceIndexEnabled;
+
   /**
    * (OPTIONAL) Number of partitions to use when shuffling data for joins or aggregations.
    */
   private int shufflePartitions;
 
+  /**
+   * (OPTIONAL) Maximum number of resource types within an import request that will be imported
+   * concurrently.
+   */
+  private int importParallelism;
+
+  /**
+   * (OPTIONAL) How datasets read from the warehouse are cached between requests, one of `none`,
+   * `memory`, `memory-and-disk` or `off-heap`.
+   */
+  private String cacheStorageLevel;
+
+  /**
+   * (OPTIONAL) Maximum number of resource datasets that will be cached at any one time.
+   */
+  private int cacheMaxEntries;
+
+  /**
+   * (OPTIONAL) Maximum total size in bytes of the resource datasets that will be cached at any one
+   * time, measured by the size of their files in the warehouse. Zero disables the limit.
+   */
+  private long cacheMaxBytes;
+
+  /**
+   * (OPTIONAL) Maximum number of compiled expressions that will be cached for each subject resource
+   * type. Zero disables the caching of compiled expressions.
+   */
+  private int expressionCacheMaxEntries;
+
+  /**
+   * (OPTIONAL) Number of seconds after which a compiled expression is evicted from the expression
+   * cache. Zero means that compiled expressions do not expire.
+   */
+  private long expressionCacheTtl;
+
+  /**
+   * (OPTIONAL) Maximum size in bytes of the aggregate results that will be cached in memory. Zero
+   * disables the caching of aggregate results.
+   */
+  private long resultCacheMaxBytes;
+
+  /**
+   * (OPTIONAL) Directory that aggregate results are written to when they are evicted from memory.
+   * If not set, evicted results are discarded.
+   */
+  private String resultCacheDirectory;
+
+  /**
+   * (OPTIONAL) Maximum size in bytes of the aggregate results that will be kept within the result
+   * cache directory.
+   */
+  private long resultCacheDiskMaxBytes;
+
+  /**
+   * (OPTIONAL) Maximum estimated size in bytes of a dataset that will be broadcast to each executor
+   * when it is joined to, rather than shuffled. Zero disables broadcasting.
+   */
+  private long broadcastThreshold;
+
+  /**
+   * (OPTIONAL) False positive rate of the Bloom filters used to reduce the datasets joined to by
+   * the resolve and reverseResolve functions. Zero disables the use of Bloom filters.
+   */
+  private double bloomFilterFpp;
+
+  /**
+   * (OPTIONAL) Maximum number of keys that will be added to a Bloom filter. Joins with more keys
+   * than this are not reduced.
+   */
+  private long bloomFilterMaxItems;
+
+  /**
+   * (OPTIONAL) Number of seconds that the snapshot of a search is kept for after the last page of
+   * its results was retrieved. Zero disables snapshots, and searches are instead held in memory.
+   */
+  private long searchSnapshotTtl;
+
+  /**
+   * (OPTIONAL) Directory that search snapshots are written to. If not set, a directory within the
+   * database is used.
+   */
+  private String searchSnapshotDirectory;
+
+  /**
+   * (OPTIONAL) Number of buckets that resources are hash partitioned into on their ID, both when
+   * they are written to the warehouse and when they are cached. Zero disables bucketing.
+   */
+  private int bucketCount;
+
+  /**
+   * (OPTIONAL) Number of hours that files which are no longer part of a resource table are kept
+   * for, before they are removed by the vacuum that follows each import. Zero disables vacuuming.
+   */
+  private int vacuumRetentionHours;
+
   /**
    * (OPTIONAL) Authentication information for reading and writing data using Amazon S3.
    */
@@ -141,7 +242,22 @@ public class AnalyticsServerConfiguration {
     terminologySocketTimeout = 60000;
     explainQueries = false;
     verboseRequestLogging = false;
+    referenceIndexEnabled = false;
     shufflePartitions = 2;
+    importParallelism = 4;
+    cacheStorageLevel = "memory-and-disk";
+    cacheMaxEntries = 32;
+    cacheMaxBytes = 1024 * 1024 * 1024;
+    expressionCacheMaxEntries = 256;
+    expressionCacheTtl = 3600;
+    resultCacheMaxBytes = 32 * 1024 * 1024;
+    resultCacheDiskMaxBytes = 1024 * 1024 * 1024;
+    broadcastThreshold = 10 * 1024 * 1024;
+    bloomFilterFpp = 0;
+    bloomFilterMaxItems = 1000000;
+    searchSnapshotTtl = 0;
+    bucketCount = 0;
+    vacuumRetentionHours = 168;
     corsAllowedOrigins = Collections.singletonList("*");
   }
 
@@ -239,6 +355,144 @@ public class AnalyticsServerConfiguration {
     this.shufflePartitions = shufflePartitions;
   }
 
+  public int getImportParallelism() {
+    return importParallelism;
+  }
+
+  public void setImportParallelism(int importParallelism) {
+    this.importParallelism = importParallelism;
+  }
+
+  public String getCacheStorageLevel() {
+    return cacheStorageLevel;
+  }
+
+  public void setCacheStorageLevel(String cacheStorageLevel) {
+    this.cacheStorageLevel = cacheStorageLevel;
+  }
+
+  public int getCacheMaxEntries() {
+    return cacheMaxEntries;
+  }
+
+  public void setCacheMaxEntries(int cacheMaxEntries) {
+    this.cacheMaxEntries = cacheMaxEntries;
+  }
+
+  public long getCacheMaxBytes() {
+    return cacheMaxBytes;
+  }
+
+  public void setCacheMaxBytes(long cacheMaxBytes) {
+    this.cacheMaxBytes = cacheMaxBytes;
+  }
+
+  public int getExpressionCacheMaxEntries() {
+    return expressionCacheMaxEntries;
+  }
+
+  public void setExpressionCacheMaxEntries(int expressionCacheMaxEntries) {
+    this.expressionCacheMaxEntries = expressionCacheMaxEntries;
+  }
+
+  public long getExpressionCacheTtl() {
+    return expressionCacheTtl;
+  }
+
+  public void setExpressionCacheTtl(long expressionCacheTtl) {
+    this.expressionCacheTtl = expressionCacheTtl;
+  }
+
+  public long getResultCacheMaxBytes() {
+    return resultCacheMaxBytes;
+  }
+
+  public void setResultCacheMaxBytes(long resultCacheMaxBytes) {
+    this.resultCacheMaxBytes = resultCacheMaxBytes;
+  }
+
+  @Nullable
+  public String getResultCacheDirectory() {
+    return resultCacheDirectory;
+  }
+
+  public void setResultCacheDirectory(@Nullable String resultCacheDirectory) {
+    this.resultCacheDirectory = resultCacheDirectory;
+  }
+
+  public long getResultCacheDiskMaxBytes() {
+    return resultCacheDiskMaxBytes;
+  }
+
+  public void setResultCacheDiskMaxBytes(long resultCacheDiskMaxBytes) {
+    this.resultCacheDiskMaxBytes = resultCacheDiskMaxBytes;
+  }
+
+  public long getBroadcastThreshold() {
+    return broadcastThreshold;
+  }
+
+  public void setBroadcastThreshold(long broadcastThreshold) {
+    this.broadcastThreshold = broadcastThreshold;
+  }
+
+  public double getBloomFilterFpp() {
+    return bloomFilterFpp;
+  }
+
+  public void setBloomFilterFpp(double bloomFilterFpp) {
+    this.bloomFilterFpp = bloomFilterFpp;
+  }
+
+  public long getBloomFilterMaxItems() {
+    return bloomFilterMaxItems;
+  }
+
+  public void setBloomFilterMaxItems(long bloomFilterMaxItems) {
+    this.bloomFilterMaxItems = bloomFilterMaxItems;
+  }
+
+  public long getSearchSnapshotTtl() {
+    return searchSnapshotTtl;
+  }
+
+  public void setSearchSnapshotTtl(long searchSnapshotTtl) {
+    this.searchSnapshotTtl = searchSnapshotTtl;
+  }
+
+  @Nullable
+  public String getSearchSnapshotDirectory() {
+    return searchSnapshotDirectory;
+  }
+
+  public void setSearchSnapshotDirectory(@Nullable String searchSnapshotDirectory) {
+    this.searchSnapshotDirectory = searchSnapshotDirectory;
+  }
+
+  public boolean isReferenceIndexEnabled() {
+    return referenceIndexEnabled;
+  }
+
+  public void setReferenceIndexEnabled(boolean referenceIndexEnabled) {
+    this.referenceIndexEnabled = referenceIndexEnabled;
+  }
+
+  public int getBucketCount() {
+    return bucketCount;
+  }
+
+  public void setBucketCount(int bucketCount) {
+    this.bucketCount = bucketCount;
+  }
+
+  public int getVacuumRetentionHours() {
+    return vacuumRetentionHours;
+  }
+
+  public void setVacuumRetentionHours(int vacuumRetentionHours) {
+    this.vacuumRetentionHours = vacuumRetentionHours;
+  }
+
   public String getAwsAccessKeyId() {
     return awsAccessKeyId;
   }
@@ -339,7 +593,24 @@ public class AnalyticsServerConfiguration {
         ", terminologySocketTimeout=" + terminologySocketTimeout +
         ", explainQueries=" + explainQueries +
         ", verboseRequestLogging=" + verboseRequestLogging +
+        ", referenceIndexEnabled=" + referenceIndexEnabled +
         ", shufflePartitions=" + shufflePartitions +
+        ", importParallelism=" + importParallelism +
+        ", cacheStorageLevel='" + cacheStorageLevel + '\'' +
+        ", cacheMaxEntries=" + cacheMaxEntries +
+        ", cacheMaxBytes=" + cacheMaxBytes +
+        ", expressionCacheMaxEntries=" + expressionCacheMaxEntries +
+        ", expressionCacheTtl=" + expressionCacheTtl +
+        ", resultCacheMaxBytes=" + resultCacheMaxBytes +
+        ", resultCacheDirectory='" + resultCacheDirectory + '\'' +
+        ", resultCacheDiskMaxBytes=" + resultCacheDiskMaxBytes +
+        ", broadcastThreshold=" + broadcastThreshold +
+        ", bloomFilterFpp=" + bloomFilterFpp +
+        ", bloomFilterMaxItems=" + bloomFilterMaxItems +
+        ", searchSnapshotTtl=" + searchSnapshotTtl +
+        ", searchSnapshotDirectory='" + searchSnapshotDirectory + '\'' +
+        ", bucketCount=" + bucketCount +
+        ", vacuumRetentionHours=" + vacuumRetentionHours +
         ", awsAccessKeyId='" + awsAccessKeyId + '\'' +
         ", corsAllowedOrigins=" + corsAllowedOrigins +
         ", authEnabled=" + authEnabled +
@@ -6,6 +6,7 @@
 
 package au.csiro.pathling.query;
 
+import static au.csiro.pathling.query.parsing.BroadcastHints.broadcastIfSmall;
 import static au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType.BOOLEAN;
 
 import au.csiro.pathling.query.AggregateRequest.Aggregation;
@@ -15,6 +16,9 @@ import au.csiro.pathling.query.parsing.LiteralComposer;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.parser.ExpressionParser;
 import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import au.csiro.pathling.query.parsing.plan.PlanNode;
+import au.csiro.pathling.query.parsing.plan.PlanOptimiser;
+import au.csiro.pathling.query.parsing.plan.QueryPlan;
 import au.csiro.pathling.utilities.Strings;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
@@ -23,7 +27,9 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -32,6 +38,7 @@ import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.RelationalGroupedDataset;
 import org.apache.spark.sql.Row;
+import org.apache.spark.storage.StorageLevel;
 import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.Enumeration;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
@@ -63,6 +70,7 @@ public class AggregateExecutor extends QueryExecutor {
   }
 
   public AggregateResponse execute(AggregateRequest query) throws InvalidRequestException {
+    Dataset<Row> persisted = null;
     try {
       // Log query.
       logger.info("Received $aggregate request: aggregations=[" + query.getAggregations().stream()
@@ -72,34 +80,71 @@ public class AggregateExecutor extends QueryExecutor {
               Collectors.joining(",")) + "] filters=[" + String.join(",", query.getFilters())
           + "]");
 
-      // Build a new expression parser, and parse all of the filter and grouping expressions within
-      // the query.
-      ExpressionParserContext context = buildParserContext(query.getSubjectResource());
+      // Check that each of the groupings and aggregations has an expression.
+      List<String> groupingExpressions = query.getGroupings().stream()
+          .map(grouping -> {
+            if (grouping.getExpression() == null) {
+              throw new InvalidRequestException("Grouping component must have expression");
+            }
+            return grouping.getExpression();
+          }).collect(Collectors.toList());
+      List<String> aggregationExpressions = query.getAggregations().stream()
+          .map(aggregation -> {
+            if (aggregation.getExpression() == null) {
+              throw new InvalidRequestException("Aggregation component must have expression");
+            }
+            return aggregation.getExpression();
+          }).collect(Collectors.toList());
+
+      // Build a logical plan for all of the expressions within the query, and optimise it. Only the
+      // elements referenced by the optimised plan are read from the resources used within the
+      // query.
+      QueryPlan plan = new PlanOptimiser(configuration.isExplainQueries())
+          .optimise(QueryPlan.build(query.getFilters(), groupingExpressions,
+              aggregationExpressions));
+      ExpressionParserContext context = buildParserContext(query.getSubjectResource(),
+          plan.getReferencedElements());
+
+      // Lower the filters and groupings into datasets. Plan nodes that are shared between
+      // expressions are only lowered once.
       ExpressionParser expressionParser = new ExpressionParser(context);
-      List<ParsedExpression> parsedFilters = parseFilters(expressionParser,
-          query.getFilters());
-      List<ParsedExpression> parsedGroupings = parseGroupings(expressionParser,
-          query.getGroupings());
+      Map<PlanNode, ParsedExpression> lowered = new IdentityHashMap<>();
+      List<ParsedExpression> parsedFilters = parseFilters(context, expressionParser,
+          plan.getFilters(), lowered);
+      List<ParsedExpression> parsedGroupings = parseGroupings(context, expressionParser,
+          plan.getGroupings(), lowered);
 
       // Add information about the groupings to the parser context before parsing the aggregations.
       context.getGroupings().addAll(parsedGroupings);
-      List<ParsedExpression> parsedAggregations = parseAggregation(expressionParser,
-          query.getAggregations());
+      List<ParsedExpression> parsedAggregations = parseAggregation(context, expressionParser,
+          plan.getAggregations());
 
-      // Gather all expressions into a single list.
+      // Gather the expressions that are joined after the filters into a single list.
       ParsedExpression subjectResource = context.getSubjectContext();
-      List<Joinable> allExpressions = new ArrayList<>();
-      allExpressions.add(subjectResource);
-      allExpressions.addAll(parsedFilters);
-      allExpressions.addAll(parsedGroupings.stream().map(ParsedExpression::getGroupingJoinable)
+      List<Joinable> filterExpressions = new ArrayList<>();
+      filterExpressions.add(subjectResource);
+      filterExpressions.addAll(parsedFilters);
+      List<Joinable> remainingExpressions = new ArrayList<>();
+      remainingExpressions.addAll(parsedGroupings.stream()
+          .map(ParsedExpression::getGroupingJoinable)
           .collect(Collectors.toList()));
-      allExpressions
+      remainingExpressions
           .addAll(parsedAggregations.stream().map(ParsedExpression::getAggregationJoinable)
               .collect(Collectors.toList()));
-      Dataset<Row> result = joinExpressions(allExpressions);
 
-      // Apply filters.
-      result = applyFilters(result, parsedFilters);
+      // The filters are joined and applied first. The filtered dataset is persisted, as it is used
+      // both as the basis of the join and to find the IDs of the subject resources that satisfy the
+      // filters. Each of the remaining datasets is reduced to the rows for those resources before
+      // it is joined, so that rows that would be discarded are not carried through the join.
+      Dataset<Row> filtered = applyFilters(joinExpressions(filterExpressions), parsedFilters);
+      Dataset<Row> subjectIds = null;
+      if (!parsedFilters.isEmpty()) {
+        filtered = filtered.persist(StorageLevel.MEMORY_AND_DISK());
+        persisted = filtered;
+        subjectIds = filterSubjectIds(context, subjectResource, filtered);
+      }
+      Dataset<Row> result = joinExpressions(filtered, filterExpressions, remainingExpressions,
+          subjectIds);
 
       // Apply groupings.
       Column[] groupingCols = parsedGroupings.stream()
@@ -121,7 +166,7 @@ public class AggregateExecutor extends QueryExecutor {
                : result.agg(firstAggregation, remainingAggregations);
 
       // Translate the result into a response object to be passed back to the user.
-      return buildResponse(result, parsedAggregations, parsedGroupings, parsedFilters);
+      return buildResponse(result, parsedAggregations, parsedGroupings, query.getFilters());
     } catch (BaseServerResponseException e) {
       // Errors relating to invalid input are re-raised, to be dealt with by HAPI.
       logger.warn("Invalid request", e);
@@ -129,67 +174,93 @@ public class AggregateExecutor extends QueryExecutor {
     } catch (Exception | AssertionError e) {
       // All unexpected exceptions get wrapped in a 500 for presenting back to the user.
       throw new InternalErrorException("Unexpected error occurred while executing query", e);
+    } finally {
+      if (persisted != null) {
+        persisted.unpersist(false);
+      }
     }
   }
 
   /**
-   * Executes the ExpressionParser over each of the expressions within a list of aggregations, then
-   * returns a list of ParsedExpressions.
+   * Returns a dataset of the IDs of the subject resources within a dataset to which the filters
+   * have been applied.
    */
-  private List<ParsedExpression> parseAggregation(@Nonnull ExpressionParser expressionParser,
-      @Nonnull List<Aggregation> aggregations) {
+  @Nonnull
+  private static Dataset<Row> filterSubjectIds(@Nonnull ExpressionParserContext context,
+      @Nonnull ParsedExpression subjectResource, @Nonnull Dataset<Row> filtered) {
+    // The ID column is aliased, so that it can be told apart from the ID columns of the datasets
+    // that it is joined to.
+    Dataset<Row> subjectIds = filtered
+        .select(subjectResource.getIdColumn().alias("filtered_id"))
+        .distinct();
+    return broadcastIfSmall(context, subjectIds);
+  }
+
+  /**
+   * Lowers each of the aggregations within a query plan, then returns a list of ParsedExpressions.
+   */
+  private List<ParsedExpression> parseAggregation(@Nonnull ExpressionParserContext context,
+      @Nonnull ExpressionParser expressionParser, @Nonnull List<PlanNode> aggregations) {
+    Map<PlanNode, ParsedExpression> lowered = new IdentityHashMap<>();
     return aggregations.stream()
-        .map(aggregation -> {
-          String aggExpression = aggregation.getExpression();
-          if (aggExpression == null) {
-            throw new InvalidRequestException("Aggregation component must have expression");
-          }
-          ParsedExpression parsed = expressionParser.parse(aggExpression);
+        .map(aggregation -> lowered.computeIfAbsent(aggregation, node -> {
+          ParsedExpression parsed = compile(context, expressionParser, node.toExpression(),
+              false);
           if (parsed.getAggregationDataset() == null || parsed.getAggregationIdColumn() == null) {
             throw new InvalidRequestException(
                 "Expression is not compatible with aggregation: " + parsed.getFhirPath());
           }
           return parsed;
-        }).collect(Collectors.toList());
+        })).collect(Collectors.toList());
   }
 
   /**
-   * Executes the ExpressionParser over each of the expressions within a list of groupings, then
-   * returns a list of ParsedExpressions.
+   * Lowers each of the groupings within a query plan, then returns a list of ParsedExpressions.
    */
-  private List<ParsedExpression> parseGroupings(@Nonnull ExpressionParser expressionParser,
-      @Nonnull List<Grouping> groupings) {
-    List<ParsedExpression> groupingParsedExpressions;
-    groupingParsedExpressions = groupings.stream()
+  private List<ParsedExpression> parseGroupings(@Nonnull ExpressionParserContext context,
+      @Nonnull ExpressionParser expressionParser, @Nonnull List<PlanNode> groupings,
+      @Nonnull Map<PlanNode, ParsedExpression> lowered) {
+    return groupings.stream()
         .map(grouping -> {
-          String groupingExpression = grouping.getExpression();
-          if (groupingExpression == null) {
-            throw new InvalidRequestException("Grouping component must have expression");
-          }
-          ParsedExpression result = expressionParser.parse(groupingExpression);
+          ParsedExpression result = lower(context, expressionParser, grouping, lowered);
           // Validate that the return value of the expression is a collection of primitive types,
           // this is a requirement for a grouping.
           if (!result.isPrimitive()) {
             throw new InvalidRequestException(
-                "Grouping expression not of primitive type: " + groupingExpression);
+                "Grouping expression not of primitive type: " + grouping.toExpression());
           }
           return result;
         }).collect(Collectors.toList());
-    return groupingParsedExpressions;
   }
 
-  private List<ParsedExpression> parseFilters(@Nonnull ExpressionParser expressionParser,
-      @Nonnull List<String> filters) {
-    return filters.stream().map(expression -> {
-      ParsedExpression result = expressionParser.parse(expression);
+  /**
+   * Lowers each of the filters within a query plan, then returns a list of ParsedExpressions.
+   */
+  private List<ParsedExpression> parseFilters(@Nonnull ExpressionParserContext context,
+      @Nonnull ExpressionParser expressionParser, @Nonnull List<PlanNode> filters,
+      @Nonnull Map<PlanNode, ParsedExpression> lowered) {
+    return filters.stream().map(filter -> {
+      ParsedExpression result = lower(context, expressionParser, filter, lowered);
       if (result.getFhirPathType() != BOOLEAN) {
         throw new InvalidRequestException(
-            "Filter expression is not of boolean type: " + expression);
+            "Filter expression is not of boolean type: " + filter.toExpression());
       }
       return result;
     }).collect(Collectors.toList());
   }
 
+  @Nonnull
+  private static ParsedExpression lower(@Nonnull ExpressionParserContext context,
+      @Nonnull ExpressionParser expressionParser, @Nonnull PlanNode node,
+      @Nonnull Map<PlanNode, ParsedExpression> lowered) {
+    ParsedExpression result = lowered.get(node);
+    if (result == null) {
+      result = compile(context, expressionParser, node.toExpression(), true);
+      lowered.put(node, result);
+    }
+    return result;
+  }
+
   /**
    * Build an AggregateQueryResult resource from the supplied Dataset, embedding the original
    * AggregateQuery and honouring the hints within the QueryPlan.
@@ -197,7 +268,7 @@ public class AggregateExecutor extends QueryExecutor {
   private AggregateResponse buildResponse(@Nonnull Dataset<Row> dataset,
       @Nonnull List<ParsedExpression> parsedAggregations,
       @Nonnull List<ParsedExpression> parsedGroupings,
-      @Nonnull List<ParsedExpression> parsedFilters
+      @Nonnull List<String> filters
   ) {
     if (configuration.isExplainQueries()) {
       logger.info("$aggregate query plan:");
@@ -208,7 +279,7 @@ public class AggregateExecutor extends QueryExecutor {
     AggregateResponse queryResult = new AggregateResponse();
 
     List<AggregateResponse.Grouping> groupings = rows.stream()
-        .map(mapRowToGrouping(parsedAggregations, parsedGroupings, parsedFilters))
+        .map(mapRowToGrouping(parsedAggregations, parsedGroupings, filters))
         .collect(Collectors.toList());
     queryResult.getGroupings().addAll(groupings);
 
@@ -222,7 +293,7 @@ public class AggregateExecutor extends QueryExecutor {
   private Function<Row, AggregateResponse.Grouping> mapRowToGrouping(
       @Nonnull List<ParsedExpression> parsedAggregations,
       @Nonnull List<ParsedExpression> parsedGroupings,
-      List<ParsedExpression> parsedFilters) {
+      @Nonnull List<String> filters) {
     return row -> {
       AggregateResponse.Grouping grouping = new AggregateResponse.Grouping();
 
@@ -238,7 +309,7 @@ public class AggregateExecutor extends QueryExecutor {
         grouping.getResults().add(value);
       }
 
-      String drillDown = buildDrillDown(parsedGroupings, parsedFilters, grouping);
+      String drillDown = buildDrillDown(parsedGroupings, filters, grouping);
       grouping.setDrillDown(new StringType(drillDown));
 
       return grouping;
@@ -275,7 +346,7 @@ public class AggregateExecutor extends QueryExecutor {
    * Builds a URL for drilling down from an aggregate grouping to a list of resources.
    */
   private static String buildDrillDown(@Nonnull List<ParsedExpression> parsedGroupings,
-      List<ParsedExpression> parsedFilters, AggregateResponse.Grouping grouping) {
+      @Nonnull List<String> filters, AggregateResponse.Grouping grouping) {
     // We use a Set here to avoid situations where we needlessly have the same condition in the
     // expression more than once.
     Set<String> fhirPaths = new HashSet<>();
@@ -302,11 +373,8 @@ public class AggregateExecutor extends QueryExecutor {
       }
     }
 
-    // Add each of the filter expressions.
-    List<String> filterFhirPaths = parsedFilters.stream()
-        .map(ParsedExpression::getFhirPath)
-        .collect(Collectors.toList());
-    fhirPaths.addAll(filterFhirPaths);
+    // Add each of the filter expressions, as they were supplied within the request.
+    fhirPaths.addAll(filters);
 
     // If there is more than one expression, wrap each expression in parentheses before joining
     // together with Boolean AND operators.
@@ -9,10 +9,21 @@ package au.csiro.pathling.query;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.hl7.fhir.r4.model.Parameters;
 
 /**
  * HAPI plain provider that provides an entry point for the `$aggregate` system-wide operation.
+ * <p>
+ * Identical requests that arrive while one of them is being executed share the same execution. If
+ * a result cache is supplied, results are served from it where possible, and each response carries
+ * an entity tag that clients can use to make conditional requests.
  *
  * @author John Grimes
  */
@@ -20,20 +31,70 @@ public class AggregateProvider {
 
   private final AggregateExecutor aggregateExecutor;
 
+  @Nullable
+  private final AggregateResultCache resultCache;
+
+  @Nonnull
+  private final AggregateRequestCoalescer coalescer = new AggregateRequestCoalescer();
+
   public AggregateProvider(AggregateExecutor aggregateExecutor) {
+    this(aggregateExecutor, null);
+  }
+
+  public AggregateProvider(AggregateExecutor aggregateExecutor,
+      @Nullable AggregateResultCache resultCache) {
     assert aggregateExecutor != null : "Must supply aggregate executor";
 
     this.aggregateExecutor = aggregateExecutor;
+    this.resultCache = resultCache;
   }
 
   @Operation(name = "$aggregate", idempotent = true)
-  public Parameters aggregate(@ResourceParam Parameters parameters) {
+  public Parameters aggregate(@ResourceParam Parameters parameters,
+      HttpServletRequest servletRequest, HttpServletResponse servletResponse) {
     if (parameters == null) {
       throw new InvalidRequestException("Missing Parameters resource");
     }
     AggregateRequest query = new AggregateRequest(parameters);
-    AggregateResponse result = aggregateExecutor.execute(query);
-    return result.toParameters();
+    // Requests with missing expressions are passed straight to the executor, so that it can report
+    // them.
+    if (resultCache == null || !NormalisedAggregateRequest.canNormalise(query)) {
+      return execute(query);
+    }
+
+    // The entity tag changes whenever the warehouse is updated, so clients must revalidate before
+    // reusing a response.
+    String eTag = resultCache.getETag(query);
+    if (servletResponse != null) {
+      servletResponse.setHeader("ETag", eTag);
+      servletResponse.setHeader("Cache-Control", "no-cache");
+    }
+    String ifNoneMatch = servletRequest == null
+                         ? null
+                         : servletRequest.getHeader("If-None-Match");
+    if (ifNoneMatch != null && Arrays.stream(ifNoneMatch.split(","))
+        .map(String::trim)
+        .anyMatch(tag -> tag.equals(eTag) || tag.equals("W/" + eTag) || tag.equals("*"))) {
+      // A matching tag only means "not modified" for a retrieval, see
+      // https://tools.ietf.org/html/rfc7232#section-3.2.
+      String method = servletRequest.getMethod();
+      if (method == null || method.equals("GET") || method.equals("HEAD")) {
+        throw new NotModifiedException("Aggregate result has not changed");
+      }
+      throw new PreconditionFailedException("Aggregate result matches If-None-Match header");
+    }
+    return resultCache.get(query, this::execute);
+  }
+
+  @Nonnull
+  private Parameters execute(@Nonnull AggregateRequest query) {
+    return coalescer
+        .execute(query, request -> aggregateExecutor.execute(request).toParameters());
+  }
+
+  @Nonnull
+  public AggregateRequestCoalescer getCoalescer() {
+    return coalescer;
   }
 
 }
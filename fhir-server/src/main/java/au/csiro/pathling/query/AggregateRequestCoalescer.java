@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import org.hl7.fhir.r4.model.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ensures that only one execution of an aggregate query is in flight at any one time. A request
+ * that arrives while an execution of the same normalised request is in progress waits for that
+ * execution to complete and receives a copy of its result, rather than starting another Spark job.
+ *
+ * @author John Grimes
+ */
+public class AggregateRequestCoalescer {
+
+  private static final Logger logger = LoggerFactory.getLogger(AggregateRequestCoalescer.class);
+
+  @Nonnull
+  private final Map<String, CompletableFuture<Parameters>> inFlight = new ConcurrentHashMap<>();
+
+  @Nonnull
+  private final AtomicLong executions = new AtomicLong();
+
+  @Nonnull
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Returns the result of the request, either by calling the executor with a normalised copy of the
+   * request, or by waiting for an execution of the same normalised request that is already in
+   * progress. Any error thrown by the executor is thrown to all of the waiting requests.
+   */
+  @Nonnull
+  public Parameters execute(@Nonnull AggregateRequest request,
+      @Nonnull Function<AggregateRequest, Parameters> executor) {
+    // Requests with missing expressions are passed through, so that the executor can report them.
+    if (!NormalisedAggregateRequest.canNormalise(request)) {
+      return executor.apply(request);
+    }
+    NormalisedAggregateRequest normalised = NormalisedAggregateRequest.of(request);
+    CompletableFuture<Parameters> future = new CompletableFuture<>();
+    CompletableFuture<Parameters> existing = inFlight.putIfAbsent(normalised.getKey(), future);
+
+    Parameters result;
+    if (existing == null) {
+      executions.incrementAndGet();
+      try {
+        result = executor.apply(normalised.getRequest());
+        future.complete(result);
+      } catch (RuntimeException | Error e) {
+        future.completeExceptionally(e);
+        throw e;
+      } finally {
+        inFlight.remove(normalised.getKey(), future);
+      }
+    } else {
+      coalesced.incrementAndGet();
+      logger.debug("Waiting for identical aggregate request already in progress");
+      try {
+        result = existing.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Request coalescer: " + this);
+    }
+    // Each request receives its own copy of the result, as it is rearranged to suit the order of
+    // the request and is then serialised independently.
+    return normalised.restoreOrder(result.copy());
+  }
+
+  /**
+   * @return the number of executions that were started
+   */
+  public long getExecutions() {
+    return executions.get();
+  }
+
+  /**
+   * @return the number of requests that were served by an execution that was already in progress
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+
+  @Override
+  public String toString() {
+    return "AggregateRequestCoalescer{" +
+        "inFlight=" + inFlight.size() +
+        ", executions=" + executions +
+        ", coalesced=" + coalesced +
+        '}';
+  }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.hl7.fhir.r4.model.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of the results of aggregate queries, shared by all requests.
+ * <p>
+ * Requests are normalised before they are looked up, so that requests which differ only in the
+ * order of their aggregations, groupings or filters, or in their labels, share the same entry. Each
+ * entry is tagged with the warehouse version reported by the {@link ResourceReader}, and the whole
+ * cache is invalidated when that version changes, e.g. following an import.
+ * <p>
+ * Results are held in memory up to a maximum size, after which the least recently used results are
+ * evicted. If a directory is configured, evicted results are written to disk, up to a separate
+ * maximum size, and are read back from there upon their next use.
+ *
+ * @author John Grimes
+ */
+public class AggregateResultCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(AggregateResultCache.class);
+  private static final String FILE_PREFIX = "aggregate-";
+  private static final String FILE_SUFFIX = ".json";
+
+  @Nonnull
+  private final FhirContext fhirContext;
+
+  @Nonnull
+  private final ResourceReader resourceReader;
+
+  private final long maxBytes;
+
+  @Nullable
+  private final Path directory;
+
+  private final long diskMaxBytes;
+
+  /**
+   * Distinguishes the entity tags issued by this instance of the server from those issued before it
+   * was restarted, as the warehouse version is not persisted.
+   */
+  @Nonnull
+  private final String instanceId = UUID.randomUUID().toString();
+
+  @Nonnull
+  private final LinkedHashMap<String, String> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+  @Nonnull
+  private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long memoryBytes;
+  private long diskBytes;
+  private long version = -1;
+
+  @Nonnull
+  private final AtomicLong hits = new AtomicLong();
+
+  @Nonnull
+  private final AtomicLong misses = new AtomicLong();
+
+  @Nonnull
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param fhirContext used to serialise the cached results
+   * @param resourceReader the source of the warehouse version
+   * @param maxBytes the maximum size of the results held in memory
+   * @param directory a directory to write results to when they are evicted from memory, or null
+   * @param diskMaxBytes the maximum size of the results held within the directory
+   */
+  public AggregateResultCache(@Nonnull FhirContext fhirContext,
+      @Nonnull ResourceReader resourceReader, long maxBytes, @Nullable String directory,
+      long diskMaxBytes) {
+    this.fhirContext = fhirContext;
+    this.resourceReader = resourceReader;
+    this.maxBytes = maxBytes;
+    this.diskMaxBytes = diskMaxBytes;
+    if (directory == null) {
+      this.directory = null;
+    } else {
+      // Any results left behind by a previous instance of the server can not be trusted, as the
+      // warehouse may have changed since they were written.
+      this.directory = Paths.get(directory);
+      try {
+        Files.createDirectories(this.directory);
+        try (DirectoryStream<Path> stale = Files
+            .newDirectoryStream(this.directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+          for (Path file : stale) {
+            Files.deleteIfExists(file);
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to initialise result cache directory: " + directory, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the entity tag for the result of the request at the current warehouse version. The tag
+   * changes whenever the result of the request may have changed.
+   */
+  @Nonnull
+  public String getETag(@Nonnull AggregateRequest request) {
+    String key = NormalisedAggregateRequest.of(request).getKey();
+    return "\"" + hash(instanceId + "|" + resourceReader.getWarehouseVersion() + "|" + key) + "\"";
+  }
+
+  /**
+   * Returns the result of the request, calling the executor if it is not already cached. The
+   * executor is called with a normalised copy of the request, and its result is rearranged to match
+   * the order of the aggregations and groupings within the original request.
+   */
+  @Nonnull
+  public Parameters get(@Nonnull AggregateRequest request,
+      @Nonnull Function<AggregateRequest, Parameters> executor) {
+    // Requests with missing expressions are passed through, so that the executor can report them.
+    if (!NormalisedAggregateRequest.canNormalise(request)) {
+      return executor.apply(request);
+    }
+    NormalisedAggregateRequest normalised = NormalisedAggregateRequest.of(request);
+    long currentVersion = resourceReader.getWarehouseVersion();
+
+    String json = lookup(normalised.getKey(), currentVersion);
+    Parameters result;
+    if (json != null) {
+      hits.incrementAndGet();
+      result = fhirContext.newJsonParser().parseResource(Parameters.class, json);
+    } else {
+      misses.incrementAndGet();
+      result = executor.apply(normalised.getRequest());
+      store(normalised.getKey(), currentVersion,
+          fhirContext.newJsonParser().encodeResourceToString(result));
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Result cache: " + this);
+    }
+    return normalised.restoreOrder(result);
+  }
+
+  @Nullable
+  private synchronized String lookup(@Nonnull String key, long currentVersion) {
+    checkVersion(currentVersion);
+    String json = memory.get(key);
+    if (json != null || directory == null || !disk.containsKey(key)) {
+      return json;
+    }
+    // Move the result from disk back into memory.
+    Path file = fileFor(key);
+    try {
+      json = new String(Files.readAllBytes(file), UTF_8);
+    } catch (IOException e) {
+      logger.warn("Unable to read cached result: " + file, e);
+      json = null;
+    }
+    removeFromDisk(key);
+    if (json != null) {
+      putInMemory(key, json);
+    }
+    return json;
+  }
+
+  private synchronized void store(@Nonnull String key, long resultVersion, @Nonnull String json) {
+    checkVersion(resultVersion);
+    // A result computed against a version of the warehouse that has since been superseded is not
+    // kept.
+    if (resultVersion == version) {
+      putInMemory(key, json);
+    }
+  }
+
+  private void checkVersion(long currentVersion) {
+    if (currentVersion > version) {
+      if (version != -1) {
+        logger.info("Warehouse version changed, clearing result cache: " + this);
+      }
+      clearEntries();
+      version = currentVersion;
+    }
+  }
+
+  private void putInMemory(@Nonnull String key, @Nonnull String json) {
+    String previous = memory.put(key, json);
+    if (previous != null) {
+      memoryBytes -= sizeOf(previous);
+    }
+    memoryBytes += sizeOf(json);
+    Iterator<Map.Entry<String, String>> iterator = memory.entrySet().iterator();
+    while (memoryBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, String> eldest = iterator.next();
+      iterator.remove();
+      memoryBytes -= sizeOf(eldest.getValue());
+      if (directory == null) {
+        evictions.incrementAndGet();
+      } else {
+        putOnDisk(eldest.getKey(), eldest.getValue());
+      }
+    }
+  }
+
+  private void putOnDisk(@Nonnull String key, @Nonnull String json) {
+    Path file = fileFor(key);
+    byte[] bytes = json.getBytes(UTF_8);
+    try {
+      Files.write(file, bytes);
+    } catch (IOException e) {
+      logger.warn("Unable to write cached result: " + file, e);
+      evictions.incrementAndGet();
+      return;
+    }
+    disk.put(key, (long) bytes.length);
+    diskBytes += bytes.length;
+    Iterator<String> iterator = new ArrayList<>(disk.keySet()).iterator();
+    while (diskBytes > diskMaxBytes && iterator.hasNext()) {
+      removeFromDisk(iterator.next());
+      evictions.incrementAndGet();
+    }
+  }
+
+  private void removeFromDisk(@Nonnull String key) {
+    Long size = disk.remove(key);
+    if (size == null) {
+      return;
+    }
+    diskBytes -= size;
+    Path file = fileFor(key);
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warn("Unable to delete cached result: " + file, e);
+    }
+  }
+
+  private void clearEntries() {
+    evictions.addAndGet(memory.size() + disk.size());
+    memory.clear();
+    memoryBytes = 0;
+    new ArrayList<>(disk.keySet()).forEach(this::removeFromDisk);
+  }
+
+  /**
+   * Removes all results from the cache.
+   */
+  public synchronized void clear() {
+    clearEntries();
+  }
+
+  @Nonnull
+  private Path fileFor(@Nonnull String key) {
+    assert directory != null;
+    return directory.resolve(FILE_PREFIX + hash(key) + FILE_SUFFIX);
+  }
+
+  private static long sizeOf(@Nonnull String json) {
+    // Strings are held in memory as UTF-16.
+    return json.length() * 2L;
+  }
+
+  @Nonnull
+  private static String hash(@Nonnull String input) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest(input.getBytes(UTF_8))) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new InternalErrorException("SHA-256 algorithm not available", e);
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the proportion of lookups that were served from the cache
+   */
+  public double getHitRate() {
+    long total = hits.get() + misses.get();
+    return total == 0
+           ? 0
+           : (double) hits.get() / total;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "AggregateResultCache{" +
+        "version=" + version +
+        ", memoryEntries=" + memory.size() +
+        ", memoryBytes=" + memoryBytes +
+        ", diskEntries=" + disk.size() +
+        ", diskBytes=" + diskBytes +
+        ", hits=" + hits +
+        ", misses=" + misses +
+        ", evictions=" + evictions +
+        ", hitRate=" + String.format("%.3f", getHitRate()) +
+        '}';
+  }
+
+}
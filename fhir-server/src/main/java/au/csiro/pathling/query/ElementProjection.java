@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.apache.spark.sql.functions.lit;
+
+import au.csiro.pathling.query.parsing.parser.ResourceProjection;
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructField;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Reduces the resources returned by a search to the elements requested using the `_elements` or
+ * `_summary` parameters, before they are collected and decoded.
+ * <p>
+ * The encoder for a resource type can only decode rows with the full schema of that type, so the
+ * elements that are not requested are replaced with nulls rather than removed. This allows Spark to
+ * skip reading them from the Parquet files, and means that they are not transferred to the driver
+ * or decoded into HAPI objects.
+ *
+ * @author John Grimes
+ */
+public abstract class ElementProjection {
+
+  /**
+   * Elements that are always included, in the same way that HAPI always retains them when it
+   * filters the elements of a resource.
+   */
+  private static final Set<String> MANDATORY_ELEMENTS = new HashSet<>(
+      Arrays.asList("id", "meta"));
+
+  /**
+   * Returns the names of the top-level elements of the resource type that are marked as summary
+   * elements.
+   */
+  @Nonnull
+  public static Set<String> summaryElements(@Nonnull FhirContext fhirContext,
+      @Nonnull ResourceType resourceType) {
+    RuntimeResourceDefinition definition = fhirContext
+        .getResourceDefinition(resourceType.toCode());
+    return definition.getChildren().stream()
+        .filter(BaseRuntimeChildDefinition::isSummary)
+        .map(ElementProjection::elementName)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Returns the names of the top-level elements named by the supplied values of the `_elements`
+   * parameter. Values may be qualified with the resource type, and paths to nested elements are
+   * reduced to the top-level element that contains them.
+   */
+  @Nonnull
+  public static Set<String> topLevelElements(@Nonnull Collection<String> elements) {
+    return elements.stream()
+        .map(String::trim)
+        .filter(element -> !element.isEmpty())
+        .map(element -> {
+          String[] parts = element.split("\\.");
+          // A leading capitalised segment is the resource type.
+          return parts.length > 1 && Character.isUpperCase(parts[0].charAt(0))
+                 ? parts[1]
+                 : parts[0];
+        })
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * Returns the supplied resource dataset with every column that does not belong to one of the
+   * supplied top-level elements replaced with a null of the same type.
+   */
+  @Nonnull
+  public static Dataset<Row> project(@Nonnull FhirContext fhirContext,
+      @Nonnull ResourceType resourceType, @Nonnull Dataset<Row> dataset,
+      @Nonnull Set<String> elements) {
+    Set<String> columnNames = columnNames(fhirContext, resourceType, elements);
+    Set<String> selected = new HashSet<>(Arrays.asList(ResourceProjection
+        .selectColumns(dataset, columnNames)));
+    Column[] columns = Arrays.stream(dataset.schema().fields())
+        .map(field -> selected.contains(field.name())
+                      ? dataset.col(field.name())
+                      : nullColumn(field))
+        .toArray(Column[]::new);
+    return dataset.select(columns);
+  }
+
+  /**
+   * Returns the names of the columns that hold the supplied elements. A choice element is held in
+   * one column for each of its types, e.g. `valueQuantity` and `valueString`.
+   */
+  @Nonnull
+  private static Set<String> columnNames(@Nonnull FhirContext fhirContext,
+      @Nonnull ResourceType resourceType, @Nonnull Set<String> elements) {
+    RuntimeResourceDefinition definition = fhirContext
+        .getResourceDefinition(resourceType.toCode());
+    Set<String> columnNames = new HashSet<>(MANDATORY_ELEMENTS);
+    for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+      if (elements.contains(elementName(child))) {
+        columnNames.addAll(child.getValidChildNames());
+      }
+    }
+    return columnNames;
+  }
+
+  @Nonnull
+  private static String elementName(@Nonnull BaseRuntimeChildDefinition child) {
+    return child.getElementName().replaceFirst("\\[x]$", "");
+  }
+
+  @Nonnull
+  private static Column nullColumn(@Nonnull StructField field) {
+    return lit(null).cast(field.dataType()).alias(field.name());
+  }
+
+}
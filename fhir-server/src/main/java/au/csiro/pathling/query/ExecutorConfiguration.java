@@ -56,6 +56,13 @@ public class ExecutorConfiguration {
   @Nonnull
   private final ResourceReader resourceReader;
 
+  /**
+   * (OPTIONAL) Cache of compiled expressions, shared by all requests. If this is null, expressions
+   * are compiled for each request.
+   */
+  @Nullable
+  private ExpressionCache expressionCache;
+
   /**
    * (OPTIONAL) Version of this API, as advertised within the CapabilityStatement.
    */
@@ -96,6 +103,23 @@ public class ExecutorConfiguration {
    */
   private int loadPartitions;
 
+  /**
+   * (OPTIONAL) Maximum estimated size in bytes of a dataset that will be broadcast when it is joined
+   * to. Zero disables broadcasting.
+   */
+  private long broadcastThreshold;
+
+  /**
+   * (OPTIONAL) False positive rate of the Bloom filters used to reduce the datasets joined to by
+   * the resolve and reverseResolve functions. Zero disables the use of Bloom filters.
+   */
+  private double bloomFilterFpp;
+
+  /**
+   * (OPTIONAL) Maximum number of keys that will be added to a Bloom filter.
+   */
+  private long bloomFilterMaxItems;
+
   public ExecutorConfiguration(@Nonnull SparkSession sparkSession,
       @Nonnull FhirContext fhirContext, @Nullable TerminologyClientFactory terminologyClientFactory,
       @Nullable TerminologyClient terminologyClient, @Nonnull ResourceReader resourceReader) {
@@ -110,6 +134,9 @@ public class ExecutorConfiguration {
     explainQueries = false;
     shufflePartitions = 36;
     loadPartitions = 12;
+    broadcastThreshold = 10 * 1024 * 1024;
+    bloomFilterFpp = 0;
+    bloomFilterMaxItems = 1000000;
   }
 
   @Nonnull
@@ -146,6 +173,15 @@ public class ExecutorConfiguration {
     return resourceReader;
   }
 
+  @Nullable
+  public ExpressionCache getExpressionCache() {
+    return expressionCache;
+  }
+
+  public void setExpressionCache(@Nullable ExpressionCache expressionCache) {
+    this.expressionCache = expressionCache;
+  }
+
   @Nullable
   public String getVersion() {
     return version;
@@ -206,11 +242,36 @@ public class ExecutorConfiguration {
     this.loadPartitions = loadPartitions;
   }
 
+  public long getBroadcastThreshold() {
+    return broadcastThreshold;
+  }
+
+  public void setBroadcastThreshold(long broadcastThreshold) {
+    this.broadcastThreshold = broadcastThreshold;
+  }
+
+  public double getBloomFilterFpp() {
+    return bloomFilterFpp;
+  }
+
+  public void setBloomFilterFpp(double bloomFilterFpp) {
+    this.bloomFilterFpp = bloomFilterFpp;
+  }
+
+  public long getBloomFilterMaxItems() {
+    return bloomFilterMaxItems;
+  }
+
+  public void setBloomFilterMaxItems(long bloomFilterMaxItems) {
+    this.bloomFilterMaxItems = bloomFilterMaxItems;
+  }
+
   @Override
   public String toString() {
     return "ExecutorConfiguration{" +
         "terminologyClientFactory=" + terminologyClientFactory +
         ", resourceReader=" + resourceReader +
+        ", expressionCache=" + expressionCache +
         ", version='" + version + '\'' +
         ", warehouseUrl='" + warehouseUrl + '\'' +
         ", databaseName='" + databaseName + '\'' +
@@ -218,6 +279,9 @@ public class ExecutorConfiguration {
         ", explainQueries=" + explainQueries +
         ", shufflePartitions=" + shufflePartitions +
         ", loadPartitions=" + loadPartitions +
+        ", broadcastThreshold=" + broadcastThreshold +
+        ", bloomFilterFpp=" + bloomFilterFpp +
+        ", bloomFilterMaxItems=" + bloomFilterMaxItems +
         '}';
   }
 
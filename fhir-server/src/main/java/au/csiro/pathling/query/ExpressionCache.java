@@ -0,0 +1,331 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import au.csiro.pathling.query.parsing.ParsedExpression;
+import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of compiled expressions, shared by all requests. Repeated expressions skip both the
+ * parsing of the expression and the analysis of the datasets that are built from it.
+ * <p>
+ * Expressions are compiled within a scope for each subject resource type. Every expression within
+ * a scope is built upon the same subject resource dataset, so that cached expressions can be joined
+ * and fused with each other in the same way as expressions within a single request. Each request
+ * works on its own copy of the subject resource, so fusing expressions within one request does not
+ * change the subject resource seen by others. A scope is replaced when the data version reported
+ * by the {@link ResourceReader} changes, or when a request references elements that were not
+ * included in the subject resource dataset of the scope. In the latter case, the new scope
+ * includes the elements of both.
+ * <p>
+ * Within a scope, the least recently used expression is evicted once the maximum number of entries
+ * is reached, and expressions are evicted once they reach the maximum age.
+ *
+ * @author John Grimes
+ */
+public class ExpressionCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(ExpressionCache.class);
+
+  private final int maxEntries;
+  private final long maxAgeMillis;
+
+  @Nonnull
+  private final Map<ResourceType, Scope> scopes = new EnumMap<>(ResourceType.class);
+
+  @Nonnull
+  private final AtomicLong hits = new AtomicLong();
+
+  @Nonnull
+  private final AtomicLong misses = new AtomicLong();
+
+  @Nonnull
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxEntries the maximum number of expressions within the scope for each subject resource
+   * type
+   * @param maxAgeMillis the number of milliseconds after which a compiled expression is evicted, or
+   * zero if expressions do not expire
+   */
+  public ExpressionCache(int maxEntries, long maxAgeMillis) {
+    this.maxEntries = maxEntries;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Returns the scope for compiling expressions against the subject resource type, creating a new
+   * one using the supplied factory if there is no current scope that covers the referenced
+   * elements. The factory is given the set of elements that the new scope should include.
+   */
+  @Nonnull
+  public Scope getScope(@Nonnull ResourceType subjectResourceType, long dataVersion,
+      @Nullable Set<String> referencedElements,
+      @Nonnull Function<Set<String>, ExpressionParserContext> contextFactory) {
+    synchronized (scopes) {
+      Scope scope = scopes.get(subjectResourceType);
+      if (scope != null && scope.dataVersion == dataVersion && scope.covers(referencedElements)) {
+        return scope;
+      }
+      Set<String> elements = null;
+      if (scope != null && scope.dataVersion == dataVersion && referencedElements != null
+          && scope.referencedElements != null) {
+        elements = new HashSet<>(scope.referencedElements);
+        elements.addAll(referencedElements);
+      } else if (referencedElements != null) {
+        elements = new HashSet<>(referencedElements);
+      }
+      if (scope != null) {
+        scope.evictAll();
+        logger.info("Replacing expression scope for " + subjectResourceType.toCode() + ": " + this);
+      }
+      scope = new Scope(dataVersion, elements, contextFactory.apply(elements));
+      scopes.put(subjectResourceType, scope);
+      return scope;
+    }
+  }
+
+  /**
+   * Removes all scopes from the cache.
+   */
+  public void clear() {
+    synchronized (scopes) {
+      scopes.values().forEach(Scope::evictAll);
+      scopes.clear();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the proportion of lookups that were served from the cache
+   */
+  public double getHitRate() {
+    long total = hits.get() + misses.get();
+    return total == 0
+           ? 0
+           : (double) hits.get() / total;
+  }
+
+  @Override
+  public String toString() {
+    return "ExpressionCache{" +
+        "maxEntries=" + maxEntries +
+        ", maxAgeMillis=" + maxAgeMillis +
+        ", hits=" + hits +
+        ", misses=" + misses +
+        ", evictions=" + evictions +
+        ", hitRate=" + String.format("%.3f", getHitRate()) +
+        '}';
+  }
+
+  /**
+   * Returns a copy of a compiled expression, so that changes made to it by the caller are not seen
+   * within the cache.
+   */
+  @Nonnull
+  private static ParsedExpression copy(@Nonnull ParsedExpression expression) {
+    ParsedExpression copy = new ParsedExpression(expression);
+    copy.setArray(expression.getArrayDataset(), expression.getArrayIdColumn(),
+        expression.getArrayColumn());
+    copy.setLambdaSql(expression.getLambdaSql());
+    return copy;
+  }
+
+  /**
+   * The compiled expressions for a subject resource type, at one version of the data.
+   */
+  public class Scope {
+
+    private final long dataVersion;
+
+    @Nullable
+    private final Set<String> referencedElements;
+
+    @Nonnull
+    private final ExpressionParserContext context;
+
+    /**
+     * The compiled expressions, in order of access.
+     */
+    @Nonnull
+    private final LinkedHashMap<String, Entry> expressions = new LinkedHashMap<>(16, 0.75f,
+        true);
+
+    private Scope(long dataVersion, @Nullable Set<String> referencedElements,
+        @Nonnull ExpressionParserContext context) {
+      this.dataVersion = dataVersion;
+      this.referencedElements = referencedElements;
+      this.context = context;
+      context.setExpressionScope(this);
+    }
+
+    /**
+     * Returns true if the subject resource dataset of this scope includes all of the supplied
+     * elements. A null set of elements stands for all elements.
+     */
+    private boolean covers(@Nullable Set<String> elements) {
+      return referencedElements == null
+             || (elements != null && referencedElements.containsAll(elements));
+    }
+
+    /**
+     * Returns a new parser context for a request. The context has its own copy of the subject
+     * resource of this scope, which is built upon the same dataset.
+     */
+    @Nonnull
+    public ExpressionParserContext newContext() {
+      ExpressionParserContext requestContext = new ExpressionParserContext(context);
+      if (context.getSubjectContext() != null) {
+        ParsedExpression subject = new ParsedExpression(context.getSubjectContext());
+        subject.setOrigin(subject);
+        requestContext.setSubjectContext(subject);
+      }
+      // Bloom filters applied during the request are not shared with other requests.
+      requestContext.setPendingBloomFilters(new ArrayList<>());
+      return requestContext;
+    }
+
+    /**
+     * Returns the compiled expression, calling the compiler if the expression is not already
+     * cached. The compiler only uses the state of the request, so it is called without holding the
+     * lock on this scope. If two requests compile the same expression at once, the result of the
+     * last one is kept.
+     * <p>
+     * An expression compiled within the context of other expressions, such as an aggregation
+     * compiled against the groupings of a query, is only reused when the datasets of those
+     * expressions are the same as when it was compiled.
+     *
+     * @param expression the expression to compile
+     * @param dependencies the datasets of the expressions that the compiled expression depends on
+     * @param compiler compiles the expression within the context of the current request
+     */
+    @Nonnull
+    public ParsedExpression get(@Nonnull String expression,
+        @Nonnull List<Dataset<Row>> dependencies,
+        @Nonnull Function<String, ParsedExpression> compiler) {
+      ParsedExpression cached = lookup(expression, dependencies);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return copy(cached);
+      }
+      misses.incrementAndGet();
+      ParsedExpression result = compiler.apply(expression);
+      put(expression, new Entry(copy(result), dependencies));
+      if (logger.isDebugEnabled()) {
+        logger.debug("Expression cache: " + ExpressionCache.this);
+      }
+      return result;
+    }
+
+    @Nullable
+    private synchronized ParsedExpression lookup(@Nonnull String expression,
+        @Nonnull List<Dataset<Row>> dependencies) {
+      Entry entry = expressions.get(expression);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.isExpired()) {
+        expressions.remove(expression);
+        evictions.incrementAndGet();
+        return null;
+      }
+      return entry.dependsOn(dependencies)
+             ? entry.expression
+             : null;
+    }
+
+    private synchronized void put(@Nonnull String expression, @Nonnull Entry entry) {
+      expressions.put(expression, entry);
+      Iterator<Entry> iterator = expressions.values().iterator();
+      int size = expressions.size();
+      while (iterator.hasNext()) {
+        Entry next = iterator.next();
+        if (size > maxEntries || next.isExpired()) {
+          iterator.remove();
+          evictions.incrementAndGet();
+          size--;
+        }
+      }
+    }
+
+    private synchronized void evictAll() {
+      evictions.addAndGet(expressions.size());
+      expressions.clear();
+    }
+
+  }
+
+  /**
+   * A compiled expression, along with the datasets of the expressions that it depends on.
+   */
+  private class Entry {
+
+    @Nonnull
+    private final ParsedExpression expression;
+
+    @Nonnull
+    private final List<Dataset<Row>> dependencies;
+
+    private final long created = System.currentTimeMillis();
+
+    private Entry(@Nonnull ParsedExpression expression,
+        @Nonnull List<Dataset<Row>> dependencies) {
+      this.expression = expression;
+      this.dependencies = new ArrayList<>(dependencies);
+    }
+
+    private boolean isExpired() {
+      return maxAgeMillis > 0 && System.currentTimeMillis() - created >= maxAgeMillis;
+    }
+
+    /**
+     * Datasets are compared by identity, as the columns of a compiled expression can only be
+     * resolved against the datasets that it was built from.
+     */
+    private boolean dependsOn(@Nonnull List<Dataset<Row>> datasets) {
+      if (datasets.size() != dependencies.size()) {
+        return false;
+      }
+      for (int i = 0; i < datasets.size(); i++) {
+        if (datasets.get(i) != dependencies.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+  }
+
+}
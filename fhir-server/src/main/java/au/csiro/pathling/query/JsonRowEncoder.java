@@ -0,0 +1,396 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import au.csiro.pathling.encoders.SchemaConverter;
+import au.csiro.pathling.encoders.datatypes.DataTypeMappings;
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+import ca.uhn.fhir.context.RuntimeChildContainedResources;
+import ca.uhn.fhir.context.RuntimeChildExtension;
+import ca.uhn.fhir.context.RuntimePrimitiveDatatypeDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Timestamp;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.spark.api.java.function.MapFunction;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+
+/**
+ * Encodes Spark rows directly into FHIR JSON, reading each value from the position that the FHIR
+ * encoders put it in. This is the reverse of {@link au.csiro.pathling.update.JsonRowDecoder}, and
+ * avoids building the HAPI object model for each resource before it is serialised.
+ * <p>
+ * The writers used to do this are compiled once (on the driver) from the same FHIR definitions that
+ * {@link SchemaConverter} uses to build the resource schema, and the result is checked against that
+ * schema. As a map function, the encoder can be run on the executors so that only the serialised
+ * JSON is sent to the driver.
+ * <p>
+ * Empty elements are omitted, including the empty composites that are encoded for elements that
+ * HAPI auto-created, so that the output is equivalent to that of the HAPI JSON parser.
+ *
+ * @author John Grimes
+ */
+public class JsonRowEncoder implements MapFunction<Row, String> {
+
+  private static final long serialVersionUID = 1L;
+  private static final JsonFactory jsonFactory = new JsonFactory();
+  private static final DateTimeFormatter INSTANT_FORMAT = DateTimeFormatter
+      .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").withZone(ZoneOffset.UTC);
+
+  private final String resourceCode;
+  private final CompositeWriter resourceWriter;
+
+  /**
+   * @param fhirContext the FHIR context used to look up resource definitions
+   * @param dataTypeMappings the mappings used by the encoders to represent FHIR types
+   * @param resourceType the type of resource contained within the rows
+   * @param schema the schema of the rows, which the compiled writers are checked against
+   */
+  public JsonRowEncoder(FhirContext fhirContext, DataTypeMappings dataTypeMappings,
+      ResourceType resourceType, StructType schema) {
+    resourceCode = resourceType.toCode();
+    RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(resourceCode);
+    resourceWriter = new Compiler(dataTypeMappings).compile(definition);
+
+    if (!resourceWriter.getFieldNames().equals(Arrays.asList(schema.fieldNames()))) {
+      throw new IllegalStateException(
+          "Compiled fields do not match encoder schema for resource type: " + resourceCode);
+    }
+    // The ID of an encoded resource is qualified with its type and version, which are not part of
+    // the id element within FHIR JSON.
+    resourceWriter.replaceWriter("id", new LogicalIdWriter());
+  }
+
+  @Override
+  public String call(Row row) throws IOException {
+    StringWriter json = new StringWriter();
+    try (JsonGenerator generator = jsonFactory.createGenerator(json)) {
+      generator.writeStartObject();
+      generator.writeStringField("resourceType", resourceCode);
+      resourceWriter.writeFields(generator, row);
+      generator.writeEndObject();
+    }
+    return json.toString();
+  }
+
+  /**
+   * Writes a single value taken from a row.
+   */
+  private interface ValueWriter extends Serializable {
+
+    boolean isEmpty(Object value);
+
+    void write(JsonGenerator generator, Object value) throws IOException;
+
+  }
+
+  private enum PrimitiveKind {
+    STRING, INTEGER, BOOLEAN, TIMESTAMP, BINARY
+  }
+
+  private static class PrimitiveWriter implements ValueWriter {
+
+    private static final long serialVersionUID = 1L;
+    private final PrimitiveKind kind;
+
+    PrimitiveWriter(PrimitiveKind kind) {
+      this.kind = kind;
+    }
+
+    @Override
+    public boolean isEmpty(Object value) {
+      return value == null || (kind == PrimitiveKind.STRING && value.toString().isEmpty());
+    }
+
+    @Override
+    public void write(JsonGenerator generator, Object value) throws IOException {
+      switch (kind) {
+        case INTEGER:
+          generator.writeNumber((Integer) value);
+          break;
+        case BOOLEAN:
+          generator.writeBoolean((Boolean) value);
+          break;
+        case TIMESTAMP:
+          // Instants are encoded as timestamps in UTC, with millisecond precision.
+          generator.writeString(INSTANT_FORMAT.format(((Timestamp) value).toInstant()));
+          break;
+        case BINARY:
+          generator.writeBinary((byte[]) value);
+          break;
+        default:
+          generator.writeString(value.toString());
+      }
+    }
+
+  }
+
+  private static class LogicalIdWriter extends PrimitiveWriter {
+
+    private static final long serialVersionUID = 1L;
+
+    LogicalIdWriter() {
+      super(PrimitiveKind.STRING);
+    }
+
+    @Override
+    public void write(JsonGenerator generator, Object value) throws IOException {
+      String id = value.toString();
+      int history = id.indexOf("/_history/");
+      if (history >= 0) {
+        id = id.substring(0, history);
+      }
+      generator.writeString(id.substring(id.lastIndexOf('/') + 1));
+    }
+
+  }
+
+  private static class ArrayWriter implements ValueWriter {
+
+    private static final long serialVersionUID = 1L;
+    private final ValueWriter elementWriter;
+
+    ArrayWriter(ValueWriter elementWriter) {
+      this.elementWriter = elementWriter;
+    }
+
+    @Override
+    public boolean isEmpty(Object value) {
+      return elements(value).stream().allMatch(elementWriter::isEmpty);
+    }
+
+    @Override
+    public void write(JsonGenerator generator, Object value) throws IOException {
+      generator.writeStartArray();
+      for (Object element : elements(value)) {
+        if (!elementWriter.isEmpty(element)) {
+          elementWriter.write(generator, element);
+        }
+      }
+      generator.writeEndArray();
+    }
+
+    /**
+     * Arrays within rows read from a dataset are Scala sequences, while those within rows built by
+     * the direct decoder are Java arrays.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> elements(Object value) {
+      if (value == null) {
+        return Collections.emptyList();
+      } else if (value instanceof Seq) {
+        return JavaConversions.seqAsJavaList((Seq<Object>) value);
+      } else if (value instanceof Object[]) {
+        return Arrays.asList((Object[]) value);
+      } else {
+        return (List<Object>) value;
+      }
+    }
+
+  }
+
+  /**
+   * Writes a row as a JSON object, according to the fields of a FHIR composite type.
+   */
+  private static class CompositeWriter implements ValueWriter {
+
+    private static final long serialVersionUID = 1L;
+    private final List<String> fieldNames = new ArrayList<>();
+    private final List<FieldBinding> bindings = new ArrayList<>();
+
+    @Override
+    public boolean isEmpty(Object value) {
+      if (value == null) {
+        return true;
+      }
+      Row row = (Row) value;
+      for (FieldBinding binding : bindings) {
+        if (!binding.isEmpty(row)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void write(JsonGenerator generator, Object value) throws IOException {
+      generator.writeStartObject();
+      writeFields(generator, (Row) value);
+      generator.writeEndObject();
+    }
+
+    void writeFields(JsonGenerator generator, Row row) throws IOException {
+      for (FieldBinding binding : bindings) {
+        if (!binding.isEmpty(row)) {
+          binding.write(generator, row);
+        }
+      }
+    }
+
+    void addField(String name, ValueWriter writer) {
+      bindings.add(new FieldBinding(name, fieldNames.size(), writer, false));
+      fieldNames.add(name);
+    }
+
+    void addDecimalField(String name, String scaleName) {
+      bindings.add(new FieldBinding(name, fieldNames.size(), null, true));
+      fieldNames.add(name);
+      fieldNames.add(scaleName);
+    }
+
+    void replaceWriter(String name, ValueWriter writer) {
+      for (int i = 0; i < bindings.size(); i++) {
+        FieldBinding binding = bindings.get(i);
+        if (binding.name.equals(name)) {
+          bindings.set(i, new FieldBinding(name, binding.index, writer, binding.decimal));
+        }
+      }
+    }
+
+    List<String> getFieldNames() {
+      return fieldNames;
+    }
+
+  }
+
+  private static class FieldBinding implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private final int index;
+    private final ValueWriter writer;
+    private final boolean decimal;
+
+    FieldBinding(String name, int index, ValueWriter writer, boolean decimal) {
+      this.name = name;
+      this.index = index;
+      this.writer = writer;
+      this.decimal = decimal;
+    }
+
+    boolean isEmpty(Row row) {
+      return decimal
+             ? row.isNullAt(index)
+             : writer.isEmpty(row.get(index));
+    }
+
+    void write(JsonGenerator generator, Row row) throws IOException {
+      generator.writeFieldName(name);
+      if (!decimal) {
+        writer.write(generator, row.get(index));
+        return;
+      }
+      // Decimals are restored to the scale of the original value, which is encoded alongside the
+      // fixed precision value.
+      BigDecimal value = row.getDecimal(index);
+      if (!row.isNullAt(index + 1)) {
+        value = value.setScale(row.getInt(index + 1), RoundingMode.HALF_UP);
+      }
+      generator.writeNumber(value.toPlainString());
+    }
+
+  }
+
+  /**
+   * Builds the writers for a resource type by walking its definition in the same way as {@link
+   * SchemaConverter}, so that the values are read from the same positions as the schema fields.
+   */
+  private static class Compiler {
+
+    private final DataTypeMappings dataTypeMappings;
+
+    Compiler(DataTypeMappings dataTypeMappings) {
+      this.dataTypeMappings = dataTypeMappings;
+    }
+
+    CompositeWriter compile(BaseRuntimeElementCompositeDefinition<?> definition) {
+      CompositeWriter writer = new CompositeWriter();
+      for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+        if (dataTypeMappings.skipField(definition, child)) {
+          continue;
+        }
+        String elementName = child.getElementName();
+        if (dataTypeMappings.customEncoder(child).isDefined()) {
+          writer.addDecimalField(elementName, elementName + "_scale");
+        } else if (child instanceof RuntimeChildContainedResources
+            || child instanceof RuntimeChildExtension) {
+          // Contained resources and extensions are not encoded.
+        } else if (child instanceof RuntimeChildChoiceDefinition) {
+          RuntimeChildChoiceDefinition choice = (RuntimeChildChoiceDefinition) child;
+          List<Class<? extends IBase>> choiceTypes = JavaConversions
+              .seqAsJavaList(SchemaConverter.getOrderedListOfChoiceTypes(choice));
+          // Each type of a choice element has its own column, which is named in the same way as
+          // the JSON property for that type, e.g. valueQuantity.
+          for (Class<? extends IBase> choiceType : choiceTypes) {
+            String childName = choice.getChildNameByDatatype(choiceType);
+            writer.addField(childName, elementWriter(choice.getChildByName(childName)));
+          }
+        } else {
+          ValueWriter elementWriter = elementWriter(child.getChildByName(elementName));
+          if (child.getMax() != 1) {
+            writer.addField(elementName, new ArrayWriter(elementWriter));
+          } else {
+            writer.addField(elementName, elementWriter);
+          }
+        }
+      }
+      return writer;
+    }
+
+    private ValueWriter elementWriter(BaseRuntimeElementDefinition<?> definition) {
+      if (definition instanceof BaseRuntimeElementCompositeDefinition) {
+        return compile((BaseRuntimeElementCompositeDefinition<?>) definition);
+      } else if (definition instanceof RuntimePrimitiveDatatypeDefinition) {
+        // Codes bound to enumerations are encoded as strings, in the same way as other codes.
+        DataType dataType = dataTypeMappings
+            .primitiveToDataType((RuntimePrimitiveDatatypeDefinition) definition);
+        return new PrimitiveWriter(primitiveKindFor(dataType));
+      } else {
+        // Narratives and XHTML are encoded as strings.
+        return new PrimitiveWriter(PrimitiveKind.STRING);
+      }
+    }
+
+    private static PrimitiveKind primitiveKindFor(DataType dataType) {
+      if (dataType.equals(DataTypes.IntegerType)) {
+        return PrimitiveKind.INTEGER;
+      } else if (dataType.equals(DataTypes.BooleanType)) {
+        return PrimitiveKind.BOOLEAN;
+      } else if (dataType.equals(DataTypes.TimestampType)) {
+        return PrimitiveKind.TIMESTAMP;
+      } else if (dataType.equals(DataTypes.BinaryType)) {
+        return PrimitiveKind.BINARY;
+      } else {
+        return PrimitiveKind.STRING;
+      }
+    }
+
+  }
+
+}
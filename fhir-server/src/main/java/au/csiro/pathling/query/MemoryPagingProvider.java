@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A paging provider that holds a fixed number of the most recently stored bundle providers in
+ * memory, in the same way as HAPI's FifoMemoryPagingProvider. Searches are released when they are
+ * evicted, so that the results they have cached do not outlive them. A search that is evicted while
+ * a page is being retrieved from it keeps its cached results until the retrieval is complete.
+ *
+ * @author John Grimes
+ */
+public class MemoryPagingProvider extends BasePagingProvider {
+
+  @Nonnull
+  private final Map<String, IBundleProvider> bundleProviders;
+
+  public MemoryPagingProvider(int maxSize) {
+    bundleProviders = new LinkedHashMap<String, IBundleProvider>(maxSize) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, IBundleProvider> eldest) {
+        boolean evict = size() > maxSize;
+        if (evict && eldest.getValue() instanceof SearchExecutor) {
+          ((SearchExecutor) eldest.getValue()).release();
+        }
+        return evict;
+      }
+    };
+  }
+
+  @Nullable
+  @Override
+  public synchronized IBundleProvider retrieveResultList(@Nullable RequestDetails theRequestDetails,
+      @Nonnull String theSearchId) {
+    return bundleProviders.get(theSearchId);
+  }
+
+  @Nonnull
+  @Override
+  public synchronized String storeResultList(@Nullable RequestDetails theRequestDetails,
+      @Nonnull IBundleProvider theList) {
+    String uuid = UUID.randomUUID().toString();
+    bundleProviders.put(uuid, theList);
+    return uuid;
+  }
+
+}
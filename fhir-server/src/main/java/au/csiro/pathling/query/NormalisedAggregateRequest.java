@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import au.csiro.pathling.query.AggregateRequest.Aggregation;
+import au.csiro.pathling.query.AggregateRequest.Grouping;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.annotation.Nonnull;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+
+/**
+ * A copy of a request with its aggregations and groupings sorted by expression, its filters
+ * sorted and de-duplicated, and its labels removed, along with the information needed to
+ * rearrange its result to match the original request.
+ * <p>
+ * Filters are combined with a logical AND, and the drill-down expressions within the result do
+ * not depend upon the order of the filters or groupings, so none of these changes alter the
+ * result other than its order.
+ *
+ * @author John Grimes
+ */
+class NormalisedAggregateRequest {
+
+  @Nonnull
+  private final AggregateRequest request;
+
+  @Nonnull
+  private final String key;
+
+  /**
+   * The position within the normalised request of each aggregation within the original request.
+   */
+  @Nonnull
+  private final int[] aggregationOrder;
+
+  /**
+   * The position within the normalised request of each grouping within the original request.
+   */
+  @Nonnull
+  private final int[] groupingOrder;
+
+  private NormalisedAggregateRequest(@Nonnull AggregateRequest request, @Nonnull String key,
+      @Nonnull int[] aggregationOrder, @Nonnull int[] groupingOrder) {
+    this.request = request;
+    this.key = key;
+    this.aggregationOrder = aggregationOrder;
+    this.groupingOrder = groupingOrder;
+  }
+
+  /**
+   * Returns true if all of the aggregations and groupings within the request have an expression.
+   */
+  static boolean canNormalise(@Nonnull AggregateRequest request) {
+    return request.getAggregations().stream().allMatch(a -> a.getExpression() != null)
+        && request.getGroupings().stream().allMatch(g -> g.getExpression() != null);
+  }
+
+  @Nonnull
+  static NormalisedAggregateRequest of(@Nonnull AggregateRequest original) {
+    List<String> aggregationExpressions = original.getAggregations().stream()
+        .map(Aggregation::getExpression)
+        .collect(Collectors.toList());
+    List<String> groupingExpressions = original.getGroupings().stream()
+        .map(Grouping::getExpression)
+        .collect(Collectors.toList());
+    int[] aggregationOrder = sortOrder(aggregationExpressions);
+    int[] groupingOrder = sortOrder(groupingExpressions);
+
+    AggregateRequest request = new AggregateRequest();
+    request.setSubjectResource(original.getSubjectResource());
+    List<String> sortedAggregations = sorted(aggregationExpressions);
+    for (String expression : sortedAggregations) {
+      Aggregation aggregation = new Aggregation();
+      aggregation.setExpression(expression);
+      request.getAggregations().add(aggregation);
+    }
+    List<String> sortedGroupings = sorted(groupingExpressions);
+    for (String expression : sortedGroupings) {
+      Grouping grouping = new Grouping();
+      grouping.setExpression(expression);
+      request.getGroupings().add(grouping);
+    }
+    request.getFilters().addAll(new TreeSet<>(original.getFilters()));
+
+    // The components of the key are length-prefixed, so that the key is unambiguous regardless of
+    // the content of the expressions.
+    StringBuilder key = new StringBuilder();
+    appendComponent(key, request.getSubjectResource().toCode());
+    appendComponents(key, "a", sortedAggregations);
+    appendComponents(key, "g", sortedGroupings);
+    appendComponents(key, "f", request.getFilters());
+    return new NormalisedAggregateRequest(request, key.toString(), aggregationOrder, groupingOrder);
+  }
+
+  @Nonnull
+  AggregateRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * Returns a string that is equal for any two requests with the same normalised form.
+   */
+  @Nonnull
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * Rearranges the labels and results within each grouping of a result of the normalised
+   * request, so that they match the order of the original request.
+   */
+  @Nonnull
+  Parameters restoreOrder(@Nonnull Parameters result) {
+    for (ParametersParameterComponent grouping : result.getParameter()) {
+      List<ParametersParameterComponent> labels = partsNamed(grouping, "label");
+      List<ParametersParameterComponent> results = partsNamed(grouping, "result");
+      if (labels.size() != groupingOrder.length || results.size() != aggregationOrder.length) {
+        throw new InternalErrorException("Result does not match normalised request");
+      }
+      List<ParametersParameterComponent> parts = new ArrayList<>();
+      for (int position : groupingOrder) {
+        parts.add(labels.get(position));
+      }
+      for (int position : aggregationOrder) {
+        parts.add(results.get(position));
+      }
+      grouping.getPart().stream()
+          .filter(part -> !part.getName().equals("label") && !part.getName().equals("result"))
+          .forEach(parts::add);
+      grouping.setPart(parts);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static List<ParametersParameterComponent> partsNamed(
+      @Nonnull ParametersParameterComponent parameter, @Nonnull String name) {
+    return parameter.getPart().stream()
+        .filter(part -> part.getName().equals(name))
+        .collect(Collectors.toList());
+  }
+
+  @Nonnull
+  private static List<String> sorted(@Nonnull List<String> expressions) {
+    return expressions.stream().sorted().collect(Collectors.toList());
+  }
+
+  /**
+   * Returns the position of each expression within the sorted list of expressions. Equal
+   * expressions keep their relative order.
+   */
+  @Nonnull
+  private static int[] sortOrder(@Nonnull List<String> expressions) {
+    int[] sortedIndices = IntStream.range(0, expressions.size()).boxed()
+        .sorted(Comparator.comparing(expressions::get))
+        .mapToInt(Integer::intValue)
+        .toArray();
+    int[] order = new int[expressions.size()];
+    for (int position = 0; position < sortedIndices.length; position++) {
+      order[sortedIndices[position]] = position;
+    }
+    return order;
+  }
+
+  private static void appendComponents(@Nonnull StringBuilder key, @Nonnull String prefix,
+      @Nonnull List<String> components) {
+    appendComponent(key, prefix + components.size());
+    components.stream().map(Objects::requireNonNull).forEach(c -> appendComponent(key, c));
+  }
+
+  private static void appendComponent(@Nonnull StringBuilder key, @Nonnull String component) {
+    key.append(component.length()).append(':').append(component).append(';');
+  }
+
+}
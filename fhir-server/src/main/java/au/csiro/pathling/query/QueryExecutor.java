@@ -6,15 +6,26 @@
 
 package au.csiro.pathling.query;
 
+import au.csiro.pathling.query.parsing.BloomFilterReduction;
+import au.csiro.pathling.query.parsing.BloomFilterReduction.DeferredFilter;
+import au.csiro.pathling.query.parsing.ExpressionFusion;
 import au.csiro.pathling.query.parsing.Joinable;
 import au.csiro.pathling.query.parsing.ParsedExpression;
+import au.csiro.pathling.query.parsing.parser.ExpressionParser;
 import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import au.csiro.pathling.query.parsing.parser.ResourceProjection;
 import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.StructType;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Contains functionality common to query executors.
@@ -23,6 +34,8 @@ import org.hl7.fhir.r4.model.Enumerations.ResourceType;
  */
 public abstract class QueryExecutor {
 
+  private static final Logger logger = LoggerFactory.getLogger(QueryExecutor.class);
+
   protected final ExecutorConfiguration configuration;
   protected Dataset<Row> subjectDataset;
 
@@ -30,7 +43,31 @@ public abstract class QueryExecutor {
     this.configuration = configuration;
   }
 
-  protected ExpressionParserContext buildParserContext(ResourceType subjectResourceType) {
+  /**
+   * Builds a parser context for a query on the given subject resource type. If a set of referenced
+   * elements is supplied, the resource datasets used within the query will only include those
+   * elements.
+   * <p>
+   * If an expression cache has been configured, the context is taken from the cache scope for the
+   * subject resource type, so that expressions compiled by earlier requests can be reused.
+   */
+  protected ExpressionParserContext buildParserContext(ResourceType subjectResourceType,
+      @Nullable Set<String> referencedElements) {
+    ResourceReader resourceReader = configuration.getResourceReader();
+    subjectDataset = resourceReader.read(subjectResourceType);
+    ExpressionCache expressionCache = configuration.getExpressionCache();
+    if (expressionCache == null) {
+      return newParserContext(subjectResourceType, subjectDataset, referencedElements);
+    }
+    Dataset<Row> resources = subjectDataset;
+    return expressionCache.getScope(subjectResourceType, resourceReader.getDataVersion(),
+        referencedElements,
+        elements -> newParserContext(subjectResourceType, resources, elements))
+        .newContext();
+  }
+
+  private ExpressionParserContext newParserContext(ResourceType subjectResourceType,
+      Dataset<Row> resources, @Nullable Set<String> referencedElements) {
     ExpressionParserContext parserContext = new ExpressionParserContext();
 
     parserContext.setFhirContext(configuration.getFhirContext());
@@ -38,18 +75,20 @@ public abstract class QueryExecutor {
     parserContext.setTerminologyClient(configuration.getTerminologyClient());
     parserContext.setSparkSession(configuration.getSparkSession());
     parserContext.setResourceReader(configuration.getResourceReader());
+    parserContext.setReferencedElements(referencedElements);
+    parserContext.setBroadcastThreshold(configuration.getBroadcastThreshold());
+    parserContext.setBloomFilterFpp(configuration.getBloomFilterFpp());
+    parserContext.setBloomFilterMaxItems(configuration.getBloomFilterMaxItems());
 
     // Set up the subject resource dataset.
     String resourceCode = subjectResourceType.toCode();
-    subjectDataset = parserContext.getResourceReader().read(subjectResourceType);
-    String firstColumn = subjectDataset.columns()[0];
-    String[] remainingColumns = Arrays
-        .copyOfRange(subjectDataset.columns(), 1, subjectDataset.columns().length);
-    Column idColumn = subjectDataset.col("id");
-    Dataset<Row> expressionDataset = subjectDataset.withColumn("resource",
-        functions.struct(firstColumn, remainingColumns));
+    Dataset<Row> expressionDataset = ResourceProjection
+        .project(resources, "resource", parserContext.getReferencedElements());
+    Column idColumn = expressionDataset.col("id");
     Column valueColumn = expressionDataset.col("resource");
-    expressionDataset = expressionDataset.select(idColumn, valueColumn);
+    if (configuration.isExplainQueries()) {
+      reportProjection(resources, expressionDataset);
+    }
 
     // Create an expression for the subject resource.
     ParsedExpression subjectResource = new ParsedExpression();
@@ -65,18 +104,117 @@ public abstract class QueryExecutor {
     return parserContext;
   }
 
+  /**
+   * Parses an expression within the supplied context. If the context belongs to a scope of the
+   * expression cache, the compiled expression is taken from the cache where possible.
+   * <p>
+   * If requested, the result is fused with the subject resource of the request.
+   * <p>
+   * Any Bloom filters that the expression depends upon are built after it has been compiled, so
+   * that no lock on the cache scope is held while they are built.
+   */
+  protected static ParsedExpression compile(ExpressionParserContext context,
+      ExpressionParser expressionParser, String expression, boolean fuse) {
+    Function<String, ParsedExpression> compiler = text -> {
+      List<DeferredFilter> pending = context.getPendingBloomFilters();
+      pending.clear();
+      ParsedExpression parsed = expressionParser.parse(text);
+      parsed.setBloomFilters(new ArrayList<>(pending));
+      pending.clear();
+      return parsed;
+    };
+    ExpressionCache.Scope scope = context.getExpressionScope();
+    ParsedExpression result;
+    if (scope == null) {
+      result = compiler.apply(expression);
+    } else {
+      // An aggregation is compiled against the groupings within the context, so it can only be
+      // reused alongside the same groupings.
+      List<Dataset<Row>> dependencies = context.getGroupings().stream()
+          .map(ParsedExpression::getDataset)
+          .collect(Collectors.toList());
+      result = scope.get(expression, dependencies, compiler);
+    }
+    if (fuse) {
+      fuseWithSubject(context, result);
+    }
+    BloomFilterReduction.build(result.getBloomFilters());
+    return result;
+  }
+
+  /**
+   * Logs the elements that have been pruned from the subject resource, along with the estimated
+   * reduction in the size of each row that is carried through the query.
+   */
+  private static void reportProjection(Dataset<Row> subjectDataset,
+      Dataset<Row> expressionDataset) {
+    StructType resourceSchema = (StructType) expressionDataset.schema().apply("resource")
+        .dataType();
+    long fullSize = subjectDataset.schema().defaultSize();
+    long prunedSize = resourceSchema.defaultSize();
+    logger.info("Subject resource projection: " + resourceSchema.fields().length + " of "
+        + subjectDataset.columns().length + " elements " + Arrays.toString(resourceSchema
+        .fieldNames()) + ", estimated row size reduced from " + fullSize + " to " + prunedSize
+        + " bytes");
+  }
+
+  /**
+   * If a parsed expression only adds columns to the dataset of the subject resource, the subject
+   * resource is updated to use the dataset of the expression. Expressions that are parsed
+   * afterwards will then build upon it, so that a series of expressions over singular elements of
+   * the subject resource results in a single dataset rather than a dataset per expression.
+   */
+  protected static void fuseWithSubject(ExpressionParserContext context,
+      ParsedExpression parsed) {
+    ParsedExpression subject = context.getSubjectContext();
+    if (parsed.getDataset() != null && ExpressionFusion
+        .extendsDataset(parsed.getDataset(), subject.getDataset())) {
+      subject.setDataset(parsed.getDataset());
+    }
+  }
+
+  /**
+   * Joins the datasets of the supplied expressions together on their ID columns. Datasets that are
+   * projections of a dataset that has already been joined are not joined again, as their columns
+   * are already available.
+   */
   protected static Dataset<Row> joinExpressions(List<? extends Joinable> expressions) {
     if (expressions.isEmpty()) {
       throw new IllegalArgumentException("List of expressions must not be empty");
     }
-    Joinable previous = expressions.get(0);
-    Dataset<Row> result = previous.getDataset();
-    Set<Dataset<Row>> joinedDatasets = new HashSet<>();
-    joinedDatasets.add(result);
-    for (int i = 0; i < expressions.size(); i++) {
-      Joinable current = expressions.get(i);
-      if (i > 0 && !joinedDatasets.contains(current.getDataset())) {
-        result = result.join(current.getDataset(),
+    Joinable first = expressions.get(0);
+    return joinExpressions(first.getDataset(), Collections.singletonList(first),
+        expressions.subList(1, expressions.size()), null);
+  }
+
+  /**
+   * Joins the datasets of the supplied expressions onto a dataset in which the datasets of the
+   * already joined expressions have been joined, on their ID columns. Datasets that have already
+   * been joined, or that are projections of one, are not joined again. If a dataset of subject IDs
+   * is supplied, each dataset is reduced to the rows for those IDs using a left semi join, before
+   * it is joined.
+   */
+  protected static Dataset<Row> joinExpressions(@Nonnull Dataset<Row> joined,
+      @Nonnull List<? extends Joinable> joinedExpressions,
+      @Nonnull List<? extends Joinable> expressions, @Nullable Dataset<Row> subjectIds) {
+    if (joinedExpressions.isEmpty()) {
+      throw new IllegalArgumentException("List of joined expressions must not be empty");
+    }
+    Joinable previous = joinedExpressions.get(0);
+    Dataset<Row> result = joined;
+    Set<Dataset<Row>> joinedDatasets = joinedExpressions.stream()
+        .map(Joinable::getDataset)
+        .collect(Collectors.toCollection(HashSet::new));
+    for (Joinable current : expressions) {
+      if (!joinedDatasets.contains(current.getDataset())
+          && joinedDatasets.stream()
+          .noneMatch(dataset -> ExpressionFusion.canFuse(current.getDataset(), dataset))) {
+        Dataset<Row> dataset = subjectIds == null
+                               ? current.getDataset()
+                               : current.getDataset().join(subjectIds,
+                                   current.getIdColumn().equalTo(subjectIds.col(subjectIds
+                                       .columns()[0])), "left_semi");
+        result = result.join(dataset,
             previous.getIdColumn().equalTo(current.getIdColumn()), "inner");
         previous = current;
         joinedDatasets.add(current.getDataset());
@@ -0,0 +1,386 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
+import org.apache.spark.sql.execution.CachedData;
+import org.apache.spark.sql.functions;
+import org.apache.spark.storage.StorageLevel;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Option;
+
+/**
+ * A registry of the persisted datasets for each resource type, shared by all requests. There is at
+ * most one entry for each version of a table, and the least recently used entries are unpersisted
+ * once the maximum number of entries is exceeded.
+ * <p>
+ * If a maximum size is configured, the least recently used entries are also unpersisted once the
+ * total size of the cached tables exceeds it. The size of each table is the size of its files, as
+ * supplied by the caller, which is an estimate of the space that it takes up once cached. A table
+ * that is larger than the maximum size on its own is read without being cached.
+ * <p>
+ * If a bucket count is configured, each dataset is hash partitioned on its ID before it is cached.
+ * Spark knows about the partitioning of cached data, so joins between resource datasets on their
+ * IDs can then be planned without a shuffle.
+ *
+ * @author John Grimes
+ */
+public class ResourceCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(ResourceCache.class);
+
+  /**
+   * The version used in the key for tables that are not versioned, i.e. tables written prior to the
+   * use of Delta Lake.
+   */
+  static final long UNVERSIONED = -1;
+
+  @Nonnull
+  private final StorageMode storageMode;
+
+  private final int maxEntries;
+
+  private final long maxBytes;
+
+  private final int bucketCount;
+
+  // An access-ordered map, which means that iteration starts at the least recently used entry.
+  @Nonnull
+  private final LinkedHashMap<CacheKey, Dataset<Row>> entries = new LinkedHashMap<>(16, 0.75f,
+      true);
+
+  // The size of each entry, where it is known. Guarded by the lock on the entries.
+  @Nonnull
+  private final Map<CacheKey, Long> sizes = new HashMap<>();
+
+  private long totalBytes;
+
+  @Nonnull
+  private final AtomicLong hits = new AtomicLong();
+
+  @Nonnull
+  private final AtomicLong misses = new AtomicLong();
+
+  @Nonnull
+  private final AtomicLong evictions = new AtomicLong();
+
+  // Incremented each time a dataset is removed from the cache.
+  @Nonnull
+  private final AtomicLong generation = new AtomicLong();
+
+  public ResourceCache(@Nonnull StorageMode storageMode, int maxEntries) {
+    this(storageMode, maxEntries, 0);
+  }
+
+  public ResourceCache(@Nonnull StorageMode storageMode, int maxEntries, int bucketCount) {
+    this(storageMode, maxEntries, 0, bucketCount);
+  }
+
+  /**
+   * @param storageMode how the cached datasets are stored
+   * @param maxEntries the maximum number of datasets that are cached at any one time
+   * @param maxBytes the maximum total size in bytes of the tables that are cached at any one time,
+   * or zero if there is no limit
+   * @param bucketCount the number of partitions that each dataset is hash partitioned into on its
+   * ID, or zero if datasets are not partitioned
+   */
+  public ResourceCache(@Nonnull StorageMode storageMode, int maxEntries, long maxBytes,
+      int bucketCount) {
+    this.storageMode = storageMode;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.bucketCount = bucketCount;
+  }
+
+  /**
+   * Returns the dataset for the given version of the table for a resource type, calling the loader
+   * and persisting the result if it is not already cached.
+   * <p>
+   * Each call returns a new instance of the cached relation with fresh attribute references, so
+   * that the results of two calls can be joined to each other in the same way as two separate
+   * reads.
+   */
+  @Nonnull
+  public Dataset<Row> get(@Nonnull ResourceType resourceType, long version,
+      @Nonnull Function<ResourceType, Dataset<Row>> loader) {
+    return get(resourceType, version, null, loader);
+  }
+
+  /**
+   * Returns the dataset for the given version of the table for a resource type, as above. The size
+   * of the table in bytes is counted towards the maximum size of the cache, if it is known.
+   */
+  @Nonnull
+  public Dataset<Row> get(@Nonnull ResourceType resourceType, long version, @Nullable Long size,
+      @Nonnull Function<ResourceType, Dataset<Row>> loader) {
+    if (storageMode == StorageMode.NONE) {
+      misses.incrementAndGet();
+      return partition(loader.apply(resourceType));
+    }
+    if (maxBytes > 0 && size != null && size > maxBytes) {
+      misses.incrementAndGet();
+      logger.info("Not caching dataset for " + resourceType.toCode() + ", size of " + size
+          + " bytes exceeds maximum of " + maxBytes);
+      return partition(loader.apply(resourceType));
+    }
+    CacheKey key = new CacheKey(resourceType, version);
+    Dataset<Row> dataset;
+    synchronized (entries) {
+      dataset = entries.get(key);
+      if (dataset == null) {
+        misses.incrementAndGet();
+        dataset = partition(loader.apply(resourceType));
+        dataset.persist(storageMode.getStorageLevel());
+        entries.put(key, dataset);
+        if (size != null) {
+          sizes.put(key, size);
+          totalBytes += size;
+        }
+        evictLeastRecentlyUsed();
+      } else {
+        hits.incrementAndGet();
+      }
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("Resource cache " + key + ": hits=" + hits + ", misses=" + misses);
+    }
+    return newInstance(dataset);
+  }
+
+  @Nonnull
+  private Dataset<Row> partition(@Nonnull Dataset<Row> dataset) {
+    return bucketCount > 0
+           ? dataset.repartition(bucketCount, dataset.col("id"))
+           : dataset;
+  }
+
+  /**
+   * Creates a dataset that reads from the same cached data as the supplied dataset, but with new
+   * attribute references. Unlike a projection that aliases each column, this preserves the
+   * partitioning of the cached data.
+   */
+  @Nonnull
+  private static Dataset<Row> newInstance(@Nonnull Dataset<Row> dataset) {
+    SparkSession spark = dataset.sparkSession();
+    Option<CachedData> cachedData = spark.sharedState().cacheManager().lookupCachedData(dataset);
+    if (cachedData.isEmpty()) {
+      Column[] columns = Arrays.stream(dataset.columns())
+          .map(name -> functions.col(name).alias(name))
+          .toArray(Column[]::new);
+      return dataset.select(columns);
+    }
+    LogicalPlan relation = cachedData.get().cachedRepresentation().newInstance();
+    return new Dataset<>(spark, relation, RowEncoder.apply(dataset.schema()));
+  }
+
+  /**
+   * Removes all entries that do not match the current version of their table, which is given by
+   * the supplied function. Tables that are no longer available should map to null.
+   */
+  public void retainCurrent(@Nonnull Function<ResourceType, Long> currentVersions) {
+    invalidate(key -> {
+      Long current = currentVersions.apply(key.resourceType);
+      // Unversioned tables can change in place, so they are always invalidated.
+      return current == null || key.version == UNVERSIONED || current != key.version;
+    });
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void clear() {
+    invalidate(key -> true);
+  }
+
+  private void invalidate(@Nonnull Predicate<CacheKey> predicate) {
+    synchronized (entries) {
+      Iterator<Map.Entry<CacheKey, Dataset<Row>>> iterator = entries.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<CacheKey, Dataset<Row>> entry = iterator.next();
+        if (predicate.test(entry.getKey())) {
+          logger.info("Invalidating cached dataset: " + entry.getKey());
+          entry.getValue().unpersist(false);
+          iterator.remove();
+          removeSize(entry.getKey());
+          generation.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void evictLeastRecentlyUsed() {
+    Iterator<Map.Entry<CacheKey, Dataset<Row>>> iterator = entries.entrySet().iterator();
+    while ((entries.size() > maxEntries || (maxBytes > 0 && totalBytes > maxBytes))
+        && iterator.hasNext()) {
+      Map.Entry<CacheKey, Dataset<Row>> eldest = iterator.next();
+      logger.info("Evicting cached dataset: " + eldest.getKey());
+      eldest.getValue().unpersist(false);
+      iterator.remove();
+      removeSize(eldest.getKey());
+      evictions.incrementAndGet();
+      generation.incrementAndGet();
+    }
+  }
+
+  private void removeSize(@Nonnull CacheKey key) {
+    Long size = sizes.remove(key);
+    if (size != null) {
+      totalBytes -= size;
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Returns a number that changes each time a dataset is removed from the cache. Anything that was
+   * built upon a dataset returned by this cache should not be used once this has changed, as it may
+   * refer to data that is no longer persisted.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the total size in bytes of the cached tables, counting only those whose size is known
+   */
+  public long getTotalBytes() {
+    synchronized (entries) {
+      return totalBytes;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ResourceCache{" +
+        "storageMode=" + storageMode +
+        ", maxEntries=" + maxEntries +
+        ", maxBytes=" + maxBytes +
+        ", bucketCount=" + bucketCount +
+        ", size=" + size() +
+        ", totalBytes=" + getTotalBytes() +
+        ", hits=" + hits +
+        ", misses=" + misses +
+        ", evictions=" + evictions +
+        '}';
+  }
+
+  /**
+   * The ways in which cached datasets can be stored.
+   */
+  public enum StorageMode {
+    NONE("none", StorageLevel.NONE()),
+    MEMORY("memory", StorageLevel.MEMORY_ONLY()),
+    MEMORY_AND_DISK("memory-and-disk", StorageLevel.MEMORY_AND_DISK()),
+    OFF_HEAP("off-heap", StorageLevel.OFF_HEAP());
+
+    @Nonnull
+    private final String code;
+
+    @Nonnull
+    private final StorageLevel storageLevel;
+
+    StorageMode(@Nonnull String code, @Nonnull StorageLevel storageLevel) {
+      this.code = code;
+      this.storageLevel = storageLevel;
+    }
+
+    @Nonnull
+    public String getCode() {
+      return code;
+    }
+
+    @Nonnull
+    public StorageLevel getStorageLevel() {
+      return storageLevel;
+    }
+
+    @Nonnull
+    public static StorageMode fromCode(@Nonnull String code) {
+      for (StorageMode storageMode : values()) {
+        if (storageMode.code.equals(code)) {
+          return storageMode;
+        }
+      }
+      throw new IllegalArgumentException("Unknown cache storage level: " + code);
+    }
+
+  }
+
+  private static class CacheKey {
+
+    @Nonnull
+    private final ResourceType resourceType;
+
+    private final long version;
+
+    private CacheKey(@Nonnull ResourceType resourceType, long version) {
+      this.resourceType = resourceType;
+      this.version = version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      CacheKey cacheKey = (CacheKey) o;
+      return version == cacheKey.version &&
+          resourceType == cacheKey.resourceType;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(resourceType, version);
+    }
+
+    @Override
+    public String toString() {
+      return resourceType.toCode() + (version == UNVERSIONED
+                                       ? ""
+                                       : "@" + version);
+    }
+
+  }
+
+}
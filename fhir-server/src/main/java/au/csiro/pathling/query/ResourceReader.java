@@ -8,23 +8,44 @@ package au.csiro.pathling.query;
 
 import static au.csiro.pathling.utilities.PersistenceScheme.convertS3ToS3aUrl;
 import static au.csiro.pathling.utilities.PersistenceScheme.fileNameForResource;
+import static org.apache.spark.sql.functions.col;
 
+import au.csiro.pathling.query.ResourceCache.StorageMode;
+import au.csiro.pathling.query.parsing.ReferenceIndex;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import io.delta.tables.DeltaTable;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.delta.DeltaLog;
+import org.apache.spark.sql.delta.Snapshot;
+import org.apache.spark.sql.delta.actions.AddFile;
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +53,23 @@ import org.slf4j.LoggerFactory;
 /**
  * This class knows how to retrieve a Dataset representing all resources of a particular type, from
  * a specified database.
+ * <p>
+ * Delta tables are read at the version that was current when the available resource types were
+ * last updated, so that queries see a consistent snapshot of the warehouse while an import is in
+ * progress. Tables that were written prior to the use of Delta Lake are read as plain Parquet.
+ * <p>
+ * Datasets are persisted within a {@link ResourceCache} that is shared by all requests, and cached
+ * versions that are no longer current are released each time the available resource types are
+ * updated.
+ * <p>
+ * The size of each table is also collected each time the available resource types are updated, so
+ * that queries can decide which joins are small enough to be broadcast. The number of rows in each
+ * table can also be retrieved, which is taken from the footers of its Parquet files rather than by
+ * scanning them.
+ * <p>
+ * If reference indexes have been written alongside the tables (see {@link ReferenceIndex}), they
+ * are also read at the version that was current when the available resource types were last
+ * updated, along with the ID index, which is only used for the resource types that it covers.
  *
  * @author John Grimes
  */
@@ -41,14 +79,30 @@ public class ResourceReader {
   private final SparkSession spark;
   private final String warehouseUrl;
   private final String databaseName;
-  private Set<ResourceType> availableResourceTypes = Collections
+  private volatile Set<ResourceType> availableResourceTypes = Collections
       .unmodifiableSet(EnumSet.noneOf(ResourceType.class));
+  private volatile Map<ResourceType, Long> tableVersions = Collections.emptyMap();
+  private volatile Map<ResourceType, Long> tableSizes = Collections.emptyMap();
+  private volatile Map<ResourceType, Long> referenceIndexVersions = Collections.emptyMap();
+  private final Map<String, Set<ResourceType>> referenceTargetTypes = new ConcurrentHashMap<>();
+  private final Map<ResourceType, Long> rowCounts = new ConcurrentHashMap<>();
+  private volatile Long idIndexVersion = null;
+  private volatile Set<ResourceType> idIndexTypes = Collections.emptySet();
+  private final AtomicLong updates = new AtomicLong();
+  private final ResourceCache cache;
 
   public ResourceReader(SparkSession spark, String warehouseUrl, String databaseName)
       throws IOException, URISyntaxException {
+    this(spark, warehouseUrl, databaseName,
+        new ResourceCache(StorageMode.MEMORY_AND_DISK, ResourceType.values().length));
+  }
+
+  public ResourceReader(SparkSession spark, String warehouseUrl, String databaseName,
+      ResourceCache cache) throws IOException, URISyntaxException {
     this.spark = spark;
     this.warehouseUrl = convertS3ToS3aUrl(warehouseUrl);
     this.databaseName = databaseName;
+    this.cache = cache;
     updateAvailableResourceTypes();
   }
 
@@ -65,21 +119,93 @@ public class ResourceReader {
       exists = false;
     }
     if (!exists) {
+      tableVersions = Collections.emptyMap();
+      tableSizes = Collections.emptyMap();
+      referenceIndexVersions = Collections.emptyMap();
+      referenceTargetTypes.clear();
+      rowCounts.clear();
+      idIndexVersion = null;
+      idIndexTypes = Collections.emptySet();
       availableResourceTypes = EnumSet.noneOf(ResourceType.class);
+      cache.clear();
+      updates.incrementAndGet();
       return;
     }
 
     // Find all the Parquet files within the warehouse and use them to create a set of resource
-    // types.
+    // types. Directories that start with an underscore, such as the one that contains the reference
+    // indexes, are not resource tables.
     FileStatus[] fileStatuses = warehouse.listStatus(new Path(warehouseUrl + "/" + databaseName));
-    availableResourceTypes = Arrays.stream(fileStatuses)
+    Set<ResourceType> resourceTypes = Arrays.stream(fileStatuses)
+        .filter(fileStatus -> !fileStatus.getPath().getName().startsWith("_"))
         .map(fileStatus -> {
           String code = fileStatus.getPath().getName().replace(".parquet", "");
           return ResourceType.fromCode(code);
         })
         .collect(Collectors.toSet());
-    availableResourceTypes = Collections.unmodifiableSet(availableResourceTypes);
-    logger.info("Available resources: " + availableResourceTypes);
+
+    // Record the current version of each Delta table, so that subsequent reads are pinned to it.
+    // The versions are published before the resource types, so that a reader never sees a type
+    // without its version.
+    Map<ResourceType, Long> versions = new EnumMap<>(ResourceType.class);
+    Map<ResourceType, Long> sizes = new EnumMap<>(ResourceType.class);
+    for (ResourceType resourceType : resourceTypes) {
+      String tableUrl = getTableUrl(resourceType);
+      if (DeltaTable.isDeltaTable(spark, tableUrl)) {
+        long version = DeltaTable.forPath(spark, tableUrl).history(1)
+            .select("version").head().getLong(0);
+        versions.put(resourceType, version);
+        // The size of a Delta table is taken from its transaction log, which only counts the files
+        // within the current version.
+        sizes.put(resourceType, DeltaLog.forTable(spark, tableUrl).update(false).sizeInBytes());
+      } else {
+        sizes.put(resourceType, warehouse.getContentSummary(new Path(tableUrl)).getLength());
+      }
+    }
+    // Record the current version of each reference index, for the resource types that have one.
+    Map<ResourceType, Long> indexVersions = new EnumMap<>(ResourceType.class);
+    for (ResourceType resourceType : resourceTypes) {
+      String indexUrl = getReferenceIndexUrl(resourceType);
+      if (DeltaTable.isDeltaTable(spark, indexUrl)) {
+        indexVersions.put(resourceType, DeltaTable.forPath(spark, indexUrl).history(1)
+            .select("version").head().getLong(0));
+      }
+    }
+    // Record the current version of the ID index, and the resource types that it covers.
+    String idIndexUrl = getIdIndexUrl();
+    Long currentIdIndexVersion = null;
+    Set<ResourceType> currentIdIndexTypes = EnumSet.noneOf(ResourceType.class);
+    if (DeltaTable.isDeltaTable(spark, idIndexUrl)) {
+      currentIdIndexVersion = DeltaTable.forPath(spark, idIndexUrl).history(1)
+          .select("version").head().getLong(0);
+      spark.read().format("delta").option("versionAsOf", currentIdIndexVersion).load(idIndexUrl)
+          .select(ReferenceIndex.RESOURCE_TYPE)
+          .distinct()
+          .collectAsList()
+          .forEach(row -> currentIdIndexTypes.add(ResourceType.fromCode(row.getString(0))));
+      currentIdIndexTypes.retainAll(resourceTypes);
+    }
+    tableVersions = Collections.unmodifiableMap(versions);
+    tableSizes = Collections.unmodifiableMap(sizes);
+    referenceIndexVersions = Collections.unmodifiableMap(indexVersions);
+    referenceTargetTypes.clear();
+    rowCounts.clear();
+    idIndexVersion = currentIdIndexVersion;
+    idIndexTypes = Collections.unmodifiableSet(currentIdIndexTypes);
+    availableResourceTypes = Collections.unmodifiableSet(resourceTypes);
+    updates.incrementAndGet();
+    logger.info("Available resources: " + availableResourceTypes + ", table versions: "
+        + tableVersions + ", table sizes: " + tableSizes + ", reference indexes: "
+        + referenceIndexVersions + ", ID index types: " + idIndexTypes);
+
+    // Release any cached datasets that no longer reflect the current version of their table.
+    cache.retainCurrent(resourceType -> {
+      if (!resourceTypes.contains(resourceType)) {
+        return null;
+      }
+      return versions.getOrDefault(resourceType, ResourceCache.UNVERSIONED);
+    });
+    logger.info("Resource cache: " + cache);
   }
 
   public SparkSession getSpark() {
@@ -104,10 +230,205 @@ public class ResourceReader {
           "Requested resource type not available within selected database: " + resourceType
               .toCode());
     }
-    String tableUrl = warehouseUrl + "/" + databaseName + "/" + fileNameForResource(resourceType);
-    Dataset<Row> resources = spark.read().parquet(tableUrl);
-    resources.cache();
-    return resources;
+    Long version = tableVersions.get(resourceType);
+    return cache.get(resourceType, version == null
+                                   ? ResourceCache.UNVERSIONED
+                                   : version, tableSizes.get(resourceType),
+        type -> load(type, version));
+  }
+
+  private Dataset<Row> load(ResourceType resourceType, Long version) {
+    String tableUrl = getTableUrl(resourceType);
+    return version == null
+           ? spark.read().parquet(tableUrl)
+           : spark.read().format("delta").option("versionAsOf", version).load(tableUrl);
+  }
+
+  public ResourceCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Returns the version of the table for the resource type that reads are currently pinned to, or
+   * null if the table is not a Delta table.
+   */
+  public Long getTableVersion(ResourceType resourceType) {
+    return tableVersions.get(resourceType);
+  }
+
+  /**
+   * Returns the size in bytes of the files that make up the table for the resource type, as at the
+   * last update of the available resource types, or null if it is not known.
+   */
+  @Nullable
+  public Long getTableSize(ResourceType resourceType) {
+    return tableSizes.get(resourceType);
+  }
+
+  /**
+   * Returns the number of rows in the table for the resource type, or null if it could not be
+   * determined. The count is the sum of the row counts recorded within the footers of the Parquet
+   * files that make up the table, at the version that reads are pinned to. It is computed on first
+   * use, and retained until the available resource types are next updated.
+   */
+  @Nullable
+  public Long getRowCount(ResourceType resourceType) {
+    Long rowCount = rowCounts.get(resourceType);
+    if (rowCount != null || !availableResourceTypes.contains(resourceType)) {
+      return rowCount;
+    }
+    long update = updates.get();
+    try {
+      rowCount = countRows(resourceType, tableVersions.get(resourceType));
+    } catch (IOException | URISyntaxException e) {
+      logger.warn("Problem counting rows from Parquet footers: " + resourceType.toCode(), e);
+      return null;
+    }
+    // The count is not retained if the tables have been updated while it was being computed.
+    if (rowCount != null && updates.get() == update) {
+      rowCounts.put(resourceType, rowCount);
+    }
+    return rowCount;
+  }
+
+  @Nullable
+  private Long countRows(ResourceType resourceType, @Nullable Long version)
+      throws IOException, URISyntaxException {
+    String tableUrl = getTableUrl(resourceType);
+    Configuration hadoopConfiguration = spark.sparkContext().hadoopConfiguration();
+    List<Path> files = new ArrayList<>();
+    if (version != null) {
+      // The files within a Delta table are taken from its transaction log, as the directory may
+      // also contain files that have been removed from the current version.
+      Snapshot snapshot = DeltaLog.forTable(spark, tableUrl).update(false);
+      if (snapshot.version() != version) {
+        return null;
+      }
+      Path tablePath = new Path(tableUrl);
+      for (AddFile addFile : snapshot.allFiles().collectAsList()) {
+        files.add(new Path(tablePath, new Path(new URI(addFile.path()))));
+      }
+    } else {
+      FileSystem fileSystem = FileSystem.get(new URI(tableUrl), hadoopConfiguration);
+      RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(new Path(tableUrl), true);
+      while (iterator.hasNext()) {
+        Path file = iterator.next().getPath();
+        if (file.getName().endsWith(".parquet") && !file.getName().startsWith("_")
+            && !file.getName().startsWith(".")) {
+          files.add(file);
+        }
+      }
+    }
+    long rowCount = 0;
+    for (Path file : files) {
+      try (ParquetFileReader reader = ParquetFileReader
+          .open(HadoopInputFile.fromPath(file, hadoopConfiguration))) {
+        rowCount += reader.getRecordCount();
+      }
+    }
+    return rowCount;
+  }
+
+  /**
+   * Returns true if there is a reference index for the resource type.
+   */
+  public boolean hasReferenceIndex(ResourceType resourceType) {
+    return referenceIndexVersions.containsKey(resourceType);
+  }
+
+  /**
+   * Returns the reference index for the resource type, which describes the references from
+   * resources of that type to other resources.
+   */
+  @Nonnull
+  public Dataset<Row> readReferenceIndex(ResourceType resourceType) {
+    Long version = referenceIndexVersions.get(resourceType);
+    if (version == null) {
+      throw new ResourceNotFoundException(
+          "Reference index not available for resource type: " + resourceType.toCode());
+    }
+    return spark.read().format("delta").option("versionAsOf", version)
+        .load(getReferenceIndexUrl(resourceType));
+  }
+
+  /**
+   * Returns the types of the resources that are referred to by a Reference element of the resource
+   * type, according to its reference index. The result is computed on first use, and retained until
+   * the available resource types are next updated.
+   */
+  @Nonnull
+  public Set<ResourceType> getReferenceTargetTypes(ResourceType resourceType, String element) {
+    String key = resourceType.toCode() + "." + element;
+    return referenceTargetTypes.computeIfAbsent(key, k -> {
+      Set<ResourceType> targetTypes = EnumSet.noneOf(ResourceType.class);
+      readReferenceIndex(resourceType)
+          .where(col(ReferenceIndex.ELEMENT).equalTo(element))
+          .select(ReferenceIndex.TARGET_TYPE)
+          .where(col(ReferenceIndex.TARGET_TYPE).isNotNull())
+          .distinct()
+          .collectAsList()
+          .forEach(row -> {
+            try {
+              targetTypes.add(ResourceType.fromCode(row.getString(0)));
+            } catch (FHIRException e) {
+              logger.debug("Ignoring unknown reference target type: " + row.getString(0));
+            }
+          });
+      logger.info("Reference target types for " + k + ": " + targetTypes);
+      return Collections.unmodifiableSet(targetTypes);
+    });
+  }
+
+  /**
+   * Returns true if the ID index contains the IDs of all of the supplied resource types.
+   */
+  public boolean idIndexCovers(Collection<ResourceType> resourceTypes) {
+    return idIndexVersion != null && !resourceTypes.isEmpty() && idIndexTypes
+        .containsAll(resourceTypes);
+  }
+
+  /**
+   * Returns the ID index, which maps the ID of each resource to its type.
+   */
+  @Nonnull
+  public Dataset<Row> readIdIndex() {
+    Long version = idIndexVersion;
+    if (version == null) {
+      throw new ResourceNotFoundException("ID index not available within selected database");
+    }
+    return spark.read().format("delta").option("versionAsOf", version).load(getIdIndexUrl());
+  }
+
+  /**
+   * Returns a number that changes whenever the data read for any resource type may have changed,
+   * i.e. each time the available resource types are updated, and each time a cached dataset is
+   * released. Anything built from datasets returned by this reader can be reused for as long as
+   * this stays the same.
+   */
+  public long getDataVersion() {
+    return updates.get() + cache.getGeneration();
+  }
+
+  /**
+   * Returns a number that changes whenever the data within the warehouse may have changed, i.e.
+   * each time the available resource types are updated following an import. Unlike the data
+   * version, this does not change when cached datasets are released.
+   */
+  public long getWarehouseVersion() {
+    return updates.get();
+  }
+
+  private String getTableUrl(ResourceType resourceType) {
+    return warehouseUrl + "/" + databaseName + "/" + fileNameForResource(resourceType);
+  }
+
+  private String getIdIndexUrl() {
+    return warehouseUrl + "/" + databaseName + "/" + ReferenceIndex.ID_DIRECTORY;
+  }
+
+  private String getReferenceIndexUrl(ResourceType resourceType) {
+    return warehouseUrl + "/" + databaseName + "/" + ReferenceIndex.DIRECTORY + "/"
+        + fileNameForResource(resourceType);
   }
 
   @Override
@@ -116,6 +437,7 @@ public class ResourceReader {
         "warehouseUrl='" + warehouseUrl + '\'' +
         ", databaseName='" + databaseName + '\'' +
         ", availableResourceTypes=" + availableResourceTypes +
+        ", cache=" + cache +
         '}';
   }
 
@@ -6,21 +6,34 @@
 
 package au.csiro.pathling.query;
 
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.max;
+
+import au.csiro.pathling.encoders.datatypes.R4DataTypeMappings;
+import au.csiro.pathling.query.parsing.ExpressionFusion;
+import au.csiro.pathling.query.parsing.Joinable;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.parser.ExpressionParser;
 import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import au.csiro.pathling.query.parsing.parser.ResourceProjection;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -32,22 +45,65 @@ import org.slf4j.LoggerFactory;
 /**
  * Encapsulates the execution of a search query, implemented as an IBundleProvider for integration
  * into HAPI's mechanism for returning paged search results.
+ * <p>
+ * Results are ordered by ID, and pages are retrieved using keyset pagination: the ID of the last
+ * resource on each page is remembered, and the following page is retrieved by asking for the
+ * resources with a greater ID. Retrieving the next page therefore costs the same regardless of how
+ * deep into the results it is.
+ * <p>
+ * The query is not planned until the results are first requested. The IDs of the matching
+ * resources are then cached, and the resources for each page are retrieved using their IDs. The
+ * cached IDs are released by the paging provider once the search is no longer needed. If results
+ * are still being retrieved from the search at that time, the IDs are released once the retrieval
+ * is complete.
  *
  * @author John Grimes
  */
 public class SearchExecutor extends QueryExecutor implements IBundleProvider {
 
   private static final Logger logger = LoggerFactory.getLogger(SearchExecutor.class);
+
+  /**
+   * The fraction of the subject resources that the filters are applied to when estimating the total
+   * of a filtered search.
+   */
+  public static final double ESTIMATE_SAMPLE_FRACTION = 0.1;
+
+  /**
+   * The minimum number of matching resources within the sample for the total to be extrapolated
+   * from it. Below this, the total is counted exactly.
+   */
+  public static final long ESTIMATE_MIN_MATCHES = 100;
+
   private final ResourceType subjectResource;
   private final StringAndListParam filters;
-  private Dataset<Row> result;
+  private final boolean estimateTotal;
+  private Set<String> elements;
+  private Dataset<Row> ids;
   private Integer count;
+  // The number of retrievals in progress, and whether the IDs are to be released once they are
+  // complete. Both are guarded by this object.
+  private int retrievals;
+  private boolean releasePending;
+
+  // The ID of the last resource before each offset that a page has been retrieved up to.
+  private final NavigableMap<Integer, String> cursors = new TreeMap<>();
 
   public SearchExecutor(ExecutorConfiguration configuration, ResourceType subjectResource,
       StringAndListParam filters) {
+    this(configuration, subjectResource, filters, false);
+  }
+
+  /**
+   * @param estimateTotal if true, the total of a filtered search may be estimated from a sample of
+   * the subject resources, rather than counted exactly
+   */
+  public SearchExecutor(ExecutorConfiguration configuration, ResourceType subjectResource,
+      StringAndListParam filters, boolean estimateTotal) {
     super(configuration);
     this.subjectResource = subjectResource;
     this.filters = filters;
+    this.estimateTotal = estimateTotal;
     String filterStrings = filters == null
                            ? "null"
                            : filters.getValuesAsQueryTokens().stream()
@@ -56,7 +112,6 @@ public class SearchExecutor extends QueryExecutor implements IBundleProvider {
                                    .collect(Collectors.joining(",")))
                                .collect(Collectors.joining(" & "));
     logger.info("Received search request: filters=[" + filterStrings + "]");
-    initializeDataset();
   }
 
   @Override
@@ -68,27 +123,121 @@ public class SearchExecutor extends QueryExecutor implements IBundleProvider {
   @Override
   public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
     logger.info("Retrieving search results (" + (theFromIndex + 1) + "-" + theToIndex + ")");
+    beginRetrieval();
+    try {
+      Dataset<Row> resources = getPage(theFromIndex, theToIndex);
+      if (resources == null) {
+        return Collections.emptyList();
+      }
+
+      // The requested resources are encoded into HAPI FHIR objects, and then collected.
+      assert configuration.getFhirEncoders() != null;
+      ExpressionEncoder<IBaseResource> encoder = configuration.getFhirEncoders()
+          .of(subjectResource.toCode());
+      reportQueryPlan(resources);
+      return resources.as(encoder).collectAsList();
+    } finally {
+      endRetrieval();
+    }
+  }
+
+  /**
+   * Returns the requested page of resources serialised as FHIR JSON, in ID order. The resources are
+   * serialised on the executors without being decoded into HAPI FHIR objects.
+   */
+  @Nonnull
+  public List<String> getResourcesAsJson(int theFromIndex, int theToIndex) {
+    logger.info(
+        "Retrieving search results as JSON (" + (theFromIndex + 1) + "-" + theToIndex + ")");
+    beginRetrieval();
+    try {
+      Dataset<Row> resources = getPage(theFromIndex, theToIndex);
+      if (resources == null) {
+        return Collections.emptyList();
+      }
+
+      JsonRowEncoder jsonEncoder = new JsonRowEncoder(configuration.getFhirContext(),
+          new R4DataTypeMappings(), subjectResource, resources.schema());
+      reportQueryPlan(resources);
+      return resources.map(jsonEncoder, Encoders.STRING()).collectAsList();
+    } finally {
+      endRetrieval();
+    }
+  }
 
-    Dataset<Row> resources = result;
+  /**
+   * Returns a dataset of the resources within the requested page in ID order, or null if there are
+   * no resources within it.
+   */
+  @Nullable
+  private Dataset<Row> getPage(int theFromIndex, int theToIndex) {
+    Dataset<Row> pageIds = getIds();
     if (theFromIndex != 0) {
-      // Spark does not have an "offset" concept, so we create a list of rows to exclude and
-      // subtract them from the dataset using a left anti-join.
-      Dataset<Row> exclude = resources.limit(theFromIndex)
-          .select(resources.col("id").alias("excludeId"));
-      Column joinCondition = resources.col("id").equalTo(exclude.col("excludeId"));
-      resources = resources.join(exclude, joinCondition, "left_anti");
-    }
-    // The dataset is trimmed to the requested size.
+      String after = seek(theFromIndex);
+      if (after == null) {
+        // There are no resources at or beyond the requested offset.
+        return null;
+      }
+      pageIds = pageIds.where(pageIds.col("id").gt(after));
+    }
+    pageIds = pageIds.orderBy(pageIds.col("id"));
+    // The IDs are trimmed to the requested size.
     if (theToIndex != 0) {
-      resources = resources.limit(theToIndex - theFromIndex);
+      pageIds = pageIds.limit(theToIndex - theFromIndex);
     }
+    List<String> idValues = pageIds.collectAsList().stream()
+        .map(row -> row.getString(0))
+        .collect(Collectors.toList());
+    if (idValues.isEmpty()) {
+      return null;
+    }
+
+    // Remember where this page ends, so that the next page can start from there.
+    synchronized (cursors) {
+      cursors.put(theFromIndex + idValues.size(), idValues.get(idValues.size() - 1));
+    }
+
+    Dataset<Row> resources = subjectDataset
+        .where(subjectDataset.col("id").isin(idValues.toArray()))
+        .orderBy(subjectDataset.col("id"));
+    if (elements != null) {
+      resources = ElementProjection.project(configuration.getFhirContext(), subjectResource,
+          resources, elements);
+    }
+    return resources;
+  }
 
-    // The requested resources are encoded into HAPI FHIR objects, and then collected.
-    assert configuration.getFhirEncoders() != null;
-    ExpressionEncoder<IBaseResource> encoder = configuration.getFhirEncoders()
-        .of(subjectResource.toCode());
-    reportQueryPlan(resources);
-    return resources.as(encoder).collectAsList();
+  /**
+   * Returns the ID of the resource immediately before the offset, or null if there are not that
+   * many resources. If no page has ended at the offset, only the IDs between the nearest known
+   * cursor and the offset are read to find it.
+   */
+  @Nullable
+  private String seek(int offset) {
+    Map.Entry<Integer, String> floor;
+    synchronized (cursors) {
+      floor = cursors.floorEntry(offset);
+    }
+    if (floor != null && floor.getKey() == offset) {
+      return floor.getValue();
+    }
+    int start = floor == null
+                ? 0
+                : floor.getKey();
+    Dataset<Row> ids = getIds();
+    if (floor != null) {
+      ids = ids.where(ids.col("id").gt(floor.getValue()));
+    }
+    Dataset<Row> skipped = ids.orderBy(ids.col("id")).limit(offset - start);
+    Row last = skipped.agg(max(skipped.col("id")), count(skipped.col("id"))).head();
+    if (last.isNullAt(0) || last.getLong(1) < offset - start) {
+      return null;
+    }
+    String cursor = last.getString(0);
+    synchronized (cursors) {
+      cursors.put(offset, cursor);
+    }
+    return cursor;
   }
 
   private void reportQueryPlan(Dataset<Row> resources) {
@@ -113,54 +262,197 @@ public class SearchExecutor extends QueryExecutor implements IBundleProvider {
   @Override
   public Integer size() {
     if (count == null) {
-      reportQueryPlan(result);
-      count = Math.toIntExact(result.count());
+      if (!isFiltered()) {
+        // The total of an unfiltered search is the number of rows in the table, which can be taken
+        // from the table's metadata without running a query.
+        ResourceReader resourceReader = configuration.getResourceReader();
+        assert resourceReader != null;
+        Long rowCount = resourceReader.getRowCount(subjectResource);
+        if (rowCount != null) {
+          count = Math.toIntExact(rowCount);
+          return count;
+        }
+      } else if (estimateTotal) {
+        count = estimateSize();
+        if (count != null) {
+          return count;
+        }
+      }
+      beginRetrieval();
+      try {
+        Dataset<Row> ids = getIds();
+        reportQueryPlan(ids);
+        count = Math.toIntExact(ids.count());
+      } finally {
+        endRetrieval();
+      }
     }
     return count;
   }
 
-  private void initializeDataset() {
-    ExpressionParserContext context = buildParserContext(subjectResource);
+  /**
+   * Estimates the total by applying the filters to a sample of the subject resources, and scaling
+   * the number of matches within the sample up to the whole table. The estimate is retained, so
+   * that each page of the search reports the same total.
+   * <p>
+   * Returns null if there are too few matches within the sample for the estimate to be useful, in
+   * which case the total should be counted exactly. An underestimate would prevent a link to the
+   * next page being included within the bundle.
+   */
+  @Nullable
+  private Integer estimateSize() {
+    Dataset<Row> sampleIds = buildIds(ESTIMATE_SAMPLE_FRACTION);
+    reportQueryPlan(sampleIds);
+    long matches = sampleIds.count();
+    if (matches < ESTIMATE_MIN_MATCHES) {
+      logger.info("Too few matches within sample to estimate search total: " + matches);
+      return null;
+    }
+    int estimate = (int) Math.round(matches / ESTIMATE_SAMPLE_FRACTION);
+    logger.info("Estimated search total: " + estimate + " (from " + matches + " matches)");
+    return estimate;
+  }
+
+  /**
+   * Returns the IDs of the subject resources that match the search, in no particular order. The
+   * query is planned on the first call, and the IDs of a filtered search are cached.
+   */
+  @Nonnull
+  public synchronized Dataset<Row> getIds() {
+    if (ids == null) {
+      ids = buildIds(null);
+    }
+    return ids;
+  }
+
+  /**
+   * Releases the cached IDs of the matching resources. The search can still be used afterwards, in
+   * which case the IDs will be computed again. If results are being retrieved from the search, the
+   * IDs are not released until the retrieval is complete, so that it does not need to recompute
+   * them.
+   */
+  public synchronized void release() {
+    if (retrievals > 0) {
+      releasePending = true;
+      return;
+    }
+    if (ids != null && isFiltered()) {
+      logger.info("Releasing search results");
+      ids.unpersist();
+    }
+    ids = null;
+  }
+
+  /**
+   * Marks the start of a retrieval that uses the cached IDs.
+   */
+  synchronized void beginRetrieval() {
+    retrievals++;
+  }
 
-    if (filters == null || filters.getValuesAsQueryTokens().isEmpty()) {
+  /**
+   * Marks the end of a retrieval that uses the cached IDs, releasing them if a release was
+   * requested while it was in progress.
+   */
+  synchronized void endRetrieval() {
+    retrievals--;
+    if (retrievals == 0 && releasePending) {
+      releasePending = false;
+      release();
+    }
+  }
+
+  @Nonnull
+  public ResourceType getSubjectResource() {
+    return subjectResource;
+  }
+
+  @Nullable
+  public Set<String> getElements() {
+    return elements;
+  }
+
+  /**
+   * Limits the resources that are returned to the supplied top-level elements. The elements that
+   * are not requested are not read or decoded. If null, whole resources are returned.
+   */
+  public void setElements(@Nullable Set<String> elements) {
+    this.elements = elements;
+  }
+
+  private boolean isFiltered() {
+    return filters != null && !filters.getValuesAsQueryTokens().isEmpty();
+  }
+
+  /**
+   * Builds the IDs of the subject resources that match the search.
+   *
+   * @param sampleFraction if not null, the filters are only applied to a random sample of this
+   * fraction of the subject resources, and the IDs are not cached
+   */
+  @Nonnull
+  private Dataset<Row> buildIds(@Nullable Double sampleFraction) {
+    List<String> expressions = new ArrayList<>();
+    if (filters != null) {
+      filters.getValuesAsQueryTokens().forEach(orParam -> orParam.getValuesAsQueryTokens()
+          .forEach(param -> expressions.add(param.getValue())));
+    }
+    ExpressionParserContext context = buildParserContext(subjectResource,
+        ResourceProjection.referencedIdentifiers(expressions));
+
+    if (!isFiltered()) {
       // If there are no filters, return all resources.
-      result = subjectDataset;
-    } else {
-      ExpressionParser expressionParser = new ExpressionParser(context);
-      Column filterColumn = null, idColumn = null;
-      List<ParsedExpression> filterExpressions = new ArrayList<>();
-
-      // Parse each of the supplied filter expressions, building up a filter column. The nested
-      // loops here are to capture the AND/OR conditions possible through the FHIR API, see
-      // https://hl7.org/fhir/R4/search.html#combining.
-      for (StringOrListParam orParam : this.filters.getValuesAsQueryTokens()) {
-        Column innerColumn = null;
-        for (StringParam param : orParam.getValuesAsQueryTokens()) {
-          ParsedExpression expression = expressionParser.parse(param.getValue());
-          filterExpressions.add(expression);
-          innerColumn = innerColumn == null
-                        ? expression.getValueColumn()
-                        : innerColumn.or(expression.getValueColumn());
-          // We save away the first encountered ID column so that we can use it later to join the
-          // subject resource dataset with the joined filter datasets.
-          if (idColumn == null) {
-            idColumn = expression.getIdColumn();
-          }
+      return subjectDataset.select(subjectDataset.col("id"));
+    }
+    ExpressionParser expressionParser = new ExpressionParser(context);
+    Column filterColumn = null, idColumn = null;
+    List<ParsedExpression> filterExpressions = new ArrayList<>();
+    ParsedExpression subjectContext = context.getSubjectContext();
+
+    // Parse each of the supplied filter expressions, building up a filter column. The nested
+    // loops here are to capture the AND/OR conditions possible through the FHIR API, see
+    // https://hl7.org/fhir/R4/search.html#combining.
+    for (StringOrListParam orParam : this.filters.getValuesAsQueryTokens()) {
+      Column innerColumn = null;
+      for (StringParam param : orParam.getValuesAsQueryTokens()) {
+        ParsedExpression expression = compile(context, expressionParser, param.getValue(), true);
+        filterExpressions.add(expression);
+        innerColumn = innerColumn == null
+                      ? expression.getValueColumn()
+                      : innerColumn.or(expression.getValueColumn());
+        // We save away the first encountered ID column so that we can use it later to join the
+        // subject resource dataset with the joined filter datasets.
+        if (idColumn == null) {
+          idColumn = expression.getIdColumn();
         }
-        filterColumn = filterColumn == null
-                       ? innerColumn
-                       : filterColumn.and(innerColumn);
-
-        // Join all of the datasets from the parsed filter expressions together.
-        Dataset<Row> filterDataset = joinExpressions(filterExpressions).where(filterColumn);
-        // Get the full resources which are present in the filtered dataset.
-        result = subjectDataset.alias("subject").join(filterDataset,
-            subjectDataset.col("id").equalTo(idColumn), "left_semi");
-        // We cache the dataset because we know it will be accessed for both the total and the
-        // record retrieval.
-        result.cache();
       }
+      filterColumn = filterColumn == null
+                     ? innerColumn
+                     : filterColumn.and(innerColumn);
+    }
+
+    // Join all of the datasets from the parsed filter expressions together, once all of the
+    // expressions have been parsed. If any of the expressions have been fused into the subject
+    // resource, it goes first so that they do not need to be joined.
+    List<Joinable> joinables = new ArrayList<>();
+    if (filterExpressions.stream().anyMatch(expression -> ExpressionFusion
+        .canFuse(expression.getDataset(), subjectContext.getDataset()))) {
+      joinables.add(subjectContext);
+    }
+    joinables.addAll(filterExpressions);
+    Dataset<Row> filterDataset = joinExpressions(joinables).where(filterColumn);
+    // Get the IDs of the resources which are present in the filtered dataset.
+    Dataset<Row> subjects = sampleFraction == null
+                            ? subjectDataset
+                            : subjectDataset.sample(false, sampleFraction);
+    Dataset<Row> result = subjects.alias("subject").join(filterDataset,
+        subjects.col("id").equalTo(idColumn), "left_semi");
+    if (sampleFraction != null) {
+      return result.select(result.col("id"));
     }
+    // We cache the IDs because we know they will be accessed for both the total and the record
+    // retrieval.
+    return result.select(result.col("id")).cache();
   }
 
 }
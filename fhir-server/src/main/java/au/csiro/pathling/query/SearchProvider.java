@@ -6,13 +6,17 @@
 
 package au.csiro.pathling.query;
 
+import ca.uhn.fhir.rest.annotation.Elements;
 import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import java.util.Set;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.slf4j.Logger;
@@ -33,6 +37,8 @@ public class SearchProvider<T extends IBaseResource>
 
   public static final String QUERY_NAME = "fhirPath";
   public static final String FILTER_PARAM = "filter";
+  public static final String TOTAL_PARAM = "_total";
+  public static final String TOTAL_ESTIMATE = "estimate";
   private final ExecutorConfiguration configuration;
   private final Class<T> resourceType;
 
@@ -51,14 +57,32 @@ public class SearchProvider<T extends IBaseResource>
 
   @Search(queryName = QUERY_NAME)
   public IBundleProvider search(
-      @OptionalParam(name = FILTER_PARAM) StringAndListParam filters
+      @OptionalParam(name = FILTER_PARAM) StringAndListParam filters,
+      @OptionalParam(name = TOTAL_PARAM) StringParam total,
+      @Elements Set<String> elements,
+      SummaryEnum summary
   ) {
     try {
-      return new SearchExecutor(
+      // A total of "estimate" allows the total of a filtered search to be estimated, see
+      // https://hl7.org/fhir/R4/search.html#total.
+      boolean estimateTotal = total != null && TOTAL_ESTIMATE.equals(total.getValue());
+      ResourceType subjectResource = ResourceType.fromCode(resourceType.getSimpleName());
+      SearchExecutor searchExecutor = new SearchExecutor(
           configuration,
-          ResourceType.fromCode(resourceType.getSimpleName()),
-          filters
+          subjectResource,
+          filters,
+          estimateTotal
       );
+      // Only the elements that will be returned are read, see
+      // https://hl7.org/fhir/R4/search.html#elements. A count-only summary does not read any
+      // resources.
+      if (summary == SummaryEnum.TRUE) {
+        searchExecutor.setElements(
+            ElementProjection.summaryElements(configuration.getFhirContext(), subjectResource));
+      } else if (elements != null && !elements.isEmpty()) {
+        searchExecutor.setElements(ElementProjection.topLevelElements(elements));
+      }
+      return searchExecutor;
     } catch (BaseServerResponseException e) {
       // Errors relating to invalid input are re-raised, to be dealt with by HAPI.
       logger.warn("Invalid request", e);
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.apache.spark.sql.functions.col;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The results of a search, as stored by the {@link SearchSnapshotPagingProvider}. The IDs of the
+ * matching resources are held on disk in ID order, each along with its position within the results,
+ * so that the IDs for a page can be read using the statistics of the Parquet files to skip those
+ * that do not contain the requested positions. The resources themselves are then read from the
+ * table for the subject resource type.
+ *
+ * @author John Grimes
+ */
+class SearchSnapshot implements IBundleProvider {
+
+  static final String ID_COLUMN = "id";
+  static final String POSITION_COLUMN = "position";
+
+  private static final Logger logger = LoggerFactory.getLogger(SearchSnapshot.class);
+
+  @Nonnull
+  private final ExecutorConfiguration configuration;
+
+  @Nonnull
+  private final String uuid;
+
+  @Nonnull
+  private final ResourceType subjectResource;
+
+  @Nonnull
+  private final String path;
+
+  private final long warehouseVersion;
+
+  private final int size;
+
+  @Nullable
+  private final Set<String> elements;
+
+  private volatile long lastAccessed;
+
+  SearchSnapshot(@Nonnull ExecutorConfiguration configuration, @Nonnull String uuid,
+      @Nonnull ResourceType subjectResource, @Nonnull String path, long warehouseVersion,
+      int size, @Nullable Set<String> elements) {
+    this.configuration = configuration;
+    this.uuid = uuid;
+    this.subjectResource = subjectResource;
+    this.path = path;
+    this.warehouseVersion = warehouseVersion;
+    this.size = size;
+    this.elements = elements;
+    this.lastAccessed = System.currentTimeMillis();
+  }
+
+  @Override
+  public IPrimitiveType<Date> getPublished() {
+    return null;
+  }
+
+  @Nonnull
+  @Override
+  public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+    logger.info("Retrieving search results from snapshot " + uuid + " (" + (theFromIndex + 1) + "-"
+        + theToIndex + ")");
+    lastAccessed = System.currentTimeMillis();
+    Dataset<Row> snapshot = configuration.getSparkSession().read().parquet(path);
+    List<String> ids = snapshot
+        .where(col(POSITION_COLUMN).geq(theFromIndex).and(col(POSITION_COLUMN).lt(theToIndex)))
+        .select(ID_COLUMN)
+        .collectAsList().stream()
+        .map(row -> row.getString(0))
+        .collect(Collectors.toList());
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    ResourceReader resourceReader = configuration.getResourceReader();
+    assert resourceReader != null;
+    assert configuration.getFhirEncoders() != null;
+    Dataset<Row> resources = resourceReader.read(subjectResource);
+    resources = resources.where(resources.col("id").isin(ids.toArray()))
+        .orderBy(resources.col("id"));
+    if (elements != null) {
+      resources = ElementProjection.project(configuration.getFhirContext(), subjectResource,
+          resources, elements);
+    }
+    ExpressionEncoder<IBaseResource> encoder = configuration.getFhirEncoders()
+        .of(subjectResource.toCode());
+    return resources.as(encoder).collectAsList();
+  }
+
+  @Nonnull
+  @Override
+  public String getUuid() {
+    return uuid;
+  }
+
+  @Override
+  public Integer preferredPageSize() {
+    return null;
+  }
+
+  @Nullable
+  @Override
+  public Integer size() {
+    lastAccessed = System.currentTimeMillis();
+    return size;
+  }
+
+  @Nonnull
+  String getPath() {
+    return path;
+  }
+
+  long getWarehouseVersion() {
+    return warehouseVersion;
+  }
+
+  long getLastAccessed() {
+    return lastAccessed;
+  }
+
+}
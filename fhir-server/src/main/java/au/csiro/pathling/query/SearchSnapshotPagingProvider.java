@@ -0,0 +1,278 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static au.csiro.pathling.utilities.PersistenceScheme.convertS3ToS3aUrl;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.Metadata;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A paging provider that stores the results of each search as a snapshot on disk, rather than
+ * holding the search executor in memory. The snapshot contains the IDs of the matching resources in
+ * ID order, along with their positions, so that each page can be retrieved with a cheap read of the
+ * snapshot followed by a lookup of the IDs within the resource table.
+ * <p>
+ * A snapshot is discarded once it has not been accessed for longer than the configured time to
+ * live, or once the data within the warehouse has changed since it was taken.
+ * <p>
+ * Bundle providers other than the search executor are held in memory, as they were previously.
+ *
+ * @author John Grimes
+ */
+public class SearchSnapshotPagingProvider extends BasePagingProvider {
+
+  private static final Logger logger = LoggerFactory.getLogger(SearchSnapshotPagingProvider.class);
+  private static final int FALLBACK_MAP_SIZE = 10;
+  private static final String SNAPSHOT_PREFIX = "search-";
+  private static final StructType SNAPSHOT_SCHEMA = new StructType(new StructField[]{
+      new StructField(SearchSnapshot.ID_COLUMN, DataTypes.StringType, false, Metadata.empty()),
+      new StructField(SearchSnapshot.POSITION_COLUMN, DataTypes.LongType, false, Metadata.empty())
+  });
+
+  @Nonnull
+  private final ExecutorConfiguration configuration;
+
+  @Nonnull
+  private final String directory;
+
+  private final long ttlMillis;
+
+  @Nonnull
+  private final Map<String, SearchSnapshot> snapshots = new ConcurrentHashMap<>();
+
+  @Nonnull
+  private final MemoryPagingProvider fallback = new MemoryPagingProvider(FALLBACK_MAP_SIZE);
+
+  @Nonnull
+  private final ScheduledExecutorService cleaner;
+
+  /**
+   * @param configuration the configuration of the executors that produce the searches
+   * @param directory the URL of the directory that snapshots are written to, from which any
+   * snapshots are removed at startup
+   * @param ttlSeconds the number of seconds after its last access that a snapshot is discarded
+   */
+  public SearchSnapshotPagingProvider(@Nonnull ExecutorConfiguration configuration,
+      @Nonnull String directory, long ttlSeconds) {
+    this.configuration = configuration;
+    this.directory = convertS3ToS3aUrl(directory);
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    // Snapshots left behind by a previous run of the server can no longer be retrieved. Only the
+    // snapshots are removed, as the directory may be shared with other content.
+    deleteSnapshots(this.directory);
+    cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "search-snapshot-cleaner");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long interval = Math.max(1, ttlSeconds / 10);
+    cleaner.scheduleWithFixedDelay(this::removeExpired, interval, interval, TimeUnit.SECONDS);
+  }
+
+  @Nonnull
+  @Override
+  public BasePagingProvider setDefaultPageSize(int theDefaultPageSize) {
+    fallback.setDefaultPageSize(theDefaultPageSize);
+    return super.setDefaultPageSize(theDefaultPageSize);
+  }
+
+  @Nonnull
+  @Override
+  public BasePagingProvider setMaximumPageSize(int theMaximumPageSize) {
+    fallback.setMaximumPageSize(theMaximumPageSize);
+    return super.setMaximumPageSize(theMaximumPageSize);
+  }
+
+  @Nullable
+  @Override
+  public String storeResultList(@Nullable RequestDetails theRequestDetails,
+      @Nonnull IBundleProvider theList) {
+    if (!(theList instanceof SearchExecutor)) {
+      return fallback.storeResultList(theRequestDetails, theList);
+    }
+    SearchExecutor search = (SearchExecutor) theList;
+    ResourceReader resourceReader = configuration.getResourceReader();
+    assert resourceReader != null;
+    long warehouseVersion = resourceReader.getWarehouseVersion();
+
+    String uuid = UUID.randomUUID().toString();
+    String path = directory + "/" + SNAPSHOT_PREFIX + uuid;
+    // The cached IDs of the search are sorted once, and the sorted partitions are reused by both of
+    // the jobs below rather than being recomputed.
+    Dataset<Row> matchingIds = search.getIds();
+    JavaRDD<String> sorted = matchingIds.orderBy(matchingIds.col("id"))
+        .as(Encoders.STRING()).javaRDD();
+    // The size of each sorted partition gives the position of its first ID, and the sum of the
+    // sizes is the size of the result.
+    List<Long> partitionSizes = sorted.mapPartitions(SearchSnapshotPagingProvider::countPartition)
+        .collect();
+    long[] offsets = new long[partitionSizes.size()];
+    long total = 0;
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = total;
+      total += partitionSizes.get(i);
+    }
+    JavaRDD<Row> positioned = sorted.mapPartitionsWithIndex(
+        (index, partition) -> positionPartition(offsets[index], partition), true);
+    SparkSession spark = configuration.getSparkSession();
+    Dataset<Row> snapshot = spark.createDataFrame(positioned, SNAPSHOT_SCHEMA);
+    // The snapshot is written as a single file sorted on position, so that the statistics of each
+    // row group describe a contiguous range of positions.
+    logger.info("Writing search snapshot: " + path);
+    snapshot.coalesce(1).write().mode(SaveMode.Overwrite).parquet(path);
+
+    int size = Math.toIntExact(total);
+    // The results of the search are now read from the snapshot.
+    search.release();
+    snapshots.put(uuid, new SearchSnapshot(configuration, uuid, search.getSubjectResource(), path,
+        warehouseVersion, size, search.getElements()));
+    return uuid;
+  }
+
+  @Nullable
+  @Override
+  public IBundleProvider retrieveResultList(@Nullable RequestDetails theRequestDetails,
+      @Nonnull String theSearchId) {
+    SearchSnapshot snapshot = snapshots.get(theSearchId);
+    if (snapshot == null) {
+      return fallback.retrieveResultList(theRequestDetails, theSearchId);
+    }
+    ResourceReader resourceReader = configuration.getResourceReader();
+    assert resourceReader != null;
+    if (isExpired(snapshot, System.currentTimeMillis())
+        || snapshot.getWarehouseVersion() != resourceReader.getWarehouseVersion()) {
+      remove(theSearchId);
+      return null;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Stops the removal of expired snapshots, and removes all snapshots.
+   */
+  public void shutdown() {
+    cleaner.shutdownNow();
+    snapshots.keySet().forEach(this::remove);
+  }
+
+  @Nonnull
+  private static Iterator<Long> countPartition(@Nonnull Iterator<String> partition) {
+    long count = 0;
+    while (partition.hasNext()) {
+      partition.next();
+      count++;
+    }
+    return Collections.singletonList(count).iterator();
+  }
+
+  @Nonnull
+  private static Iterator<Row> positionPartition(long offset,
+      @Nonnull Iterator<String> partition) {
+    return new Iterator<Row>() {
+      private long position = offset;
+
+      @Override
+      public boolean hasNext() {
+        return partition.hasNext();
+      }
+
+      @Override
+      public Row next() {
+        return RowFactory.create(partition.next(), position++);
+      }
+    };
+  }
+
+  private void removeExpired() {
+    long now = System.currentTimeMillis();
+    try {
+      snapshots.entrySet().stream()
+          .filter(entry -> isExpired(entry.getValue(), now))
+          .map(Map.Entry::getKey)
+          .forEach(this::remove);
+    } catch (Exception e) {
+      // An exception would stop any further executions of this task.
+      logger.warn("Problem removing expired search snapshots", e);
+    }
+  }
+
+  private boolean isExpired(@Nonnull SearchSnapshot snapshot, long now) {
+    return now - snapshot.getLastAccessed() > ttlMillis;
+  }
+
+  private void remove(@Nonnull String uuid) {
+    SearchSnapshot snapshot = snapshots.remove(uuid);
+    if (snapshot != null) {
+      logger.info("Removing search snapshot: " + snapshot.getPath());
+      delete(snapshot.getPath());
+    }
+  }
+
+  private void deleteSnapshots(@Nonnull String url) {
+    try {
+      FileSystem fileSystem = FileSystem.get(new URI(url),
+          configuration.getSparkSession().sparkContext().hadoopConfiguration());
+      Path path = new Path(url);
+      if (!fileSystem.exists(path)) {
+        return;
+      }
+      for (FileStatus child : fileSystem.listStatus(path,
+          candidate -> candidate.getName().startsWith(SNAPSHOT_PREFIX))) {
+        logger.info("Removing search snapshot: " + child.getPath());
+        fileSystem.delete(child.getPath(), true);
+      }
+    } catch (IOException | URISyntaxException e) {
+      logger.warn("Problem removing search snapshots from directory: " + url, e);
+    }
+  }
+
+  private void delete(@Nonnull String url) {
+    try {
+      FileSystem fileSystem = FileSystem.get(new URI(url),
+          configuration.getSparkSession().sparkContext().hadoopConfiguration());
+      Path path = new Path(url);
+      if (fileSystem.exists(path)) {
+        fileSystem.delete(path, true);
+      }
+    } catch (IOException | URISyntaxException e) {
+      logger.warn("Problem deleting search snapshot: " + url, e);
+    }
+  }
+
+}
@@ -10,6 +10,7 @@ import au.csiro.pathling.query.parsing.ParsedExpression;
 import java.util.Arrays;
 import java.util.List;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
@@ -40,6 +41,21 @@ public abstract class AbstractAggregateFunction implements Function {
     validateInput(input);
     ParsedExpression result = aggregate(input);
 
+    // If the input is an unexploded array, the function can be evaluated over the array for each
+    // resource, which avoids the explode and the grouping. This is not done within a `$this`
+    // context, as the input value would then need to be preserved.
+    ParsedExpression inputExpression = input.getInput();
+    ParsedExpression thisContext = input.getContext().getThisContext();
+    Column arrayValue = inputExpression.getArrayColumn() == null
+                        ? null
+                        : arrayFunction(inputExpression.getArrayColumn());
+    if (arrayValue != null && !thisValuePresentInDataset(inputExpression.getArrayDataset(),
+        thisContext)) {
+      result.setDataset(inputExpression.getArrayDataset());
+      result.setHashedValue(inputExpression.getArrayIdColumn(), arrayValue);
+      return result;
+    }
+
     Dataset<Row> aggDataset = result.getAggregationDataset();
     // Apply the aggregate Spark SQL function to the grouping.
     Column aggIdColumn = result.getAggregationIdColumn();
@@ -47,7 +63,6 @@ public abstract class AbstractAggregateFunction implements Function {
 
     // First apply a grouping based upon the resource ID.
     // If there is a $this context, we need to preserve the input value column within the result.
-    ParsedExpression thisContext = input.getContext().getThisContext();
     Column[] groupBy;
     int selectionStart;
     if (thisValuePresentInDataset(aggDataset, thisContext)) {
@@ -68,6 +83,15 @@ public abstract class AbstractAggregateFunction implements Function {
   @Nonnull
   protected abstract ParsedExpression aggregate(@Nonnull FunctionInput input);
 
+  /**
+   * Returns a column that evaluates this function over an array column, or null if the function
+   * can not be evaluated in this way.
+   */
+  @Nullable
+  protected Column arrayFunction(@Nonnull Column array) {
+    return null;
+  }
+
   protected abstract void validateInput(FunctionInput input);
 
   /**
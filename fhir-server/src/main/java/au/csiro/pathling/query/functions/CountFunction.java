@@ -9,6 +9,7 @@ package au.csiro.pathling.query.functions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import javax.annotation.Nonnull;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.functions;
 import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
 
@@ -34,6 +35,12 @@ public class CountFunction extends AbstractAggregateFunction {
     return result;
   }
 
+  @Override
+  protected Column arrayFunction(@Nonnull Column array) {
+    return functions.when(array.isNull(), functions.lit(0L))
+        .otherwise(functions.size(array).cast("long"));
+  }
+
   protected void validateInput(FunctionInput input) {
     FunctionValidations.validateNoArgumentInput(functionName, input);
   }
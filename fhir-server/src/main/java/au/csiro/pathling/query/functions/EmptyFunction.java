@@ -7,12 +7,14 @@
 package au.csiro.pathling.query.functions;
 
 import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.size;
 import static org.apache.spark.sql.functions.when;
 
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import javax.annotation.Nonnull;
+import org.apache.spark.sql.Column;
 import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
 
 /**
@@ -39,6 +41,11 @@ public class EmptyFunction extends AbstractAggregateFunction {
     return result;
   }
 
+  @Override
+  protected Column arrayFunction(@Nonnull Column array) {
+    return array.isNull().or(size(array).equalTo(0));
+  }
+
   protected void validateInput(FunctionInput input) {
     FunctionValidations.validateNoArgumentInput(functionName, input);
     ParsedExpression inputExpression = input.getInput();
@@ -6,10 +6,12 @@
 
 package au.csiro.pathling.query.functions;
 
+import static org.apache.spark.sql.functions.element_at;
 import static org.apache.spark.sql.functions.first;
 
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import javax.annotation.Nonnull;
+import org.apache.spark.sql.Column;
 
 /**
  * This function allows the selection of only the first element of a collection.
@@ -30,6 +32,11 @@ public class FirstFunction extends AbstractAggregateFunction {
     return wrapSparkFunction(input, col -> first(col, true), true);
   }
 
+  @Override
+  protected Column arrayFunction(@Nonnull Column array) {
+    return element_at(array, 1);
+  }
+
   protected void validateInput(FunctionInput input) {
     FunctionValidations.validateNoArgumentInput(functionName, input);
   }
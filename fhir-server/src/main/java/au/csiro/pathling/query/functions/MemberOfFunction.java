@@ -6,6 +6,7 @@
 
 package au.csiro.pathling.query.functions;
 
+import static au.csiro.pathling.query.parsing.BroadcastHints.broadcastIfSmall;
 import static au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType.CODING;
 import static au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType.STRING;
 import static org.apache.spark.sql.functions.when;
@@ -97,10 +98,12 @@ public class MemberOfFunction implements Function {
     Column resultHashColumn = validateResults.col("hash");
 
     // We then join the input dataset to the validated codes, and select the validation result
-    // as the new value.
+    // as the new value. There is one validated code for each distinct input code, so this is often
+    // small enough to broadcast.
     dataset = prevDataset
-        .join(validateResults, prevValueHashColumn.equalTo(resultHashColumn), "left_outer");
-    
+        .join(broadcastIfSmall(input.getContext(), validateResults.toDF()),
+            prevValueHashColumn.equalTo(resultHashColumn), "left_outer");
+
     // The conditional expression around the value column is required to deal with nulls. This
     // function should only ever return true or false.
     valueColumn = when(valueColumn.isNull(), false).otherwise(valueColumn);
@@ -6,8 +6,12 @@
 
 package au.csiro.pathling.query.functions;
 
+import static au.csiro.pathling.query.parsing.BroadcastHints.broadcastIfSmall;
+import static au.csiro.pathling.query.parsing.BroadcastHints.tableSize;
+
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import java.util.Collections;
 import javax.annotation.Nonnull;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
@@ -35,7 +39,9 @@ public class OfTypeFunction implements Function {
 
     ParsedExpression argumentResult = input.getArguments().get(0);
     ResourceType resourceType = argumentResult.getResourceType();
-    Dataset<Row> argumentDataset = argumentResult.getDataset();
+    Dataset<Row> argumentDataset = broadcastIfSmall(input.getContext(),
+        argumentResult.getDataset(), tableSize(input.getContext().getResourceReader(),
+            Collections.singletonList(resourceType)));
     Column argumentIdCol = argumentResult.getIdColumn();
 
     // Join from the filtered input dataset to the argument dataset.
@@ -6,15 +6,24 @@
 
 package au.csiro.pathling.query.functions;
 
+import static au.csiro.pathling.query.parsing.BloomFilterReduction.reduce;
+import static au.csiro.pathling.query.parsing.BroadcastHints.broadcastIfSmall;
+import static au.csiro.pathling.query.parsing.BroadcastHints.tableSize;
 import static org.apache.spark.sql.functions.lit;
 
 import au.csiro.pathling.query.ResourceReader;
 import au.csiro.pathling.query.parsing.ParsedExpression;
+import au.csiro.pathling.query.parsing.ReferenceIndex;
+import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
@@ -37,7 +46,8 @@ public class ResolveFunction implements Function {
     validateInput(input);
     ParsedExpression inputResult = input.getInput();
     Dataset<Row> inputDataset = inputResult.getDataset();
-    ResourceReader resourceReader = input.getContext().getResourceReader();
+    ExpressionParserContext context = input.getContext();
+    ResourceReader resourceReader = context.getResourceReader();
     Column inputIdCol = inputResult.getIdColumn();
     Column referenceCol = inputResult.getValueColumn();
 
@@ -48,42 +58,73 @@ public class ResolveFunction implements Function {
     if (referenceTypes.contains(ResourceType.RESOURCE)) {
       referenceTypes = resourceReader.getAvailableResourceTypes();
     }
-    assert referenceTypes.size() > 0 : "Encountered reference with no types";
     boolean isPolymorphic = referenceTypes.size() > 1;
+    // If the reference is covered by a reference index, only the types that it actually refers to
+    // need to be looked at.
+    if (isPolymorphic) {
+      referenceTypes = indexedReferenceTypes(context, inputResult, referenceTypes);
+    }
+    assert referenceTypes.size() > 0 : "Encountered reference with no types";
 
     Dataset<Row> targetDataset;
     Column targetIdCol, targetValueCol, targetTypeCol;
     if (isPolymorphic) {
-      // If this is a polymorphic reference, create a dataset for each reference type, and union
-      // them together to produce the target dataset. The dataset will not contain the resources
+      // If this is a polymorphic reference, the target dataset will not contain the resources
       // themselves, only a type and identifier for later resolution.
-      List<Dataset<Row>> referenceTypeDatasets = new ArrayList<>();
-      for (ResourceType referenceType : referenceTypes) {
-        if (resourceReader.getAvailableResourceTypes().contains(referenceType)) {
+      List<ResourceType> availableTypes = referenceTypes.stream()
+          .filter(resourceReader.getAvailableResourceTypes()::contains)
+          .collect(Collectors.toList());
+      if (resourceReader.idIndexCovers(availableTypes)) {
+        // If the ID index covers all of the possible types, the identifiers and types can be read
+        // from it in a single scan.
+        Dataset<Row> idIndex = resourceReader.readIdIndex();
+        Column typeCol = idIndex.col(ReferenceIndex.RESOURCE_TYPE);
+        targetDataset = idIndex
+            .where(typeCol.isin(availableTypes.stream().map(ResourceType::toCode).toArray()))
+            .select(idIndex.col(ReferenceIndex.ID), typeCol);
+        targetDataset = reduceOrBroadcast(input, targetDataset,
+            ReferenceIndex.resourceKey(targetDataset.col(ReferenceIndex.ID),
+                targetDataset.col(ReferenceIndex.RESOURCE_TYPE)), null);
+      } else {
+        // Otherwise, create a dataset for each reference type, and union them together to produce
+        // the target dataset.
+        List<Dataset<Row>> referenceTypeDatasets = new ArrayList<>();
+        for (ResourceType referenceType : availableTypes) {
           Dataset<Row> referenceTypeDataset = resourceReader.read(referenceType);
           targetIdCol = referenceTypeDataset.col("id");
           targetTypeCol = lit(referenceType.toCode());
           referenceTypeDataset = referenceTypeDataset.select(targetIdCol, targetTypeCol);
           referenceTypeDatasets.add(referenceTypeDataset);
         }
+        targetDataset = referenceTypeDatasets.stream()
+            .reduce(Dataset::union)
+            .orElse(null);
+        assert targetDataset != null;
+        targetDataset = reduceOrBroadcast(input, targetDataset,
+            ReferenceIndex.resourceKey(targetDataset.col(targetDataset.columns()[0]),
+                targetDataset.col(targetDataset.columns()[1])),
+            tableSize(resourceReader, availableTypes));
       }
-      targetDataset = referenceTypeDatasets.stream()
-          .reduce(Dataset::union)
-          .orElse(null);
-      assert targetDataset != null;
       targetIdCol = targetDataset.col(targetDataset.columns()[0]);
       targetValueCol = targetDataset.col(targetDataset.columns()[1]);
+      targetTypeCol = targetValueCol;
     } else {
       // If this is a monomorphic reference, we just need to retrieve the appropriate table and
       // create a dataset with the full resources.
-      targetDataset = resourceReader.read(
-          (ResourceType) referenceTypes.toArray()[0]);
+      ResourceType referenceType = (ResourceType) referenceTypes.toArray()[0];
+      targetDataset = resourceReader.read(referenceType);
+      targetTypeCol = lit(referenceType.toCode());
+      targetDataset = reduceOrBroadcast(input, targetDataset,
+          ReferenceIndex.resourceKey(targetDataset.col("id"), targetTypeCol),
+          tableSize(resourceReader, Collections.singletonList(referenceType)));
       targetIdCol = targetDataset.col("id");
       targetValueCol = org.apache.spark.sql.functions.struct(targetDataset.col("*"));
     }
 
-    // Create a new dataset by joining to the target resource dataset.
-    Column equality = referenceCol.getField("reference").equalTo(targetIdCol);
+    // Create a new dataset by joining to the target resource dataset. References are matched on the
+    // type and logical ID of their target, in the same way as within the reference index.
+    Column equality = ReferenceIndex.referenceKey(referenceCol.getField("reference"))
+        .equalTo(ReferenceIndex.resourceKey(targetIdCol, targetTypeCol));
     Dataset<Row> dataset = inputDataset.join(targetDataset, equality, "left_outer");
 
     // Construct a new parse result.
@@ -109,6 +150,52 @@ public class ResolveFunction implements Function {
     return result;
   }
 
+  /**
+   * Narrows the possible types of a polymorphic reference to those recorded in the reference index,
+   * if the reference is covered by one. The types are not narrowed if the index does not record any
+   * references of the possible types, so that the reference remains polymorphic.
+   */
+  @Nonnull
+  private static Set<ResourceType> indexedReferenceTypes(@Nonnull ExpressionParserContext context,
+      @Nonnull ParsedExpression inputResult, @Nonnull Set<ResourceType> referenceTypes) {
+    ResourceReader resourceReader = context.getResourceReader();
+    ParsedExpression origin = inputResult.getOrigin();
+    if (origin == null || origin.getResourceType() == null
+        || !resourceReader.hasReferenceIndex(origin.getResourceType())) {
+      return referenceTypes;
+    }
+    String element = ReferenceIndex.indexedElement(context.getFhirContext(), inputResult);
+    if (element == null) {
+      return referenceTypes;
+    }
+    Set<ResourceType> indexedTypes = EnumSet.noneOf(ResourceType.class);
+    indexedTypes.addAll(resourceReader.getReferenceTargetTypes(origin.getResourceType(), element));
+    indexedTypes.retainAll(referenceTypes);
+    return indexedTypes.isEmpty()
+           ? referenceTypes
+           : indexedTypes;
+  }
+
+  /**
+   * Marks the target dataset for broadcast if it is small enough. Otherwise, the target dataset is
+   * reduced to the resources that might be referenced from the input, using a Bloom filter.
+   */
+  @Nonnull
+  private static Dataset<Row> reduceOrBroadcast(@Nonnull FunctionInput input,
+      @Nonnull Dataset<Row> targetDataset, @Nonnull Column targetKey,
+      @Nullable Long targetSize) {
+    ExpressionParserContext context = input.getContext();
+    long threshold = context.getBroadcastThreshold();
+    if (threshold > 0 && targetSize != null && targetSize <= threshold) {
+      return broadcastIfSmall(context, targetDataset, targetSize);
+    }
+    ParsedExpression inputResult = input.getInput();
+    Dataset<Row> reduced = reduce(context, inputResult.getDataset(),
+        ReferenceIndex.referenceKey(inputResult.getValueColumn().getField("reference")),
+        targetDataset, targetKey, input.getExpression());
+    return broadcastIfSmall(context, reduced, targetSize);
+  }
+
   private void validateInput(FunctionInput input) {
     ParsedExpression inputResult = input.getInput();
     if (!inputResult.getFhirType().equals(FHIRDefinedType.REFERENCE)) {
@@ -6,10 +6,18 @@
 
 package au.csiro.pathling.query.functions;
 
+import static au.csiro.pathling.query.parsing.BloomFilterReduction.reduce;
+import static au.csiro.pathling.utilities.Strings.md5Short;
+import static org.apache.spark.sql.functions.lit;
+
+import au.csiro.pathling.query.ResourceReader;
 import au.csiro.pathling.query.parsing.ParsedExpression;
+import au.csiro.pathling.query.parsing.ReferenceIndex;
+import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import java.util.Set;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
@@ -19,6 +27,10 @@ import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 /**
  * A function for accessing elements of resources which refer to the input resource. The path to the
  * referring element is supplied as an argument.
+ * <p>
+ * If the referring element is at the top level of its resource and there is a reference index for
+ * that resource type, the input is matched to the referring resources using the narrow rows of the
+ * index, rather than the reference strings within the referring resources.
  *
  * @author John Grimes
  * @see <a href="https://pathling.csiro.au/docs/fhirpath/functions.html#reverseresolve">reverseResolve</a>
@@ -43,13 +55,29 @@ public class ReverseResolveFunction implements Function {
         inputIdCol = inputResult.getIdColumn(),
         resourceCol = argument.getOrigin().getValueColumn();
 
-    // Create a new dataset by joining from the argument to the input dataset.
-    Dataset<Row> dataset = inputDataset
-        .join(argumentDataset, inputIdCol.equalTo(argumentValueCol.getField("reference")),
-            "left_outer");
+    ResourceType originResourceType = argument.getOrigin().getResourceType();
+
+    Dataset<Row> dataset;
+    String element = indexedElement(input.getContext(), argument);
+    if (element == null) {
+      // References are matched on the type and logical ID of their target, in the same way as
+      // within the reference index.
+      Column inputKey = ReferenceIndex
+          .resourceKey(inputIdCol, lit(inputResult.getResourceType().toCode()));
+      Column referenceKey = ReferenceIndex.referenceKey(argumentValueCol.getField("reference"));
+
+      // Discard the referring resources that can not refer to any of the input resources, before
+      // they are shuffled for the join.
+      argumentDataset = reduce(input.getContext(), inputDataset, inputKey, argumentDataset,
+          referenceKey, input.getExpression());
+
+      // Create a new dataset by joining from the argument to the input dataset.
+      dataset = inputDataset.join(argumentDataset, inputKey.equalTo(referenceKey), "left_outer");
+    } else {
+      dataset = joinUsingIndex(input, element);
+    }
 
     // Construct a new parse result.
-    ResourceType originResourceType = argument.getOrigin().getResourceType();
     ParsedExpression result = new ParsedExpression();
     result.setFhirPath(input.getExpression());
     result.setResource(true);
@@ -61,6 +89,62 @@ public class ReverseResolveFunction implements Function {
     return result;
   }
 
+  /**
+   * Returns the name of the referring element, if it is covered by a reference index. Otherwise
+   * returns null.
+   */
+  @Nullable
+  private static String indexedElement(@Nonnull ExpressionParserContext context,
+      @Nonnull ParsedExpression argument) {
+    ResourceReader resourceReader = context.getResourceReader();
+    if (resourceReader == null || context.getFhirContext() == null
+        || !resourceReader.hasReferenceIndex(argument.getOrigin().getResourceType())) {
+      return null;
+    }
+    return ReferenceIndex.indexedElement(context.getFhirContext(), argument);
+  }
+
+  /**
+   * Joins the input to the referring resources via the reference index. The index is first reduced
+   * to the references to the input resources, then joined to the referring resources on their ID.
+   */
+  @Nonnull
+  private static Dataset<Row> joinUsingIndex(@Nonnull FunctionInput input,
+      @Nonnull String element) {
+    ExpressionParserContext context = input.getContext();
+    ParsedExpression inputResult = input.getInput(),
+        argument = input.getArguments().get(0);
+    Dataset<Row> inputDataset = inputResult.getDataset(),
+        argumentDataset = argument.getDataset();
+    Column inputIdCol = inputResult.getIdColumn();
+
+    String hash = md5Short(input.getExpression());
+    Dataset<Row> index = context.getResourceReader()
+        .readReferenceIndex(argument.getOrigin().getResourceType());
+    Dataset<Row> references = index
+        .where(index.col(ReferenceIndex.ELEMENT).equalTo(element)
+            .and(index.col(ReferenceIndex.TARGET_TYPE)
+                .equalTo(inputResult.getResourceType().toCode())))
+        .select(index.col(ReferenceIndex.SOURCE_ID).alias(hash + "_source_id"),
+            index.col(ReferenceIndex.REFERENCE).alias(hash + "_reference"),
+            index.col(ReferenceIndex.TARGET_ID).alias(hash + "_target_id"));
+    Column inputKey = ReferenceIndex.logicalId(inputIdCol);
+    references = reduce(context, inputDataset, inputKey, references,
+        references.col(hash + "_target_id"), input.getExpression());
+
+    // Each referring resource has at most one value for a singular element, so it can be matched
+    // on its ID alone. Otherwise the reference itself also needs to match.
+    Column referringCondition = references.col(hash + "_source_id")
+        .equalTo(argument.getIdColumn());
+    if (!argument.isSingular()) {
+      referringCondition = referringCondition.and(references.col(hash + "_reference")
+          .equalTo(argument.getValueColumn().getField("reference")));
+    }
+    Dataset<Row> referring = references.join(argumentDataset, referringCondition, "inner");
+    return inputDataset
+        .join(referring, inputKey.equalTo(references.col(hash + "_target_id")), "left_outer");
+  }
+
   private void validateInput(FunctionInput input) {
     ParsedExpression inputResult = input.getInput();
     if (!inputResult.isResource()) {
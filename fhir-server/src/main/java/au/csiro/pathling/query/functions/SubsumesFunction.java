@@ -7,6 +7,7 @@
 package au.csiro.pathling.query.functions;
 
 import static au.csiro.pathling.query.functions.AbstractAggregateFunction.thisValuePresentInDataset;
+import static au.csiro.pathling.query.parsing.BroadcastHints.broadcastIfSmall;
 import static org.apache.spark.sql.functions.collect_set;
 import static org.apache.spark.sql.functions.struct;
 
@@ -356,7 +357,7 @@ public class SubsumesFunction implements Function {
     Dataset<Row> argCodingSet = toCodingSetsDataset(argSystemAndCodeDataset);
 
     // JOIN the input args datasets
-    Dataset<Row> joinedCodingSets = inputCodingSet.join(argCodingSet,
+    Dataset<Row> joinedCodingSets = inputCodingSet.join(broadcastIfSmall(ctx, argCodingSet),
         inputCodingSet.col(COL_ID).equalTo(argCodingSet.col(COL_ID)), "left_outer")
         .select(inputCodingSet.col(COL_ID).alias(COL_ID),
             inputCodingSet.col(COL_CODING_SET).alias(COL_LEFT_CODINGS),
@@ -6,9 +6,13 @@
 
 package au.csiro.pathling.query.functions;
 
+import static au.csiro.pathling.query.functions.AbstractAggregateFunction.thisValuePresentInDataset;
+import static au.csiro.pathling.utilities.Strings.md5Short;
+import static org.apache.spark.sql.functions.explode_outer;
 import static org.apache.spark.sql.functions.lit;
 import static org.apache.spark.sql.functions.when;
 
+import au.csiro.pathling.query.parsing.LambdaExpressions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -34,6 +38,15 @@ public class WhereFunction implements Function {
     ParsedExpression inputResult = input.getInput();
     ParsedExpression argument = input.getArguments().get(0);
 
+    // If the input is an unexploded array and the argument can be evaluated as a lambda over its
+    // elements, the array is filtered without exploding it. This is not done within a `$this`
+    // context, as the input value would then need to be preserved.
+    if (inputResult.getArrayColumn() != null && argument.getLambdaSql() != null
+        && !thisValuePresentInDataset(inputResult.getArrayDataset(),
+        input.getContext().getThisContext())) {
+      return filterArray(input, argument.getLambdaSql());
+    }
+
     Column idColumn, valueColumn;
     Dataset<Row> dataset;
     if (argument.isLiteral()) {
@@ -62,6 +75,32 @@ public class WhereFunction implements Function {
     return result;
   }
 
+  /**
+   * Evaluates the function using the Spark SQL filter function over the unexploded input array.
+   * The result keeps the filtered array, so that functions such as `first` can also be evaluated
+   * over it, along with the exploded values for everything else.
+   */
+  @Nonnull
+  private static ParsedExpression filterArray(@Nonnull FunctionInput input,
+      @Nonnull String predicate) {
+    ParsedExpression inputResult = input.getInput();
+    // The array is given a name, so that it can be referred to within the SQL of the filter.
+    String arrayName = md5Short(inputResult.getFhirPath() + "." + input.getExpression()) + "_array";
+    Dataset<Row> arrayDataset = inputResult.getArrayDataset()
+        .withColumn(arrayName, inputResult.getArrayColumn());
+    Column filtered = LambdaExpressions.filter(arrayName, predicate);
+
+    // Row generators can not be nested inside expressions, so the explode is given its own column.
+    Dataset<Row> dataset = arrayDataset.withColumn("explodeResult", explode_outer(filtered));
+
+    ParsedExpression result = new ParsedExpression(inputResult);
+    result.setFhirPath(input.getExpression());
+    result.setDataset(dataset);
+    result.setHashedValue(inputResult.getArrayIdColumn(), dataset.col("explodeResult"));
+    result.setArray(arrayDataset, inputResult.getArrayIdColumn(), filtered);
+    return result;
+  }
+
   private void validateInput(FunctionInput input) {
     if (input.getArguments().size() != 1) {
       throw new InvalidRequestException(
@@ -9,6 +9,7 @@ package au.csiro.pathling.query.operators;
 import static org.apache.spark.sql.functions.lit;
 import static org.apache.spark.sql.functions.when;
 
+import au.csiro.pathling.query.parsing.LambdaExpressions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -116,6 +117,9 @@ public class BooleanOperator implements BinaryOperator {
     result.setDataset(dataset);
     result.setIdColumn(idColumn);
     result.setValueColumn(expression);
+    if (operator.equals(AND) || operator.equals(OR)) {
+      result.setLambdaSql(LambdaExpressions.binary(left, operator.toUpperCase(), right));
+    }
     return result;
   }
 
@@ -10,6 +10,7 @@ import static au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType.*;
 import static org.apache.spark.sql.functions.lit;
 import static org.apache.spark.sql.functions.to_date;
 
+import au.csiro.pathling.query.parsing.LambdaExpressions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -118,6 +119,7 @@ public class ComparisonOperator implements BinaryOperator {
     result.setSingular(true);
     result.setDataset(dataset);
     result.setHashedValue(idColumn, expression);
+    result.setLambdaSql(LambdaExpressions.binary(left, operator, right));
     return result;
   }
 
@@ -12,6 +12,7 @@ import static org.apache.spark.sql.functions.to_date;
 import static org.apache.spark.sql.functions.when;
 
 import au.csiro.pathling.query.parsing.FhirPathTypeSqlHelper;
+import au.csiro.pathling.query.parsing.LambdaExpressions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -117,6 +118,8 @@ public class EqualityOperator implements BinaryOperator {
     result.setDataset(dataset);
     result.setIdColumn(idColumn);
     result.setValueColumn(expression);
+    // The null tests above are implied by the SQL equality operators.
+    result.setLambdaSql(LambdaExpressions.binary(left, operator, right));
     return result;
   }
 
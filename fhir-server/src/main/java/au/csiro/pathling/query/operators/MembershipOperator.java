@@ -7,18 +7,25 @@
 package au.csiro.pathling.query.operators;
 
 import static au.csiro.pathling.query.functions.AbstractAggregateFunction.thisValuePresentInDataset;
+import static au.csiro.pathling.utilities.Strings.md5Short;
+import static org.apache.spark.sql.functions.array_contains;
+import static org.apache.spark.sql.functions.coalesce;
 import static org.apache.spark.sql.functions.lit;
 import static org.apache.spark.sql.functions.max;
 import static org.apache.spark.sql.functions.when;
 
 import au.csiro.pathling.query.parsing.FhirPathTypeSqlHelper;
+import au.csiro.pathling.query.parsing.LambdaExpressions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import java.util.EnumSet;
+import java.util.Set;
 import javax.annotation.Nonnull;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
 
 /**
@@ -29,6 +36,13 @@ import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
  */
 public class MembershipOperator implements BinaryOperator {
 
+  /**
+   * The types for which equality within an array has the same semantics as the equality used by
+   * this operator.
+   */
+  private static final Set<FhirPathType> ARRAY_TYPES = EnumSet
+      .of(FhirPathType.STRING, FhirPathType.BOOLEAN, FhirPathType.INTEGER);
+
   private final String operator;
 
   public MembershipOperator(String operator) {
@@ -65,6 +79,36 @@ public class MembershipOperator implements BinaryOperator {
     FhirPathTypeSqlHelper sqlHelper = FhirPathTypeSqlHelper
         .forType(element.getFhirPathType());
 
+    // If the element is a literal and the collection is an unexploded array, the test can be done
+    // using the array itself, without exploding and re-aggregating the collection.
+    ParsedExpression thisContext = input.getContext().getThisContext();
+    if (element.isLiteral() && collection.getArrayColumn() != null
+        && !thisValuePresentInDataset(collection.getArrayDataset(), thisContext)) {
+      Dataset<Row> arrayDataset = collection.getArrayDataset();
+      Column arrayColumn = collection.getArrayColumn();
+      Column containsColumn = null;
+      if (ARRAY_TYPES.contains(element.getFhirPathType())) {
+        containsColumn = array_contains(arrayColumn, sqlHelper.getLiteralColumn(element));
+      } else if (element.getFhirPathType() == FhirPathType.CODING) {
+        // Codings can not be compared using struct equality, so each element is compared with the
+        // literal within a lambda. The array is given a name, so that it can be referred to within
+        // the SQL of the lambda.
+        String arrayName = md5Short(collection.getFhirPath() + " " + input.getExpression())
+            + "_array";
+        arrayDataset = arrayDataset.withColumn(arrayName, arrayColumn);
+        containsColumn = LambdaExpressions.exists(arrayName, LambdaExpressions
+            .codingEquality(LambdaExpressions.ELEMENT, (Coding) element.getJavaLiteralValue()));
+      }
+      if (containsColumn != null) {
+        Column valueColumn = when(arrayColumn.isNull(), lit(false))
+            .otherwise(coalesce(containsColumn, lit(false)));
+        ParsedExpression result = buildResult(input);
+        result.setDataset(arrayDataset);
+        result.setHashedValue(collection.getArrayIdColumn(), valueColumn);
+        return result;
+      }
+    }
+
     // Create a new dataset which joins left and right and aggregates on the resource ID based upon
     // whether the left expression is within the set of values in the right expression.
     Dataset<Row> elementDataset = element.getDataset();
@@ -99,7 +143,6 @@ public class MembershipOperator implements BinaryOperator {
 
     // If the operator is being executed within a `$this` context, we need to preserve the input 
     // value column when we do the aggregation.
-    ParsedExpression thisContext = input.getContext().getThisContext();
     Column[] groupBy;
     int selectionStart;
     if (thisValuePresentInDataset(membershipDataset, thisContext)) {
@@ -115,6 +158,14 @@ public class MembershipOperator implements BinaryOperator {
     Column idColumn = membershipDataset.col(membershipDataset.columns()[selectionStart]);
     Column valueColumn = membershipDataset.col(membershipDataset.columns()[selectionStart + 1]);
 
+    ParsedExpression result = buildResult(input);
+    result.setDataset(membershipDataset);
+    result.setHashedValue(idColumn, valueColumn);
+    return result;
+  }
+
+  @Nonnull
+  private static ParsedExpression buildResult(@Nonnull BinaryOperatorInput input) {
     // Construct a new parse result.
     ParsedExpression result = new ParsedExpression();
     result.setFhirPath(input.getExpression());
@@ -122,8 +173,6 @@ public class MembershipOperator implements BinaryOperator {
     result.setFhirType(FHIRDefinedType.BOOLEAN);
     result.setPrimitive(true);
     result.setSingular(true);
-    result.setDataset(membershipDataset);
-    result.setHashedValue(idColumn, valueColumn);
     return result;
   }
 
@@ -8,6 +8,7 @@ package au.csiro.pathling.query.operators;
 
 import static org.apache.spark.sql.functions.explode_outer;
 
+import au.csiro.pathling.query.parsing.LambdaExpressions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
@@ -93,6 +94,15 @@ public class PathTraversalOperator {
     result.setOrigin(left.getOrigin());
     result.setDataset(dataset);
     result.setHashedValue(leftIdColumn, valueColumn);
+    // If there is one value of the left expression for each row, we also keep the unexploded array
+    // so that functions over the collection can avoid the explode.
+    if (!isSingular && left.isSingular()) {
+      result.setArray(leftDataset, leftIdColumn, field);
+    }
+    // A singular child of an element within a lambda can also be evaluated within the lambda.
+    if (left.getLambdaSql() != null && isSingular) {
+      result.setLambdaSql(LambdaExpressions.field(left.getLambdaSql(), right));
+    }
 
     return result;
   }
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.udf;
+
+import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import java.io.Serializable;
+import java.util.Collection;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.api.java.UDF1;
+import org.apache.spark.sql.expressions.UserDefinedFunction;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.sketch.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reduces one side of an equi-join using a Bloom filter built from the keys of the other side, so
+ * that rows which can not match are discarded before they are shuffled.
+ * <p>
+ * Building the filter requires the keys of the build side to be computed ahead of the query, so
+ * this is only done when a false positive rate has been configured within the parser context, and
+ * only when the number of keys is within the configured maximum.
+ * <p>
+ * The filter is not built while the expression is being parsed. Instead, the reduction is recorded
+ * within the parser context as a {@link DeferredFilter}, and all of the filters for an expression
+ * are built by {@link #build} once it has been compiled. This means that no lock on the expression
+ * cache is held while the Spark job that builds a filter is running.
+ * <p>
+ * The filter is applied using a predicate named {@link #PREDICATE_NAME}. The number of rows that it
+ * discards can be seen within the plan of the query in the Spark UI, as the difference between the
+ * number of rows into and out of the filter that applies it.
+ *
+ * @author John Grimes
+ */
+public abstract class BloomFilterReduction {
+
+  private static final Logger logger = LoggerFactory.getLogger(BloomFilterReduction.class);
+  private static final String KEY_COLUMN = "bloom_filter_key";
+
+  /**
+   * The name of the predicate that applies the filter, as it appears within query plans.
+   */
+  public static final String PREDICATE_NAME = "bloom_filter_might_contain";
+
+  /**
+   * Returns the probe dataset, reduced to the rows whose key might be present within the keys of the
+   * build dataset. The probe dataset is returned unchanged if Bloom filters are disabled. If there
+   * turn out to be too many keys within the build dataset, the predicate keeps every row.
+   * <p>
+   * The filter must be built using {@link #build} before the returned dataset is used.
+   *
+   * @param context the parser context, which supplies the configuration
+   * @param buildDataset the dataset that the filter is built from
+   * @param buildKey the key column within the build dataset
+   * @param probeDataset the dataset that is reduced
+   * @param probeKey the key column within the probe dataset
+   * @param description a description of the join, used within log messages
+   */
+  @Nonnull
+  public static Dataset<Row> reduce(@Nonnull ExpressionParserContext context,
+      @Nonnull Dataset<Row> buildDataset, @Nonnull Column buildKey,
+      @Nonnull Dataset<Row> probeDataset, @Nonnull Column probeKey,
+      @Nonnull String description) {
+    double fpp = context.getBloomFilterFpp();
+    if (fpp <= 0 || fpp >= 1) {
+      return probeDataset;
+    }
+
+    DeferredFilter filter = new DeferredFilter(buildDataset, buildKey, fpp,
+        context.getBloomFilterMaxItems(), description);
+    context.getPendingBloomFilters().add(filter);
+    UserDefinedFunction mightContain = udf(bloomFilterPredicate(filter), DataTypes.BooleanType)
+        .withName(PREDICATE_NAME);
+    return probeDataset.filter(mightContain.apply(probeKey));
+  }
+
+  /**
+   * Builds each of the supplied filters, if it has not already been built.
+   */
+  public static void build(@Nonnull Collection<DeferredFilter> filters) {
+    filters.forEach(DeferredFilter::build);
+  }
+
+  /**
+   * Creates the predicate within a static context, so that only the filter is serialized along with
+   * it.
+   */
+  @Nonnull
+  private static UDF1<String, Boolean> bloomFilterPredicate(@Nonnull DeferredFilter filter) {
+    return key -> key != null && filter.mightContain(key);
+  }
+
+  /**
+   * A Bloom filter that has been applied to a probe dataset, but which may not have been built yet.
+   * The same filter may be used by more than one request when its expression is cached, so
+   * building it is synchronized on the filter itself, and it is only built once.
+   */
+  public static class DeferredFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Nullable
+    private transient Dataset<Row> buildDataset;
+
+    @Nullable
+    private transient Column buildKey;
+
+    private final double fpp;
+    private final long maxItems;
+
+    @Nonnull
+    private final String description;
+
+    private volatile boolean built;
+
+    /**
+     * The filter, or null if there were too many keys within the build dataset.
+     */
+    @Nullable
+    private volatile BloomFilter filter;
+
+    private DeferredFilter(@Nonnull Dataset<Row> buildDataset, @Nonnull Column buildKey,
+        double fpp, long maxItems, @Nonnull String description) {
+      this.buildDataset = buildDataset;
+      this.buildKey = buildKey;
+      this.fpp = fpp;
+      this.maxItems = maxItems;
+      this.description = description;
+    }
+
+    public boolean isBuilt() {
+      return built;
+    }
+
+    /**
+     * Builds the filter from the keys of the build dataset, unless there are too many keys.
+     */
+    public synchronized void build() {
+      if (built) {
+        return;
+      }
+      assert buildDataset != null && buildKey != null;
+      // The keys are persisted while they are counted and added to the filter, so that the build
+      // side is only computed once.
+      Dataset<Row> keys = buildDataset.select(buildKey.alias(KEY_COLUMN))
+          .where(col(KEY_COLUMN).isNotNull())
+          .distinct();
+      keys.persist(StorageLevel.MEMORY_AND_DISK());
+      try {
+        long count = keys.count();
+        if (count > maxItems) {
+          logger.info("Skipping Bloom filter for " + description + ", " + count + " keys exceeds "
+              + "maximum of " + maxItems);
+        } else {
+          BloomFilter result = keys.stat().bloomFilter(KEY_COLUMN, Math.max(count, 1), fpp);
+          logger.info("Built Bloom filter for " + description + ": " + count + " keys, "
+              + result.bitSize() / 8 + " bytes, expected false positive rate " + result
+              .expectedFpp());
+          filter = result;
+        }
+      } finally {
+        keys.unpersist(false);
+      }
+      built = true;
+      // The build side is no longer needed once the filter has been built.
+      buildDataset = null;
+      buildKey = null;
+    }
+
+    private boolean mightContain(@Nonnull String key) {
+      if (!built) {
+        throw new IllegalStateException("Bloom filter has not been built: " + description);
+      }
+      BloomFilter result = filter;
+      return result == null || result.mightContainString(key);
+    }
+
+  }
+
+}
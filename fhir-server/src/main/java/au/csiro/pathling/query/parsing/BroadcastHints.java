@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static org.apache.spark.sql.functions.broadcast;
+
+import au.csiro.pathling.query.ResourceReader;
+import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import java.util.Collection;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.math.BigInt;
+
+/**
+ * Decides whether the smaller side of a join should be broadcast to each executor, rather than
+ * shuffling both sides of the join.
+ * <p>
+ * Automatic broadcasting is disabled within the Spark session, as the estimates that Spark makes
+ * for datasets derived from other joins are not reliable. Instead, functions that join to a dataset
+ * that is likely to be small ask for it to be broadcast explicitly, if its estimated size is within
+ * the broadcast threshold of the parser context.
+ *
+ * @author John Grimes
+ */
+public abstract class BroadcastHints {
+
+  private static final Logger logger = LoggerFactory.getLogger(BroadcastHints.class);
+
+  /**
+   * Returns the dataset marked for broadcast if its estimated size is within the broadcast
+   * threshold, otherwise the dataset unchanged.
+   *
+   * @param context the parser context, which supplies the threshold
+   * @param dataset the dataset that would be broadcast
+   * @param estimatedSize the estimated size of the dataset in bytes, or null if it should be
+   * estimated from the statistics of its plan
+   */
+  @Nonnull
+  public static Dataset<Row> broadcastIfSmall(@Nonnull ExpressionParserContext context,
+      @Nonnull Dataset<Row> dataset, @Nullable Long estimatedSize) {
+    long threshold = context.getBroadcastThreshold();
+    if (threshold <= 0) {
+      return dataset;
+    }
+    long size = estimatedSize == null
+                ? estimateSize(dataset)
+                : estimatedSize;
+    if (size > threshold) {
+      return dataset;
+    }
+    logger.debug("Broadcasting dataset with estimated size of " + size + " bytes");
+    return broadcast(dataset);
+  }
+
+  /**
+   * Returns the dataset marked for broadcast if its estimated size, taken from the statistics of its
+   * plan, is within the broadcast threshold.
+   */
+  @Nonnull
+  public static Dataset<Row> broadcastIfSmall(@Nonnull ExpressionParserContext context,
+      @Nonnull Dataset<Row> dataset) {
+    return broadcastIfSmall(context, dataset, null);
+  }
+
+  /**
+   * Returns the combined size of the tables for the supplied resource types, as collected by the
+   * resource reader, or null if the size of any of them is not known.
+   */
+  @Nullable
+  public static Long tableSize(@Nonnull ResourceReader resourceReader,
+      @Nonnull Collection<ResourceType> resourceTypes) {
+    long total = 0;
+    for (ResourceType resourceType : resourceTypes) {
+      Long size = resourceReader.getTableSize(resourceType);
+      if (size == null) {
+        return null;
+      }
+      total += size;
+    }
+    return total;
+  }
+
+  /**
+   * Returns the size of the dataset in bytes, as estimated by the Spark optimiser.
+   */
+  public static long estimateSize(@Nonnull Dataset<Row> dataset) {
+    BigInt size = dataset.queryExecution().optimizedPlan().stats().sizeInBytes();
+    return size.isValidLong()
+           ? size.longValue()
+           : Long.MAX_VALUE;
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import javax.annotation.Nonnull;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.catalyst.plans.logical.Deduplicate;
+import org.apache.spark.sql.catalyst.plans.logical.Distinct;
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan;
+import org.apache.spark.sql.catalyst.plans.logical.Project;
+
+/**
+ * Recognises datasets that have been derived from the same origin using only projections, i.e.
+ * without any explodes, joins or aggregations. Such datasets contain exactly one row for each row of
+ * their origin, so their columns can be evaluated over a single dataset instead of being joined
+ * back together on the resource ID.
+ *
+ * @author John Grimes
+ */
+public abstract class ExpressionFusion {
+
+  /**
+   * Returns true if the dataset is the result of adding columns to the base dataset, through one or
+   * more projections that each retain all of the columns of their input.
+   */
+  public static boolean extendsDataset(@Nonnull Dataset<Row> dataset,
+      @Nonnull Dataset<Row> base) {
+    LogicalPlan basePlan = base.queryExecution().analyzed();
+    LogicalPlan plan = dataset.queryExecution().analyzed();
+    while (plan instanceof Project) {
+      Project project = (Project) plan;
+      if (!project.child().outputSet().subsetOf(project.outputSet())) {
+        return false;
+      }
+      plan = project.child();
+      if (plan.fastEquals(basePlan)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the dataset can be evaluated over the target dataset without a join. This is
+   * the case when both are projections over the same origin, and every column of the dataset is
+   * also present within the target.
+   * <p>
+   * A de-duplication on top of the dataset can also be skipped if the origin is a table of
+   * resources, as each row of the dataset will then correspond to a different resource.
+   */
+  public static boolean canFuse(@Nonnull Dataset<Row> dataset, @Nonnull Dataset<Row> target) {
+    LogicalPlan plan = dataset.queryExecution().analyzed();
+    LogicalPlan targetPlan = target.queryExecution().analyzed();
+    if (!plan.outputSet().subsetOf(targetPlan.outputSet())) {
+      return false;
+    }
+    boolean deduplicated = false;
+    while (plan instanceof Deduplicate || plan instanceof Distinct) {
+      plan = plan.children().head();
+      deduplicated = true;
+    }
+    LogicalPlan origin = stripProjections(plan);
+    if (deduplicated && !origin.children().isEmpty()) {
+      return false;
+    }
+    return origin.fastEquals(stripProjections(targetPlan));
+  }
+
+  @Nonnull
+  private static LogicalPlan stripProjections(@Nonnull LogicalPlan plan) {
+    LogicalPlan result = plan;
+    while (result instanceof Project) {
+      result = ((Project) result).child();
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static org.apache.spark.sql.functions.expr;
+
+import au.csiro.pathling.query.parsing.ParsedExpression.FhirPathType;
+import java.math.BigDecimal;
+import java.util.EnumSet;
+import java.util.Set;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Column;
+import org.hl7.fhir.r4.model.Coding;
+
+/**
+ * Builds calls to the Spark SQL higher-order functions (filter, exists), which evaluate a lambda
+ * over each element of an array column without exploding it.
+ * <p>
+ * Spark 2.4 does not expose these functions or lambdas through the Java Column API, so they are
+ * written as SQL text. Expressions that can be evaluated within a lambda carry their SQL text
+ * within {@link ParsedExpression#getLambdaSql()}, in terms of {@link #ELEMENT}.
+ *
+ * @author John Grimes
+ */
+public abstract class LambdaExpressions {
+
+  /**
+   * The name of the lambda variable that is bound to each element of the array.
+   */
+  public static final String ELEMENT = "element";
+
+  /**
+   * The types of operands that can be compared within a lambda, with the same semantics as the
+   * equality and comparison operators.
+   */
+  private static final Set<FhirPathType> SUPPORTED_TYPES = EnumSet
+      .of(FhirPathType.STRING, FhirPathType.INTEGER, FhirPathType.DECIMAL, FhirPathType.BOOLEAN);
+
+  /**
+   * Returns a column that contains the elements of the named array column for which the predicate
+   * is true.
+   */
+  @Nonnull
+  public static Column filter(@Nonnull String arrayColumnName, @Nonnull String predicate) {
+    return expr("filter(" + quote(arrayColumnName) + ", " + ELEMENT + " -> " + predicate + ")");
+  }
+
+  /**
+   * Returns a column that is true if the predicate is true for any element of the named array
+   * column.
+   */
+  @Nonnull
+  public static Column exists(@Nonnull String arrayColumnName, @Nonnull String predicate) {
+    return expr("exists(" + quote(arrayColumnName) + ", " + ELEMENT + " -> " + predicate + ")");
+  }
+
+  /**
+   * Returns the SQL for an operand of a binary operator, which is either the lambda SQL of an
+   * expression derived from the lambda variable or a literal. Returns null if the operand can not
+   * be evaluated within a lambda.
+   */
+  @Nullable
+  public static String operand(@Nonnull ParsedExpression expression) {
+    if (!SUPPORTED_TYPES.contains(expression.getFhirPathType())) {
+      return null;
+    }
+    return expression.isLiteral()
+           ? literal(expression.getJavaLiteralValue())
+           : expression.getLambdaSql();
+  }
+
+  /**
+   * Returns the SQL for a binary operator with the supplied operands, or null if either operand
+   * can not be evaluated within a lambda.
+   */
+  @Nullable
+  public static String binary(@Nonnull ParsedExpression left, @Nonnull String operator,
+      @Nonnull ParsedExpression right) {
+    String leftSql = operand(left), rightSql = operand(right);
+    if (leftSql == null || rightSql == null) {
+      return null;
+    }
+    return "(" + leftSql + " " + operator + " " + rightSql + ")";
+  }
+
+  /**
+   * Returns the SQL for the equality of a Coding element with a Coding literal, following the
+   * rules within {@link CodingFhirPathTypeSqlHelper}.
+   */
+  @Nonnull
+  public static String codingEquality(@Nonnull String element, @Nonnull Coding literal) {
+    if (literal.getSystem() == null || literal.getCode() == null) {
+      return "CAST(NULL AS BOOLEAN)";
+    }
+    String versionAgnosticTest = element + ".system = " + literal(literal.getSystem()) + " AND "
+        + element + ".code = " + literal(literal.getCode());
+    return "CASE WHEN " + element + ".system IS NULL OR " + element + ".code IS NULL THEN NULL"
+        + (literal.getVersion() == null
+           ? ""
+           : " WHEN " + element + ".version IS NOT NULL THEN " + versionAgnosticTest + " AND "
+               + element + ".version = " + literal(literal.getVersion()))
+        + " ELSE " + versionAgnosticTest + " END";
+  }
+
+  /**
+   * Returns a field of a struct within a lambda.
+   */
+  @Nonnull
+  public static String field(@Nonnull String struct, @Nonnull String fieldName) {
+    return struct + "." + quote(fieldName);
+  }
+
+  @Nonnull
+  private static String literal(@Nullable Object value) {
+    if (value == null) {
+      return "NULL";
+    } else if (value instanceof String) {
+      return "'" + ((String) value).replace("\\", "\\\\").replace("'", "\\'") + "'";
+    } else if (value instanceof BigDecimal) {
+      return ((BigDecimal) value).toPlainString() + "BD";
+    } else if (value instanceof Boolean) {
+      return ((Boolean) value)
+             ? "TRUE"
+             : "FALSE";
+    } else {
+      return value.toString();
+    }
+  }
+
+  @Nonnull
+  private static String quote(@Nonnull String identifier) {
+    return "`" + identifier.replace("`", "``") + "`";
+  }
+
+}
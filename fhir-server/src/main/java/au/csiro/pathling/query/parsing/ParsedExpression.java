@@ -8,6 +8,7 @@ package au.csiro.pathling.query.parsing;
 
 import static au.csiro.pathling.utilities.Strings.md5Short;
 
+import au.csiro.pathling.query.parsing.BloomFilterReduction.DeferredFilter;
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
 import ca.uhn.fhir.context.FhirContext;
@@ -144,6 +145,25 @@ public class ParsedExpression implements Joinable {
    */
   private Column resourceTypeColumn;
 
+  /**
+   * For collections that were reached by traversing to a non-singular child of a singular element,
+   * these hold the dataset prior to the explode and the unexploded array. Functions that reduce a
+   * collection to a single value can use these to evaluate the function over the array, instead of
+   * grouping the exploded rows back together. These are not copied by the copy constructor, as they
+   * only describe the result of the path traversal itself.
+   */
+  private Dataset<Row> arrayDataset;
+  private Column arrayIdColumn;
+  private Column arrayColumn;
+
+  /**
+   * For expressions within the argument to a function that is being evaluated over an unexploded
+   * array, this holds the Spark SQL for the value of the expression in terms of the lambda variable
+   * that is bound to each element of the array. It is null if the expression can not be evaluated
+   * in this way. See {@link LambdaExpressions}. This is not copied by the copy constructor.
+   */
+  private String lambdaSql;
+
   /**
    * For aggregation expression, this holds the dataset that the grouped aggregation should be
    * performed over.
@@ -157,6 +177,13 @@ public class ParsedExpression implements Joinable {
   private Column aggregationColumn;
   private Column aggregationIdColumn;
 
+  /**
+   * The Bloom filters that the dataset of this expression depends upon, which are built once the
+   * expression has been compiled.
+   */
+  @Nonnull
+  private List<DeferredFilter> bloomFilters = Collections.emptyList();
+
   public ParsedExpression() {
   }
 
@@ -180,6 +207,7 @@ public class ParsedExpression implements Joinable {
     this.aggregationDataset = parsedExpression.aggregationDataset;
     this.aggregationColumn = parsedExpression.aggregationColumn;
     this.aggregationIdColumn = parsedExpression.aggregationIdColumn;
+    this.bloomFilters = parsedExpression.bloomFilters;
   }
 
   public String getFhirPath() {
@@ -360,6 +388,41 @@ public class ParsedExpression implements Joinable {
     this.aggregationIdColumn = aggregationIdColumn;
   }
 
+  public Dataset<Row> getArrayDataset() {
+    return arrayDataset;
+  }
+
+  public Column getArrayIdColumn() {
+    return arrayIdColumn;
+  }
+
+  public Column getArrayColumn() {
+    return arrayColumn;
+  }
+
+  public void setArray(Dataset<Row> arrayDataset, Column arrayIdColumn, Column arrayColumn) {
+    this.arrayDataset = arrayDataset;
+    this.arrayIdColumn = arrayIdColumn;
+    this.arrayColumn = arrayColumn;
+  }
+
+  public String getLambdaSql() {
+    return lambdaSql;
+  }
+
+  public void setLambdaSql(String lambdaSql) {
+    this.lambdaSql = lambdaSql;
+  }
+
+  @Nonnull
+  public List<DeferredFilter> getBloomFilters() {
+    return bloomFilters;
+  }
+
+  public void setBloomFilters(@Nonnull List<DeferredFilter> bloomFilters) {
+    this.bloomFilters = bloomFilters;
+  }
+
   public Joinable getGroupingJoinable() {
     return new Joinable() {
       @Override
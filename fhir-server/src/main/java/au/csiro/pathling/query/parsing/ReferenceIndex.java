@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static org.apache.spark.sql.functions.concat;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.regexp_extract;
+import static org.apache.spark.sql.functions.regexp_replace;
+import static org.apache.spark.sql.functions.substring_index;
+import static org.apache.spark.sql.functions.when;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeChildResourceDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.Column;
+
+/**
+ * Describes the reference index tables that are written alongside each resource table when an
+ * import is run with the reference index enabled.
+ * <p>
+ * Each row of the index for a resource type describes one reference from a resource of that type:
+ * the ID of the referring resource, the name of the Reference element, the reference as it was
+ * recorded, and the type and logical ID of the target, which are normalised from the reference, so
+ * that e.g. {@code Patient/123} and {@code http://example.com/fhir/Patient/123/_history/2} both
+ * have a target type of {@code Patient} and a target ID of {@code 123}.
+ * <p>
+ * Only Reference elements at the top level of each resource are indexed.
+ * <p>
+ * The same normalisation is used to match references to resources wherever they are resolved, using
+ * {@link #referenceKey(Column)} and {@link #resourceKey(Column, Column)}, so that a query returns the
+ * same results whether or not an index is used.
+ * <p>
+ * A single ID index is also written for the whole database, which maps the ID of each resource to
+ * its type. It is partitioned by resource type, and the files within each partition are hash
+ * partitioned and sorted on the ID.
+ *
+ * @author John Grimes
+ */
+public abstract class ReferenceIndex {
+
+  /**
+   * The name of the directory within the database that contains the index tables.
+   */
+  public static final String DIRECTORY = "_references";
+
+  public static final String SOURCE_ID = "source_id";
+  public static final String ELEMENT = "element";
+  public static final String REFERENCE = "reference";
+  public static final String TARGET_TYPE = "target_type";
+  public static final String TARGET_ID = "target_id";
+
+  /**
+   * The name of the directory within the database that contains the ID index.
+   */
+  public static final String ID_DIRECTORY = "_ids";
+
+  public static final String ID = "id";
+  public static final String RESOURCE_TYPE = "resource_type";
+
+  private static final String HISTORY_PATTERN = "/_history/.*$";
+  private static final String TYPED_ID_PATTERN = "([A-Z][A-Za-z]+)/([^/]+)$";
+  private static final String TYPED_KEY_PATTERN = "([A-Z][A-Za-z]+/[^/]+)$";
+
+  /**
+   * Returns a column containing the type of the resource that the reference refers to, or null if
+   * the reference is not a literal reference to a resource type, e.g. a contained reference.
+   */
+  @Nonnull
+  public static Column targetType(@Nonnull Column reference) {
+    return nullIfEmpty(regexp_extract(stripHistory(reference), TYPED_ID_PATTERN, 1));
+  }
+
+  /**
+   * Returns a column containing the logical ID of the resource that the reference refers to, or
+   * null if the reference is not a literal reference to a resource type.
+   */
+  @Nonnull
+  public static Column targetId(@Nonnull Column reference) {
+    return nullIfEmpty(regexp_extract(stripHistory(reference), TYPED_ID_PATTERN, 2));
+  }
+
+  /**
+   * Returns a column containing the logical ID of a resource, taken from the value of its ID column,
+   * which may be qualified with the resource type and a version.
+   */
+  @Nonnull
+  public static Column logicalId(@Nonnull Column id) {
+    return substring_index(stripHistory(id), "/", -1);
+  }
+
+  /**
+   * Returns a column containing the type and logical ID of the resource that the reference refers
+   * to, in the form {@code [type]/[id]}, or null if the reference is not a literal reference to a
+   * resource type. This is equal to the {@link #resourceKey(Column, Column)} of the target.
+   */
+  @Nonnull
+  public static Column referenceKey(@Nonnull Column reference) {
+    return nullIfEmpty(regexp_extract(stripHistory(reference), TYPED_KEY_PATTERN, 1));
+  }
+
+  /**
+   * Returns a column containing the type and logical ID of a resource, in the form {@code
+   * [type]/[id]}, which can be compared to the {@link #referenceKey(Column)} of a reference.
+   */
+  @Nonnull
+  public static Column resourceKey(@Nonnull Column id, @Nonnull Column resourceType) {
+    return concat(resourceType, lit("/"), logicalId(id));
+  }
+
+  /**
+   * Returns the names of the Reference elements at the top level of the supplied resource type.
+   * Choice elements that allow a Reference are not included.
+   */
+  @Nonnull
+  public static List<String> referenceElements(@Nonnull FhirContext fhirContext,
+      @Nonnull String resourceCode) {
+    RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(resourceCode);
+    return definition.getChildren().stream()
+        .filter(child -> child instanceof RuntimeChildResourceDefinition)
+        .map(BaseRuntimeChildDefinition::getElementName)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Returns the name of the Reference element that the expression refers to, if it is a Reference
+   * element at the top level of a resource, which means that it is covered by the index of that
+   * resource type. Otherwise returns null.
+   */
+  @Nullable
+  public static String indexedElement(@Nonnull FhirContext fhirContext,
+      @Nonnull ParsedExpression expression) {
+    ParsedExpression origin = expression.getOrigin();
+    BaseRuntimeChildDefinition definition = expression.getDefinition();
+    if (origin == null || !origin.isResource() || origin.getResourceType() == null
+        || !(definition instanceof RuntimeChildResourceDefinition)) {
+      return null;
+    }
+    RuntimeResourceDefinition originDefinition = fhirContext
+        .getResourceDefinition(origin.getResourceType().toCode());
+    String elementName = definition.getElementName();
+    // The definition of a nested element with the same name would be a different object.
+    return originDefinition.getChildByName(elementName) == definition
+           ? elementName
+           : null;
+  }
+
+  @Nonnull
+  private static Column stripHistory(@Nonnull Column column) {
+    return regexp_replace(column, HISTORY_PATTERN, "");
+  }
+
+  @Nonnull
+  private static Column nullIfEmpty(@Nonnull Column column) {
+    return when(column.notEqual(""), column);
+  }
+
+}
@@ -17,17 +17,16 @@ import au.csiro.pathling.query.functions.Function;
 import au.csiro.pathling.query.functions.FunctionInput;
 import au.csiro.pathling.query.operators.PathTraversalInput;
 import au.csiro.pathling.query.operators.PathTraversalOperator;
+import au.csiro.pathling.query.parsing.LambdaExpressions;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
-import org.apache.spark.sql.functions;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.ResourceType;
@@ -87,12 +86,9 @@ class ExpressionInvocationVisitor extends FhirPathBaseVisitor<ParsedExpression>
     result.setOrigin(result);
 
     // Add a dataset to the parse result representing the nominated resource.
-    Dataset<Row> dataset = context.getResourceReader().read(result.getResourceType());
-    String firstColumn = dataset.columns()[0];
-    String[] remainingColumns = Arrays
-        .copyOfRange(dataset.columns(), 1, dataset.columns().length);
-    dataset = dataset
-        .withColumn(hash, functions.struct(firstColumn, remainingColumns));
+    Dataset<Row> dataset = ResourceProjection
+        .project(context.getResourceReader().read(result.getResourceType()), hash,
+            context.getReferencedElements());
     Column idColumn = dataset.col("id");
     Column valueColumn = dataset.col(hash);
     dataset = dataset.select(idColumn, valueColumn);
@@ -135,6 +131,11 @@ class ExpressionInvocationVisitor extends FhirPathBaseVisitor<ParsedExpression>
       // The $this expression is treated as singular, as it represents each item in the input
       // collection.
       thisResult.setSingular(true);
+      // If the input is an unexploded array, the arguments may also be able to be evaluated as a
+      // lambda over each of its elements.
+      if (invoker.getArrayColumn() != null) {
+        thisResult.setLambdaSql(LambdaExpressions.ELEMENT);
+      }
       argumentContext.setThisContext(thisResult);
       // Parse each of the expressions passed as arguments to the function.
       arguments = paramList.expression().stream()
@@ -8,11 +8,15 @@ package au.csiro.pathling.query.parsing.parser;
 
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
+import au.csiro.pathling.query.ExpressionCache;
 import au.csiro.pathling.query.ResourceReader;
+import au.csiro.pathling.query.parsing.BloomFilterReduction.DeferredFilter;
 import au.csiro.pathling.query.parsing.ParsedExpression;
 import ca.uhn.fhir.context.FhirContext;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
 import org.apache.spark.sql.SparkSession;
 
 /**
@@ -61,11 +65,49 @@ public class ExpressionParserContext {
    */
   private ParsedExpression thisContext;
 
+  /**
+   * The identifiers used within all of the expressions in the query, which are used to limit the
+   * elements that are read from each resource. If this is null, all elements are read.
+   */
+  @Nullable
+  private Set<String> referencedElements;
+
+  /**
+   * The scope of the expression cache that expressions are compiled within, or null if compiled
+   * expressions are not cached.
+   */
+  @Nullable
+  private ExpressionCache.Scope expressionScope;
+
+  /**
+   * The maximum estimated size in bytes of a dataset that will be broadcast when it is joined to.
+   * Zero disables broadcasting.
+   */
+  private long broadcastThreshold;
+
+  /**
+   * The false positive rate of the Bloom filters used to reduce the datasets joined to by the
+   * resolve and reverseResolve functions. Zero disables the use of Bloom filters.
+   */
+  private double bloomFilterFpp;
+
+  /**
+   * The maximum number of keys that will be added to a Bloom filter.
+   */
+  private long bloomFilterMaxItems;
+
   /**
    * Groupings to be applied to this expression at the point of aggregation.
    */
   private final List<ParsedExpression> groupings = new ArrayList<>();
 
+  /**
+   * Bloom filters that have been applied while parsing, which need to be built before the parsed
+   * expression is used. This is shared with the contexts that are copied from this one, such as the
+   * contexts used for function arguments.
+   */
+  private List<DeferredFilter> pendingBloomFilters = new ArrayList<>();
+
   public ExpressionParserContext() {
   }
 
@@ -77,7 +119,13 @@ public class ExpressionParserContext {
     resourceReader = context.resourceReader;
     subjectContext = context.subjectContext;
     thisContext = context.thisContext;
+    referencedElements = context.referencedElements;
+    expressionScope = context.expressionScope;
+    broadcastThreshold = context.broadcastThreshold;
+    bloomFilterFpp = context.bloomFilterFpp;
+    bloomFilterMaxItems = context.bloomFilterMaxItems;
     groupings.addAll(context.groupings);
+    pendingBloomFilters = context.pendingBloomFilters;
   }
 
   public FhirContext getFhirContext() {
@@ -136,8 +184,58 @@ public class ExpressionParserContext {
     this.thisContext = thisContext;
   }
 
+  @Nullable
+  public Set<String> getReferencedElements() {
+    return referencedElements;
+  }
+
+  public void setReferencedElements(@Nullable Set<String> referencedElements) {
+    this.referencedElements = referencedElements;
+  }
+
+  @Nullable
+  public ExpressionCache.Scope getExpressionScope() {
+    return expressionScope;
+  }
+
+  public void setExpressionScope(@Nullable ExpressionCache.Scope expressionScope) {
+    this.expressionScope = expressionScope;
+  }
+
+  public long getBroadcastThreshold() {
+    return broadcastThreshold;
+  }
+
+  public void setBroadcastThreshold(long broadcastThreshold) {
+    this.broadcastThreshold = broadcastThreshold;
+  }
+
+  public double getBloomFilterFpp() {
+    return bloomFilterFpp;
+  }
+
+  public void setBloomFilterFpp(double bloomFilterFpp) {
+    this.bloomFilterFpp = bloomFilterFpp;
+  }
+
+  public long getBloomFilterMaxItems() {
+    return bloomFilterMaxItems;
+  }
+
+  public void setBloomFilterMaxItems(long bloomFilterMaxItems) {
+    this.bloomFilterMaxItems = bloomFilterMaxItems;
+  }
+
   public List<ParsedExpression> getGroupings() {
     return groupings;
   }
 
+  public List<DeferredFilter> getPendingBloomFilters() {
+    return pendingBloomFilters;
+  }
+
+  public void setPendingBloomFilters(List<DeferredFilter> pendingBloomFilters) {
+    this.pendingBloomFilters = pendingBloomFilters;
+  }
+
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.parser;
+
+import au.csiro.pathling.fhir.FhirPathLexer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Token;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.functions;
+
+/**
+ * Builds the datasets that represent a resource within an expression, which consist of the ID of
+ * the resource and a struct containing its elements.
+ * <p>
+ * Where the expressions within a query are known up front, only the elements that they name are
+ * included within the struct. This stops unused elements from being carried through the joins and
+ * shuffles that are needed to evaluate the query.
+ *
+ * @author John Grimes
+ */
+public abstract class ResourceProjection {
+
+  private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+  /**
+   * Returns the set of identifiers used within the supplied expressions. Every element that can be
+   * reached by an expression must be named by one of these identifiers, so this is a superset of
+   * the elements that need to be read from each resource.
+   */
+  @Nonnull
+  public static Set<String> referencedIdentifiers(@Nonnull Collection<String> expressions) {
+    Set<String> identifiers = new HashSet<>();
+    for (String expression : expressions) {
+      if (expression == null) {
+        continue;
+      }
+      FhirPathLexer lexer = new FhirPathLexer(CharStreams.fromString(expression));
+      // Lexer errors will be reported when the expression is parsed.
+      lexer.removeErrorListeners();
+      for (Token token : lexer.getAllTokens()) {
+        if (IDENTIFIER.matcher(token.getText()).matches()) {
+          identifiers.add(token.getText());
+        }
+      }
+    }
+    return identifiers;
+  }
+
+  /**
+   * Returns a dataset with the `id` column of the supplied resource dataset, and a struct column
+   * with the given name containing its elements. If a set of referenced elements is supplied, only
+   * those elements are included within the struct.
+   */
+  @Nonnull
+  public static Dataset<Row> project(@Nonnull Dataset<Row> dataset, @Nonnull String valueColumnName,
+      @Nullable Set<String> referencedElements) {
+    Column[] elements = Arrays.stream(selectColumns(dataset, referencedElements))
+        .map(dataset::col)
+        .toArray(Column[]::new);
+    return dataset.select(dataset.col("id"), functions.struct(elements).alias(valueColumnName));
+  }
+
+  /**
+   * Returns the names of the columns of the supplied resource dataset that will be included within
+   * the resource struct. The `id` column is always included, as it is used to join resources, and
+   * the scale column of a decimal element is included along with the element.
+   */
+  @Nonnull
+  public static String[] selectColumns(@Nonnull Dataset<Row> dataset,
+      @Nullable Set<String> referencedElements) {
+    if (referencedElements == null) {
+      return dataset.columns();
+    }
+    return Arrays.stream(dataset.columns())
+        .filter(column -> column.equals("id") || referencedElements.contains(column)
+            || referencedElements.contains(column.replaceFirst("_scale$", "")))
+        .toArray(String[]::new);
+  }
+
+}
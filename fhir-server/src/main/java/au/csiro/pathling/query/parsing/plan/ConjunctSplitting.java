@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import au.csiro.pathling.query.parsing.plan.PlanNode.Kind;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+/**
+ * Splits each filter into the conjuncts of its top-level `and` operators, so that each conjunct
+ * becomes a filter in its own right. Conjuncts are not moved any further than this.
+ * <p>
+ * A filter such as {@code gender = 'female' and subject.resolve().active} would otherwise be
+ * lowered into a single dataset, over the join of the subject resource and the resolved resource.
+ * Once split, the first conjunct is lowered over the subject resource alone, so that it can be
+ * fused with the subject resource and used to reduce the rows that are joined to the resolved
+ * resource.
+ *
+ * @author John Grimes
+ */
+public class ConjunctSplitting implements PlanPass {
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "conjunct splitting";
+  }
+
+  @Nonnull
+  @Override
+  public QueryPlan apply(@Nonnull QueryPlan plan) {
+    List<PlanNode> filters = new ArrayList<>();
+    plan.getFilters().forEach(filter -> addConjuncts(filter, filters));
+    return new QueryPlan(filters, plan.getGroupings(), plan.getAggregations(),
+        plan.getReferencedElements());
+  }
+
+  private static void addConjuncts(@Nonnull PlanNode node, @Nonnull List<PlanNode> conjuncts) {
+    PlanNode unwrapped = node.unwrap();
+    if (unwrapped.getKind() == Kind.OPERATOR && unwrapped.getText().equals("and")) {
+      unwrapped.getOperands().forEach(operand -> addConjuncts(operand, conjuncts));
+    } else {
+      conjuncts.add(node);
+    }
+  }
+
+}
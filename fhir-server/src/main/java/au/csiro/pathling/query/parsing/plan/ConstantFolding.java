@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import au.csiro.pathling.query.parsing.plan.PlanNode.Kind;
+import au.csiro.pathling.query.parsing.plan.PlanNode.LiteralType;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Evaluates operators whose operands are literals, and simplifies Boolean operators with a literal
+ * operand.
+ * <p>
+ * A filter that folds to {@code true} is removed. Any other expression that folds to a literal is
+ * left as it was, as a literal on its own can not be evaluated against a resource dataset.
+ *
+ * @author John Grimes
+ */
+public class ConstantFolding implements PlanPass {
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "constant folding";
+  }
+
+  @Nonnull
+  @Override
+  public QueryPlan apply(@Nonnull QueryPlan plan) {
+    List<PlanNode> filters = new ArrayList<>();
+    for (PlanNode filter : plan.getFilters()) {
+      PlanNode folded = fold(filter);
+      if (!Boolean.TRUE.equals(booleanValue(folded))) {
+        filters.add(folded.unwrap().isLiteral()
+                    ? filter
+                    : folded);
+      }
+    }
+    return new QueryPlan(filters, foldAll(plan.getGroupings()), foldAll(plan.getAggregations()),
+        plan.getReferencedElements());
+  }
+
+  @Nonnull
+  private static List<PlanNode> foldAll(@Nonnull List<PlanNode> nodes) {
+    return nodes.stream()
+        .map(node -> {
+          PlanNode folded = fold(node);
+          return folded.unwrap().isLiteral()
+                 ? node
+                 : folded;
+        })
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Folds all of the constant operators within an expression.
+   */
+  @Nonnull
+  public static PlanNode fold(@Nonnull PlanNode node) {
+    return node.transformUp(ConstantFolding::foldOperator);
+  }
+
+  @Nonnull
+  private static PlanNode foldOperator(@Nonnull PlanNode node) {
+    if (node.getKind() != Kind.OPERATOR) {
+      return node;
+    }
+    PlanNode left = node.getOperands().get(0);
+    PlanNode right = node.getOperands().get(1);
+    Boolean leftValue = booleanValue(left);
+    Boolean rightValue = booleanValue(right);
+    switch (node.getText()) {
+      case "and":
+        if (Boolean.FALSE.equals(leftValue) || Boolean.FALSE.equals(rightValue)) {
+          return PlanNode.booleanLiteral(false);
+        }
+        if (Boolean.TRUE.equals(leftValue)) {
+          return right;
+        }
+        return Boolean.TRUE.equals(rightValue)
+               ? left
+               : node;
+      case "or":
+        if (Boolean.TRUE.equals(leftValue) || Boolean.TRUE.equals(rightValue)) {
+          return PlanNode.booleanLiteral(true);
+        }
+        if (Boolean.FALSE.equals(leftValue)) {
+          return right;
+        }
+        return Boolean.FALSE.equals(rightValue)
+               ? left
+               : node;
+      case "xor":
+        return leftValue != null && rightValue != null
+               ? PlanNode.booleanLiteral(leftValue ^ rightValue)
+               : node;
+      case "=":
+      case "!=":
+        Boolean equal = literalsEqual(left.unwrap(), right.unwrap());
+        return equal == null
+               ? node
+               : PlanNode.booleanLiteral(equal == node.getText().equals("="));
+      case "<":
+      case "<=":
+      case ">":
+      case ">=":
+        Integer comparison = compareNumbers(left.unwrap(), right.unwrap());
+        return comparison == null
+               ? node
+               : PlanNode.booleanLiteral(compare(node.getText(), comparison));
+      default:
+        return node;
+    }
+  }
+
+  @Nullable
+  private static Boolean booleanValue(@Nonnull PlanNode node) {
+    PlanNode unwrapped = node.unwrap();
+    return unwrapped.isLiteral() && unwrapped.getLiteralType() == LiteralType.BOOLEAN
+           ? Boolean.valueOf(unwrapped.getText())
+           : null;
+  }
+
+  /**
+   * Returns whether two literals are equal, or null if this can not be determined without
+   * evaluating them.
+   */
+  @Nullable
+  private static Boolean literalsEqual(@Nonnull PlanNode left, @Nonnull PlanNode right) {
+    if (!left.isLiteral() || !right.isLiteral() || left.getLiteralType() != right
+        .getLiteralType()) {
+      return null;
+    }
+    switch (left.getLiteralType()) {
+      case BOOLEAN:
+        return left.getText().equals(right.getText());
+      case STRING:
+        // Strings that contain escape sequences could be equal despite differing in their text.
+        if (left.getText().equals(right.getText())) {
+          return true;
+        }
+        return left.getText().contains("\\") || right.getText().contains("\\")
+               ? null
+               : false;
+      case NUMBER:
+        Integer comparison = compareNumbers(left, right);
+        return comparison == null
+               ? null
+               : comparison == 0;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Compares two number literals, or returns null if they are not both integers or both decimals.
+   */
+  @Nullable
+  private static Integer compareNumbers(@Nonnull PlanNode left, @Nonnull PlanNode right) {
+    if (!left.isLiteral() || !right.isLiteral() || left.getLiteralType() != LiteralType.NUMBER
+        || right.getLiteralType() != LiteralType.NUMBER
+        || left.getText().contains(".") != right.getText().contains(".")) {
+      return null;
+    }
+    return new BigDecimal(left.getText()).compareTo(new BigDecimal(right.getText()));
+  }
+
+  private static boolean compare(@Nonnull String operator, int comparison) {
+    switch (operator) {
+      case "<":
+        return comparison < 0;
+      case "<=":
+        return comparison <= 0;
+      case ">":
+        return comparison > 0;
+      default:
+        return comparison >= 0;
+    }
+  }
+
+}
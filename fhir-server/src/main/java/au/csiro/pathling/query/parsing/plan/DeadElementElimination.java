@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import au.csiro.pathling.query.parsing.plan.PlanNode.Kind;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+
+/**
+ * Determines the elements that are referenced by the plan, so that all other elements can be
+ * dropped from the resource datasets used within the query. As this runs over the optimised plan,
+ * elements that are only referenced within expressions that have been folded away are not
+ * included.
+ *
+ * @author John Grimes
+ */
+public class DeadElementElimination implements PlanPass {
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "dead element elimination";
+  }
+
+  @Nonnull
+  @Override
+  public QueryPlan apply(@Nonnull QueryPlan plan) {
+    Set<String> elements = new HashSet<>();
+    Stream.of(plan.getFilters(), plan.getGroupings(), plan.getAggregations())
+        .flatMap(List::stream)
+        .forEach(node -> node.forEachNode(child -> {
+          if (child.getKind() == Kind.MEMBER) {
+            elements.add(child.getText().replaceAll("^\"|\"$", ""));
+          }
+        }));
+    return new QueryPlan(plan.getFilters(), plan.getGroupings(), plan.getAggregations(),
+        elements);
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+
+/**
+ * Replaces expressions that are equal to an earlier expression within the query with the node of
+ * the earlier expression. Nodes that are shared in this way are only lowered once, so a grouping
+ * that is also used as a filter, or an aggregation that is repeated, only results in one dataset.
+ * Duplicate filters are removed.
+ * <p>
+ * Only whole expressions are shared. Each expression is lowered by parsing its rendered text, so a
+ * subexpression that appears within two different expressions is lowered once for each of them.
+ * <p>
+ * Filters and groupings are evaluated within the same context, and may share nodes. Aggregations
+ * are evaluated with knowledge of the groupings, so they only share nodes with other aggregations.
+ *
+ * @author John Grimes
+ */
+public class DuplicateExpressionElimination implements PlanPass {
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "duplicate expression elimination";
+  }
+
+  @Nonnull
+  @Override
+  public QueryPlan apply(@Nonnull QueryPlan plan) {
+    Map<PlanNode, PlanNode> canonical = new HashMap<>();
+    List<PlanNode> filters = new ArrayList<>();
+    for (PlanNode filter : plan.getFilters()) {
+      if (!canonical.containsKey(filter)) {
+        canonical.put(filter, filter);
+        filters.add(filter);
+      }
+    }
+    List<PlanNode> groupings = plan.getGroupings().stream()
+        .map(grouping -> canonical.computeIfAbsent(grouping, node -> node))
+        .collect(Collectors.toList());
+    Map<PlanNode, PlanNode> canonicalAggregations = new HashMap<>();
+    List<PlanNode> aggregations = plan.getAggregations().stream()
+        .map(aggregation -> canonicalAggregations.computeIfAbsent(aggregation, node -> node))
+        .collect(Collectors.toList());
+    return new QueryPlan(filters, groupings, aggregations, plan.getReferencedElements());
+  }
+
+}
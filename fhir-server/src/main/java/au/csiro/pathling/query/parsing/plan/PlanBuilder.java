@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import au.csiro.pathling.fhir.FhirPathBaseVisitor;
+import au.csiro.pathling.fhir.FhirPathLexer;
+import au.csiro.pathling.fhir.FhirPathParser;
+import au.csiro.pathling.fhir.FhirPathParser.*;
+import au.csiro.pathling.query.parsing.parser.ExpressionParserErrorListener;
+import au.csiro.pathling.query.parsing.plan.PlanNode.LiteralType;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * Builds the logical plan for a FHIRPath expression from its parse tree.
+ *
+ * @author John Grimes
+ */
+public class PlanBuilder extends FhirPathBaseVisitor<PlanNode> {
+
+  @Nullable
+  private final PlanNode invoker;
+
+  private PlanBuilder(@Nullable PlanNode invoker) {
+    this.invoker = invoker;
+  }
+
+  /**
+   * Parses a FHIRPath expression and returns its logical plan.
+   */
+  @Nonnull
+  public static PlanNode build(@Nonnull String expression) {
+    FhirPathLexer lexer = new FhirPathLexer(CharStreams.fromString(expression));
+    CommonTokenStream tokens = new CommonTokenStream(lexer);
+    FhirPathParser parser = new FhirPathParser(tokens);
+
+    // Parse errors are reported in the same way as they are by the expression parser.
+    parser.removeErrorListeners();
+    parser.addErrorListener(new ExpressionParserErrorListener());
+
+    return new PlanBuilder(null).visit(parser.expression());
+  }
+
+  @Nonnull
+  private static String source(@Nonnull ParserRuleContext ctx) {
+    return ctx.start.getInputStream()
+        .getText(Interval.of(ctx.start.getStartIndex(), ctx.stop.getStopIndex()));
+  }
+
+  @Override
+  public PlanNode visitTermExpression(TermExpressionContext ctx) {
+    return visit(ctx.term());
+  }
+
+  @Override
+  public PlanNode visitInvocationExpression(InvocationExpressionContext ctx) {
+    PlanNode input = visit(ctx.expression());
+    return new PlanBuilder(input).visit(ctx.invocation());
+  }
+
+  @Nonnull
+  private PlanNode visitBinaryOperator(@Nonnull ParserRuleContext ctx,
+      @Nonnull ExpressionContext left, @Nonnull ExpressionContext right) {
+    return PlanNode.operator(ctx.getChild(1).getText(), visit(left), visit(right), source(ctx));
+  }
+
+  @Override
+  public PlanNode visitMultiplicativeExpression(MultiplicativeExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  @Override
+  public PlanNode visitAdditiveExpression(AdditiveExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  @Override
+  public PlanNode visitInequalityExpression(InequalityExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  @Override
+  public PlanNode visitEqualityExpression(EqualityExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  @Override
+  public PlanNode visitMembershipExpression(MembershipExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  @Override
+  public PlanNode visitAndExpression(AndExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  @Override
+  public PlanNode visitOrExpression(OrExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  @Override
+  public PlanNode visitImpliesExpression(ImpliesExpressionContext ctx) {
+    return visitBinaryOperator(ctx, ctx.expression(0), ctx.expression(1));
+  }
+
+  // Constructs that the expression parser does not support are carried through the plan as is.
+
+  @Override
+  public PlanNode visitIndexerExpression(IndexerExpressionContext ctx) {
+    return PlanNode.unsupported(source(ctx));
+  }
+
+  @Override
+  public PlanNode visitPolarityExpression(PolarityExpressionContext ctx) {
+    return PlanNode.unsupported(source(ctx));
+  }
+
+  @Override
+  public PlanNode visitUnionExpression(UnionExpressionContext ctx) {
+    return PlanNode.unsupported(source(ctx));
+  }
+
+  @Override
+  public PlanNode visitTypeExpression(TypeExpressionContext ctx) {
+    return PlanNode.unsupported(source(ctx));
+  }
+
+  @Override
+  public PlanNode visitInvocationTerm(InvocationTermContext ctx) {
+    return visit(ctx.invocation());
+  }
+
+  @Override
+  public PlanNode visitLiteralTerm(LiteralTermContext ctx) {
+    LiteralContext literal = ctx.literal();
+    LiteralType literalType;
+    if (literal instanceof BooleanLiteralContext) {
+      literalType = LiteralType.BOOLEAN;
+    } else if (literal instanceof StringLiteralContext) {
+      literalType = LiteralType.STRING;
+    } else if (literal instanceof NumberLiteralContext) {
+      literalType = LiteralType.NUMBER;
+    } else if (literal instanceof CodingLiteralContext) {
+      literalType = LiteralType.CODING;
+    } else if (literal instanceof DateTimeLiteralContext) {
+      literalType = LiteralType.DATETIME;
+    } else if (literal instanceof TimeLiteralContext) {
+      literalType = LiteralType.TIME;
+    } else if (literal instanceof QuantityLiteralContext) {
+      literalType = LiteralType.QUANTITY;
+    } else {
+      literalType = LiteralType.NULL;
+    }
+    String source = source(ctx);
+    return PlanNode.literal(literalType, source, source);
+  }
+
+  @Override
+  public PlanNode visitExternalConstantTerm(ExternalConstantTermContext ctx) {
+    return PlanNode.constant(ctx.externalConstant().identifier().getText(), source(ctx));
+  }
+
+  @Override
+  public PlanNode visitParenthesizedTerm(ParenthesizedTermContext ctx) {
+    return PlanNode.parentheses(visit(ctx.expression()), source(ctx));
+  }
+
+  @Override
+  public PlanNode visitMemberInvocation(MemberInvocationContext ctx) {
+    return PlanNode.member(invoker, ctx.getText(), invocationSource(ctx));
+  }
+
+  @Override
+  public PlanNode visitFunctionInvocation(FunctionInvocationContext ctx) {
+    ParamListContext paramList = ctx.functn().paramList();
+    // Arguments are built without an invoker, as they are evaluated relative to `$this`.
+    List<PlanNode> arguments = paramList == null
+                               ? Collections.emptyList()
+                               : paramList.expression().stream()
+                                   .map(expression -> new PlanBuilder(null).visit(expression))
+                                   .collect(Collectors.toList());
+    return PlanNode.function(invoker, ctx.functn().identifier().getText(), arguments,
+        invocationSource(ctx));
+  }
+
+  @Override
+  public PlanNode visitThisInvocation(ThisInvocationContext ctx) {
+    return PlanNode.thisInvocation(invoker, invocationSource(ctx));
+  }
+
+  /**
+   * The source of an invocation includes the expression that it is invoked upon.
+   */
+  @Nonnull
+  private String invocationSource(@Nonnull ParserRuleContext ctx) {
+    ParserRuleContext parent = ctx.getParent();
+    return invoker != null && parent instanceof InvocationExpressionContext
+           ? source(parent)
+           : source(ctx);
+  }
+
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A node within the logical plan of a FHIRPath expression. The plan mirrors the structure of the
+ * parse tree, but can be rewritten by optimisation passes before it is lowered into Spark datasets
+ * by the expression parser.
+ * <p>
+ * Nodes are immutable. A node that has been taken unchanged from the parse tree retains the source
+ * text that it was parsed from, and this text is used when the node is lowered. Nodes created by a
+ * pass are lowered using a rendering of the node back into FHIRPath.
+ *
+ * @author John Grimes
+ */
+public class PlanNode {
+
+  private final Kind kind;
+
+  /**
+   * The literal text, identifier, function name or operator that this node represents.
+   */
+  private final String text;
+
+  /**
+   * The type of a literal node, null for all other kinds of node.
+   */
+  @Nullable
+  private final LiteralType literalType;
+
+  /**
+   * The expression that a member, function or `$this` invocation is invoked upon, or null if the
+   * invocation is a standalone term.
+   */
+  @Nullable
+  private final PlanNode input;
+
+  /**
+   * The arguments to a function, the left and right operands of an operator, or the expression
+   * within parentheses.
+   */
+  private final List<PlanNode> operands;
+
+  /**
+   * The text that this node was parsed from, or null if the node was created by a pass.
+   */
+  @Nullable
+  private final String source;
+
+  private PlanNode(@Nonnull Kind kind, @Nonnull String text, @Nullable LiteralType literalType,
+      @Nullable PlanNode input, @Nonnull List<PlanNode> operands, @Nullable String source) {
+    this.kind = kind;
+    this.text = text;
+    this.literalType = literalType;
+    this.input = input;
+    this.operands = Collections.unmodifiableList(new ArrayList<>(operands));
+    this.source = source;
+  }
+
+  @Nonnull
+  public static PlanNode literal(@Nonnull LiteralType literalType, @Nonnull String text,
+      @Nullable String source) {
+    return new PlanNode(Kind.LITERAL, text, literalType, null, Collections.emptyList(), source);
+  }
+
+  @Nonnull
+  public static PlanNode booleanLiteral(boolean value) {
+    return literal(LiteralType.BOOLEAN, Boolean.toString(value), null);
+  }
+
+  @Nonnull
+  public static PlanNode constant(@Nonnull String name, @Nullable String source) {
+    return new PlanNode(Kind.CONSTANT, name, null, null, Collections.emptyList(), source);
+  }
+
+  @Nonnull
+  public static PlanNode member(@Nullable PlanNode input, @Nonnull String name,
+      @Nullable String source) {
+    return new PlanNode(Kind.MEMBER, name, null, input, Collections.emptyList(), source);
+  }
+
+  @Nonnull
+  public static PlanNode function(@Nullable PlanNode input, @Nonnull String name,
+      @Nonnull List<PlanNode> arguments, @Nullable String source) {
+    return new PlanNode(Kind.FUNCTION, name, null, input, arguments, source);
+  }
+
+  @Nonnull
+  public static PlanNode thisInvocation(@Nullable PlanNode input, @Nullable String source) {
+    return new PlanNode(Kind.THIS, "$this", null, input, Collections.emptyList(), source);
+  }
+
+  @Nonnull
+  public static PlanNode operator(@Nonnull String operator, @Nonnull PlanNode left,
+      @Nonnull PlanNode right, @Nullable String source) {
+    return new PlanNode(Kind.OPERATOR, operator, null, null, Arrays.asList(left, right), source);
+  }
+
+  @Nonnull
+  public static PlanNode parentheses(@Nonnull PlanNode expression, @Nullable String source) {
+    return new PlanNode(Kind.PARENTHESES, "()", null, null, Collections.singletonList(expression),
+        source);
+  }
+
+  /**
+   * Creates a node for a construct that is not supported by the expression parser. The source text
+   * is lowered as is, so that the parser can report the problem.
+   */
+  @Nonnull
+  public static PlanNode unsupported(@Nonnull String source) {
+    return new PlanNode(Kind.UNSUPPORTED, source, null, null, Collections.emptyList(), source);
+  }
+
+  /**
+   * Returns a copy of this node with a different input and operands. If these are the same as the
+   * current ones, this node is returned.
+   */
+  @Nonnull
+  public PlanNode withChildren(@Nullable PlanNode input, @Nonnull List<PlanNode> operands) {
+    if (input == this.input && operands.size() == this.operands.size()) {
+      boolean unchanged = true;
+      for (int i = 0; i < operands.size(); i++) {
+        unchanged = unchanged && operands.get(i) == this.operands.get(i);
+      }
+      if (unchanged) {
+        return this;
+      }
+    }
+    return new PlanNode(kind, text, literalType, input, operands, null);
+  }
+
+  /**
+   * Applies a rule to each node within this plan, starting with the leaves. The rule is given a
+   * node with its children already rewritten, and returns either the same node or a replacement.
+   */
+  @Nonnull
+  public PlanNode transformUp(@Nonnull UnaryOperator<PlanNode> rule) {
+    PlanNode newInput = input == null
+                        ? null
+                        : input.transformUp(rule);
+    List<PlanNode> newOperands = operands.stream()
+        .map(operand -> operand.transformUp(rule))
+        .collect(Collectors.toList());
+    return rule.apply(withChildren(newInput, newOperands));
+  }
+
+  /**
+   * Passes this node and each of its descendants to the supplied consumer.
+   */
+  public void forEachNode(@Nonnull Consumer<PlanNode> consumer) {
+    consumer.accept(this);
+    if (input != null) {
+      input.forEachNode(consumer);
+    }
+    operands.forEach(operand -> operand.forEachNode(consumer));
+  }
+
+  @Nonnull
+  public Kind getKind() {
+    return kind;
+  }
+
+  @Nonnull
+  public String getText() {
+    return text;
+  }
+
+  @Nullable
+  public LiteralType getLiteralType() {
+    return literalType;
+  }
+
+  @Nullable
+  public PlanNode getInput() {
+    return input;
+  }
+
+  @Nonnull
+  public List<PlanNode> getOperands() {
+    return operands;
+  }
+
+  @Nullable
+  public String getSource() {
+    return source;
+  }
+
+  public boolean isLiteral() {
+    return kind == Kind.LITERAL;
+  }
+
+  /**
+   * Returns this node with any enclosing parentheses removed.
+   */
+  @Nonnull
+  public PlanNode unwrap() {
+    PlanNode result = this;
+    while (result.kind == Kind.PARENTHESES) {
+      result = result.operands.get(0);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the expression that should be given to the expression parser to lower this node.
+   */
+  @Nonnull
+  public String toExpression() {
+    return source == null
+           ? toFhirPath()
+           : source;
+  }
+
+  /**
+   * Renders this node as a FHIRPath expression. Operators that are used as operands or invocation
+   * inputs are enclosed within parentheses, so that the rendering does not depend upon operator
+   * precedence.
+   */
+  @Nonnull
+  public String toFhirPath() {
+    switch (kind) {
+      case LITERAL:
+      case UNSUPPORTED:
+        return text;
+      case CONSTANT:
+        return "%" + text;
+      case MEMBER:
+      case THIS:
+        return prefix() + text;
+      case FUNCTION:
+        return prefix() + text + "(" + operands.stream()
+            .map(PlanNode::toFhirPath)
+            .collect(Collectors.joining(", ")) + ")";
+      case OPERATOR:
+        return operand(operands.get(0)) + " " + text + " " + operand(operands.get(1));
+      case PARENTHESES:
+        return "(" + operands.get(0).toFhirPath() + ")";
+      default:
+        throw new AssertionError("Unsupported plan node kind: " + kind);
+    }
+  }
+
+  @Nonnull
+  private String prefix() {
+    return input == null
+           ? ""
+           : operand(input) + ".";
+  }
+
+  @Nonnull
+  private static String operand(@Nonnull PlanNode node) {
+    return node.kind == Kind.OPERATOR
+           ? "(" + node.toFhirPath() + ")"
+           : node.toFhirPath();
+  }
+
+  /**
+   * Renders this node and its children as an indented tree, for debugging.
+   */
+  @Nonnull
+  public String toTreeString() {
+    StringBuilder builder = new StringBuilder();
+    appendTree(builder, 0);
+    return builder.toString();
+  }
+
+  private void appendTree(@Nonnull StringBuilder builder, int depth) {
+    for (int i = 0; i < depth; i++) {
+      builder.append("  ");
+    }
+    builder.append(kind).append(" ").append(text);
+    if (literalType != null) {
+      builder.append(" (").append(literalType).append(")");
+    }
+    builder.append("\n");
+    if (input != null) {
+      input.appendTree(builder, depth + 1);
+    }
+    for (PlanNode operand : operands) {
+      operand.appendTree(builder, depth + 1);
+    }
+  }
+
+  /**
+   * Nodes are equal if they have the same structure, regardless of the text they were parsed from.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    PlanNode planNode = (PlanNode) o;
+    return kind == planNode.kind &&
+        text.equals(planNode.text) &&
+        literalType == planNode.literalType &&
+        Objects.equals(input, planNode.input) &&
+        operands.equals(planNode.operands);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(kind, text, literalType, input, operands);
+  }
+
+  @Override
+  public String toString() {
+    return toFhirPath();
+  }
+
+  /**
+   * The kinds of node that can be present within a plan.
+   */
+  public enum Kind {
+    LITERAL, CONSTANT, MEMBER, FUNCTION, THIS, OPERATOR, PARENTHESES, UNSUPPORTED
+  }
+
+  /**
+   * The types of literal that can be present within a plan.
+   */
+  public enum LiteralType {
+    BOOLEAN, STRING, NUMBER, CODING, DATETIME, TIME, QUANTITY, NULL
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies a series of optimisation passes to the plan of a query. The plan before and after each
+ * pass is logged, at the info level if query explanation is enabled, or otherwise at the debug
+ * level.
+ *
+ * @author John Grimes
+ */
+public class PlanOptimiser {
+
+  private static final Logger logger = LoggerFactory.getLogger(PlanOptimiser.class);
+
+  @Nonnull
+  private final List<PlanPass> passes;
+
+  private final boolean explain;
+
+  /**
+   * Creates an optimiser with the default series of passes.
+   */
+  public PlanOptimiser(boolean explain) {
+    this(Arrays.asList(new ConstantFolding(), new ConjunctSplitting(),
+        new DuplicateExpressionElimination(), new DeadElementElimination()), explain);
+  }
+
+  public PlanOptimiser(@Nonnull List<PlanPass> passes, boolean explain) {
+    this.passes = passes;
+    this.explain = explain;
+  }
+
+  @Nonnull
+  public QueryPlan optimise(@Nonnull QueryPlan plan) {
+    QueryPlan current = plan;
+    for (PlanPass pass : passes) {
+      QueryPlan result = pass.apply(current);
+      if (explain || logger.isDebugEnabled()) {
+        String message = "Plan before " + pass.getName() + ":\n" + current.toTreeString()
+            + "Plan after " + pass.getName() + ":\n" + result.toTreeString();
+        if (explain) {
+          logger.info(message);
+        } else {
+          logger.debug(message);
+        }
+      }
+      current = result;
+    }
+    return current;
+  }
+
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An optimisation pass that rewrites the plan of a query.
+ *
+ * @author John Grimes
+ */
+public interface PlanPass {
+
+  /**
+   * @return a name for this pass, used when describing the plan before and after it is applied
+   */
+  @Nonnull
+  String getName();
+
+  /**
+   * Applies this pass to a plan, returning the rewritten plan.
+   */
+  @Nonnull
+  QueryPlan apply(@Nonnull QueryPlan plan);
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The logical plans for all of the expressions within a query, which are optimised together before
+ * being lowered.
+ *
+ * @author John Grimes
+ */
+public class QueryPlan {
+
+  @Nonnull
+  private final List<PlanNode> filters;
+
+  @Nonnull
+  private final List<PlanNode> groupings;
+
+  @Nonnull
+  private final List<PlanNode> aggregations;
+
+  /**
+   * The names of the elements that are referenced within the plan, or null if these have not been
+   * determined.
+   */
+  @Nullable
+  private final Set<String> referencedElements;
+
+  public QueryPlan(@Nonnull List<PlanNode> filters, @Nonnull List<PlanNode> groupings,
+      @Nonnull List<PlanNode> aggregations) {
+    this(filters, groupings, aggregations, null);
+  }
+
+  public QueryPlan(@Nonnull List<PlanNode> filters, @Nonnull List<PlanNode> groupings,
+      @Nonnull List<PlanNode> aggregations, @Nullable Set<String> referencedElements) {
+    this.filters = Collections.unmodifiableList(new ArrayList<>(filters));
+    this.groupings = Collections.unmodifiableList(new ArrayList<>(groupings));
+    this.aggregations = Collections.unmodifiableList(new ArrayList<>(aggregations));
+    this.referencedElements = referencedElements;
+  }
+
+  /**
+   * Builds a plan from the filter, grouping and aggregation expressions of a query.
+   */
+  @Nonnull
+  public static QueryPlan build(@Nonnull List<String> filters, @Nonnull List<String> groupings,
+      @Nonnull List<String> aggregations) {
+    return new QueryPlan(buildAll(filters), buildAll(groupings), buildAll(aggregations));
+  }
+
+  @Nonnull
+  private static List<PlanNode> buildAll(@Nonnull List<String> expressions) {
+    return expressions.stream().map(PlanBuilder::build).collect(Collectors.toList());
+  }
+
+  @Nonnull
+  public List<PlanNode> getFilters() {
+    return filters;
+  }
+
+  @Nonnull
+  public List<PlanNode> getGroupings() {
+    return groupings;
+  }
+
+  @Nonnull
+  public List<PlanNode> getAggregations() {
+    return aggregations;
+  }
+
+  @Nullable
+  public Set<String> getReferencedElements() {
+    return referencedElements;
+  }
+
+  /**
+   * Renders each of the expressions within the plan as a tree, for debugging. Expressions that share
+   * the same plan node as an earlier expression are shown as a reference to that expression.
+   */
+  @Nonnull
+  public String toTreeString() {
+    StringBuilder builder = new StringBuilder();
+    List<PlanNode> seen = new ArrayList<>();
+    List<String> labels = new ArrayList<>();
+    appendTrees(builder, "filter", filters, seen, labels);
+    appendTrees(builder, "grouping", groupings, seen, labels);
+    appendTrees(builder, "aggregation", aggregations, seen, labels);
+    if (referencedElements != null) {
+      builder.append("elements: ").append(new TreeSet<>(referencedElements)).append("\n");
+    }
+    return builder.toString();
+  }
+
+  private static void appendTrees(@Nonnull StringBuilder builder, @Nonnull String role,
+      @Nonnull List<PlanNode> nodes, @Nonnull List<PlanNode> seen, @Nonnull List<String> labels) {
+    for (int i = 0; i < nodes.size(); i++) {
+      PlanNode node = nodes.get(i);
+      String label = role + "[" + i + "]";
+      builder.append(label).append(": ");
+      int previous = indexOfInstance(seen, node);
+      if (previous >= 0) {
+        builder.append("same as ").append(labels.get(previous)).append("\n");
+      } else {
+        builder.append(node.toFhirPath()).append("\n").append(node.toTreeString());
+        seen.add(node);
+        labels.add(label);
+      }
+    }
+  }
+
+  private static int indexOfInstance(@Nonnull List<PlanNode> nodes, @Nonnull PlanNode node) {
+    for (int i = 0; i < nodes.size(); i++) {
+      if (nodes.get(i) == node) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public String toString() {
+    return toTreeString();
+  }
+
+}
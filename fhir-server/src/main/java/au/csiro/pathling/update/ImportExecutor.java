@@ -7,20 +7,35 @@
 package au.csiro.pathling.update;
 
 import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.encoders.datatypes.R4DataTypeMappings;
 import au.csiro.pathling.fhir.AnalyticsServerConfiguration;
 import au.csiro.pathling.fhir.FhirContextFactory;
 import au.csiro.pathling.query.ResourceReader;
+import au.csiro.pathling.update.NdjsonDecoder.PartitionThroughput;
 import au.csiro.pathling.utilities.PersistenceScheme;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
-import org.apache.spark.api.java.function.MapFunction;
+import javax.annotation.Nullable;
 import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.storage.StorageLevel;
+import org.apache.spark.util.CollectionAccumulator;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
@@ -33,6 +48,7 @@ import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.r4.model.UrlType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 
 /**
  * Encapsulates the execution of an import operation.
@@ -44,22 +60,37 @@ public class ImportExecutor {
   private static final Logger logger = LoggerFactory.getLogger(ImportExecutor.class);
   private final SparkSession spark;
   private final ResourceWriter resourceWriter;
+  private final ReferenceIndexWriter referenceIndexWriter;
+  private final boolean referenceIndexEnabled;
   private final FhirEncoders fhirEncoders;
   private final FhirContextFactory fhirContextFactory;
   private final ResourceReader resourceReader;
+  private final int importParallelism;
 
   public ImportExecutor(AnalyticsServerConfiguration configuration, SparkSession spark,
       FhirEncoders fhirEncoders, FhirContextFactory fhirContextFactory,
       ResourceReader resourceReader) {
     this.spark = spark;
     this.resourceWriter = new ResourceWriter(configuration.getWarehouseUrl(),
-        configuration.getDatabaseName());
+        configuration.getDatabaseName(), configuration.getBucketCount(),
+        configuration.getVacuumRetentionHours());
+    this.referenceIndexWriter = new ReferenceIndexWriter(spark, configuration.getWarehouseUrl(),
+        configuration.getDatabaseName(), fhirContextFactory.build(),
+        configuration.getBucketCount());
+    this.referenceIndexEnabled = configuration.isReferenceIndexEnabled();
     this.fhirEncoders = fhirEncoders;
     this.fhirContextFactory = fhirContextFactory;
     this.resourceReader = resourceReader;
+    this.importParallelism = configuration.getImportParallelism();
   }
 
-  public OperationOutcome execute(@ResourceParam Parameters inParams)
+  /**
+   * Runs an import, returning the outcome.
+   *
+   * @param inParams the parameters of the import request
+   * @param job the job that this import is running as, if it is being run asynchronously
+   */
+  public OperationOutcome execute(@ResourceParam Parameters inParams, @Nullable Job job)
       throws IOException, URISyntaxException {
     // Parse and validate the JSON request.
     List<ParametersParameterComponent> sourceParams = inParams.getParameter().stream()
@@ -67,11 +98,202 @@ public class ImportExecutor {
     if (sourceParams.isEmpty()) {
       throw new InvalidRequestException("Must provide at least one source parameter");
     }
+    Decoder decoder = inParams.getParameter().stream()
+        .filter(param -> param.getName().equals("decoder"))
+        .findFirst()
+        .map(param -> Decoder.fromCode(((CodeType) param.getValue()).getCode()))
+        .orElse(Decoder.HAPI);
+    // All sources are validated before any of them are imported.
+    List<ImportSource> sources = sourceParams.stream()
+        .map(ImportSource::fromParameter)
+        .collect(Collectors.toList());
     logger.info("Received $import request");
 
-    // For each input within the request, read the resources of the declared type and create
-    // the corresponding table in the warehouse.
-    for (ParametersParameterComponent sourceParam : sourceParams) {
+    // The sources for each resource type are imported concurrently, up to the configured
+    // parallelism. Sources that share a resource type are imported one after another in the order
+    // of the request, as they write to the same table. Within each one we read the resources of the
+    // declared type and create the corresponding table in the warehouse.
+    Map<ResourceType, List<ImportSource>> sourcesByType = sources.stream()
+        .collect(Collectors.groupingBy(ImportSource::getResourceType, LinkedHashMap::new,
+            Collectors.toList()));
+    String requestId = MDC.get("requestId");
+    ExecutorService importPool = Executors
+        .newFixedThreadPool(Math.max(1, Math.min(importParallelism, sourcesByType.size())));
+    List<SourceResult> results = new ArrayList<>();
+    try {
+      List<Future<List<SourceResult>>> futures = new ArrayList<>();
+      for (List<ImportSource> typeSources : sourcesByType.values()) {
+        futures.add(importPool.submit(() -> typeSources.stream()
+            .map(source -> importSource(source, decoder, requestId, job))
+            .collect(Collectors.toList())));
+      }
+      for (Future<List<SourceResult>> future : futures) {
+        results.addAll(getResult(future));
+      }
+    } finally {
+      importPool.shutdownNow();
+    }
+
+    // Update the list of available resources within the resource reader.
+    logger.info("Updating available resource types");
+    resourceReader.updateAvailableResourceTypes();
+
+    logger.info("Import complete");
+    OperationOutcome opOutcome = new OperationOutcome();
+    OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+    issue.setSeverity(IssueSeverity.INFORMATION);
+    issue.setCode(IssueType.INFORMATIONAL);
+    issue.setDiagnostics("Data import completed successfully");
+    opOutcome.getIssue().add(issue);
+    // Add an issue describing the outcome of each source, so that the client can see where the
+    // time was spent.
+    for (SourceResult result : results) {
+      OperationOutcomeIssueComponent sourceIssue = new OperationOutcomeIssueComponent();
+      sourceIssue.setSeverity(IssueSeverity.INFORMATION);
+      sourceIssue.setCode(IssueType.INFORMATIONAL);
+      sourceIssue.setDiagnostics(result.toString());
+      opOutcome.getIssue().add(sourceIssue);
+    }
+    return opOutcome;
+  }
+
+  private SourceResult importSource(ImportSource source, Decoder decoder, String requestId,
+      @Nullable Job job) {
+    // Pool threads do not inherit the logging context of the request thread, and the Spark local
+    // properties are set explicitly so that they do not depend upon when the thread was created.
+    MDC.put("requestId", requestId);
+    ResourceType resourceType = source.getResourceType();
+    String pool = "import-" + resourceType.toCode();
+    spark.sparkContext().setLocalProperty("spark.scheduler.pool", pool);
+    if (job != null) {
+      spark.sparkContext().setJobGroup(job.getJobGroup(), job.getDescription(), true);
+    }
+    try {
+      long start = System.nanoTime();
+      ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders.of(resourceType.toCode());
+      Dataset<String> jsonStrings;
+      try {
+        jsonStrings = spark.read().textFile(source.getUrl());
+      } catch (Exception e) {
+        throw new InvalidRequestException(e.getMessage());
+      }
+      CollectionAccumulator<PartitionThroughput> throughput = spark.sparkContext()
+          .collectionAccumulator("import-" + resourceType.toCode());
+      if (job != null) {
+        job.trackProgress(resourceType, throughput);
+      }
+      Dataset resources;
+      if (decoder == Decoder.DIRECT) {
+        // The JSON is decoded straight into rows that conform to the schema of the encoder,
+        // without building HAPI resources along the way.
+        JsonRowDecoder rowDecoder = new JsonRowDecoder(requestId, fhirContextFactory.build(),
+            new R4DataTypeMappings(), resourceType, fhirEncoder.schema(), throughput);
+        resources = jsonStrings.mapPartitions(rowDecoder, RowEncoder.apply(fhirEncoder.schema()));
+      } else {
+        // Each partition is parsed using a single parser, rather than creating a new one for each
+        // line.
+        ResourceParser resourceParser = new ResourceParser(requestId, fhirContextFactory,
+            throughput);
+        resources = jsonStrings.mapPartitions(resourceParser, fhirEncoder);
+      }
+
+      logger.info("Saving resources: " + resourceType.toCode() + " (decoder: " + decoder.getCode()
+          + ", mode: " + source.getMode().getCode() + ", pool: " + pool + ")");
+      long writeStart = System.nanoTime();
+      boolean updateIndex = referenceIndexEnabled && source.getMode() == Mode.MERGE
+          && referenceIndexWriter.exists(resourceType);
+      // The resources are persisted and counted before they are written, so that they are only
+      // decoded once. A merge reads its source more than once, and the resources are also read by
+      // the index update. The throughput accumulator is only updated by the decoding, so it then
+      // counts each record once.
+      resources.persist(StorageLevel.MEMORY_AND_DISK());
+      try {
+        long records = resources.count();
+        Dataset<Row> merged = null;
+        if (source.getMode() == Mode.MERGE) {
+          merged = resourceWriter.merge(resourceType, resources);
+        } else {
+          resourceWriter.write(resourceType, resources);
+        }
+        if (referenceIndexEnabled) {
+          logger.info("Updating reference indexes: " + resourceType.toCode());
+          if (updateIndex && merged != null) {
+            // Only the rows for the merged resources are replaced.
+            referenceIndexWriter.merge(resourceType, merged);
+            referenceIndexWriter.mergeIds(resourceType, merged);
+          } else {
+            Dataset<Row> table = resourceWriter.read(spark, resourceType);
+            referenceIndexWriter.write(resourceType, table);
+            referenceIndexWriter.writeIds(resourceType, table);
+          }
+        } else {
+          referenceIndexWriter.delete(resourceType);
+          referenceIndexWriter.deleteIds(resourceType);
+        }
+        long end = System.nanoTime();
+        reportThroughput(resourceType, throughput.value(), records,
+            (end - writeStart) / 1_000_000);
+        return new SourceResult(source, records, (end - start) / 1_000_000);
+      } finally {
+        resources.unpersist();
+      }
+    } finally {
+      spark.sparkContext().setLocalProperty("spark.scheduler.pool", null);
+      if (job != null) {
+        spark.sparkContext().clearJobGroup();
+      }
+      MDC.remove("requestId");
+    }
+  }
+
+  private static List<SourceResult> getResult(Future<List<SourceResult>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InternalErrorException("Import was interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof BaseServerResponseException) {
+        throw (BaseServerResponseException) cause;
+      }
+      throw new InternalErrorException("Unexpected error occurred while importing data", cause);
+    }
+  }
+
+  /**
+   * Logs the number of records parsed per second within each partition, along with the overall
+   * throughput for the resource type.
+   */
+  private static void reportThroughput(ResourceType resourceType,
+      List<PartitionThroughput> partitions, long records, long elapsedMillis) {
+    for (PartitionThroughput partition : partitions) {
+      logger.info(resourceType.toCode() + " import: " + partition);
+    }
+    double recordsPerSecond = elapsedMillis == 0
+                              ? records
+                              : records * 1000.0 / elapsedMillis;
+    logger.info(resourceType.toCode() + " import complete: records=" + records + ", partitions="
+        + partitions.size() + ", elapsedMillis=" + elapsedMillis + ", recordsPerSecond=" + String
+        .format("%.1f", recordsPerSecond));
+  }
+
+  /**
+   * A single source within an import request.
+   */
+  private static class ImportSource {
+
+    private final ResourceType resourceType;
+    private final String url;
+    private final Mode mode;
+
+    private ImportSource(ResourceType resourceType, String url, Mode mode) {
+      this.resourceType = resourceType;
+      this.url = url;
+      this.mode = mode;
+    }
+
+    static ImportSource fromParameter(ParametersParameterComponent sourceParam) {
       ParametersParameterComponent resourceTypeParam = sourceParam.getPart().stream()
           .filter(param -> param.getName().equals("resourceType"))
           .findFirst()
@@ -84,39 +306,110 @@ public class ImportExecutor {
               () -> new InvalidRequestException("Must provide url for each source"));
 
       String resourceCode = ((CodeType) resourceTypeParam.getValue()).getCode();
-      ResourceType resourceType = ResourceType
-          .fromCode(resourceCode);
-      ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders.of(resourceType.toCode());
-      @SuppressWarnings("UnnecessaryLocalVariable") FhirContextFactory localFhirContextFactory = this.fhirContextFactory;
-
+      ResourceType resourceType = ResourceType.fromCode(resourceCode);
       String url = ((UrlType) urlParam.getValue()).getValueAsString();
-      url = PersistenceScheme.convertS3ToS3aUrl(url);
-      Dataset<String> jsonStrings;
-      try {
-        jsonStrings = spark.read().textFile(url);
-      } catch (Exception e) {
-        throw new InvalidRequestException(e.getMessage());
+      Mode mode = sourceParam.getPart().stream()
+          .filter(param -> param.getName().equals("mode"))
+          .findFirst()
+          .map(param -> Mode.fromCode(((CodeType) param.getValue()).getCode()))
+          .orElse(Mode.OVERWRITE);
+      return new ImportSource(resourceType, PersistenceScheme.convertS3ToS3aUrl(url), mode);
+    }
+
+    ResourceType getResourceType() {
+      return resourceType;
+    }
+
+    String getUrl() {
+      return url;
+    }
+
+    Mode getMode() {
+      return mode;
+    }
+
+  }
+
+  /**
+   * The outcome of importing a single source.
+   */
+  private static class SourceResult {
+
+    private final ImportSource source;
+    private final long records;
+    private final long elapsedMillis;
+
+    SourceResult(ImportSource source, long records, long elapsedMillis) {
+      this.source = source;
+      this.records = records;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "Imported " + records + " " + source.getResourceType().toCode() + " resources from "
+          + source.getUrl() + " in " + elapsedMillis + " ms (mode: " + source.getMode().getCode()
+          + ")";
+    }
+
+  }
+
+  /**
+   * The methods that can be used to turn the NDJSON into rows within the warehouse.
+   */
+  public enum Decoder {
+    // Parses each resource using HAPI, then encodes it using the FHIR encoders.
+    HAPI("hapi"),
+    // Decodes the JSON directly into rows, without building HAPI resources.
+    DIRECT("direct");
+
+    private final String code;
+
+    Decoder(String code) {
+      this.code = code;
+    }
+
+    public String getCode() {
+      return code;
+    }
+
+    public static Decoder fromCode(String code) {
+      for (Decoder decoder : values()) {
+        if (decoder.code.equals(code)) {
+          return decoder;
+        }
       }
-      Dataset resources = jsonStrings
-          .map((MapFunction<String, IBaseResource>) json -> localFhirContextFactory
-              .build().newJsonParser().parseResource(json), fhirEncoder);
+      throw new InvalidRequestException("Unknown decoder: " + code);
+    }
+  }
+
+  /**
+   * The ways in which the resources within a source can be written to the warehouse.
+   */
+  public enum Mode {
+    // Replaces the existing table with the resources in the source.
+    OVERWRITE("overwrite"),
+    // Merges the resources in the source into the existing table, matching on ID.
+    MERGE("merge");
+
+    private final String code;
 
-      logger.info("Saving resources: " + resourceType.toCode());
-      resourceWriter.write(resourceType, resources);
+    Mode(String code) {
+      this.code = code;
     }
 
-    // Update the list of available resources within the resource reader.
-    logger.info("Updating available resource types");
-    resourceReader.updateAvailableResourceTypes();
+    public String getCode() {
+      return code;
+    }
 
-    // We return 200, as this operation is currently synchronous.
-    logger.info("Import complete");
-    OperationOutcome opOutcome = new OperationOutcome();
-    OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
-    issue.setSeverity(IssueSeverity.INFORMATION);
-    issue.setCode(IssueType.INFORMATIONAL);
-    issue.setDiagnostics("Data import completed successfully");
-    opOutcome.getIssue().add(issue);
-    return opOutcome;
+    public static Mode fromCode(String code) {
+      for (Mode mode : values()) {
+        if (mode.code.equals(code)) {
+          return mode;
+        }
+      }
+      throw new InvalidRequestException("Unknown import mode: " + code);
+    }
   }
+
 }
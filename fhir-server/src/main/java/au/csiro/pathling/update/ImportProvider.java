@@ -8,8 +8,11 @@ package au.csiro.pathling.update;
 
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Collections;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
 import org.slf4j.Logger;
@@ -24,24 +27,57 @@ public class ImportProvider {
 
   private static final Logger logger = LoggerFactory.getLogger(ImportProvider.class);
   private final ImportExecutor executor;
+  private final JobRegistry jobRegistry;
 
-  public ImportProvider(ImportExecutor executor) {
+  public ImportProvider(ImportExecutor executor, JobRegistry jobRegistry) {
     this.executor = executor;
+    this.jobRegistry = jobRegistry;
   }
 
   /**
-   * Accepts a request of type `application/fhir+ndjson` and overwrites the warehouse tables with
-   * the contents. Does not currently support any sort of incremental update or appending to the
-   * warehouse tables. Also does not currently support asynchronous processing.
+   * Accepts a request of type `application/fhir+ndjson` and writes the contents to the warehouse
+   * tables. Each source either overwrites the table for its resource type (the default), or merges
+   * its resources into the existing table.
+   *
+   * If the request contains a `Prefer: respond-async` header, the import is run in the background
+   * and a 202 response is returned immediately, with a Content-Location header pointing to the
+   * `$job` operation that can be used to track its progress. Otherwise the import is run
+   * synchronously.
    *
    * Each input will be treated as a file containing only one type of resource type. Bundles are not
-   * currently given any special treatment. Each resource type is assumed to appear in the list only
-   * once - multiple occurrences will result in the last input overwriting the previous ones.
+   * currently given any special treatment. Inputs of different resource types are imported
+   * concurrently, while multiple inputs of the same resource type are imported one after another in
+   * the order of the request - an overwriting input will replace the resources of the previous
+   * ones.
    */
-  @Operation(name = "$import")
-  public OperationOutcome importOperation(@ResourceParam Parameters inParams)
+  @Operation(name = "$import", manualResponse = true)
+  public void importOperation(@ResourceParam Parameters inParams,
+      ServletRequestDetails requestDetails) throws IOException, URISyntaxException {
+    if (prefersAsync(requestDetails)) {
+      Job job = jobRegistry
+          .submit("$import", runningJob -> executor.execute(inParams, runningJob));
+      String statusUrl = requestDetails.getFhirServerBase() + "/$job?id=" + job.getId();
+      logger.info("Accepted asynchronous $import request, status URL: " + statusUrl);
+      ResourceResponses.write(requestDetails, 202,
+          Collections.singletonMap(Constants.HEADER_CONTENT_LOCATION, statusUrl),
+          ResourceResponses.informational("Import job accepted: " + job.getId()));
+    } else {
+      ResourceResponses.write(requestDetails, 200, Collections.emptyMap(),
+          importOperation(inParams));
+    }
+  }
+
+  /**
+   * Runs an import synchronously, returning the outcome.
+   */
+  public OperationOutcome importOperation(Parameters inParams)
       throws IOException, URISyntaxException {
-    return executor.execute(inParams);
+    return executor.execute(inParams, null);
+  }
+
+  private static boolean prefersAsync(ServletRequestDetails requestDetails) {
+    String prefer = requestDetails.getHeader(Constants.HEADER_PREFER);
+    return prefer != null && prefer.contains("respond-async");
   }
 
 }
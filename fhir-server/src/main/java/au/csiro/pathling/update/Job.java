@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.update.NdjsonDecoder.PartitionThroughput;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.util.CollectionAccumulator;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+/**
+ * Represents an operation that is being run asynchronously, along with its progress and outcome.
+ *
+ * @author John Grimes
+ */
+public class Job {
+
+  public enum Status {
+    IN_PROGRESS, COMPLETED, FAILED, CANCELLED
+  }
+
+  @Nonnull
+  private final String id;
+
+  @Nonnull
+  private final String description;
+
+  private final long submittedAt;
+
+  // The throughput statistics reported by each resource type, in the order that they were started.
+  @Nonnull
+  private final Map<ResourceType, CollectionAccumulator<PartitionThroughput>> progress = new LinkedHashMap<>();
+
+  @Nonnull
+  private Status status = Status.IN_PROGRESS;
+
+  @Nullable
+  private OperationOutcome outcome;
+
+  @Nullable
+  private BaseServerResponseException error;
+
+  @Nullable
+  private Future<?> future;
+
+  private long finishedAt;
+
+  Job(@Nonnull String id, @Nonnull String description) {
+    this.id = id;
+    this.description = description;
+    submittedAt = System.currentTimeMillis();
+  }
+
+  @Nonnull
+  public String getId() {
+    return id;
+  }
+
+  @Nonnull
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * The Spark job group that all Spark jobs run as part of this job are assigned to, which allows
+   * them to be cancelled together.
+   */
+  @Nonnull
+  public String getJobGroup() {
+    return "pathling-job-" + id;
+  }
+
+  public long getSubmittedAt() {
+    return submittedAt;
+  }
+
+  @Nonnull
+  public synchronized Status getStatus() {
+    return status;
+  }
+
+  @Nullable
+  public synchronized OperationOutcome getOutcome() {
+    return outcome;
+  }
+
+  @Nullable
+  public synchronized BaseServerResponseException getError() {
+    return error;
+  }
+
+  public synchronized long getFinishedAt() {
+    return finishedAt;
+  }
+
+  /**
+   * Registers the accumulator that will receive the throughput statistics for a resource type, so
+   * that they can be reported as progress.
+   */
+  public synchronized void trackProgress(@Nonnull ResourceType resourceType,
+      @Nonnull CollectionAccumulator<PartitionThroughput> throughput) {
+    progress.put(resourceType, throughput);
+  }
+
+  /**
+   * Returns a snapshot of the progress of this job for each resource type. The statistics are
+   * updated as each partition is completed.
+   */
+  @Nonnull
+  public synchronized List<TypeProgress> getProgress() {
+    List<TypeProgress> result = new ArrayList<>();
+    for (Map.Entry<ResourceType, CollectionAccumulator<PartitionThroughput>> entry : progress
+        .entrySet()) {
+      long records = 0;
+      long bytes = 0;
+      for (PartitionThroughput partition : entry.getValue().value()) {
+        records += partition.getRecords();
+        bytes += partition.getBytes();
+      }
+      result.add(new TypeProgress(entry.getKey(), records, bytes));
+    }
+    return result;
+  }
+
+  synchronized void setFuture(@Nonnull Future<?> future) {
+    this.future = future;
+  }
+
+  @Nullable
+  synchronized Future<?> getFuture() {
+    return future;
+  }
+
+  synchronized void complete(@Nonnull OperationOutcome outcome) {
+    if (status == Status.IN_PROGRESS) {
+      status = Status.COMPLETED;
+      this.outcome = outcome;
+      finishedAt = System.currentTimeMillis();
+    }
+  }
+
+  synchronized void fail(@Nonnull BaseServerResponseException error) {
+    if (status == Status.IN_PROGRESS) {
+      status = Status.FAILED;
+      this.error = error;
+      finishedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Marks the job as cancelled, returning false if it had already finished.
+   */
+  synchronized boolean cancel() {
+    if (status == Status.IN_PROGRESS) {
+      status = Status.CANCELLED;
+      finishedAt = System.currentTimeMillis();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * The number of resources and bytes processed for a single resource type.
+   */
+  public static class TypeProgress {
+
+    @Nonnull
+    private final ResourceType resourceType;
+
+    private final long records;
+
+    private final long bytes;
+
+    TypeProgress(@Nonnull ResourceType resourceType, long records, long bytes) {
+      this.resourceType = resourceType;
+      this.records = records;
+      this.bytes = bytes;
+    }
+
+    @Nonnull
+    public ResourceType getResourceType() {
+      return resourceType;
+    }
+
+    public long getRecords() {
+      return records;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    @Override
+    public String toString() {
+      return resourceType.toCode() + ": " + records + " resources, " + bytes + " bytes read";
+    }
+
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.update.Job.TypeProgress;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.StringType;
+
+/**
+ * HAPI plain provider that allows clients to check on the progress of asynchronous jobs, following
+ * the FHIR asynchronous request pattern.
+ *
+ * @author John Grimes
+ * @see <a href="https://hl7.org/fhir/R4/async.html">Asynchronous Request Patterns</a>
+ */
+public class JobProvider {
+
+  private final JobRegistry jobRegistry;
+
+  public JobProvider(JobRegistry jobRegistry) {
+    this.jobRegistry = jobRegistry;
+  }
+
+  /**
+   * Returns a 202 response with an X-Progress header while the job is in progress, and the outcome
+   * of the job once it has completed. If the job failed, the error is returned.
+   */
+  @Operation(name = "$job", idempotent = true, manualResponse = true)
+  public void job(@OperationParam(name = "id") StringType id,
+      ServletRequestDetails requestDetails) throws IOException {
+    Job job = getJob(id);
+    switch (job.getStatus()) {
+      case IN_PROGRESS:
+        List<TypeProgress> progress = job.getProgress();
+        String summary = progress.isEmpty()
+                         ? "Starting"
+                         : progress.stream().map(TypeProgress::toString)
+                             .collect(Collectors.joining("; "));
+        OperationOutcome opOutcome = ResourceResponses.informational("Job in progress");
+        for (TypeProgress typeProgress : progress) {
+          OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+          issue.setSeverity(IssueSeverity.INFORMATION);
+          issue.setCode(IssueType.INFORMATIONAL);
+          issue.setDiagnostics(typeProgress.toString());
+          opOutcome.getIssue().add(issue);
+        }
+        ResourceResponses.write(requestDetails, 202,
+            Collections.singletonMap("X-Progress", summary), opOutcome);
+        break;
+      case COMPLETED:
+        ResourceResponses.write(requestDetails, 200, Collections.emptyMap(), job.getOutcome());
+        break;
+      case FAILED:
+        throw job.getError();
+      case CANCELLED:
+        throw new ResourceGoneException("Job has been cancelled: " + job.getId());
+    }
+  }
+
+  /**
+   * Cancels a job, along with any Spark jobs that it has started. HAPI plain providers cannot bind
+   * to DELETE requests, so this is exposed as a separate operation rather than as a DELETE on the
+   * status URL.
+   */
+  @Operation(name = "$cancel-job")
+  public OperationOutcome cancelJob(@OperationParam(name = "id") StringType id) {
+    Job job = getJob(id);
+    if (!jobRegistry.cancel(job)) {
+      throw new InvalidRequestException("Job has already finished: " + job.getId());
+    }
+    return ResourceResponses.informational("Job cancelled: " + job.getId());
+  }
+
+  private Job getJob(StringType id) {
+    if (id == null || id.isEmpty()) {
+      throw new InvalidRequestException("Missing id parameter");
+    }
+    Job job = jobRegistry.get(id.getValue());
+    if (job == null) {
+      throw new ResourceNotFoundException("Job not found: " + id.getValue());
+    }
+    return job;
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.update.Job.Status;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Keeps track of the operations that are being run asynchronously, and runs them on a thread pool
+ * that is separate to the one that serves HTTP requests. The number of jobs that run at the same
+ * time is bounded, and jobs submitted beyond that are queued. Once the queue is full, new jobs are
+ * rejected.
+ *
+ * @author John Grimes
+ */
+public class JobRegistry {
+
+  private static final Logger logger = LoggerFactory.getLogger(JobRegistry.class);
+
+  /**
+   * The maximum number of finished jobs that are retained for status requests. When this is
+   * exceeded, the jobs that finished earliest are removed.
+   */
+  private static final int MAX_FINISHED_JOBS = 100;
+
+  /**
+   * The maximum number of jobs that can be waiting to start.
+   */
+  private static final int MAX_QUEUED_JOBS = 100;
+
+  private final SparkSession spark;
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+
+  /**
+   * @param spark the Spark session that the jobs are run within
+   * @param maxRunningJobs the maximum number of jobs that will be run at the same time
+   */
+  public JobRegistry(SparkSession spark, int maxRunningJobs) {
+    this.spark = spark;
+    int threads = Math.max(1, maxRunningJobs);
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(MAX_QUEUED_JOBS));
+  }
+
+  /**
+   * Submits a task to be run in the background, returning the job that can be used to track it.
+   */
+  @Nonnull
+  public Job submit(@Nonnull String description, @Nonnull JobTask task) {
+    Job job = new Job(UUID.randomUUID().toString(), description);
+    String requestId = MDC.get("requestId");
+    jobs.put(job.getId(), job);
+    evictFinishedJobs();
+
+    Future<?> future;
+    try {
+      future = executor.submit(() -> {
+        MDC.put("requestId", requestId);
+        // All Spark jobs started from this thread (and any threads that it creates) will be
+        // assigned to the job group, allowing them to be cancelled.
+        spark.sparkContext().setJobGroup(job.getJobGroup(), description, true);
+        try {
+          logger.info("Starting job: " + job.getId() + " (" + description + ")");
+          job.complete(task.run(job));
+          logger.info("Job complete: " + job.getId());
+        } catch (BaseServerResponseException e) {
+          logger.info("Job failed: " + job.getId(), e);
+          job.fail(e);
+        } catch (Exception e) {
+          logger.error("Job failed: " + job.getId(), e);
+          job.fail(new InternalErrorException("Unexpected error occurred while running job", e));
+        } finally {
+          spark.sparkContext().clearJobGroup();
+          MDC.remove("requestId");
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      jobs.remove(job.getId());
+      throw new UnclassifiedServerFailureException(503,
+          "Too many jobs are waiting to be run, try again later");
+    }
+    job.setFuture(future);
+    return job;
+  }
+
+  /**
+   * Returns the job with the given ID, or null if it is not known.
+   */
+  @Nullable
+  public Job get(@Nonnull String id) {
+    return jobs.get(id);
+  }
+
+  /**
+   * Cancels the job with the given ID, along with any Spark jobs that it has started. Returns false
+   * if the job had already finished.
+   */
+  public boolean cancel(@Nonnull Job job) {
+    if (!job.cancel()) {
+      return false;
+    }
+    logger.info("Cancelling job: " + job.getId());
+    spark.sparkContext().cancelJobGroup(job.getJobGroup());
+    Future<?> future = job.getFuture();
+    if (future != null) {
+      future.cancel(true);
+    }
+    return true;
+  }
+
+  private void evictFinishedJobs() {
+    while (jobs.values().stream().filter(job -> job.getStatus() != Status.IN_PROGRESS).count()
+        > MAX_FINISHED_JOBS) {
+      Optional<Job> earliest = jobs.values().stream()
+          .filter(job -> job.getStatus() != Status.IN_PROGRESS)
+          .min(Comparator.comparingLong(Job::getFinishedAt));
+      earliest.ifPresent(job -> jobs.remove(job.getId()));
+    }
+  }
+
+  /**
+   * A unit of work that can be run as a job.
+   */
+  @FunctionalInterface
+  public interface JobTask {
+
+    OperationOutcome run(Job job) throws Exception;
+
+  }
+
+}
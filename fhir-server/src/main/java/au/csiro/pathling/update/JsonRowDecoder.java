@@ -0,0 +1,460 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.encoders.SchemaConverter;
+import au.csiro.pathling.encoders.datatypes.DataTypeMappings;
+import au.csiro.pathling.encoders.datatypes.DecimalCustomCoder;
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+import ca.uhn.fhir.context.RuntimeChildContainedResources;
+import ca.uhn.fhir.context.RuntimeChildExtension;
+import ca.uhn.fhir.context.RuntimePrimitiveDatatypeDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.catalyst.util.DateTimeUtils;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.unsafe.types.UTF8String;
+import org.apache.spark.util.CollectionAccumulator;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import scala.Option;
+import scala.collection.JavaConversions;
+
+/**
+ * Decodes a partition of NDJSON lines directly into Spark rows, reading the JSON tokens and
+ * placing each value into the position that the FHIR encoders would have put it in. This avoids
+ * building the HAPI object model for each resource.
+ * <p>
+ * The readers used to do this are compiled once (on the driver) from the same FHIR definitions
+ * that {@link SchemaConverter} uses to build the resource schema, and the result is checked against
+ * that schema. The rows produced are intended to be indistinguishable from those produced via HAPI
+ * and the encoders, including the way that HAPI auto-creates empty composite elements when they are
+ * accessed.
+ *
+ * @author John Grimes
+ */
+public class JsonRowDecoder extends NdjsonDecoder<Row> {
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  private static final Object[] EMPTY_ARRAY = new Object[0];
+
+  private final String resourceCode;
+  private final CompositeReader resourceReader;
+  private final int idIndex;
+  private final int metaIndex;
+  private final int versionIdIndex;
+
+  /**
+   * @param requestId the ID of the request, used for logging
+   * @param fhirContext the FHIR context used to look up resource definitions
+   * @param dataTypeMappings the mappings used by the encoders to represent FHIR types
+   * @param resourceType the type of resource contained within the NDJSON
+   * @param schema the schema of the encoder for the resource type, which the compiled readers are
+   * checked against
+   * @param throughput an accumulator used to report throughput statistics
+   */
+  public JsonRowDecoder(String requestId, FhirContext fhirContext,
+      DataTypeMappings dataTypeMappings, ResourceType resourceType, StructType schema,
+      CollectionAccumulator<PartitionThroughput> throughput) {
+    super(requestId, throughput);
+    resourceCode = resourceType.toCode();
+    RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(resourceCode);
+    resourceReader = new Compiler(dataTypeMappings).compile(definition);
+
+    List<String> fieldNames = resourceReader.getFieldNames();
+    if (!fieldNames.equals(Arrays.asList(schema.fieldNames()))) {
+      throw new IllegalStateException(
+          "Compiled fields do not match encoder schema for resource type: " + resourceCode);
+    }
+    idIndex = resourceReader.indexOf("id");
+    metaIndex = resourceReader.indexOf("meta");
+    CompositeReader metaReader = metaIndex < 0
+                                 ? null
+                                 : (CompositeReader) resourceReader.readerFor("meta");
+    versionIdIndex = metaReader == null
+                     ? -1
+                     : metaReader.indexOf("versionId");
+  }
+
+  @Override
+  protected Row decode(String json) throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new DataFormatException("Expected a JSON object for resource: " + resourceCode);
+      }
+      Object[] values = resourceReader.readFields(parser, this::checkResourceType);
+      qualifyId(values);
+      return RowFactory.create(values);
+    }
+  }
+
+  private void checkResourceType(String resourceType) {
+    if (!resourceCode.equals(resourceType)) {
+      throw new DataFormatException(
+          "Expected resource of type " + resourceCode + ", found: " + resourceType);
+    }
+  }
+
+  /**
+   * HAPI qualifies the logical ID of a parsed resource with its type, and the version ID from its
+   * metadata if present. We do the same here, so that the IDs match those produced by the HAPI
+   * decoder.
+   */
+  private void qualifyId(Object[] values) {
+    if (idIndex < 0 || values[idIndex] == null) {
+      return;
+    }
+    String id = resourceCode + "/" + values[idIndex];
+    if (versionIdIndex >= 0 && values[metaIndex] != null) {
+      Object versionId = ((Row) values[metaIndex]).get(versionIdIndex);
+      if (versionId != null) {
+        id += "/_history/" + versionId;
+      }
+    }
+    values[idIndex] = id;
+  }
+
+  /**
+   * Reads a single JSON value, with the parser positioned at its first token.
+   */
+  private interface ValueReader extends Serializable {
+
+    Object read(JsonParser parser) throws IOException;
+
+    /**
+     * The value used when this element is not present within the JSON.
+     */
+    Object absent();
+
+  }
+
+  private enum PrimitiveKind {
+    STRING, INTEGER, BOOLEAN, TIMESTAMP, BINARY
+  }
+
+  private static class PrimitiveReader implements ValueReader {
+
+    private static final long serialVersionUID = 1L;
+    private final PrimitiveKind kind;
+
+    PrimitiveReader(PrimitiveKind kind) {
+      this.kind = kind;
+    }
+
+    @Override
+    public Object read(JsonParser parser) throws IOException {
+      JsonToken token = parser.getCurrentToken();
+      if (token == JsonToken.VALUE_NULL) {
+        return null;
+      }
+      if (token.isStructStart()) {
+        parser.skipChildren();
+        return null;
+      }
+      switch (kind) {
+        case INTEGER:
+          return token == JsonToken.VALUE_NUMBER_INT
+                 ? parser.getIntValue()
+                 : Integer.valueOf(parser.getText());
+        case BOOLEAN:
+          return token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE
+                 ? parser.getBooleanValue()
+                 : Boolean.valueOf(parser.getText());
+        case TIMESTAMP:
+          // This mirrors the cast from string used by the encoders for instants.
+          Option<Object> micros = DateTimeUtils
+              .stringToTimestamp(UTF8String.fromString(parser.getText()), UTC);
+          return micros.isDefined()
+                 ? DateTimeUtils.toJavaTimestamp((Long) micros.get())
+                 : null;
+        case BINARY:
+          return Base64.decodeBase64(parser.getText());
+        default:
+          return parser.getText();
+      }
+    }
+
+    @Override
+    public Object absent() {
+      return null;
+    }
+
+  }
+
+  private static class ArrayReader implements ValueReader {
+
+    private static final long serialVersionUID = 1L;
+    private final ValueReader elementReader;
+
+    ArrayReader(ValueReader elementReader) {
+      this.elementReader = elementReader;
+    }
+
+    @Override
+    public Object read(JsonParser parser) throws IOException {
+      JsonToken token = parser.getCurrentToken();
+      if (token == JsonToken.VALUE_NULL) {
+        return EMPTY_ARRAY;
+      }
+      if (token != JsonToken.START_ARRAY) {
+        return new Object[]{elementReader.read(parser)};
+      }
+      List<Object> elements = new ArrayList<>();
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        elements.add(elementReader.read(parser));
+      }
+      return elements.toArray();
+    }
+
+    @Override
+    public Object absent() {
+      // HAPI returns an empty list for a repeating element that has not been set.
+      return EMPTY_ARRAY;
+    }
+
+  }
+
+  /**
+   * Reads a JSON object into a row, according to the fields of a FHIR composite type.
+   */
+  private static class CompositeReader implements ValueReader {
+
+    private static final long serialVersionUID = 1L;
+    private final List<String> fieldNames = new ArrayList<>();
+    private final Map<String, FieldBinding> bindings = new HashMap<>();
+    private final List<ValueReader> absentReaders = new ArrayList<>();
+    private Object[] absentValues;
+    private Row absentRow;
+
+    @Override
+    public Object read(JsonParser parser) throws IOException {
+      JsonToken token = parser.getCurrentToken();
+      if (token == JsonToken.VALUE_NULL) {
+        return null;
+      }
+      if (token != JsonToken.START_OBJECT) {
+        parser.skipChildren();
+        return null;
+      }
+      return RowFactory.create(readFields(parser, null));
+    }
+
+    Object[] readFields(JsonParser parser, ResourceTypeCheck resourceTypeCheck)
+        throws IOException {
+      Object[] values = absentValues.clone();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        FieldBinding binding = bindings.get(name);
+        if (binding != null) {
+          binding.read(parser, values);
+        } else if (resourceTypeCheck != null && name.equals("resourceType")) {
+          resourceTypeCheck.check(parser.getText());
+        } else {
+          // Extensions, contained resources, primitive element properties (e.g. "_birthDate")
+          // and unknown elements are not encoded.
+          parser.skipChildren();
+        }
+      }
+      return values;
+    }
+
+    /**
+     * HAPI auto-creates singular composite elements when they are accessed by the encoders, so an
+     * absent composite is encoded as a row of absent values rather than null.
+     */
+    @Override
+    public Object absent() {
+      return absentRow;
+    }
+
+    void addField(String name, ValueReader reader, boolean nullWhenAbsent) {
+      bindings.put(name, new FieldBinding(fieldNames.size(), reader, false));
+      fieldNames.add(name);
+      absentReaders.add(nullWhenAbsent
+                        ? null
+                        : reader);
+    }
+
+    void addDecimalField(String name, String scaleName) {
+      bindings.put(name, new FieldBinding(fieldNames.size(), null, true));
+      fieldNames.add(name);
+      fieldNames.add(scaleName);
+      absentReaders.add(null);
+      absentReaders.add(null);
+    }
+
+    /**
+     * Computes the values used for absent fields, once all the fields have been added.
+     */
+    void seal() {
+      absentValues = new Object[absentReaders.size()];
+      for (int i = 0; i < absentValues.length; i++) {
+        ValueReader reader = absentReaders.get(i);
+        absentValues[i] = reader == null
+                          ? null
+                          : reader.absent();
+      }
+      absentRow = RowFactory.create(absentValues.clone());
+    }
+
+    List<String> getFieldNames() {
+      return fieldNames;
+    }
+
+    int indexOf(String name) {
+      return fieldNames.indexOf(name);
+    }
+
+    ValueReader readerFor(String name) {
+      FieldBinding binding = bindings.get(name);
+      return binding == null
+             ? null
+             : binding.reader;
+    }
+
+  }
+
+  private interface ResourceTypeCheck {
+
+    void check(String resourceType);
+
+  }
+
+  private static class FieldBinding implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final int index;
+    private final ValueReader reader;
+    private final boolean decimal;
+
+    FieldBinding(int index, ValueReader reader, boolean decimal) {
+      this.index = index;
+      this.reader = reader;
+      this.decimal = decimal;
+    }
+
+    void read(JsonParser parser, Object[] values) throws IOException {
+      if (!decimal) {
+        values[index] = reader.read(parser);
+        return;
+      }
+      JsonToken token = parser.getCurrentToken();
+      if (token.isStructStart()) {
+        parser.skipChildren();
+        return;
+      }
+      if (token == JsonToken.VALUE_NULL) {
+        return;
+      }
+      // Decimals are encoded as a fixed precision value, along with the scale of the original
+      // value (up to the maximum scale of the encoded type).
+      BigDecimal value = new BigDecimal(parser.getText());
+      values[index] = value;
+      values[index + 1] = Math.min(DecimalCustomCoder.scale(), value.scale());
+    }
+
+  }
+
+  /**
+   * Builds the readers for a resource type by walking its definition in the same way as {@link
+   * SchemaConverter}, so that the values are produced in the same order as the schema fields.
+   */
+  private static class Compiler {
+
+    private final DataTypeMappings dataTypeMappings;
+
+    Compiler(DataTypeMappings dataTypeMappings) {
+      this.dataTypeMappings = dataTypeMappings;
+    }
+
+    CompositeReader compile(BaseRuntimeElementCompositeDefinition<?> definition) {
+      CompositeReader reader = new CompositeReader();
+      for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+        if (dataTypeMappings.skipField(definition, child)) {
+          continue;
+        }
+        String elementName = child.getElementName();
+        if (dataTypeMappings.customEncoder(child).isDefined()) {
+          reader.addDecimalField(elementName, elementName + "_scale");
+        } else if (child instanceof RuntimeChildContainedResources
+            || child instanceof RuntimeChildExtension) {
+          // Contained resources and extensions are not encoded.
+        } else if (child instanceof RuntimeChildChoiceDefinition) {
+          RuntimeChildChoiceDefinition choice = (RuntimeChildChoiceDefinition) child;
+          List<Class<? extends IBase>> choiceTypes = JavaConversions
+              .seqAsJavaList(SchemaConverter.getOrderedListOfChoiceTypes(choice));
+          for (Class<? extends IBase> choiceType : choiceTypes) {
+            String childName = choice.getChildNameByDatatype(choiceType);
+            // Choice elements are not auto-created by HAPI, so they are null when absent.
+            reader.addField(childName, elementReader(choice.getChildByName(childName)), true);
+          }
+        } else {
+          ValueReader elementReader = elementReader(child.getChildByName(elementName));
+          if (child.getMax() != 1) {
+            reader.addField(elementName, new ArrayReader(elementReader), false);
+          } else {
+            reader.addField(elementName, elementReader, false);
+          }
+        }
+      }
+      reader.seal();
+      return reader;
+    }
+
+    private ValueReader elementReader(BaseRuntimeElementDefinition<?> definition) {
+      if (definition instanceof BaseRuntimeElementCompositeDefinition) {
+        return compile((BaseRuntimeElementCompositeDefinition<?>) definition);
+      } else if (definition instanceof RuntimePrimitiveDatatypeDefinition) {
+        DataType dataType = dataTypeMappings
+            .primitiveToDataType((RuntimePrimitiveDatatypeDefinition) definition);
+        return new PrimitiveReader(primitiveKindFor(dataType));
+      } else {
+        // Narratives and XHTML are encoded as strings.
+        return new PrimitiveReader(PrimitiveKind.STRING);
+      }
+    }
+
+    private static PrimitiveKind primitiveKindFor(DataType dataType) {
+      if (dataType.equals(DataTypes.IntegerType)) {
+        return PrimitiveKind.INTEGER;
+      } else if (dataType.equals(DataTypes.BooleanType)) {
+        return PrimitiveKind.BOOLEAN;
+      } else if (dataType.equals(DataTypes.TimestampType)) {
+        return PrimitiveKind.TIMESTAMP;
+      } else if (dataType.equals(DataTypes.BinaryType)) {
+        return PrimitiveKind.BINARY;
+      } else {
+        return PrimitiveKind.STRING;
+      }
+    }
+
+  }
+
+}
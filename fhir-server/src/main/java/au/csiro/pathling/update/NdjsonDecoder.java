@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.util.CollectionAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Contains functionality common to the decoders that turn a partition of NDJSON lines into
+ * resources during import. Lines are decoded lazily as they are requested, so that the whole
+ * partition is never held in memory. Throughput statistics for each partition are logged on the
+ * worker, and reported back to the driver through an accumulator.
+ *
+ * @param <T> the type of object produced for each line
+ * @author John Grimes
+ */
+public abstract class NdjsonDecoder<T> implements MapPartitionsFunction<String, T> {
+
+  private static final Logger logger = LoggerFactory.getLogger(NdjsonDecoder.class);
+
+  private final String requestId;
+  private final CollectionAccumulator<PartitionThroughput> throughput;
+
+  protected NdjsonDecoder(String requestId,
+      CollectionAccumulator<PartitionThroughput> throughput) {
+    this.requestId = requestId;
+    this.throughput = throughput;
+  }
+
+  @Override
+  public Iterator<T> call(Iterator<String> jsonStrings) throws Exception {
+    // Add the request ID to the logging context, so that we can track the logging for this
+    // request across all workers.
+    MDC.put("requestId", requestId);
+    return new DecodingIterator(jsonStrings);
+  }
+
+  /**
+   * Decodes a single line of NDJSON.
+   */
+  protected abstract T decode(String json) throws Exception;
+
+  private class DecodingIterator implements Iterator<T> {
+
+    private final Iterator<String> jsonStrings;
+    private final int partitionId;
+    private final long startTime;
+    private long records;
+    private long bytes;
+    private boolean reported;
+
+    DecodingIterator(Iterator<String> jsonStrings) {
+      this.jsonStrings = jsonStrings;
+      TaskContext taskContext = TaskContext.get();
+      partitionId = taskContext == null
+                    ? -1
+                    : taskContext.partitionId();
+      startTime = System.nanoTime();
+    }
+
+    @Override
+    public boolean hasNext() {
+      boolean hasNext = jsonStrings.hasNext();
+      if (!hasNext) {
+        report();
+      }
+      return hasNext;
+    }
+
+    @Override
+    public T next() {
+      if (!jsonStrings.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      String json = jsonStrings.next();
+      T result;
+      try {
+        result = decode(json);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException("Error decoding NDJSON line", e);
+      }
+      records++;
+      // Each line is followed by a newline within the source file.
+      bytes += utf8Length(json) + 1;
+      return result;
+    }
+
+    private void report() {
+      if (reported) {
+        return;
+      }
+      reported = true;
+      long elapsedMillis = (System.nanoTime() - startTime) / 1_000_000;
+      PartitionThroughput result = new PartitionThroughput(partitionId, records, bytes,
+          elapsedMillis);
+      logger.info("Decoded partition: " + result);
+      throughput.add(result);
+    }
+
+  }
+
+  /**
+   * Returns the number of bytes that the string occupies when encoded as UTF-8, without actually
+   * encoding it.
+   */
+  static long utf8Length(String string) {
+    long length = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        // A surrogate pair encodes a single code point, which occupies four bytes.
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * The number of records and bytes decoded within a single partition, and the time that it took.
+   */
+  public static class PartitionThroughput implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final int partitionId;
+    private final long records;
+    private final long bytes;
+    private final long elapsedMillis;
+
+    public PartitionThroughput(int partitionId, long records, long bytes, long elapsedMillis) {
+      this.partitionId = partitionId;
+      this.records = records;
+      this.bytes = bytes;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    public int getPartitionId() {
+      return partitionId;
+    }
+
+    public long getRecords() {
+      return records;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    public double getRecordsPerSecond() {
+      return elapsedMillis == 0
+             ? records
+             : records * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "PartitionThroughput{" +
+          "partitionId=" + partitionId +
+          ", records=" + records +
+          ", bytes=" + bytes +
+          ", elapsedMillis=" + elapsedMillis +
+          ", recordsPerSecond=" + String.format("%.1f", getRecordsPerSecond()) +
+          '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import static au.csiro.pathling.utilities.PersistenceScheme.convertS3ToS3aUrl;
+import static au.csiro.pathling.utilities.PersistenceScheme.fileNameForResource;
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.explode;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.regexp_replace;
+
+import au.csiro.pathling.query.parsing.ReferenceIndex;
+import ca.uhn.fhir.context.FhirContext;
+import io.delta.tables.DeltaTable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.types.ArrayType;
+import org.apache.spark.sql.types.DataType;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the reference index for a resource type, which contains a narrow row for each reference
+ * from a resource of that type to another resource, and the rows for that type within the ID index.
+ * See {@link ReferenceIndex} for the layout of the indexes.
+ * <p>
+ * The reference index is rebuilt from the whole table for the resource type after each import that
+ * overwrites that type, and only the rows for the merged resources are replaced after a merge. It is
+ * partitioned by element so that reads of a single element only touch the files for that element.
+ * <p>
+ * The ID index is shared by all resource types, so only the partition for the imported type is
+ * replaced. Writes to it are serialised, as imports of different types can run concurrently.
+ *
+ * @author John Grimes
+ */
+public class ReferenceIndexWriter {
+
+  private static final Logger logger = LoggerFactory.getLogger(ReferenceIndexWriter.class);
+  private static final String HISTORY_SUFFIX = "/_history/.*$";
+  private static final String MERGED_ID_COLUMN = "merged_id";
+
+  private final SparkSession spark;
+  private final String warehouseUrl;
+  private final String databaseName;
+  private final FhirContext fhirContext;
+  private final int bucketCount;
+
+  public ReferenceIndexWriter(SparkSession spark, String warehouseUrl, String databaseName,
+      FhirContext fhirContext, int bucketCount) {
+    this.spark = spark;
+    this.warehouseUrl = convertS3ToS3aUrl(warehouseUrl);
+    this.databaseName = databaseName;
+    this.fhirContext = fhirContext;
+    this.bucketCount = bucketCount;
+  }
+
+  /**
+   * Replaces the index for the resource type with one built from the supplied resources.
+   */
+  public void write(ResourceType resourceType, Dataset<Row> resources) {
+    String indexUrl = getIndexUrl(resourceType);
+    Dataset<Row> index = buildIndex(resourceType, resources);
+    if (index == null) {
+      delete(resourceType);
+      return;
+    }
+    logger.info("Writing reference index: " + indexUrl);
+    index.write()
+        .format("delta")
+        .mode(SaveMode.Overwrite)
+        .option("overwriteSchema", "true")
+        .partitionBy(ReferenceIndex.ELEMENT)
+        .save(indexUrl);
+  }
+
+  /**
+   * Updates the index for the resource type following a merge of the supplied resources into its
+   * table. The rows for the references from the merged resources are replaced, and the rest of the
+   * index is left as it is.
+   * <p>
+   * The removal of the old rows and the addition of the new rows are two separate commits, so a
+   * query that reads the index between them will not see the references from the merged
+   * resources.
+   */
+  public void merge(ResourceType resourceType, Dataset<Row> resources) {
+    String indexUrl = getIndexUrl(resourceType);
+    Dataset<Row> mergedIds = resources
+        .select(regexp_replace(resources.col("id"), HISTORY_SUFFIX, "").alias(MERGED_ID_COLUMN))
+        .distinct();
+    logger.info("Removing merged resources from reference index: " + indexUrl);
+    DeltaTable.forPath(spark, indexUrl).as("target")
+        .merge(mergedIds.as("source"), "regexp_replace(target." + ReferenceIndex.SOURCE_ID + ", '"
+            + HISTORY_SUFFIX + "', '') = source." + MERGED_ID_COLUMN)
+        .whenMatched().delete()
+        .execute();
+    Dataset<Row> index = buildIndex(resourceType, resources);
+    if (index != null) {
+      logger.info("Adding merged resources to reference index: " + indexUrl);
+      index.write()
+          .format("delta")
+          .mode(SaveMode.Append)
+          .save(indexUrl);
+    }
+  }
+
+  /**
+   * Returns true if there is an index for the resource type, which can be updated incrementally.
+   */
+  public boolean exists(ResourceType resourceType) {
+    return DeltaTable.isDeltaTable(spark, getIndexUrl(resourceType));
+  }
+
+  /**
+   * Builds the rows of the reference index from the supplied resources, or returns null if the
+   * resource type has no Reference elements at its top level.
+   */
+  @Nullable
+  private Dataset<Row> buildIndex(ResourceType resourceType, Dataset<Row> resources) {
+    Set<String> columns = Arrays.stream(resources.columns()).collect(Collectors.toSet());
+    List<Dataset<Row>> elementDatasets = new ArrayList<>();
+    for (String element : ReferenceIndex
+        .referenceElements(fhirContext, resourceType.toCode())) {
+      if (!columns.contains(element)) {
+        continue;
+      }
+      // Repeating elements are exploded, so that there is one row for each reference.
+      DataType dataType = resources.schema().apply(element).dataType();
+      Column value = dataType instanceof ArrayType
+                     ? explode(resources.col(element))
+                     : resources.col(element);
+      Dataset<Row> references = resources.select(resources.col("id").alias("id"),
+          value.alias("value"));
+      Column reference = col("value").getField("reference");
+      elementDatasets.add(references
+          .where(reference.isNotNull())
+          .select(col("id").alias(ReferenceIndex.SOURCE_ID),
+              lit(element).alias(ReferenceIndex.ELEMENT),
+              reference.alias(ReferenceIndex.REFERENCE),
+              ReferenceIndex.targetType(reference).alias(ReferenceIndex.TARGET_TYPE),
+              ReferenceIndex.targetId(reference).alias(ReferenceIndex.TARGET_ID)));
+    }
+    return elementDatasets.stream()
+        .reduce(Dataset::union)
+        .orElse(null);
+  }
+
+  /**
+   * Removes the index for the resource type, if there is one. This is used when a table is written
+   * without updating its index, so that a stale index is not used.
+   */
+  public void delete(ResourceType resourceType) {
+    String indexUrl = getIndexUrl(resourceType);
+    try {
+      FileSystem fileSystem = FileSystem.get(new URI(indexUrl),
+          spark.sparkContext().hadoopConfiguration());
+      Path path = new Path(indexUrl);
+      if (fileSystem.exists(path)) {
+        logger.info("Removing reference index: " + indexUrl);
+        fileSystem.delete(path, true);
+      }
+    } catch (IOException | URISyntaxException e) {
+      throw new RuntimeException("Problem deleting reference index: " + indexUrl, e);
+    }
+  }
+
+  /**
+   * Replaces the rows for the resource type within the ID index with the IDs of the supplied
+   * resources.
+   */
+  public synchronized void writeIds(ResourceType resourceType, Dataset<Row> resources) {
+    String idIndexUrl = getIdIndexUrl();
+    int partitions = bucketCount > 0
+                     ? bucketCount
+                     : spark.sessionState().conf().numShufflePartitions();
+    Dataset<Row> ids = resources
+        .select(resources.col("id").alias(ReferenceIndex.ID),
+            lit(resourceType.toCode()).alias(ReferenceIndex.RESOURCE_TYPE))
+        .repartition(partitions, col(ReferenceIndex.ID))
+        .sortWithinPartitions(ReferenceIndex.ID);
+    logger.info("Writing ID index: " + idIndexUrl + " (" + resourceType.toCode() + ")");
+    if (DeltaTable.isDeltaTable(spark, idIndexUrl)) {
+      ids.write()
+          .format("delta")
+          .mode(SaveMode.Overwrite)
+          .option("replaceWhere",
+              ReferenceIndex.RESOURCE_TYPE + " = '" + resourceType.toCode() + "'")
+          .save(idIndexUrl);
+    } else {
+      ids.write()
+          .format("delta")
+          .mode(SaveMode.Overwrite)
+          .partitionBy(ReferenceIndex.RESOURCE_TYPE)
+          .save(idIndexUrl);
+    }
+  }
+
+  /**
+   * Adds the IDs of the supplied resources to the rows for the resource type within the ID index,
+   * following a merge of those resources into its table. If there are no rows for the resource
+   * type, they are written from the supplied resources alone, which must then be the whole table.
+   */
+  public synchronized void mergeIds(ResourceType resourceType, Dataset<Row> resources) {
+    String idIndexUrl = getIdIndexUrl();
+    if (!DeltaTable.isDeltaTable(spark, idIndexUrl)) {
+      writeIds(resourceType, resources);
+      return;
+    }
+    Dataset<Row> ids = resources
+        .select(resources.col("id").alias(ReferenceIndex.ID),
+            lit(resourceType.toCode()).alias(ReferenceIndex.RESOURCE_TYPE));
+    logger.info("Merging into ID index: " + idIndexUrl + " (" + resourceType.toCode() + ")");
+    // The condition on the resource type limits the merge to the partition for that type.
+    DeltaTable.forPath(spark, idIndexUrl).as("target")
+        .merge(ids.as("source"), "target." + ReferenceIndex.RESOURCE_TYPE + " = '"
+            + resourceType.toCode() + "' AND regexp_replace(target." + ReferenceIndex.ID + ", '"
+            + HISTORY_SUFFIX + "', '') = regexp_replace(source." + ReferenceIndex.ID + ", '"
+            + HISTORY_SUFFIX + "', '')")
+        .whenMatched().updateAll()
+        .whenNotMatched().insertAll()
+        .execute();
+  }
+
+  /**
+   * Removes the rows for the resource type from the ID index, if there is one.
+   */
+  public synchronized void deleteIds(ResourceType resourceType) {
+    String idIndexUrl = getIdIndexUrl();
+    if (DeltaTable.isDeltaTable(spark, idIndexUrl)) {
+      DeltaTable.forPath(spark, idIndexUrl)
+          .delete(col(ReferenceIndex.RESOURCE_TYPE).equalTo(resourceType.toCode()));
+    }
+  }
+
+  private String getIdIndexUrl() {
+    return warehouseUrl + "/" + databaseName + "/" + ReferenceIndex.ID_DIRECTORY;
+  }
+
+  private String getIndexUrl(ResourceType resourceType) {
+    return warehouseUrl + "/" + databaseName + "/" + ReferenceIndex.DIRECTORY + "/"
+        + fileNameForResource(resourceType);
+  }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import au.csiro.pathling.fhir.FhirContextFactory;
+import ca.uhn.fhir.parser.IParser;
+import org.apache.spark.util.CollectionAccumulator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Parses a partition of NDJSON lines into HAPI resources, reusing a single JSON parser for every
+ * line rather than building a new one for each record.
+ *
+ * @author John Grimes
+ */
+public class ResourceParser extends NdjsonDecoder<IBaseResource> {
+
+  /**
+   * HAPI parsers are not thread-safe, so we keep one per task thread. The FhirContext that they are
+   * created from is already cached once per JVM by the FhirContextFactory.
+   */
+  private static final ThreadLocal<IParser> jsonParser = new ThreadLocal<>();
+
+  private final FhirContextFactory fhirContextFactory;
+
+  public ResourceParser(String requestId, FhirContextFactory fhirContextFactory,
+      CollectionAccumulator<PartitionThroughput> throughput) {
+    super(requestId, throughput);
+    this.fhirContextFactory = fhirContextFactory;
+  }
+
+  @Override
+  protected IBaseResource decode(String json) {
+    return getParser().parseResource(json);
+  }
+
+  private IParser getParser() {
+    IParser parser = jsonParser.get();
+    if (parser == null) {
+      parser = fhirContextFactory.build().newJsonParser();
+      jsonParser.set(parser);
+    }
+    return parser;
+  }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import java.io.IOException;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+
+/**
+ * Utility methods for operations that write their own responses, which they need to do when they
+ * respond with a status other than 200.
+ *
+ * @author John Grimes
+ */
+abstract class ResourceResponses {
+
+  /**
+   * Writes a resource to the response as JSON, with the supplied status code and headers.
+   */
+  static void write(ServletRequestDetails requestDetails, int status,
+      Map<String, String> headers, IBaseResource resource) throws IOException {
+    HttpServletResponse response = requestDetails.getServletResponse();
+    response.setStatus(status);
+    headers.forEach(response::setHeader);
+    response.setContentType(Constants.CT_FHIR_JSON_NEW);
+    response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+    requestDetails.getFhirContext().newJsonParser()
+        .encodeResourceToWriter(resource, response.getWriter());
+    response.getWriter().flush();
+  }
+
+  /**
+   * Builds an OperationOutcome containing a single informational issue.
+   */
+  static OperationOutcome informational(String diagnostics) {
+    OperationOutcome opOutcome = new OperationOutcome();
+    OperationOutcomeIssueComponent issue = new OperationOutcomeIssueComponent();
+    issue.setSeverity(IssueSeverity.INFORMATION);
+    issue.setCode(IssueType.INFORMATIONAL);
+    issue.setDiagnostics(diagnostics);
+    opOutcome.getIssue().add(issue);
+    return opOutcome;
+  }
+
+}
@@ -8,24 +8,81 @@ package au.csiro.pathling.update;
 
 import static au.csiro.pathling.utilities.PersistenceScheme.convertS3ToS3aUrl;
 import static au.csiro.pathling.utilities.PersistenceScheme.fileNameForResource;
+import static org.apache.spark.sql.functions.monotonically_increasing_id;
+import static org.apache.spark.sql.functions.regexp_replace;
+import static org.apache.spark.sql.functions.row_number;
 
+import io.delta.tables.DeltaTable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SaveMode;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.expressions.Window;
+import org.apache.spark.sql.expressions.WindowSpec;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This class knows how to persist a Dataset of resources within a specified database.
+ * <p>
+ * Tables are stored using Delta Lake, which keeps a transaction log alongside the Parquet files.
+ * This allows new resources to be merged into an existing table, rewriting only the files that
+ * contain updated resources, and allows readers to continue to read a consistent version of the
+ * table while it is being written.
+ * <p>
+ * If a bucket count is configured, overwritten tables are written as that number of files, with
+ * the resources hash partitioned and sorted on their ID. A merge rewrites files without regard to
+ * this layout, so a table that has been merged into is no longer laid out this way until it is
+ * next overwritten. Nothing relies upon the layout of the files for correctness, as the resource
+ * cache partitions each table on its ID as it is loaded.
+ * <p>
+ * Files that are replaced by an overwrite or a merge are kept for the configured retention period,
+ * so that queries that are still reading an earlier version of the table can finish, and are then
+ * removed by a vacuum after a later write.
  *
  * @author John Grimes
  */
 public class ResourceWriter {
 
+  private static final Logger logger = LoggerFactory.getLogger(ResourceWriter.class);
+
+  /**
+   * Resources are matched on their logical ID, ignoring any version that HAPI has added to the ID
+   * from the resource metadata.
+   */
+  private static final String HISTORY_SUFFIX = "/_history/.*$";
+  private static final String MERGE_CONDITION =
+      "regexp_replace(target.id, '" + HISTORY_SUFFIX + "', '') = "
+          + "regexp_replace(source.id, '" + HISTORY_SUFFIX + "', '')";
+
+  private static final String ORDER_COLUMN = "_order";
+  private static final String KEY_COLUMN = "_key";
+  private static final String RANK_COLUMN = "_rank";
+
   private final String warehouseUrl;
   private final String databaseName;
+  private final int bucketCount;
+  private final int vacuumRetentionHours;
 
   public ResourceWriter(String warehouseUrl, String databaseName) {
+    this(warehouseUrl, databaseName, 0, 0);
+  }
+
+  public ResourceWriter(String warehouseUrl, String databaseName, int bucketCount,
+      int vacuumRetentionHours) {
     this.warehouseUrl = convertS3ToS3aUrl(warehouseUrl);
     this.databaseName = databaseName;
+    this.bucketCount = bucketCount;
+    this.vacuumRetentionHours = vacuumRetentionHours;
   }
 
   public String getWarehouseUrl() {
@@ -36,8 +93,122 @@ public class ResourceWriter {
     return databaseName;
   }
 
+  /**
+   * Replaces the contents of the table for the resource type with the supplied resources.
+   */
   public void write(ResourceType resourceType, Dataset resources) {
-    String tableUrl = warehouseUrl + "/" + databaseName + "/" + fileNameForResource(resourceType);
-    resources.write().mode(SaveMode.Overwrite).parquet(tableUrl);
+    String tableUrl = getTableUrl(resourceType);
+    SparkSession spark = resources.sparkSession();
+    // A table written prior to the use of Delta Lake is converted in place first. Its files then
+    // remain readable until the new version of the table has been committed, and are removed by
+    // the vacuum that follows.
+    if (!DeltaTable.isDeltaTable(spark, tableUrl) && tableExists(spark, tableUrl)) {
+      convertToDelta(spark, tableUrl);
+    }
+    if (bucketCount > 0) {
+      resources = resources.repartition(bucketCount, resources.col("id"))
+          .sortWithinPartitions("id");
+    }
+    resources.write()
+        .format("delta")
+        .mode(SaveMode.Overwrite)
+        .option("overwriteSchema", "true")
+        .save(tableUrl);
+    vacuum(spark, tableUrl);
+  }
+
+  /**
+   * Merges the supplied resources into the table for the resource type. Resources with the same ID
+   * as an existing resource replace it, and all other resources are added to the table. Only the
+   * files that contain replaced resources are rewritten. If the supplied resources contain more than
+   * one resource with the same ID, the last of them is used.
+   *
+   * @return the resources that were merged into the table, with one for each ID, or null if there
+   * was no existing table and it was created from the supplied resources
+   */
+  @Nullable
+  public Dataset<Row> merge(ResourceType resourceType, Dataset resources) {
+    String tableUrl = getTableUrl(resourceType);
+    SparkSession spark = resources.sparkSession();
+    if (!DeltaTable.isDeltaTable(spark, tableUrl)) {
+      if (tableExists(spark, tableUrl)) {
+        // Convert a table written prior to the use of Delta Lake in place.
+        convertToDelta(spark, tableUrl);
+      } else {
+        // There is nothing to merge with, so we just create the table.
+        write(resourceType, resources);
+        return null;
+      }
+    }
+    if (bucketCount > 0) {
+      logger.warn("Merging into " + resourceType.toCode() + " table will remove its bucketed "
+          + "layout, overwrite the table to restore it: " + tableUrl);
+    }
+    @SuppressWarnings("unchecked") Dataset<Row> updates = latestOfEachId(
+        (Dataset<Row>) resources.toDF());
+    DeltaTable.forPath(spark, tableUrl).as("target")
+        .merge(updates.as("source"), MERGE_CONDITION)
+        .whenMatched().updateAll()
+        .whenNotMatched().insertAll()
+        .execute();
+    vacuum(spark, tableUrl);
+    return updates;
+  }
+
+  /**
+   * Reads the current version of the table for the resource type.
+   */
+  public Dataset<Row> read(SparkSession spark, ResourceType resourceType) {
+    return spark.read().format("delta").load(getTableUrl(resourceType));
+  }
+
+  /**
+   * Reduces the resources to one for each logical ID, as a merge fails if more than one source row
+   * matches the same row in the table. The order of the resources is captured before any shuffle,
+   * so that the resource that appears last within the source is kept.
+   */
+  private static Dataset<Row> latestOfEachId(Dataset<Row> resources) {
+    String[] columns = resources.columns();
+    Dataset<Row> ordered = resources
+        .withColumn(ORDER_COLUMN, monotonically_increasing_id())
+        .withColumn(KEY_COLUMN, regexp_replace(resources.col("id"), HISTORY_SUFFIX, ""));
+    WindowSpec window = Window.partitionBy(ordered.col(KEY_COLUMN))
+        .orderBy(ordered.col(ORDER_COLUMN).desc());
+    Dataset<Row> ranked = ordered.withColumn(RANK_COLUMN, row_number().over(window));
+    return ranked.where(ranked.col(RANK_COLUMN).equalTo(1))
+        .select(Arrays.stream(columns).map(ranked::col).toArray(Column[]::new));
   }
+
+  private String getTableUrl(ResourceType resourceType) {
+    return warehouseUrl + "/" + databaseName + "/" + fileNameForResource(resourceType);
+  }
+
+  private static boolean tableExists(SparkSession spark, String tableUrl) {
+    try {
+      return getFileSystem(spark, tableUrl).exists(new Path(tableUrl));
+    } catch (IOException | URISyntaxException e) {
+      throw new RuntimeException("Problem checking for existing table: " + tableUrl, e);
+    }
+  }
+
+  private static void convertToDelta(SparkSession spark, String tableUrl) {
+    logger.info("Converting existing table to Delta: " + tableUrl);
+    DeltaTable.convertToDelta(spark, "parquet.`" + tableUrl + "`");
+  }
+
+  /**
+   * Removes the files that are no longer part of the table and are older than the retention
+   * period. Without this, the files replaced by each overwrite or merge would be kept forever.
+   */
+  private void vacuum(SparkSession spark, String tableUrl) {
+    if (vacuumRetentionHours > 0) {
+      DeltaTable.forPath(spark, tableUrl).vacuum(vacuumRetentionHours);
+    }
+  }
+
+  private static FileSystem getFileSystem(SparkSession spark, String tableUrl)
+      throws IOException, URISyntaxException {
+    return FileSystem.get(new URI(tableUrl), spark.sparkContext().hadoopConfiguration());
+  }
+
 }
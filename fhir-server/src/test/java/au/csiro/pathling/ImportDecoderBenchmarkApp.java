@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling;
+
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.encoders.datatypes.R4DataTypeMappings;
+import au.csiro.pathling.fhir.FhirContextFactory;
+import au.csiro.pathling.update.JsonRowDecoder;
+import au.csiro.pathling.update.NdjsonDecoder.PartitionThroughput;
+import au.csiro.pathling.update.ResourceParser;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Objects;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
+import org.apache.spark.sql.catalyst.encoders.RowEncoder;
+import org.apache.spark.util.CollectionAccumulator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Compares the time taken to decode NDJSON files using the HAPI decoder and the direct decoder.
+ * Each file is decoded a number of times with each decoder, and the results are forced without
+ * being written anywhere, so that only the decoding is measured.
+ * <p>
+ * Usage: {@code ImportDecoderBenchmarkApp [NDJSON directory] [iterations]}. The directory defaults
+ * to {@code src/test/resources/test-data/fhir}.
+ *
+ * @author John Grimes
+ */
+public class ImportDecoderBenchmarkApp {
+
+  private final SparkSession spark;
+  private final FhirEncoders fhirEncoders = FhirEncoders.forR4().getOrCreate();
+  private final FhirContextFactory fhirContextFactory = new FhirContextFactory();
+
+  public ImportDecoderBenchmarkApp() {
+    spark = SparkSession.builder()
+        .appName("pathling-import-benchmark")
+        .config("spark.master", "local[*]")
+        .config("spark.driver.host", "localhost")
+        .getOrCreate();
+  }
+
+  public static void main(String[] args) {
+    String directory = args.length > 0
+                       ? args[0]
+                       : "src/test/resources/test-data/fhir";
+    int iterations = args.length > 1
+                     ? Integer.parseInt(args[1])
+                     : 5;
+    new ImportDecoderBenchmarkApp().run(new File(directory), iterations);
+  }
+
+  private void run(File directory, int iterations) {
+    FileFilter fileFilter = new WildcardFileFilter("*.ndjson");
+    File[] files = Objects.requireNonNull(directory.listFiles(fileFilter));
+    System.out.println(String.format("%-25s %10s %12s %12s %8s", "Resource type", "Records",
+        "HAPI (ms)", "Direct (ms)", "Speedup"));
+
+    for (File file : files) {
+      ResourceType resourceType = ResourceType
+          .fromCode(FilenameUtils.getBaseName(file.getName()));
+      Dataset<String> jsonStrings = spark.read().textFile(file.getPath()).cache();
+      long records = jsonStrings.count();
+
+      // Run each decoder once before timing, to warm up the JVM and the Spark context.
+      decodeWithHapi(resourceType, jsonStrings);
+      decodeDirect(resourceType, jsonStrings);
+
+      long hapiMillis = 0;
+      long directMillis = 0;
+      for (int i = 0; i < iterations; i++) {
+        hapiMillis += decodeWithHapi(resourceType, jsonStrings);
+        directMillis += decodeDirect(resourceType, jsonStrings);
+      }
+      hapiMillis /= iterations;
+      directMillis /= iterations;
+      double speedup = directMillis == 0
+                       ? 0
+                       : (double) hapiMillis / directMillis;
+      System.out.println(String.format("%-25s %10d %12d %12d %7.2fx", resourceType.toCode(),
+          records, hapiMillis, directMillis, speedup));
+      jsonStrings.unpersist();
+    }
+  }
+
+  private long decodeWithHapi(ResourceType resourceType, Dataset<String> jsonStrings) {
+    ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders.of(resourceType.toCode());
+    ResourceParser resourceParser = new ResourceParser("benchmark", fhirContextFactory,
+        newAccumulator());
+    return time(jsonStrings.mapPartitions(resourceParser, fhirEncoder));
+  }
+
+  private long decodeDirect(ResourceType resourceType, Dataset<String> jsonStrings) {
+    ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders.of(resourceType.toCode());
+    JsonRowDecoder rowDecoder = new JsonRowDecoder("benchmark", fhirContextFactory.build(),
+        new R4DataTypeMappings(), resourceType, fhirEncoder.schema(), newAccumulator());
+    return time(jsonStrings.mapPartitions(rowDecoder, RowEncoder.apply(fhirEncoder.schema())));
+  }
+
+  private CollectionAccumulator<PartitionThroughput> newAccumulator() {
+    return spark.sparkContext().collectionAccumulator();
+  }
+
+  /**
+   * Forces the evaluation of every row within the dataset, returning the elapsed time in
+   * milliseconds. The rows are converted to their internal representation, which is what would be
+   * handed to the writer during an import.
+   */
+  private static long time(Dataset<?> dataset) {
+    long start = System.nanoTime();
+    dataset.queryExecution().toRdd().count();
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling;
+
+import au.csiro.pathling.query.ResourceCache;
+import au.csiro.pathling.query.ResourceCache.StorageMode;
+import au.csiro.pathling.query.parsing.parser.ResourceProjection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Compares the number of bytes shuffled when joining resource datasets on their IDs, with and
+ * without bucketing of the cached datasets. The join mirrors the way that the subject resource is
+ * joined to the datasets for each grouping and filter expression within an aggregate query.
+ * <p>
+ * Usage: {@code JoinLayoutBenchmarkApp [Parquet directory] [bucket count]}. The directory defaults
+ * to {@code src/test/resources/test-data/parquet}.
+ *
+ * @author John Grimes
+ */
+public class JoinLayoutBenchmarkApp {
+
+  private final SparkSession spark;
+  private final LongAdder shuffleBytes = new LongAdder();
+
+  public JoinLayoutBenchmarkApp() {
+    spark = SparkSession.builder()
+        .appName("pathling-join-benchmark")
+        .config("spark.master", "local[*]")
+        .config("spark.driver.host", "localhost")
+        .config("spark.sql.autoBroadcastJoinThreshold", "-1")
+        .getOrCreate();
+    spark.sparkContext().addSparkListener(new SparkListener() {
+      @Override
+      public void onTaskEnd(SparkListenerTaskEnd taskEnd) {
+        if (taskEnd.taskMetrics() != null) {
+          shuffleBytes.add(taskEnd.taskMetrics().shuffleWriteMetrics().bytesWritten());
+        }
+      }
+    });
+  }
+
+  public static void main(String[] args) throws TimeoutException {
+    String directory = args.length > 0
+                       ? args[0]
+                       : "src/test/resources/test-data/parquet";
+    int bucketCount = args.length > 1
+                      ? Integer.parseInt(args[1])
+                      : 8;
+    new JoinLayoutBenchmarkApp().run(directory, bucketCount);
+  }
+
+  private void run(String directory, int bucketCount) throws TimeoutException {
+    Function<ResourceType, Dataset<Row>> loader = resourceType -> spark.read()
+        .parquet(directory + "/" + resourceType.toCode() + ".parquet");
+    System.out.println(String.format("%-25s %18s %18s", "Resource type", "Unbucketed (bytes)",
+        "Bucketed (bytes)"));
+    for (ResourceType resourceType : Arrays
+        .asList(ResourceType.PATIENT, ResourceType.CONDITION, ResourceType.OBSERVATION)) {
+      long unbucketed = measure(new ResourceCache(StorageMode.MEMORY, 10), resourceType, loader);
+      long bucketed = measure(new ResourceCache(StorageMode.MEMORY, 10, bucketCount),
+          resourceType, loader);
+      System.out.println(String.format("%-25s %18d %18d", resourceType.toCode(), unbucketed,
+          bucketed));
+    }
+  }
+
+  /**
+   * Joins three projections of the same resource type on their IDs, returning the number of bytes
+   * shuffled by the join. The cache is populated beforehand, so that only the join is measured.
+   */
+  private long measure(ResourceCache cache, ResourceType resourceType,
+      Function<ResourceType, Dataset<Row>> loader) throws TimeoutException {
+    cache.get(resourceType, 0, loader).count();
+
+    Dataset<Row> subject = ResourceProjection
+        .project(cache.get(resourceType, 0, loader), "resource", new HashSet<>());
+    Dataset<Row> first = ResourceProjection
+        .project(cache.get(resourceType, 0, loader), "first",
+            new HashSet<>(Arrays.asList("meta", "text")));
+    Dataset<Row> second = ResourceProjection
+        .project(cache.get(resourceType, 0, loader), "second",
+            new HashSet<>(Arrays.asList("meta", "extension")));
+    Dataset<Row> joined = subject
+        .join(first, subject.col("id").equalTo(first.col("id")), "inner")
+        .join(second, subject.col("id").equalTo(second.col("id")), "inner");
+
+    shuffleBytes.reset();
+    joined.queryExecution().toRdd().count();
+    // Task end events are delivered asynchronously, so we wait for them to be processed.
+    spark.sparkContext().listenerBus().waitUntilEmpty(10000);
+    long result = shuffleBytes.sum();
+    cache.clear();
+    return result;
+  }
+
+}
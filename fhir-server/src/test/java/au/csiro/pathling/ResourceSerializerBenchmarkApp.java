@@ -0,0 +1,138 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling;
+
+import au.csiro.pathling.encoders.FhirEncoders;
+import au.csiro.pathling.encoders.datatypes.R4DataTypeMappings;
+import au.csiro.pathling.fhir.FhirContextFactory;
+import au.csiro.pathling.query.JsonRowEncoder;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.List;
+import java.util.Objects;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+
+/**
+ * Compares the time taken to serialise resources from Parquet into FHIR JSON on the driver, using
+ * the HAPI path (decoding each row into a HAPI object and encoding it with the HAPI JSON parser)
+ * and the direct path (serialising each row on the executors with the {@link JsonRowEncoder}).
+ * <p>
+ * Usage: {@code ResourceSerializerBenchmarkApp [Parquet directory] [iterations]}. The directory
+ * defaults to {@code src/test/resources/test-data/parquet}.
+ *
+ * @author John Grimes
+ */
+public class ResourceSerializerBenchmarkApp {
+
+  private final SparkSession spark;
+  private final FhirEncoders fhirEncoders = FhirEncoders.forR4().getOrCreate();
+  private final FhirContext fhirContext = new FhirContextFactory().build();
+
+  public ResourceSerializerBenchmarkApp() {
+    spark = SparkSession.builder()
+        .appName("pathling-serializer-benchmark")
+        .config("spark.master", "local[*]")
+        .config("spark.driver.host", "localhost")
+        .getOrCreate();
+  }
+
+  public static void main(String[] args) {
+    String directory = args.length > 0
+                       ? args[0]
+                       : "src/test/resources/test-data/parquet";
+    int iterations = args.length > 1
+                     ? Integer.parseInt(args[1])
+                     : 5;
+    new ResourceSerializerBenchmarkApp().run(new File(directory), iterations);
+  }
+
+  private void run(File directory, int iterations) {
+    FileFilter fileFilter = new WildcardFileFilter("*.parquet");
+    File[] files = Objects.requireNonNull(directory.listFiles(fileFilter));
+    System.out.println(String.format("%-25s %10s %12s %12s %8s", "Resource type", "Records",
+        "HAPI (ms)", "Direct (ms)", "Speedup"));
+
+    for (File file : files) {
+      ResourceType resourceType = ResourceType
+          .fromCode(FilenameUtils.getBaseName(file.getName()));
+      Dataset<Row> resources = spark.read().parquet(file.getPath()).cache();
+      long records = resources.count();
+
+      // Run each serialiser once before timing, to warm up the JVM and the Spark context.
+      serializeWithHapi(resourceType, resources);
+      serializeDirect(resourceType, resources);
+
+      long hapiMillis = 0;
+      long directMillis = 0;
+      for (int i = 0; i < iterations; i++) {
+        hapiMillis += serializeWithHapi(resourceType, resources);
+        directMillis += serializeDirect(resourceType, resources);
+      }
+      hapiMillis /= iterations;
+      directMillis /= iterations;
+      double speedup = directMillis == 0
+                       ? 0
+                       : (double) hapiMillis / directMillis;
+      System.out.println(String.format("%-25s %10d %12d %12d %7.2fx", resourceType.toCode(),
+          records, hapiMillis, directMillis, speedup));
+      resources.unpersist();
+    }
+  }
+
+  /**
+   * Collects the resources as HAPI objects and encodes them on the driver, which is what happens
+   * when a page of search results is returned.
+   */
+  private long serializeWithHapi(ResourceType resourceType, Dataset<Row> resources) {
+    ExpressionEncoder<IBaseResource> fhirEncoder = fhirEncoders.of(resourceType.toCode());
+    IParser jsonParser = fhirContext.newJsonParser();
+    long start = System.nanoTime();
+    List<IBaseResource> decoded = resources.as(fhirEncoder).collectAsList();
+    long length = 0;
+    for (IBaseResource resource : decoded) {
+      length += jsonParser.encodeResourceToString(resource).length();
+    }
+    return elapsed(start, length);
+  }
+
+  /**
+   * Serialises the resources on the executors, and streams the JSON to the driver.
+   */
+  private long serializeDirect(ResourceType resourceType, Dataset<Row> resources) {
+    JsonRowEncoder jsonEncoder = new JsonRowEncoder(fhirContext, new R4DataTypeMappings(),
+        resourceType, resources.schema());
+    long start = System.nanoTime();
+    long length = 0;
+    for (String json : resources.map(jsonEncoder, Encoders.STRING()).collectAsList()) {
+      length += json.length();
+    }
+    return elapsed(start, length);
+  }
+
+  /**
+   * Returns the elapsed time in milliseconds. The length of the output is checked so that the
+   * serialisation cannot be optimised away.
+   */
+  private static long elapsed(long start, long length) {
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    if (length == 0) {
+      throw new IllegalStateException("No output was produced");
+    }
+    return millis;
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling;
+
+import static org.apache.spark.sql.functions.format_string;
+import static org.apache.spark.sql.functions.max;
+import static org.apache.spark.sql.functions.rand;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+
+/**
+ * Compares the time taken to retrieve a page of search results at increasing depths, using the
+ * offset approach that was previously used by the search executor (a limit over the preceding rows
+ * and a left anti-join), and the keyset approach that it now uses (a range condition on the ID of
+ * the last resource on the previous page).
+ * <p>
+ * Usage: {@code SearchPagingBenchmarkApp [number of rows] [page size]}. The defaults are 1,000,000
+ * rows and pages of 100.
+ *
+ * @author John Grimes
+ */
+public class SearchPagingBenchmarkApp {
+
+  private final SparkSession spark;
+
+  public SearchPagingBenchmarkApp() {
+    spark = SparkSession.builder()
+        .appName("pathling-paging-benchmark")
+        .config("spark.master", "local[*]")
+        .config("spark.driver.host", "localhost")
+        .config("spark.sql.autoBroadcastJoinThreshold", "-1")
+        .getOrCreate();
+  }
+
+  public static void main(String[] args) {
+    long rows = args.length > 0
+                ? Long.parseLong(args[0])
+                : 1_000_000;
+    int pageSize = args.length > 1
+                   ? Integer.parseInt(args[1])
+                   : 100;
+    new SearchPagingBenchmarkApp().run(rows, pageSize);
+  }
+
+  private void run(long rows, int pageSize) {
+    // A cached dataset of resources with random IDs and a payload, standing in for a search result.
+    Dataset<Long> base = spark.range(rows);
+    Dataset<Row> result = base
+        .select(format_string("Patient/%016x", rand().multiply(Long.MAX_VALUE).cast("long"))
+                .alias("id"),
+            format_string("%0200d", base.col("id")).alias("payload"));
+    result.cache().count();
+
+    System.out.println(String.format("%-10s %18s %18s", "Page", "Offset (ms)", "Keyset (ms)"));
+    List<Integer> pages = Arrays.asList(1, 10, 100, 500, 1000);
+    for (int page : pages) {
+      int from = (page - 1) * pageSize;
+      long offset = time(() -> offsetPage(result, from, pageSize));
+      // The cursor is taken outside of the timing, as it would have been remembered from the
+      // retrieval of the previous page.
+      String cursor = from == 0
+                      ? null
+                      : result.select("id").orderBy("id").limit(from).agg(max("id")).head()
+                          .getString(0);
+      long keyset = time(() -> keysetPage(result, cursor, pageSize));
+      System.out.println(String.format("%-10d %18d %18d", page, offset, keyset));
+    }
+  }
+
+  private static List<Row> offsetPage(Dataset<Row> result, int from, int pageSize) {
+    Dataset<Row> resources = result;
+    if (from != 0) {
+      Dataset<Row> exclude = resources.limit(from).select(resources.col("id").alias("excludeId"));
+      Column joinCondition = resources.col("id").equalTo(exclude.col("excludeId"));
+      resources = resources.join(exclude, joinCondition, "left_anti");
+    }
+    return resources.limit(pageSize).collectAsList();
+  }
+
+  private static List<Row> keysetPage(Dataset<Row> result, String cursor, int pageSize) {
+    Dataset<Row> resources = cursor == null
+                             ? result
+                             : result.where(result.col("id").gt(cursor));
+    return resources.orderBy(resources.col("id")).limit(pageSize).collectAsList();
+  }
+
+  private static long time(Runnable runnable) {
+    // The first run warms up the code paths involved, and is not counted.
+    runnable.run();
+    long start = System.nanoTime();
+    runnable.run();
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+
+}
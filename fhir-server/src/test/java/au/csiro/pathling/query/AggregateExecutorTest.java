@@ -25,7 +25,9 @@ import ca.uhn.fhir.rest.param.StringParam;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
@@ -33,7 +35,9 @@ import org.hl7.fhir.r4.model.ConceptMap;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.PrimitiveType;
 import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
 import org.json.JSONException;
 import org.junit.After;
 import org.junit.Before;
@@ -165,6 +169,90 @@ public class AggregateExecutorTest extends ExecutorTest {
         "responses/AggregateExecutorTest-queryWithFilter.Parameters.json");
   }
 
+  @Test
+  public void queryWithFilterOverJoinedResource() throws IOException {
+    subjectResource = ResourceType.PATIENT;
+    mockResourceReader(ResourceType.CONDITION, subjectResource);
+
+    // Filter the patients, and group them by an expression that is joined to the filtered
+    // patients.
+    AggregateRequest filteredRequest = new AggregateRequest();
+    filteredRequest.setSubjectResource(subjectResource);
+    Aggregation aggregation = new Aggregation();
+    aggregation.setLabel("Number of patients");
+    aggregation.setExpression("count()");
+    filteredRequest.getAggregations().add(aggregation);
+    Grouping condition = new Grouping();
+    condition.setLabel("Condition");
+    condition.setExpression("reverseResolve(Condition.subject).code.coding.display");
+    filteredRequest.getGroupings().add(condition);
+    filteredRequest.getFilters().add("gender = 'female'");
+
+    // Group all of the patients by the filter expression as well, without filtering them.
+    AggregateRequest unfilteredRequest = new AggregateRequest();
+    unfilteredRequest.setSubjectResource(subjectResource);
+    unfilteredRequest.getAggregations().add(aggregation);
+    Grouping gender = new Grouping();
+    gender.setLabel("Female");
+    gender.setExpression("gender = 'female'");
+    unfilteredRequest.getGroupings().add(gender);
+    unfilteredRequest.getGroupings().add(condition);
+
+    AggregateResponse filteredResponse = executor.execute(filteredRequest);
+    AggregateResponse unfilteredResponse = executor.execute(unfilteredRequest);
+
+    // The filtered results should be the same as the unfiltered results for female patients.
+    Map<String, String> expected = new HashMap<>();
+    unfilteredResponse.getGroupings().stream()
+        .filter(grouping -> "true".equals(valueOf(grouping.getLabels().get(0))))
+        .forEach(grouping -> expected.put(valueOf(grouping.getLabels().get(1)),
+            valueOf(grouping.getResults().get(0))));
+    Map<String, String> actual = new HashMap<>();
+    filteredResponse.getGroupings().forEach(grouping -> actual
+        .put(valueOf(grouping.getLabels().get(0)), valueOf(grouping.getResults().get(0))));
+    assertThat(actual).isNotEmpty();
+    assertThat(actual).isEqualTo(expected);
+
+    this.response = filteredResponse.toParameters();
+  }
+
+  @Test
+  public void queryWithExpressionCache() throws IOException, JSONException {
+    subjectResource = ResourceType.PATIENT;
+    mockResourceReader(subjectResource);
+    ExpressionCache expressionCache = new ExpressionCache(16, 0);
+    configuration.setExpressionCache(expressionCache);
+
+    // Build a AggregateRequest to pass to the executor.
+    AggregateRequest request = new AggregateRequest();
+    request.setSubjectResource(ResourceType.PATIENT);
+
+    Aggregation aggregation = new Aggregation();
+    aggregation.setLabel("Number of patients");
+    aggregation.setExpression("count()");
+    request.getAggregations().add(aggregation);
+
+    Grouping grouping1 = new Grouping();
+    grouping1.setLabel("Gender");
+    grouping1.setExpression("gender");
+    request.getGroupings().add(grouping1);
+
+    request.getFilters().add("gender = 'female'");
+
+    // Execute the query twice, the second time using the compiled expressions from the first.
+    executor.execute(request);
+    assertThat(expressionCache.getMisses()).isEqualTo(3);
+    AggregateResponse response = executor.execute(request);
+    assertThat(expressionCache.getHits()).isEqualTo(3);
+    assertThat(expressionCache.getMisses()).isEqualTo(3);
+
+    // Check the response against an expected response.
+    this.response = response.toParameters();
+    String actualJson = getJsonParser().encodeResourceToString(this.response);
+    checkExpectedJson(actualJson,
+        "responses/AggregateExecutorTest-queryWithFilter.Parameters.json");
+  }
+
   @Test
   public void queryWithIntegerGroupings() throws IOException, JSONException {
     subjectResource = ResourceType.CLAIM;
@@ -636,4 +724,10 @@ public class AggregateExecutorTest extends ExecutorTest {
         "responses/AggregateExecutorTest-queryWithWhereAsComparisonOperand.Parameters.json");
   }
 
+  private static String valueOf(Type value) {
+    return value == null
+           ? null
+           : ((PrimitiveType<?>) value).getValueAsString();
+  }
+
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class AggregateProviderTest {
+
+  private AggregateExecutor executor;
+  private AggregateResultCache cache;
+  private AggregateProvider provider;
+
+  @Before
+  public void setUp() {
+    executor = mock(AggregateExecutor.class);
+    ResourceReader resourceReader = mock(ResourceReader.class);
+    when(resourceReader.getWarehouseVersion()).thenReturn(1L);
+    cache = new AggregateResultCache(FhirContext.forR4(), resourceReader, 1024 * 1024, null, 0);
+    provider = new AggregateProvider(executor, cache);
+  }
+
+  @Test
+  public void missingExpressionIsReportedByExecutor() {
+    when(executor.execute(any()))
+        .thenThrow(new InvalidRequestException("Aggregation component must have expression"));
+    Parameters parameters = parameters(null);
+
+    assertThatThrownBy(() -> provider.aggregate(parameters, request("POST", "\"foo\""),
+        mock(HttpServletResponse.class)))
+        .isInstanceOf(InvalidRequestException.class)
+        .hasMessage("Aggregation component must have expression");
+  }
+
+  @Test
+  public void matchingPostIsRejectedAsPreconditionFailed() {
+    Parameters parameters = parameters("count()");
+    String eTag = cache.getETag(new AggregateRequest(parameters));
+
+    assertThatThrownBy(() -> provider.aggregate(parameters, request("POST", eTag),
+        mock(HttpServletResponse.class)))
+        .isInstanceOf(PreconditionFailedException.class);
+  }
+
+  @Test
+  public void matchingGetIsNotModified() {
+    Parameters parameters = parameters("count()");
+    String eTag = cache.getETag(new AggregateRequest(parameters));
+
+    assertThatThrownBy(() -> provider.aggregate(parameters, request("GET", eTag),
+        mock(HttpServletResponse.class)))
+        .isInstanceOf(NotModifiedException.class);
+  }
+
+  private static Parameters parameters(String aggregationExpression) {
+    Parameters parameters = new Parameters();
+    parameters.addParameter().setName("subjectResource").setValue(new CodeType("Patient"));
+    ParametersParameterComponent aggregation = parameters.addParameter().setName("aggregation");
+    aggregation.addPart().setName("label").setValue(new StringType("Number of patients"));
+    if (aggregationExpression != null) {
+      aggregation.addPart().setName("expression").setValue(new StringType(aggregationExpression));
+    }
+    return parameters;
+  }
+
+  private static HttpServletRequest request(String method, String ifNoneMatch) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn(method);
+    when(request.getHeader("If-None-Match")).thenReturn(ifNoneMatch);
+    return request;
+  }
+
+}
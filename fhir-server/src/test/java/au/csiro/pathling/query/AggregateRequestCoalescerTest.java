@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class AggregateRequestCoalescerTest {
+
+  private static final String FILTER = "gender = 'female'";
+  private static final String INVALID_FILTER = "gender";
+
+  private AggregateRequestCoalescer coalescer;
+  private ExecutorService threads;
+  private AtomicInteger executions;
+  private CountDownLatch started;
+  private CountDownLatch release;
+  private Function<AggregateRequest, Parameters> executor;
+
+  @Before
+  public void setUp() {
+    coalescer = new AggregateRequestCoalescer();
+    threads = Executors.newFixedThreadPool(2);
+    executions = new AtomicInteger();
+    started = new CountDownLatch(1);
+    release = new CountDownLatch(1);
+    // Echoes the expressions of the request back, once released.
+    executor = request -> {
+      executions.incrementAndGet();
+      started.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (request.getFilters().contains(INVALID_FILTER)) {
+        throw new InvalidRequestException("Filter expression is not of boolean type: gender");
+      }
+      return echoResponse(request);
+    };
+  }
+
+  @After
+  public void tearDown() {
+    threads.shutdownNow();
+  }
+
+  @Test
+  public void concurrentIdenticalRequestsShareExecution() throws Exception {
+    Future<Parameters> first = threads
+        .submit(() -> coalescer.execute(request("count()", "id.count()", FILTER), executor));
+    started.await(10, TimeUnit.SECONDS);
+    Future<Parameters> second = threads
+        .submit(() -> coalescer.execute(request("id.count()", "count()", FILTER), executor));
+    awaitCoalesced();
+    release.countDown();
+
+    assertThat(executions.get()).isEqualTo(1);
+    assertThat(coalescer.getExecutions()).isEqualTo(1);
+    assertThat(coalescer.getCoalesced()).isEqualTo(1);
+    Parameters firstResult = first.get(10, TimeUnit.SECONDS);
+    Parameters secondResult = second.get(10, TimeUnit.SECONDS);
+    assertThat(firstResult).isNotSameAs(secondResult);
+    assertThat(resultValue(firstResult)).isEqualTo("count()");
+    assertThat(resultValue(secondResult)).isEqualTo("id.count()");
+  }
+
+  @Test
+  public void reorderedRequestsShareExecutionInTheirOwnOrder() throws Exception {
+    Future<Parameters> first = threads.submit(() -> coalescer
+        .execute(request("count()", "id.count()", "gender", "active", FILTER), executor));
+    started.await(10, TimeUnit.SECONDS);
+    Future<Parameters> second = threads.submit(() -> coalescer
+        .execute(request("id.count()", "count()", "active", "gender", FILTER), executor));
+    awaitCoalesced();
+    release.countDown();
+
+    assertThat(executions.get()).isEqualTo(1);
+    Parameters firstResult = first.get(10, TimeUnit.SECONDS);
+    Parameters secondResult = second.get(10, TimeUnit.SECONDS);
+    assertThat(values(firstResult, "label")).containsExactly("gender", "active");
+    assertThat(values(firstResult, "result")).containsExactly("count()", "id.count()");
+    assertThat(values(secondResult, "label")).containsExactly("active", "gender");
+    assertThat(values(secondResult, "result")).containsExactly("id.count()", "count()");
+    assertThat(values(secondResult, "drillDown")).containsExactly("drill");
+  }
+
+  @Test
+  public void errorIsThrownToAllWaitingRequests() throws Exception {
+    Future<Parameters> first = threads
+        .submit(() -> coalescer
+            .execute(request("count()", "id.count()", INVALID_FILTER), executor));
+    started.await(10, TimeUnit.SECONDS);
+    Future<Parameters> second = threads
+        .submit(() -> coalescer
+            .execute(request("count()", "id.count()", INVALID_FILTER), executor));
+    awaitCoalesced();
+    release.countDown();
+
+    assertThatThrownBy(() -> first.get(10, TimeUnit.SECONDS))
+        .hasCauseInstanceOf(InvalidRequestException.class);
+    assertThatThrownBy(() -> second.get(10, TimeUnit.SECONDS))
+        .hasCauseInstanceOf(InvalidRequestException.class);
+    assertThat(executions.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void sequentialRequestsAreExecutedSeparately() {
+    release.countDown();
+    coalescer.execute(request("count()", "id.count()", FILTER), executor);
+    coalescer.execute(request("count()", "id.count()", FILTER), executor);
+
+    assertThat(executions.get()).isEqualTo(2);
+    assertThat(coalescer.getCoalesced()).isEqualTo(0);
+  }
+
+  private void awaitCoalesced() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (coalescer.getCoalesced() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static String resultValue(Parameters parameters) {
+    return parameters.getParameterFirstRep().getPart().stream()
+        .filter(part -> part.getName().equals("result"))
+        .findFirst()
+        .map(part -> part.getValue().primitiveValue())
+        .orElse(null);
+  }
+
+  private static List<String> values(Parameters parameters, String partName) {
+    return parameters.getParameterFirstRep().getPart().stream()
+        .filter(part -> part.getName().equals(partName))
+        .map(part -> part.getValue().primitiveValue())
+        .collect(Collectors.toList());
+  }
+
+  private static AggregateRequest request(String aggregation1, String aggregation2,
+      String filter) {
+    return aggregateRequest(Arrays.asList(aggregation1, aggregation2),
+        Collections.singletonList("gender"), Collections.singletonList(filter));
+  }
+
+  private static AggregateRequest request(String aggregation1, String aggregation2,
+      String grouping1, String grouping2, String filter) {
+    return aggregateRequest(Arrays.asList(aggregation1, aggregation2),
+        Arrays.asList(grouping1, grouping2), Collections.singletonList(filter));
+  }
+
+  private static AggregateRequest aggregateRequest(List<String> aggregations,
+      List<String> groupings, List<String> filters) {
+    Parameters parameters = new Parameters();
+    parameters.addParameter().setName("subjectResource").setValue(new CodeType("Patient"));
+    for (String expression : aggregations) {
+      ParametersParameterComponent aggregation = parameters.addParameter()
+          .setName("aggregation");
+      aggregation.addPart().setName("label").setValue(new StringType(expression));
+      aggregation.addPart().setName("expression").setValue(new StringType(expression));
+    }
+    for (String expression : groupings) {
+      ParametersParameterComponent grouping = parameters.addParameter().setName("grouping");
+      grouping.addPart().setName("label").setValue(new StringType(expression));
+      grouping.addPart().setName("expression").setValue(new StringType(expression));
+    }
+    for (String filter : filters) {
+      parameters.addParameter().setName("filter").setValue(new StringType(filter));
+    }
+    return new AggregateRequest(parameters);
+  }
+
+  /**
+   * Returns a response with a single grouping, which echoes the grouping expressions of the request
+   * back as its labels and the aggregation expressions back as its results.
+   */
+  private static Parameters echoResponse(AggregateRequest request) {
+    ParametersParameterComponent grouping = new ParametersParameterComponent();
+    grouping.setName("grouping");
+    request.getGroupings().forEach(g -> grouping.addPart().setName("label")
+        .setValue(new StringType(g.getExpression())));
+    request.getAggregations().forEach(a -> grouping.addPart().setName("result")
+        .setValue(new StringType(a.getExpression())));
+    grouping.addPart().setName("drillDown").setValue(new StringType("drill"));
+    Parameters parameters = new Parameters();
+    parameters.addParameter(grouping);
+    return parameters;
+  }
+
+}
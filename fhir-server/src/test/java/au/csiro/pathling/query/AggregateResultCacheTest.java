@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class AggregateResultCacheTest {
+
+  private ResourceReader resourceReader;
+  private AggregateResultCache cache;
+  private AtomicInteger executions;
+  private Function<AggregateRequest, Parameters> executor;
+
+  @Before
+  public void setUp() {
+    resourceReader = mock(ResourceReader.class);
+    when(resourceReader.getWarehouseVersion()).thenReturn(1L);
+    cache = new AggregateResultCache(FhirContext.forR4(), resourceReader, 1024 * 1024, null, 0);
+    executions = new AtomicInteger();
+    executor = request -> {
+      executions.incrementAndGet();
+      return echoResponse(request);
+    };
+  }
+
+  @Test
+  public void reorderedRequestIsServedFromCache() {
+    Parameters first = cache.get(request("count()", "id.count()", "gender", "active"), executor);
+    Parameters second = cache.get(request("id.count()", "count()", "active", "gender"), executor);
+
+    assertThat(executions.get()).isEqualTo(1);
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1);
+    assertThat(values(first, "label")).containsExactly("gender", "active");
+    assertThat(values(first, "result")).containsExactly("count()", "id.count()");
+    assertThat(values(second, "label")).containsExactly("active", "gender");
+    assertThat(values(second, "result")).containsExactly("id.count()", "count()");
+    assertThat(values(second, "drillDown")).containsExactly("drill");
+    assertThat(cache.getETag(request("count()", "id.count()", "gender", "active")))
+        .isEqualTo(cache.getETag(request("id.count()", "count()", "active", "gender")));
+  }
+
+  @Test
+  public void warehouseUpdateInvalidatesCache() {
+    AggregateRequest request = request("count()", "id.count()", "gender", "active");
+    cache.get(request, executor);
+    String eTag = cache.getETag(request);
+    when(resourceReader.getWarehouseVersion()).thenReturn(2L);
+    cache.get(request, executor);
+
+    assertThat(executions.get()).isEqualTo(2);
+    assertThat(cache.getHits()).isEqualTo(0);
+    assertThat(cache.getETag(request)).isNotEqualTo(eTag);
+  }
+
+  @Test
+  public void leastRecentlyUsedResultIsEvicted() {
+    AggregateResultCache small = new AggregateResultCache(FhirContext.forR4(), resourceReader,
+        1, null, 0);
+    small.get(request("count()", "id.count()", "gender", "active"), executor);
+    small.get(request("count()", "id.count()", "gender", "active"), executor);
+
+    assertThat(executions.get()).isEqualTo(2);
+    assertThat(small.getEvictions()).isEqualTo(2);
+  }
+
+  private static AggregateRequest request(String aggregation1, String aggregation2,
+      String grouping1, String grouping2) {
+    return aggregateRequest(Arrays.asList(aggregation1, aggregation2),
+        Arrays.asList(grouping1, grouping2), Collections.singletonList("gender = 'female'"));
+  }
+
+  private static List<String> values(Parameters parameters, String partName) {
+    return parameters.getParameterFirstRep().getPart().stream()
+        .filter(part -> part.getName().equals(partName))
+        .map(part -> part.getValue().primitiveValue())
+        .collect(Collectors.toList());
+  }
+
+  private static AggregateRequest aggregateRequest(List<String> aggregations,
+      List<String> groupings, List<String> filters) {
+    Parameters parameters = new Parameters();
+    parameters.addParameter().setName("subjectResource").setValue(new CodeType("Patient"));
+    for (String expression : aggregations) {
+      ParametersParameterComponent aggregation = parameters.addParameter()
+          .setName("aggregation");
+      aggregation.addPart().setName("label").setValue(new StringType(expression));
+      aggregation.addPart().setName("expression").setValue(new StringType(expression));
+    }
+    for (String expression : groupings) {
+      ParametersParameterComponent grouping = parameters.addParameter().setName("grouping");
+      grouping.addPart().setName("label").setValue(new StringType(expression));
+      grouping.addPart().setName("expression").setValue(new StringType(expression));
+    }
+    for (String filter : filters) {
+      parameters.addParameter().setName("filter").setValue(new StringType(filter));
+    }
+    return new AggregateRequest(parameters);
+  }
+
+  /**
+   * Returns a response with a single grouping, which echoes the grouping expressions of the request
+   * back as its labels and the aggregation expressions back as its results.
+   */
+  private static Parameters echoResponse(AggregateRequest request) {
+    ParametersParameterComponent grouping = new ParametersParameterComponent();
+    grouping.setName("grouping");
+    request.getGroupings().forEach(g -> grouping.addPart().setName("label")
+        .setValue(new StringType(g.getExpression())));
+    request.getAggregations().forEach(a -> grouping.addPart().setName("result")
+        .setValue(new StringType(a.getExpression())));
+    grouping.addPart().setName("drillDown").setValue(new StringType("drill"));
+    Parameters parameters = new Parameters();
+    parameters.addParameter(grouping);
+    return parameters;
+  }
+
+}
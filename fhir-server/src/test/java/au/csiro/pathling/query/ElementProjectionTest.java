@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static au.csiro.pathling.TestUtilities.getFhirContext;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Set;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class ElementProjectionTest {
+
+  @Test
+  public void reducesElementsToTopLevel() {
+    Set<String> elements = ElementProjection
+        .topLevelElements(Arrays.asList("status", "CarePlan.subject", "period.start", " "));
+
+    assertThat(elements).containsExactlyInAnyOrder("status", "subject", "period");
+  }
+
+  @Test
+  public void findsSummaryElements() {
+    Set<String> elements = ElementProjection.summaryElements(getFhirContext(),
+        ResourceType.OBSERVATION);
+
+    assertThat(elements).contains("status", "code", "subject", "value");
+    assertThat(elements).doesNotContain("text", "note");
+  }
+
+}
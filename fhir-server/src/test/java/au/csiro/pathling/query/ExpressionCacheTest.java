@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.query.parsing.ParsedExpression;
+import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import au.csiro.pathling.test.DatasetBuilder;
+import java.util.Collections;
+import java.util.List;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class ExpressionCacheTest {
+
+  private Dataset<Row> dataset;
+  private ParsedExpression subject;
+
+  @Before
+  public void setUp() {
+    dataset = new DatasetBuilder()
+        .withColumn("id", DataTypes.StringType)
+        .withRow("Patient/1")
+        .build();
+    subject = new ParsedExpression();
+    subject.setDataset(dataset);
+    subject.setOrigin(subject);
+  }
+
+  @Test
+  public void cachedExpressionsAreNotChangedByCallers() {
+    ExpressionCache.Scope scope = scope(new ExpressionCache(10, 0));
+    scope.get("gender", Collections.emptyList(), this::compile).setFhirPath("changed");
+
+    ParsedExpression cached = scope.get("gender", Collections.emptyList(), expression -> null);
+    assertThat(cached.getFhirPath()).isEqualTo("gender");
+  }
+
+  @Test
+  public void requestsDoNotShareSubjectResource() {
+    ExpressionCache.Scope scope = scope(new ExpressionCache(10, 0));
+    ExpressionParserContext first = scope.newContext();
+    ExpressionParserContext second = scope.newContext();
+    first.getSubjectContext().setDataset(dataset.withColumn("gender", dataset.col("id")));
+
+    assertThat(second.getSubjectContext().getDataset()).isSameAs(dataset);
+  }
+
+  @Test
+  public void leastRecentlyUsedExpressionIsEvicted() {
+    ExpressionCache cache = new ExpressionCache(2, 0);
+    ExpressionCache.Scope scope = scope(cache);
+    scope.get("gender", Collections.emptyList(), this::compile);
+    scope.get("birthDate", Collections.emptyList(), this::compile);
+    scope.get("gender", Collections.emptyList(), this::compile);
+    scope.get("active", Collections.emptyList(), this::compile);
+
+    assertThat(cache.getEvictions()).isEqualTo(1);
+    assertThat(scope.get("gender", Collections.emptyList(), this::compile)).isNotNull();
+    assertThat(cache.getHits()).isEqualTo(2);
+    scope.get("birthDate", Collections.emptyList(), this::compile);
+    assertThat(cache.getMisses()).isEqualTo(4);
+  }
+
+  @Test
+  public void expiredExpressionIsCompiledAgain() throws InterruptedException {
+    ExpressionCache cache = new ExpressionCache(10, 1);
+    ExpressionCache.Scope scope = scope(cache);
+    scope.get("gender", Collections.emptyList(), this::compile);
+    Thread.sleep(10);
+    scope.get("gender", Collections.emptyList(), this::compile);
+
+    assertThat(cache.getHits()).isEqualTo(0);
+    assertThat(cache.getMisses()).isEqualTo(2);
+    assertThat(cache.getEvictions()).isEqualTo(1);
+  }
+
+  @Test
+  public void expressionIsOnlyReusedWithSameDependencies() {
+    ExpressionCache cache = new ExpressionCache(10, 0);
+    ExpressionCache.Scope scope = scope(cache);
+    List<Dataset<Row>> groupings = Collections.singletonList(dataset);
+    scope.get("count()", groupings, this::compile);
+    scope.get("count()", groupings, this::compile);
+    scope.get("count()", Collections.singletonList(dataset.select("id")), this::compile);
+
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(2);
+  }
+
+  private ExpressionCache.Scope scope(ExpressionCache cache) {
+    return cache.getScope(ResourceType.PATIENT, 1, null, elements -> {
+      ExpressionParserContext context = new ExpressionParserContext();
+      context.setSubjectContext(subject);
+      return context;
+    });
+  }
+
+  private ParsedExpression compile(String expression) {
+    ParsedExpression result = new ParsedExpression();
+    result.setFhirPath(expression);
+    result.setDataset(dataset);
+    return result;
+  }
+
+}
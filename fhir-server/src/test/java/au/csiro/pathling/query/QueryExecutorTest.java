@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.query.parsing.ParsedExpression;
+import au.csiro.pathling.test.DatasetBuilder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class QueryExecutorTest {
+
+  @Test
+  public void joinedDatasetsAreReducedToSubjectIds() {
+    Dataset<Row> patients = new DatasetBuilder()
+        .withColumn("id", DataTypes.StringType)
+        .withColumn("gender", DataTypes.StringType)
+        .withRow("Patient/1", "female")
+        .withRow("Patient/2", "female")
+        .withRow("Patient/3", "male")
+        .build();
+    Dataset<Row> conditions = new DatasetBuilder()
+        .withColumn("subject", DataTypes.StringType)
+        .withColumn("code", DataTypes.StringType)
+        .withRow("Patient/1", "asthma")
+        .withRow("Patient/3", "asthma")
+        .withRow("Patient/3", "diabetes")
+        .build();
+    ParsedExpression subject = expression(patients, "id");
+    ParsedExpression condition = expression(conditions, "subject");
+
+    // The subject dataset is filtered, and the condition dataset is joined to it.
+    Dataset<Row> filtered = patients.filter(patients.col("gender").equalTo("female"));
+    Dataset<Row> subjectIds = filtered.select(patients.col("id").alias("filtered_id"));
+    Dataset<Row> result = QueryExecutor.joinExpressions(filtered,
+        Collections.singletonList(subject), Arrays.asList(subject, condition), subjectIds);
+
+    List<String> rows = result.select(patients.col("id"), conditions.col("code"))
+        .collectAsList().stream()
+        .map(row -> row.getString(0) + " " + row.getString(1))
+        .collect(Collectors.toList());
+    assertThat(rows).containsExactly("Patient/1 asthma");
+    // The condition dataset should be reduced to the rows for the filtered patients before it is
+    // joined, and the subject dataset should not be joined again.
+    String plan = result.queryExecution().analyzed().toString();
+    assertThat(plan).contains("LeftSemi");
+    assertThat(plan.split("Join ", -1)).hasSize(3);
+  }
+
+  private static ParsedExpression expression(Dataset<Row> dataset, String idColumnName) {
+    ParsedExpression expression = new ParsedExpression();
+    expression.setDataset(dataset);
+    expression.setIdColumn(dataset.col(idColumnName));
+    return expression;
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static au.csiro.pathling.TestUtilities.getSparkSession;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.query.ResourceCache.StorageMode;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class ResourceCacheTest {
+
+  private SparkSession spark;
+  private AtomicInteger loads;
+  private Function<ResourceType, Dataset<Row>> loader;
+
+  @Before
+  public void setUp() {
+    spark = getSparkSession();
+    loads = new AtomicInteger();
+    loader = resourceType -> {
+      loads.incrementAndGet();
+      return spark.read()
+          .parquet("src/test/resources/test-data/parquet/" + resourceType.toCode() + ".parquet");
+    };
+  }
+
+  @Test
+  public void repeatedReadsAreServedFromCache() {
+    ResourceCache cache = new ResourceCache(StorageMode.MEMORY, 10);
+    Dataset<Row> first = cache.get(ResourceType.PATIENT, 0, loader);
+    Dataset<Row> second = cache.get(ResourceType.PATIENT, 0, loader);
+
+    assertThat(loads.get()).isEqualTo(1);
+    assertThat(cache.getHits()).isEqualTo(1);
+    assertThat(cache.getMisses()).isEqualTo(1);
+    // Each read can be joined to another read of the same resource type.
+    assertThat(first.join(second, first.col("id").equalTo(second.col("id"))).count())
+        .isEqualTo(first.count());
+  }
+
+  @Test
+  public void leastRecentlyUsedEntryIsEvicted() {
+    ResourceCache cache = new ResourceCache(StorageMode.MEMORY_AND_DISK, 2);
+    cache.get(ResourceType.PATIENT, 0, loader);
+    cache.get(ResourceType.CONDITION, 0, loader);
+    cache.get(ResourceType.PATIENT, 0, loader);
+    cache.get(ResourceType.ENCOUNTER, 0, loader);
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.getEvictions()).isEqualTo(1);
+
+    // The Condition entry was the least recently used, so it needs to be loaded again.
+    cache.get(ResourceType.PATIENT, 0, loader);
+    cache.get(ResourceType.CONDITION, 0, loader);
+    assertThat(loads.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void entriesAreEvictedWhenMaximumSizeIsExceeded() {
+    ResourceCache cache = new ResourceCache(StorageMode.MEMORY, 10, 100, 0);
+    cache.get(ResourceType.PATIENT, 0, 60L, loader);
+    cache.get(ResourceType.CONDITION, 0, 30L, loader);
+    assertThat(cache.getTotalBytes()).isEqualTo(90);
+
+    // Adding the Encounter entry takes the cache over its maximum size, so the Patient entry is
+    // evicted.
+    cache.get(ResourceType.ENCOUNTER, 0, 40L, loader);
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.getTotalBytes()).isEqualTo(70);
+    assertThat(cache.getEvictions()).isEqualTo(1);
+
+    // A table that is larger than the maximum size is read without being cached.
+    cache.get(ResourceType.OBSERVATION, 0, 200L, loader);
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.getTotalBytes()).isEqualTo(70);
+    assertThat(loads.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void staleVersionsAreInvalidated() {
+    ResourceCache cache = new ResourceCache(StorageMode.MEMORY, 10);
+    cache.get(ResourceType.PATIENT, 0, loader);
+    cache.get(ResourceType.CONDITION, 3, loader);
+    cache.get(ResourceType.ENCOUNTER, ResourceCache.UNVERSIONED, loader);
+
+    // The Patient table has moved on to a new version, and unversioned tables are always released.
+    cache.retainCurrent(resourceType -> resourceType == ResourceType.PATIENT
+                                        ? 1L
+                                        : 3L);
+
+    assertThat(cache.size()).isEqualTo(1);
+    cache.get(ResourceType.CONDITION, 3, loader);
+    assertThat(cache.getHits()).isEqualTo(1);
+  }
+
+  @Test
+  public void storageModesAreParsedFromCodes() {
+    assertThat(StorageMode.fromCode("off-heap").getStorageLevel())
+        .isEqualTo(StorageLevel.OFF_HEAP());
+  }
+
+}
@@ -6,19 +6,36 @@
 
 package au.csiro.pathling.query;
 
+import static org.apache.spark.sql.functions.col;
+import static org.apache.spark.sql.functions.concat;
+import static org.apache.spark.sql.functions.lit;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+import static org.mockito.Mockito.when;
 
 import au.csiro.pathling.TestUtilities;
 import au.csiro.pathling.encoders.FhirEncoders;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import java.io.File;
 import java.net.MalformedURLException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.storage.StorageLevel;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CarePlan;
+import org.hl7.fhir.r4.model.CarePlan.CarePlanStatus;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -55,11 +72,11 @@ public class SearchExecutorTest extends ExecutorTest {
     List<IBaseResource> resources = searchExecutor.getResources(2, 5);
     assertThat(resources.size()).isEqualTo(3);
     assertThat(resources.get(0).getIdElement().getIdPart())
-        .isEqualTo("542857ec-8ddf-4a4a-bc8c-ffd0a349101b");
+        .isEqualTo("1f7f64e2-db15-4821-ae11-cfc16ee328bf");
     assertThat(resources.get(1).getIdElement().getIdPart())
-        .isEqualTo("5a807931-7736-47a7-a250-b7067b461f2b");
+        .isEqualTo("3d4f9569-1a5d-40b2-9383-91de37db9af7");
     assertThat(resources.get(2).getIdElement().getIdPart())
-        .isEqualTo("017e4feb-9b7f-4e5c-b8d8-f09b01145224");
+        .isEqualTo("542857ec-8ddf-4a4a-bc8c-ffd0a349101b");
   }
 
   @Test
@@ -93,9 +110,9 @@ public class SearchExecutorTest extends ExecutorTest {
     List<IBaseResource> resources = searchExecutor.getResources(0, 100);
     assertThat(resources.size()).isEqualTo(16);
     assertThat(resources.get(0).getIdElement().getIdPart())
-        .isEqualTo("01b9ab89-fa4e-40cb-a020-d544b82ea31d");
+        .isEqualTo("017e4feb-9b7f-4e5c-b8d8-f09b01145224");
     assertThat(resources.get(8).getIdElement().getIdPart())
-        .isEqualTo("05fd5547-18ab-406b-9da1-5eea3e787e7f");
+        .isEqualTo("5a807931-7736-47a7-a250-b7067b461f2b");
   }
 
   @Test
@@ -130,7 +147,7 @@ public class SearchExecutorTest extends ExecutorTest {
     List<IBaseResource> resources = searchExecutor.getResources(0, 1);
     assertThat(resources.size()).isEqualTo(1);
     assertThat(resources.get(0).getIdElement().getIdPart())
-        .isEqualTo("9be4c8a3-b0e8-4301-919a-89da2cfff37d");
+        .isEqualTo("017e4feb-9b7f-4e5c-b8d8-f09b01145224");
   }
 
   @Test
@@ -142,7 +159,154 @@ public class SearchExecutorTest extends ExecutorTest {
     List<IBaseResource> resources = searchExecutor.getResources(0, 1);
     assertThat(resources.size()).isEqualTo(1);
     assertThat(resources.get(0).getIdElement().getIdPart())
-        .isEqualTo("9be4c8a3-b0e8-4301-919a-89da2cfff37d");
+        .isEqualTo("017e4feb-9b7f-4e5c-b8d8-f09b01145224");
+  }
+
+  @Test
+  public void pagesAreContiguous() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, ResourceType.CAREPLAN,
+        filters);
+    List<String> all = ids(searchExecutor.getResources(0, 100));
+    // The second page is retrieved after the first, and the fourth without the third.
+    List<String> paged = new ArrayList<>(ids(searchExecutor.getResources(0, 4)));
+    paged.addAll(ids(searchExecutor.getResources(4, 8)));
+    List<String> fourth = ids(searchExecutor.getResources(12, 16));
+
+    assertThat(all).hasSize(14).isSorted();
+    assertThat(paged).isEqualTo(all.subList(0, 8));
+    assertThat(fourth).isEqualTo(all.subList(12, 14));
+    assertThat(searchExecutor.getResources(16, 20)).isEmpty();
+  }
+
+  @Test
+  public void cachesIdsOnceAndReleasesThem() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'active'"));
+    filters.addAnd(new StringParam("category.coding contains http://snomed.info/sct|395082007"));
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, ResourceType.CAREPLAN,
+        filters);
+    Dataset<Row> ids = searchExecutor.getIds();
+    assertThat(ids.storageLevel()).isNotEqualTo(StorageLevel.NONE());
+    assertThat(searchExecutor.getIds()).isSameAs(ids);
+
+    // The search can still be used after it has been released.
+    searchExecutor.release();
+    assertThat(ids.storageLevel()).isEqualTo(StorageLevel.NONE());
+    assertThat(ids(searchExecutor.getResources(0, 100))).containsExactly(
+        "05fd5547-18ab-406b-9da1-5eea3e787e7f", "122ca2d5-d026-4952-929b-8df056a4a157");
+  }
+
+  @Test
+  public void releaseIsDeferredUntilRetrievalIsComplete() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, ResourceType.CAREPLAN,
+        filters);
+    searchExecutor.beginRetrieval();
+    Dataset<Row> ids = searchExecutor.getIds();
+
+    // The IDs are not released while they are being used to retrieve a page.
+    searchExecutor.release();
+    assertThat(ids.storageLevel()).isNotEqualTo(StorageLevel.NONE());
+    assertThat(searchExecutor.getIds()).isSameAs(ids);
+
+    searchExecutor.endRetrieval();
+    assertThat(ids.storageLevel()).isEqualTo(StorageLevel.NONE());
+    assertThat(searchExecutor.getIds()).isNotSameAs(ids);
+  }
+
+  @Test
+  public void returnsOnlyRequestedElements() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, ResourceType.CAREPLAN,
+        filters);
+    searchExecutor.setElements(Collections.singleton("status"));
+    List<IBaseResource> resources = searchExecutor.getResources(0, 4);
+
+    assertThat(ids(resources)).hasSize(4).isSorted();
+    CarePlan carePlan = (CarePlan) resources.get(0);
+    assertThat(carePlan.getStatus()).isEqualTo(CarePlanStatus.COMPLETED);
+    assertThat(carePlan.hasSubject()).isFalse();
+    assertThat(carePlan.hasCategory()).isFalse();
+  }
+
+  @Test
+  public void getResourcesAsJsonMatchesHapi() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+    List<IBaseResource> expected = assertJsonMatchesHapi(ResourceType.CAREPLAN, filters, 10);
+    assertThat(expected).hasSize(10);
+  }
+
+  @Test
+  public void getResourcesAsJsonWritesDecimalsAndChoices() throws MalformedURLException {
+    mockResourceReader(ResourceType.OBSERVATION);
+
+    // Observations carry decimals within valueQuantity, which are encoded with a separate scale
+    // column, and value[x] is a choice element.
+    List<IBaseResource> expected = assertJsonMatchesHapi(ResourceType.OBSERVATION, null, 100);
+    List<Observation> withQuantities = expected.stream()
+        .map(resource -> (Observation) resource)
+        .filter(Observation::hasValueQuantity)
+        .collect(Collectors.toList());
+    assertThat(withQuantities).isNotEmpty();
+    assertThat(withQuantities).anyMatch(observation -> observation.getValueQuantity().getValue()
+        .scale() > 0);
+  }
+
+  @Test
+  public void getResourcesAsJsonWritesChoiceReferences() throws MalformedURLException {
+    mockResourceReader(ResourceType.MEDICATIONREQUEST);
+
+    // medication[x] is a choice between a CodeableConcept and a Reference.
+    List<IBaseResource> expected = assertJsonMatchesHapi(ResourceType.MEDICATIONREQUEST, null,
+        100);
+    assertThat(expected)
+        .anyMatch(resource -> ((MedicationRequest) resource).hasMedicationCodeableConcept());
+  }
+
+  /**
+   * Asserts that each resource serialised directly from its row parses to the same resource that
+   * the encoder decodes from that row, and returns the decoded resources.
+   */
+  private List<IBaseResource> assertJsonMatchesHapi(ResourceType resourceType,
+      StringAndListParam filters, int count) {
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, resourceType, filters);
+    List<IBaseResource> expected = searchExecutor.getResources(0, count);
+    List<String> actual = searchExecutor.getResourcesAsJson(0, count);
+
+    assertThat(actual).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Resource expectedResource = (Resource) expected.get(i);
+      Resource actualResource = (Resource) TestUtilities.getJsonParser()
+          .parseResource(actual.get(i));
+      assertThat(actualResource.getIdElement().getIdPart())
+          .isEqualTo(expectedResource.getIdElement().getIdPart());
+      actualResource.setIdElement(expectedResource.getIdElement());
+      assertThat(actualResource.equalsDeep(expectedResource))
+          .as("Resource serialised as JSON: %s", actual.get(i))
+          .isTrue();
+    }
+    return expected;
+  }
+
+  private static List<String> ids(List<IBaseResource> resources) {
+    return resources.stream()
+        .map(resource -> resource.getIdElement().getIdPart())
+        .collect(Collectors.toList());
   }
 
   @Test
@@ -156,4 +320,45 @@ public class SearchExecutorTest extends ExecutorTest {
     assertThat(searchExecutor.size()).isEqualTo(14);
   }
 
+  @Test
+  public void sizeOfUnfilteredSearchUsesRowCount() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+    when(mockReader.getRowCount(ResourceType.CAREPLAN)).thenReturn(42L);
+
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, ResourceType.CAREPLAN,
+        null);
+    assertThat(searchExecutor.size()).isEqualTo(42);
+  }
+
+  @Test
+  public void estimatedSizeIsExtrapolatedFromSample() {
+    // Each CarePlan is copied 200 times, giving 2800 completed CarePlans.
+    Dataset<Row> carePlans = spark.read().parquet(
+        new File("src/test/resources/test-data/parquet/CarePlan.parquet").getAbsolutePath());
+    Dataset<Row> copies = carePlans.crossJoin(spark.range(200).toDF("copy"))
+        .withColumn("id", concat(col("id"), lit("-"), col("copy")))
+        .drop("copy");
+    when(mockReader.read(ResourceType.CAREPLAN)).thenReturn(copies);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, ResourceType.CAREPLAN,
+        filters, true);
+    Integer size = searchExecutor.size();
+    assertThat(size).isCloseTo(2800, withinPercentage(25));
+    // The estimate is retained for later pages of the search.
+    assertThat(searchExecutor.size()).isEqualTo(size);
+  }
+
+  @Test
+  public void estimatedSizeOfSmallResultIsExact() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+    SearchExecutor searchExecutor = new SearchExecutor(configuration, ResourceType.CAREPLAN,
+        filters, true);
+    assertThat(searchExecutor.size()).isEqualTo(14);
+  }
+
 }
\ No newline at end of file
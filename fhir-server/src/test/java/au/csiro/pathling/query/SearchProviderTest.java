@@ -7,10 +7,12 @@
 package au.csiro.pathling.query;
 
 import static au.csiro.pathling.TestUtilities.getFhirContext;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 import au.csiro.pathling.encoders.FhirEncoders;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
@@ -59,9 +61,46 @@ public class SearchProviderTest extends ExecutorTest {
     SearchProvider searchProvider = new SearchProvider(configuration, resourceTypeClass);
 
     assertThatExceptionOfType(InvalidRequestException.class)
-        .isThrownBy(() -> searchProvider.search(filters))
+        .isThrownBy(() -> searchProvider.search(filters, null, null, null).size())
         .withMessage(
             "Error parsing FHIRPath expression: mismatched input '<EOF>' expecting {'+', '-', 'is', 'as', 'contains', '(', '{', 'true', 'false', '%', '$this', CODING, DATETIME, TIME, IDENTIFIER, QUOTEDIDENTIFIER, STRING, NUMBER}");
   }
 
-}
\ No newline at end of file
+  @Test
+  public void invalidFilterIsRejectedWhenResultsAreRetrieved() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed"));
+
+    ResourceType subjectResource = ResourceType.CAREPLAN;
+    Class<? extends IBaseResource> resourceTypeClass = fhirContext
+        .getResourceDefinition(subjectResource.name()).getImplementingClass();
+    SearchProvider searchProvider = new SearchProvider(configuration, resourceTypeClass);
+    IBundleProvider result = searchProvider.search(filters, null, null, null);
+
+    // The query is not planned until the results are requested, but an invalid filter is still
+    // reported as a bad request rather than a server error.
+    assertThatExceptionOfType(InvalidRequestException.class)
+        .isThrownBy(() -> result.getResources(0, 10))
+        .satisfies(e -> assertThat(e.getStatusCode()).isEqualTo(400));
+  }
+
+  @Test
+  public void acceptsEstimatedTotal() throws MalformedURLException {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+
+    ResourceType subjectResource = ResourceType.CAREPLAN;
+    Class<? extends IBaseResource> resourceTypeClass = fhirContext
+        .getResourceDefinition(subjectResource.name()).getImplementingClass();
+    SearchProvider searchProvider = new SearchProvider(configuration, resourceTypeClass);
+
+    assertThat(searchProvider
+        .search(filters, new StringParam(SearchProvider.TOTAL_ESTIMATE), null, null).size())
+        .isEqualTo(14);
+  }
+
+}
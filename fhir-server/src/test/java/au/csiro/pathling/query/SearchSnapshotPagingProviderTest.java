@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import au.csiro.pathling.TestUtilities;
+import au.csiro.pathling.encoders.FhirEncoders;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class SearchSnapshotPagingProviderTest extends ExecutorTest {
+
+  private ExecutorConfiguration configuration;
+  private Path snapshotDirectory;
+  private SearchSnapshotPagingProvider pagingProvider;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+
+    Path warehouseDirectory = Files.createTempDirectory("pathling-test-");
+    configuration = new ExecutorConfiguration(spark,
+        TestUtilities.getFhirContext(), null, null, mockReader);
+    configuration.setWarehouseUrl(warehouseDirectory.toString());
+    configuration.setDatabaseName("test");
+    configuration.setFhirEncoders(FhirEncoders.forR4().getOrCreate());
+    snapshotDirectory = Files.createTempDirectory("pathling-searches-");
+    pagingProvider = new SearchSnapshotPagingProvider(configuration,
+        snapshotDirectory.toUri().toString(), 3600);
+  }
+
+  @Test
+  public void retrievesPagesFromSnapshot() throws Exception {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    SearchExecutor searchExecutor = completedCarePlans();
+    List<String> expected = ids(searchExecutor.getResources(0, 100));
+    String searchId = pagingProvider.storeResultList(null, searchExecutor);
+    assertThat(searchId).isNotNull();
+
+    IBundleProvider snapshot = pagingProvider.retrieveResultList(null, searchId);
+    assertThat(snapshot).isNotNull();
+    assertThat(snapshot.getUuid()).isEqualTo(searchId);
+    assertThat(snapshot.size()).isEqualTo(14);
+    assertThat(ids(snapshot.getResources(0, 4))).isEqualTo(expected.subList(0, 4));
+    // A page can be retrieved without the pages before it.
+    assertThat(ids(snapshot.getResources(12, 16))).isEqualTo(expected.subList(12, 14));
+    assertThat(snapshot.getResources(16, 20)).isEmpty();
+  }
+
+  @Test
+  public void discardsSnapshotWhenDataChanges() throws Exception {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    String searchId = pagingProvider.storeResultList(null, completedCarePlans());
+    assertThat(searchId).isNotNull();
+    when(mockReader.getWarehouseVersion()).thenReturn(1L);
+
+    assertThat(pagingProvider.retrieveResultList(null, searchId)).isNull();
+  }
+
+  @Test
+  public void removesOnlySnapshotsAtStartup() throws Exception {
+    mockResourceReader(ResourceType.CAREPLAN);
+
+    String searchId = pagingProvider.storeResultList(null, completedCarePlans());
+    Path otherFile = Files.createFile(snapshotDirectory.resolve("other.txt"));
+    pagingProvider.shutdown();
+    Files.createDirectory(snapshotDirectory.resolve("search-left-behind"));
+
+    pagingProvider = new SearchSnapshotPagingProvider(configuration,
+        snapshotDirectory.toUri().toString(), 3600);
+    assertThat(snapshotDirectory.resolve("search-" + searchId)).doesNotExist();
+    assertThat(snapshotDirectory.resolve("search-left-behind")).doesNotExist();
+    assertThat(otherFile).exists();
+  }
+
+  @Test
+  public void unknownSearchIdReturnsNull() {
+    assertThat(pagingProvider.retrieveResultList(null, "foo")).isNull();
+  }
+
+  @After
+  public void tearDown() {
+    pagingProvider.shutdown();
+  }
+
+  private SearchExecutor completedCarePlans() {
+    StringAndListParam filters = new StringAndListParam();
+    filters.addAnd(new StringParam("status = 'completed'"));
+    return new SearchExecutor(configuration, ResourceType.CAREPLAN, filters);
+  }
+
+  private static List<String> ids(List<IBaseResource> resources) {
+    return resources.stream()
+        .map(resource -> resource.getIdElement().getIdPart())
+        .collect(Collectors.toList());
+  }
+
+}
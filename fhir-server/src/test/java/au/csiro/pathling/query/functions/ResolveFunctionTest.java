@@ -7,8 +7,10 @@
 package au.csiro.pathling.query.functions;
 
 import static au.csiro.pathling.TestUtilities.getFhirContext;
+import static au.csiro.pathling.TestUtilities.getSparkSession;
 import static au.csiro.pathling.test.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -29,6 +31,7 @@ import java.util.HashSet;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.SparkSession;
 import org.apache.spark.sql.types.DataTypes;
 import org.assertj.core.api.Assertions;
 import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
@@ -188,6 +191,64 @@ public class ResolveFunctionTest {
         .hasRows(expectedDataset);
   }
 
+  @Test
+  public void polymorphicResolveUsesIdIndex() {
+    // Build a dataset which represents the input to the function.
+    BaseRuntimeChildDefinition childDefinition = getFhirContext()
+        .getResourceDefinition("Encounter").getChildByName("subject");
+    ParsedExpression inputExpression = new ComplexExpressionBuilder(FHIRDefinedType.REFERENCE)
+        .withColumn("789wxyz_id", DataTypes.StringType)
+        .withStructColumn("reference", DataTypes.StringType)
+        .withStructColumn("display", DataTypes.StringType)
+        .withRow("Encounter/xyz1", RowFactory.create("Patient/abc1", null))
+        .withRow("Encounter/xyz2", RowFactory.create("Patient/abc9", null))
+        .withRow("Encounter/xyz3", RowFactory.create("Group/def1", null))
+        .buildWithStructValue("789wxyz");
+    inputExpression.setSingular(true);
+    inputExpression.setDefinition(childDefinition, "subject");
+
+    // Create a mock reader with an ID index that covers both types, and no resource tables, so that
+    // reading from the tables would fail.
+    Dataset<Row> idIndex = new DatasetBuilder()
+        .withColumn("id", DataTypes.StringType)
+        .withColumn("resource_type", DataTypes.StringType)
+        .withRow("Patient/abc1", "Patient")
+        .withRow("Group/def1", "Group")
+        .withRow("Observation/ghi1", "Observation")
+        .build();
+    ResourceReader mockReader = mock(ResourceReader.class);
+    when(mockReader.getAvailableResourceTypes())
+        .thenReturn(new HashSet<>(Arrays.asList(ResourceType.PATIENT, ResourceType.GROUP)));
+    when(mockReader.idIndexCovers(any())).thenReturn(true);
+    when(mockReader.readIdIndex()).thenReturn(idIndex);
+
+    // Prepare the inputs to the function.
+    ExpressionParserContext parserContext = new ExpressionParserContext();
+    parserContext.setResourceReader(mockReader);
+    FunctionInput resolveInput = new FunctionInput();
+    resolveInput.setContext(parserContext);
+    resolveInput.setInput(inputExpression);
+    resolveInput.setExpression("resolve()");
+
+    // Execute the function.
+    ResolveFunction resolveFunction = new ResolveFunction();
+    ParsedExpression result = resolveFunction.invoke(resolveInput);
+
+    // Check the result.
+    assertThat(result).isPolymorphic();
+    Dataset<Row> expectedDataset = new DatasetBuilder()
+        .withColumn("123abcd_id", DataTypes.StringType)
+        .withColumn("123abcd_type", DataTypes.StringType)
+        .withColumn("123abcd", DataTypes.StringType)
+        .withRow("Encounter/xyz1", "Patient", "Patient/abc1")
+        .withRow("Encounter/xyz2", null, null)
+        .withRow("Encounter/xyz3", "Group", "Group/def1")
+        .build();
+    assertThat(result)
+        .selectPolymorphicResult()
+        .hasRows(expectedDataset);
+  }
+
   @Test
   public void polymorphicResolveAnyType() {
     // Build a dataset which represents the input to the function.
@@ -264,6 +325,57 @@ public class ResolveFunctionTest {
         .hasRows(expectedDataset);
   }
 
+  @Test
+  public void smallTargetIsBroadcast() {
+    BaseRuntimeChildDefinition childDefinition = getFhirContext()
+        .getResourceDefinition("Encounter").getChildByName("episodeOfCare");
+    ParsedExpression inputExpression = new ComplexExpressionBuilder(FHIRDefinedType.REFERENCE)
+        .withColumn("789wxyz_id", DataTypes.StringType)
+        .withStructColumn("reference", DataTypes.StringType)
+        .withStructColumn("display", DataTypes.StringType)
+        .withRow("Encounter/xyz1", RowFactory.create("EpisodeOfCare/abc1", null))
+        .withRow("Encounter/xyz2", RowFactory.create("EpisodeOfCare/abc2", null))
+        .buildWithStructValue("789wxyz");
+    inputExpression.setSingular(true);
+    inputExpression.setDefinition(childDefinition, "episodeOfCare");
+
+    Dataset<Row> episodeOfCareDataset = new DatasetBuilder()
+        .withColumn("id", DataTypes.StringType)
+        .withColumn("status", DataTypes.StringType)
+        .withRow("EpisodeOfCare/abc1", "planned")
+        .withRow("EpisodeOfCare/abc2", "waitlist")
+        .build();
+    ResourceReader mockReader = mock(ResourceReader.class);
+    when(mockReader.read(ResourceType.EPISODEOFCARE)).thenReturn(episodeOfCareDataset);
+
+    // The threshold sits between the two table sizes that are reported below.
+    ExpressionParserContext parserContext = new ExpressionParserContext();
+    parserContext.setResourceReader(mockReader);
+    parserContext.setBroadcastThreshold(1024);
+    FunctionInput resolveInput = new FunctionInput();
+    resolveInput.setContext(parserContext);
+    resolveInput.setInput(inputExpression);
+    resolveInput.setExpression("resolve()");
+
+    // Automatic broadcasting is disabled, as it is within the server.
+    SparkSession spark = getSparkSession();
+    String autoBroadcastThreshold = spark.conf().get("spark.sql.autoBroadcastJoinThreshold");
+    spark.conf().set("spark.sql.autoBroadcastJoinThreshold", "-1");
+    try {
+      when(mockReader.getTableSize(ResourceType.EPISODEOFCARE)).thenReturn(512L);
+      ParsedExpression small = new ResolveFunction().invoke(resolveInput);
+      Assertions.assertThat(small.getDataset().queryExecution().executedPlan().toString())
+          .contains("BroadcastHashJoin");
+
+      when(mockReader.getTableSize(ResourceType.EPISODEOFCARE)).thenReturn(4096L);
+      ParsedExpression large = new ResolveFunction().invoke(resolveInput);
+      Assertions.assertThat(large.getDataset().queryExecution().executedPlan().toString())
+          .doesNotContain("BroadcastHashJoin");
+    } finally {
+      spark.conf().set("spark.sql.autoBroadcastJoinThreshold", autoBroadcastThreshold);
+    }
+  }
+
   @Test
   public void throwExceptionWhenInputNotReference() {
     ParsedExpression input = new PrimitiveExpressionBuilder(FHIRDefinedType.STRING,
@@ -38,6 +38,19 @@ public class ReverseResolveFunctionTest {
 
   @Test
   public void reverseResolve() {
+    assertReverseResolves("Patient/abc1", "Patient/abc2", "Patient/abc2");
+  }
+
+  @Test
+  public void matchesOnTypeAndLogicalId() {
+    // References are matched in the same way as within the reference index, ignoring the base URL
+    // and version.
+    assertReverseResolves("http://example.com/fhir/Patient/abc1", "Patient/abc2/_history/2",
+        "Patient/abc2");
+  }
+
+  private static void assertReverseResolves(String reference1, String reference2,
+      String reference3) {
     // Build an expression which represents the input to the function.
     ParsedExpression inputExpression = new ResourceExpressionBuilder(ResourceType.PATIENT,
         FHIRDefinedType.PATIENT)
@@ -71,17 +84,17 @@ public class ReverseResolveFunctionTest {
         .withColumn("789wxyz_id", DataTypes.StringType)
         .withStructColumn("reference", DataTypes.StringType)
         .withStructColumn("display", DataTypes.StringType)
-        .withRow("Encounter/xyz1", RowFactory.create("Patient/abc1", null))
-        .withRow("Encounter/xyz2", RowFactory.create("Patient/abc2", null))
-        .withRow("Encounter/xyz3", RowFactory.create("Patient/abc2", null))
+        .withRow("Encounter/xyz1", RowFactory.create(reference1, null))
+        .withRow("Encounter/xyz2", RowFactory.create(reference2, null))
+        .withRow("Encounter/xyz3", RowFactory.create(reference3, null))
         .buildWithStructValue("789wxyz");
     ParsedExpression argumentExpression = new ComplexExpressionBuilder(FHIRDefinedType.REFERENCE)
         .withColumn("789wxyz_id", DataTypes.StringType)
         .withStructColumn("reference", DataTypes.StringType)
         .withStructColumn("display", DataTypes.StringType)
-        .withRow("Encounter/xyz1", RowFactory.create("Patient/abc1", null))
-        .withRow("Encounter/xyz2", RowFactory.create("Patient/abc2", null))
-        .withRow("Encounter/xyz3", RowFactory.create("Patient/abc2", null))
+        .withRow("Encounter/xyz1", RowFactory.create(reference1, null))
+        .withRow("Encounter/xyz2", RowFactory.create(reference2, null))
+        .withRow("Encounter/xyz3", RowFactory.create(reference3, null))
         .buildWithStructValue("789wxyz");
     // This is required, as this function assumes that the value column from the origin dataset will
     // be present in the argument dataset.
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.query.ExpressionCache;
+import au.csiro.pathling.query.parsing.parser.ExpressionParserContext;
+import au.csiro.pathling.test.DatasetBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class BloomFilterReductionTest {
+
+  private ExpressionParserContext context;
+  private Dataset<Row> buildDataset;
+  private Dataset<Row> probeDataset;
+
+  @Before
+  public void setUp() {
+    context = new ExpressionParserContext();
+    context.setBloomFilterMaxItems(1000);
+    buildDataset = new DatasetBuilder()
+        .withColumn("reference", DataTypes.StringType)
+        .withRow("Patient/abc1")
+        .withRow("Patient/abc2")
+        .withRow("Patient/abc2")
+        .withRow((Object) null)
+        .build();
+    DatasetBuilder probeBuilder = new DatasetBuilder()
+        .withColumn("id", DataTypes.StringType);
+    for (int i = 1; i <= 100; i++) {
+      probeBuilder.withRow("Patient/abc" + i);
+    }
+    probeDataset = probeBuilder.build();
+  }
+
+  @Test
+  public void probeSideIsReducedToPossibleMatches() {
+    context.setBloomFilterFpp(0.01);
+    Dataset<Row> reduced = BloomFilterReduction
+        .reduce(context, buildDataset, buildDataset.col("reference"), probeDataset,
+            probeDataset.col("id"), "test");
+    BloomFilterReduction.build(context.getPendingBloomFilters());
+
+    List<String> ids = ids(reduced);
+    assertThat(ids).contains("Patient/abc1", "Patient/abc2");
+    // The false positive rate allows for a small number of rows that do not match.
+    assertThat(ids.size()).isLessThan(10);
+  }
+
+  @Test
+  public void predicateIsNamedWithinPlan() {
+    context.setBloomFilterFpp(0.01);
+    Dataset<Row> reduced = BloomFilterReduction
+        .reduce(context, buildDataset, buildDataset.col("reference"), probeDataset,
+            probeDataset.col("id"), "test");
+
+    assertThat(reduced.queryExecution().analyzed().toString())
+        .contains(BloomFilterReduction.PREDICATE_NAME);
+  }
+
+  @Test
+  public void filterIsBuiltAfterCompilationWithinExpressionScope() {
+    context.setBloomFilterFpp(0.01);
+    ExpressionCache.Scope scope = new ExpressionCache(10, 0)
+        .getScope(ResourceType.PATIENT, 1, null, elements -> context);
+    ExpressionParserContext requestContext = scope.newContext();
+    ParsedExpression compiled = scope.get("test", Collections.emptyList(), expression -> {
+      ParsedExpression result = new ParsedExpression();
+      result.setDataset(BloomFilterReduction
+          .reduce(requestContext, buildDataset, buildDataset.col("reference"), probeDataset,
+              probeDataset.col("id"), expression));
+      result.setBloomFilters(new ArrayList<>(requestContext.getPendingBloomFilters()));
+      return result;
+    });
+
+    // The filter is not built during compilation, and is not shared with the context of the
+    // scope.
+    assertThat(compiled.getBloomFilters()).hasSize(1);
+    assertThat(compiled.getBloomFilters().get(0).isBuilt()).isFalse();
+    assertThat(context.getPendingBloomFilters()).isEmpty();
+
+    BloomFilterReduction.build(compiled.getBloomFilters());
+    assertThat(ids(compiled.getDataset())).contains("Patient/abc1", "Patient/abc2");
+  }
+
+  @Test
+  public void probeSideIsUnchangedWhenDisabled() {
+    Dataset<Row> reduced = BloomFilterReduction
+        .reduce(context, buildDataset, buildDataset.col("reference"), probeDataset,
+            probeDataset.col("id"), "test");
+
+    assertThat(reduced).isSameAs(probeDataset);
+  }
+
+  @Test
+  public void probeSideIsUnchangedWhenMaximumExceeded() {
+    context.setBloomFilterFpp(0.01);
+    context.setBloomFilterMaxItems(1);
+    Dataset<Row> reduced = BloomFilterReduction
+        .reduce(context, buildDataset, buildDataset.col("reference"), probeDataset,
+            probeDataset.col("id"), "test");
+    BloomFilterReduction.build(context.getPendingBloomFilters());
+
+    // Every row is kept when the filter could not be built.
+    assertThat(ids(reduced)).hasSize(100);
+  }
+
+  private static List<String> ids(Dataset<Row> dataset) {
+    return dataset.collectAsList().stream()
+        .map(row -> row.getString(0))
+        .collect(Collectors.toList());
+  }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static au.csiro.pathling.TestUtilities.getSparkSession;
+import static org.apache.spark.sql.functions.explode_outer;
+import static org.apache.spark.sql.functions.lit;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class ExpressionFusionTest {
+
+  private Dataset<Row> patients;
+
+  @Before
+  public void setUp() {
+    patients = getSparkSession().read()
+        .parquet("src/test/resources/test-data/parquet/Patient.parquet")
+        .select("id", "gender", "birthDate", "name");
+  }
+
+  @Test
+  public void singularProjectionsAreFused() {
+    Dataset<Row> filter = patients
+        .withColumn("filterResult", patients.col("gender").equalTo(lit("female")));
+    Dataset<Row> grouping = filter.withColumn("groupingResult", filter.col("birthDate"));
+
+    assertThat(ExpressionFusion.extendsDataset(filter, patients)).isTrue();
+    assertThat(ExpressionFusion.extendsDataset(grouping, filter)).isTrue();
+    assertThat(ExpressionFusion.canFuse(filter, grouping)).isTrue();
+    // The de-duplicated dataset used for each grouping can also be fused.
+    Dataset<Row> groupingJoinable = grouping
+        .select(grouping.col("id"), grouping.col("groupingResult")).distinct();
+    assertThat(ExpressionFusion.canFuse(groupingJoinable, grouping)).isTrue();
+  }
+
+  @Test
+  public void explodedDatasetsAreNotFused() {
+    Dataset<Row> exploded = patients
+        .withColumn("explodeResult", explode_outer(patients.col("name")));
+    Dataset<Row> joinable = exploded
+        .select(exploded.col("id"), exploded.col("explodeResult")).distinct();
+
+    assertThat(ExpressionFusion.extendsDataset(exploded, patients)).isFalse();
+    assertThat(ExpressionFusion.canFuse(joinable, exploded)).isFalse();
+    assertThat(ExpressionFusion.canFuse(patients, exploded)).isFalse();
+  }
+
+  @Test
+  public void unrelatedDatasetsAreNotFused() {
+    Dataset<Row> other = getSparkSession().read()
+        .parquet("src/test/resources/test-data/parquet/Patient.parquet")
+        .select("id", "gender");
+
+    assertThat(ExpressionFusion.extendsDataset(other, patients)).isFalse();
+    assertThat(ExpressionFusion.canFuse(other, patients)).isFalse();
+  }
+
+}
@@ -15,6 +15,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import au.csiro.pathling.TestUtilities;
+import au.csiro.pathling.encoders.FhirEncoders;
 import au.csiro.pathling.fhir.TerminologyClient;
 import au.csiro.pathling.fhir.TerminologyClientFactory;
 import au.csiro.pathling.query.ResourceReader;
@@ -30,15 +31,22 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.encoders.ExpressionEncoder;
 import org.assertj.core.api.Assertions;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Enumerations.FHIRDefinedType;
 import org.hl7.fhir.r4.model.Enumerations.ResourceType;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.HumanName.NameUse;
+import org.hl7.fhir.r4.model.Patient;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -284,6 +292,35 @@ public class ExpressionParserTest {
         .selectResult();
   }
 
+  /**
+   * This tests that `where` and `first` are evaluated over the unexploded array when the argument
+   * can be evaluated as a lambda, and that the result matches the decoded resources.
+   */
+  @Test
+  public void testWhereAndFirstOverArray() {
+    ParsedExpression result = expressionParser
+        .parse("name.where($this.use = 'official').first().family");
+    Dataset<Row> dataset = result.getDataset();
+    Assertions.assertThat(dataset.queryExecution().optimizedPlan().toString())
+        .doesNotContain("Generate");
+
+    Map<String, String> actual = new HashMap<>();
+    dataset.select(result.getIdColumn(), result.getValueColumn()).collectAsList()
+        .forEach(row -> actual.put(row.getString(0), row.getString(1)));
+    Map<String, String> expected = new HashMap<>();
+    ExpressionEncoder<IBaseResource> encoder = FhirEncoders.forR4().getOrCreate().of("Patient");
+    mockReader.read(ResourceType.PATIENT).as(encoder).collectAsList().forEach(resource -> {
+      Patient patient = (Patient) resource;
+      String family = patient.getName().stream()
+          .filter(name -> name.getUse() == NameUse.OFFICIAL)
+          .findFirst()
+          .map(HumanName::getFamily)
+          .orElse(null);
+      expected.put("Patient/" + patient.getIdElement().getIdPart(), family);
+    });
+    Assertions.assertThat(actual).isEqualTo(expected);
+  }
+
   /**
    * This tests that the value from the `$this` context gets preserved successfully, when used in
    * the "element" operand to the membership operator.
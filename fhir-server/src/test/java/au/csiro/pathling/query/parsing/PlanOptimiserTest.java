@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.query.parsing.plan.ConstantFolding;
+import au.csiro.pathling.query.parsing.plan.PlanBuilder;
+import au.csiro.pathling.query.parsing.plan.PlanNode;
+import au.csiro.pathling.query.parsing.plan.PlanOptimiser;
+import au.csiro.pathling.query.parsing.plan.QueryPlan;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class PlanOptimiserTest {
+
+  @Test
+  public void unchangedExpressionsAreLoweredFromSource() {
+    PlanNode plan = PlanBuilder.build("name.where(use = 'official').given.first()");
+
+    assertThat(ConstantFolding.fold(plan)).isSameAs(plan);
+    assertThat(plan.toExpression()).isEqualTo("name.where(use = 'official').given.first()");
+    assertThat(plan.toFhirPath()).isEqualTo("name.where(use = 'official').given.first()");
+  }
+
+  @Test
+  public void foldsConstantOperators() {
+    assertThat(ConstantFolding.fold(PlanBuilder.build("gender = 'female' and (1 < 2)"))
+        .toExpression()).isEqualTo("gender = 'female'");
+    assertThat(ConstantFolding.fold(PlanBuilder.build("active or 'a' = 'b'"))
+        .toExpression()).isEqualTo("active");
+    assertThat(ConstantFolding.fold(PlanBuilder.build("(active and false) or deceasedBoolean"))
+        .toExpression()).isEqualTo("deceasedBoolean");
+  }
+
+  @Test
+  public void optimisesQueryPlan() {
+    QueryPlan plan = QueryPlan.build(
+        Arrays.asList("gender = 'female' and subject.resolve().active", "true or birthDate",
+            "gender = 'female'"),
+        Collections.singletonList("gender = 'female'"),
+        Arrays.asList("count()", "count()"));
+
+    QueryPlan optimised = new PlanOptimiser(false).optimise(plan);
+
+    List<PlanNode> filters = optimised.getFilters();
+    assertThat(filters).hasSize(2);
+    assertThat(filters.get(0).toExpression()).isEqualTo("gender = 'female'");
+    assertThat(filters.get(1).toExpression()).isEqualTo("subject.resolve().active");
+    assertThat(optimised.getGroupings().get(0)).isSameAs(filters.get(0));
+    assertThat(optimised.getAggregations().get(1))
+        .isSameAs(optimised.getAggregations().get(0));
+    assertThat(optimised.getReferencedElements())
+        .containsExactlyInAnyOrder("gender", "subject", "active");
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static au.csiro.pathling.TestUtilities.getFhirContext;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.test.DatasetBuilder;
+import java.util.List;
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataTypes;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class ReferenceIndexTest {
+
+  @Test
+  public void normalisesReferences() {
+    Dataset<Row> dataset = new DatasetBuilder()
+        .withColumn("reference", DataTypes.StringType)
+        .withRow("Patient/123")
+        .withRow("http://example.com/fhir/Patient/123/_history/2")
+        .withRow("#contained")
+        .build();
+    Column reference = dataset.col("reference");
+    List<Row> rows = dataset
+        .select(ReferenceIndex.targetType(reference), ReferenceIndex.targetId(reference))
+        .collectAsList();
+
+    assertThat(rows.get(0).getString(0)).isEqualTo("Patient");
+    assertThat(rows.get(0).getString(1)).isEqualTo("123");
+    assertThat(rows.get(1).getString(0)).isEqualTo("Patient");
+    assertThat(rows.get(1).getString(1)).isEqualTo("123");
+    assertThat(rows.get(2).isNullAt(0)).isTrue();
+    assertThat(rows.get(2).isNullAt(1)).isTrue();
+  }
+
+  @Test
+  public void extractsLogicalIds() {
+    Dataset<Row> dataset = new DatasetBuilder()
+        .withColumn("id", DataTypes.StringType)
+        .withRow("Patient/123")
+        .withRow("Patient/123/_history/1")
+        .withRow("123")
+        .build();
+    List<Row> rows = dataset.select(ReferenceIndex.logicalId(dataset.col("id")))
+        .collectAsList();
+
+    assertThat(rows).extracting(row -> row.getString(0)).containsExactly("123", "123", "123");
+  }
+
+  @Test
+  public void findsTopLevelReferenceElements() {
+    List<String> elements = ReferenceIndex.referenceElements(getFhirContext(), "Encounter");
+
+    assertThat(elements).contains("subject", "episodeOfCare", "serviceProvider");
+    // Reference elements nested within backbone elements are not indexed.
+    assertThat(elements).doesNotContain("individual");
+  }
+
+}
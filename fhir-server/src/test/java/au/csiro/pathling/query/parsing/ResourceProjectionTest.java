@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.query.parsing;
+
+import static au.csiro.pathling.TestUtilities.getSparkSession;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.query.parsing.parser.ResourceProjection;
+import java.util.Arrays;
+import java.util.Set;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class ResourceProjectionTest {
+
+  @Test
+  public void collectsIdentifiersFromExpressions() {
+    Set<String> identifiers = ResourceProjection.referencedIdentifiers(Arrays.asList(
+        "%resource.gender = 'female'",
+        "birthDate",
+        "reverseResolve(Condition.subject).code.coding contains http://snomed.info/sct|44054006"));
+
+    assertThat(identifiers)
+        .contains("gender", "birthDate", "Condition", "subject", "code", "coding")
+        .doesNotContain("female");
+  }
+
+  @Test
+  public void projectsOnlyReferencedElements() {
+    Dataset<Row> patients = getSparkSession().read()
+        .parquet("src/test/resources/test-data/parquet/Patient.parquet");
+    Set<String> identifiers = ResourceProjection
+        .referencedIdentifiers(Arrays.asList("gender", "birthDate"));
+
+    Dataset<Row> projected = ResourceProjection.project(patients, "resource", identifiers);
+
+    StructType resourceSchema = (StructType) projected.schema().apply("resource").dataType();
+    assertThat(resourceSchema.fieldNames()).containsExactly("id", "gender", "birthDate");
+    assertThat(projected.count()).isEqualTo(patients.count());
+  }
+
+}
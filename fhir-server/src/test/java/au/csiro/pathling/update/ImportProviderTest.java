@@ -8,20 +8,36 @@ package au.csiro.pathling.update;
 
 import static au.csiro.pathling.TestUtilities.getSparkSession;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import au.csiro.pathling.encoders.FhirEncoders;
 import au.csiro.pathling.fhir.AnalyticsServerConfiguration;
 import au.csiro.pathling.fhir.FhirContextFactory;
 import au.csiro.pathling.query.ResourceReader;
+import au.csiro.pathling.update.Job.Status;
+import au.csiro.pathling.update.Job.TypeProgress;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
 import org.hl7.fhir.r4.model.*;
+import org.hl7.fhir.r4.model.Enumerations.ResourceType;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
@@ -29,6 +45,7 @@ import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.mockito.ArgumentCaptor;
 
 /**
  * @author John Grimes
@@ -39,11 +56,13 @@ public class ImportProviderTest {
   private ImportProvider importProvider;
   private SparkSession spark;
   private ResourceReader resourceReader;
+  private JobRegistry jobRegistry;
+  private Path warehouseDirectory;
 
   @Before
   public void setUp() throws IOException {
     spark = getSparkSession();
-    Path warehouseDirectory = Files.createTempDirectory("pathling-test");
+    warehouseDirectory = Files.createTempDirectory("pathling-test");
 
     AnalyticsServerConfiguration config = new AnalyticsServerConfiguration();
     config.setWarehouseUrl(warehouseDirectory.toString());
@@ -52,37 +71,240 @@ public class ImportProviderTest {
     resourceReader = mock(ResourceReader.class);
     ImportExecutor importExecutor = new ImportExecutor(config, spark, FhirEncoders.forR4().getOrCreate(),
         new FhirContextFactory(), resourceReader);
-    importProvider = new ImportProvider(importExecutor);
+    jobRegistry = new JobRegistry(spark, config.getImportParallelism());
+    importProvider = new ImportProvider(importExecutor, jobRegistry);
   }
 
   @Test
   public void simpleImport() throws IOException, URISyntaxException {
+    Parameters requestParameters = buildPatientImportRequest();
+
+    OperationOutcome opOutcome = importProvider.importOperation(requestParameters);
+
+    assertThat(opOutcome).isNotNull();
+    OperationOutcomeIssueComponent issue = opOutcome.getIssueFirstRep();
+    assertThat(opOutcome).isNotNull();
+    assertThat(issue.getSeverity()).isEqualTo(IssueSeverity.INFORMATION);
+    assertThat(issue.getCode()).isEqualTo(IssueType.INFORMATIONAL);
+    assertThat(issue.getDiagnostics()).isEqualTo("Data import completed successfully");
+    verify(resourceReader).updateAvailableResourceTypes();
+  }
+
+  @Test
+  public void directDecoderMatchesHapiDecoder() throws IOException, URISyntaxException {
+    String tablePath = warehouseDirectory.resolve("test").resolve("Patient.parquet").toString();
+
+    Parameters hapiRequest = buildPatientImportRequest();
+    importProvider.importOperation(hapiRequest);
+    // The narrative is excluded, as HAPI normalises the XHTML when it is parsed.
+    Dataset<Row> hapiResult = spark.read().format("delta").load(tablePath).drop("text")
+        .localCheckpoint();
+
+    Parameters directRequest = buildPatientImportRequest();
+    directRequest.addParameter().setName("decoder").setValue(new CodeType("direct"));
+    OperationOutcome opOutcome = importProvider.importOperation(directRequest);
+    Dataset<Row> directResult = spark.read().format("delta").load(tablePath).drop("text");
+
+    assertThat(opOutcome.getIssueFirstRep().getDiagnostics())
+        .isEqualTo("Data import completed successfully");
+    assertThat(directResult.schema()).isEqualTo(hapiResult.schema());
+    assertThat(directResult.count()).isEqualTo(hapiResult.count());
+    assertThat(directResult.except(hapiResult).count()).isEqualTo(0);
+    assertThat(hapiResult.except(directResult).count()).isEqualTo(0);
+  }
+
+  @Test
+  public void importAcrossPartitions() throws IOException, URISyntaxException {
+    String tablePath = warehouseDirectory.resolve("test").resolve("Patient.parquet").toString();
+    importProvider.importOperation(buildPatientImportRequest());
+    Dataset<Row> expected = spark.read().format("delta").load(tablePath).localCheckpoint();
+
+    // The patients are split across two files, which are read as separate partitions.
     URL importUrl = Thread.currentThread().getContextClassLoader()
         .getResource("test-data/fhir/Patient.ndjson");
     assertThat(importUrl).isNotNull();
+    List<String> lines = Files.readAllLines(Paths.get(importUrl.toURI()));
+    Path sourceDirectory = Files.createTempDirectory("pathling-test-source");
+    Files.write(sourceDirectory.resolve("part-0.ndjson"), lines.subList(0, 4));
+    Files.write(sourceDirectory.resolve("part-1.ndjson"), lines.subList(4, lines.size()));
+    assertThat(spark.read().textFile(sourceDirectory.toString()).rdd().getNumPartitions())
+        .isGreaterThan(1);
 
-    // Build the request Parameters resource.
     Parameters requestParameters = new Parameters();
+    addSource(requestParameters, "Patient", sourceDirectory.toUri().toURL());
+    OperationOutcome opOutcome = importProvider.importOperation(requestParameters);
+
+    assertThat(opOutcome.getIssue().get(1).getDiagnostics()).startsWith("Imported 9 Patient");
+    Dataset<Row> actual = spark.read().format("delta").load(tablePath);
+    assertThat(actual.count()).isEqualTo(9);
+    assertThat(actual.except(expected).count()).isEqualTo(0);
+    assertThat(expected.except(actual).count()).isEqualTo(0);
+  }
+
+  @Test
+  public void multipleSourceImport() throws IOException, URISyntaxException {
+    Parameters requestParameters = new Parameters();
+    addSource(requestParameters, "Patient");
+    addSource(requestParameters, "Condition");
+    addSource(requestParameters, "Observation");
+
+    OperationOutcome opOutcome = importProvider.importOperation(requestParameters);
+
+    assertThat(opOutcome.getIssue()).hasSize(4);
+    assertThat(opOutcome.getIssueFirstRep().getDiagnostics())
+        .isEqualTo("Data import completed successfully");
+    assertThat(opOutcome.getIssue().get(1).getDiagnostics()).startsWith("Imported 9 Patient");
+    assertThat(opOutcome.getIssue().get(2).getDiagnostics()).contains("Condition resources");
+    assertThat(opOutcome.getIssue().get(3).getDiagnostics()).contains("Observation resources");
+    verify(resourceReader, times(1)).updateAvailableResourceTypes();
+    for (String resourceType : Arrays.asList("Patient", "Condition", "Observation")) {
+      assertThat(warehouseDirectory.resolve("test").resolve(resourceType + ".parquet")).exists();
+    }
+  }
+
+  @Test
+  public void asyncImport() throws Exception {
+    ServletRequestDetails requestDetails = mock(ServletRequestDetails.class);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(requestDetails.getHeader("Prefer")).thenReturn("respond-async");
+    when(requestDetails.getFhirServerBase()).thenReturn("http://localhost:8080/fhir");
+    when(requestDetails.getFhirContext()).thenReturn(FhirContext.forR4());
+    when(requestDetails.getServletResponse()).thenReturn(response);
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+
+    importProvider.importOperation(buildPatientImportRequest(), requestDetails);
+
+    // The response should be returned straight away, pointing to the status URL.
+    verify(response).setStatus(202);
+    ArgumentCaptor<String> contentLocation = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("Content-Location"), contentLocation.capture());
+    String statusUrl = contentLocation.getValue();
+    assertThat(statusUrl).startsWith("http://localhost:8080/fhir/$job?id=");
+
+    Job job = jobRegistry.get(statusUrl.substring(statusUrl.indexOf("id=") + 3));
+    assertThat(job).isNotNull();
+    long deadline = System.currentTimeMillis() + 60000;
+    while (job.getStatus() == Status.IN_PROGRESS && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+
+    assertThat(job.getStatus()).isEqualTo(Status.COMPLETED);
+    assertThat(job.getOutcome()).isNotNull();
+    assertThat(job.getOutcome().getIssueFirstRep().getDiagnostics())
+        .isEqualTo("Data import completed successfully");
+    assertThat(job.getProgress()).hasSize(1);
+    TypeProgress progress = job.getProgress().get(0);
+    assertThat(progress.getResourceType()).isEqualTo(ResourceType.PATIENT);
+    assertThat(progress.getRecords()).isEqualTo(9);
+    URL importUrl = Thread.currentThread().getContextClassLoader()
+        .getResource("test-data/fhir/Patient.ndjson");
+    assertThat(importUrl).isNotNull();
+    assertThat(progress.getBytes()).isEqualTo(Files.size(Paths.get(importUrl.toURI())));
+    verify(resourceReader).updateAvailableResourceTypes();
+  }
+
+  @Test
+  public void mergeImport() throws IOException, URISyntaxException {
+    String tablePath = warehouseDirectory.resolve("test").resolve("Patient.parquet").toString();
+    importProvider.importOperation(buildPatientImportRequest());
+
+    // The merge source contains one updated patient and one new patient.
+    Parameters mergeRequest = new Parameters();
+    ParametersParameterComponent source = addSource(mergeRequest, "Patient", "test-data/merge");
+    ParametersParameterComponent mode = new ParametersParameterComponent(new StringType("mode"));
+    mode.setValue(new CodeType("merge"));
+    source.getPart().add(mode);
+    OperationOutcome opOutcome = importProvider.importOperation(mergeRequest);
+
+    assertThat(opOutcome.getIssue().get(1).getDiagnostics()).endsWith("(mode: merge)");
+    Dataset<Row> patients = spark.read().format("delta").load(tablePath);
+    assertThat(patients.count()).isEqualTo(10);
+    assertThat(patients.filter("id = 'Patient/8ee183e2-b3c0-4151-be94-b945d6aa8c6d'")
+        .select("gender").head().getString(0)).isEqualTo("female");
+    assertThat(patients.filter("id = 'Patient/0a2b1c8e-5f4d-4e6a-9b3c-7d8e9f0a1b2c'").count())
+        .isEqualTo(1);
+    // The original version of the table is still available.
+    assertThat(spark.read().format("delta").option("versionAsOf", 0).load(tablePath).count())
+        .isEqualTo(9);
+  }
+
+  @Test
+  public void mergeImportWithDuplicateIds() throws IOException, URISyntaxException {
+    String tablePath = warehouseDirectory.resolve("test").resolve("Patient.parquet").toString();
+    importProvider.importOperation(buildPatientImportRequest());
+
+    // The merge source contains two versions of the same new patient.
+    Parameters mergeRequest = new Parameters();
+    ParametersParameterComponent source = addSource(mergeRequest, "Patient",
+        "test-data/merge-duplicates");
+    ParametersParameterComponent mode = new ParametersParameterComponent(new StringType("mode"));
+    mode.setValue(new CodeType("merge"));
+    source.getPart().add(mode);
+    importProvider.importOperation(mergeRequest);
+
+    Dataset<Row> patients = spark.read().format("delta").load(tablePath);
+    assertThat(patients.count()).isEqualTo(10);
+    Dataset<Row> merged = patients
+        .filter("id = 'Patient/5d1a2b3c-4e5f-4a6b-8c7d-9e0f1a2b3c4d'");
+    assertThat(merged.count()).isEqualTo(1);
+    assertThat(merged.select("gender").head().getString(0)).isEqualTo("other");
+  }
+
+  @Test
+  public void sourcesOfSameTypeAreImportedInOrder() throws IOException, URISyntaxException {
+    String tablePath = warehouseDirectory.resolve("test").resolve("Patient.parquet").toString();
+
+    // The merge can only produce the expected table if it is applied after the overwrite.
+    Parameters requestParameters = new Parameters();
+    addSource(requestParameters, "Patient");
+    addSource(requestParameters, "Condition");
+    ParametersParameterComponent source = addSource(requestParameters, "Patient",
+        "test-data/merge");
+    ParametersParameterComponent mode = new ParametersParameterComponent(new StringType("mode"));
+    mode.setValue(new CodeType("merge"));
+    source.getPart().add(mode);
+    OperationOutcome opOutcome = importProvider.importOperation(requestParameters);
+
+    assertThat(opOutcome.getIssue()).hasSize(4);
+    assertThat(opOutcome.getIssue().get(1).getDiagnostics()).endsWith("(mode: overwrite)");
+    assertThat(opOutcome.getIssue().get(2).getDiagnostics()).endsWith("(mode: merge)");
+    assertThat(opOutcome.getIssue().get(3).getDiagnostics()).contains("Condition resources");
+    assertThat(spark.read().format("delta").load(tablePath).count()).isEqualTo(10);
+  }
+
+  private static Parameters buildPatientImportRequest() {
+    Parameters requestParameters = new Parameters();
+    addSource(requestParameters, "Patient");
+    return requestParameters;
+  }
+
+  private static ParametersParameterComponent addSource(Parameters requestParameters,
+      String resourceTypeCode) {
+    return addSource(requestParameters, resourceTypeCode, "test-data/fhir");
+  }
+
+  private static ParametersParameterComponent addSource(Parameters requestParameters,
+      String resourceTypeCode, String directory) {
+    URL importUrl = Thread.currentThread().getContextClassLoader()
+        .getResource(directory + "/" + resourceTypeCode + ".ndjson");
+    assertThat(importUrl).isNotNull();
+    return addSource(requestParameters, resourceTypeCode, importUrl);
+  }
+
+  private static ParametersParameterComponent addSource(Parameters requestParameters,
+      String resourceTypeCode, URL importUrl) {
+    // Build the request Parameters resource.
     ParametersParameterComponent source = new ParametersParameterComponent(
         new StringType("source"));
     ParametersParameterComponent resourceType = new ParametersParameterComponent(
         new StringType("resourceType"));
-    resourceType.setValue(new CodeType("Patient"));
+    resourceType.setValue(new CodeType(resourceTypeCode));
     source.getPart().add(resourceType);
     ParametersParameterComponent url = new ParametersParameterComponent(new StringType("url"));
     url.setValue(new UrlType(importUrl.toString()));
     source.getPart().add(url);
     requestParameters.getParameter().add(source);
-
-    OperationOutcome opOutcome = importProvider.importOperation(requestParameters);
-
-    assertThat(opOutcome).isNotNull();
-    OperationOutcomeIssueComponent issue = opOutcome.getIssueFirstRep();
-    assertThat(opOutcome).isNotNull();
-    assertThat(issue.getSeverity()).isEqualTo(IssueSeverity.INFORMATION);
-    assertThat(issue.getCode()).isEqualTo(IssueType.INFORMATIONAL);
-    assertThat(issue.getDiagnostics()).isEqualTo("Data import completed successfully");
-    verify(resourceReader).updateAvailableResourceTypes();
+    return source;
   }
 
 }
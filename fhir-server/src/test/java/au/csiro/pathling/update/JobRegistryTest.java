@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2018-2020, Commonwealth Scientific and Industrial Research
+ * Organisation (CSIRO) ABN 41 687 119 230. Licensed under the CSIRO Open Source
+ * Software Licence Agreement.
+ */
+
+package au.csiro.pathling.update;
+
+import static au.csiro.pathling.TestUtilities.getSparkSession;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import au.csiro.pathling.update.Job.Status;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * @author John Grimes
+ */
+@Category(au.csiro.pathling.UnitTest.class)
+public class JobRegistryTest {
+
+  @Test
+  public void jobsBeyondLimitWaitToStart() throws Exception {
+    JobRegistry jobRegistry = new JobRegistry(getSparkSession(), 1);
+    CountDownLatch firstStarted = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean secondStarted = new AtomicBoolean(false);
+
+    Job first = jobRegistry.submit("first", job -> {
+      firstStarted.countDown();
+      release.await();
+      return new OperationOutcome();
+    });
+    Job second = jobRegistry.submit("second", job -> {
+      secondStarted.set(true);
+      return new OperationOutcome();
+    });
+
+    assertThat(firstStarted.await(10, TimeUnit.SECONDS)).isTrue();
+    Thread.sleep(200);
+    assertThat(secondStarted.get()).isFalse();
+    assertThat(second.getStatus()).isEqualTo(Status.IN_PROGRESS);
+
+    release.countDown();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (second.getStatus() == Status.IN_PROGRESS && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(first.getStatus()).isEqualTo(Status.COMPLETED);
+    assertThat(second.getStatus()).isEqualTo(Status.COMPLETED);
+    assertThat(secondStarted.get()).isTrue();
+  }
+
+}